@@ -0,0 +1,75 @@
+package com.jeffmony.videodemo.benchmark;
+
+import android.graphics.Typeface;
+import android.os.Bundle;
+import android.text.TextUtils;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+
+import com.jeffmony.downloader.m3u8.M3U8ParserBenchmark;
+import com.jeffmony.downloader.remux.M3U8MergeBenchmark;
+import com.jeffmony.downloader.utils.LogUtils;
+
+import java.io.File;
+
+/**
+ * debug包中的性能对比, 结果显示在界面上, 同时打印到日志:
+ * adb shell am start -n com.jeffmony.videodemo/.benchmark.BenchmarkActivity
+ * 传入已经下载完成、还没有合并的任务的本地M3U8时, 再对比两种合并方式:
+ * adb shell am start -n com.jeffmony.videodemo/.benchmark.BenchmarkActivity --es m3u8 /path/to/xxx_local.m3u8
+ */
+public class BenchmarkActivity extends AppCompatActivity {
+
+    private static final String TAG = "BenchmarkActivity";
+    private static final String EXTRA_M3U8_PATH = "m3u8";
+
+    private TextView mResultTxt;
+
+    @Override
+    protected void onCreate(@Nullable Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        ScrollView scrollView = new ScrollView(this);
+        mResultTxt = new TextView(this);
+        mResultTxt.setTypeface(Typeface.MONOSPACE);
+        int padding = (int) (10 * getResources().getDisplayMetrics().density);
+        mResultTxt.setPadding(padding, padding, padding, padding);
+        scrollView.addView(mResultTxt);
+        setContentView(scrollView);
+
+        String m3u8Path = getIntent().getStringExtra(EXTRA_M3U8_PATH);
+        new Thread(() -> runBenchmarks(m3u8Path), TAG).start();
+    }
+
+    private void runBenchmarks(String m3u8Path) {
+        appendResult("M3U8 parser running...");
+        try {
+            appendResult(M3U8ParserBenchmark.run(M3U8ParserBenchmark.DEFAULT_SEGMENT_COUNTS));
+        } catch (Exception e) {
+            LogUtils.w(TAG, "M3U8ParserBenchmark failed, exception=" + e);
+            appendResult("M3U8 parser failed: " + e);
+        }
+        if (TextUtils.isEmpty(m3u8Path)) {
+            return;
+        }
+        appendResult("M3U8 merge running...");
+        try {
+            appendResult(M3U8MergeBenchmark.run(new File(m3u8Path)));
+        } catch (Exception e) {
+            LogUtils.w(TAG, "M3U8MergeBenchmark failed, exception=" + e);
+            appendResult("M3U8 merge failed: " + e);
+        }
+    }
+
+    private void appendResult(String result) {
+        runOnUiThread(() -> {
+            if (isFinishing()) {
+                return;
+            }
+            mResultTxt.append(result);
+            mResultTxt.append("\n");
+        });
+    }
+}
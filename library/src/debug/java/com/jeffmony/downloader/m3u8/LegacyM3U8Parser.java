@@ -0,0 +1,126 @@
+package com.jeffmony.downloader.m3u8;
+
+import android.text.TextUtils;
+
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.LogUtils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * M3U8Parser之前M3U8Utils.parseNetworkM3U8Info中基于正则的解析逻辑, 只用于M3U8ParserBenchmark的对比.
+ * 去掉了网络请求和多码率的跳转, 其余逐行trim、打印日志、正则匹配属性的过程保持原样
+ */
+class LegacyM3U8Parser {
+
+    static M3U8 parse(Reader reader, String videoUrl) throws IOException {
+        BufferedReader bufferedReader = new BufferedReader(reader);
+        M3U8 m3u8 = new M3U8(videoUrl);
+        float tsDuration = 0;
+        String byteRange = "";
+        int targetDuration = 0;
+        int tsIndex = 0;
+        int version = 0;
+        int sequence = 0;
+        int initSequence = 0;
+        boolean hasDiscontinuity = false;
+        boolean hasEndList = false;
+        boolean hasKey = false;
+        boolean hasInitSegment = false;
+        String method = null;
+        String encryptionIV = null;
+        String encryptionKeyUri = null;
+        String initSegmentUri = null;
+        String segmentByteRange = null;
+        String line;
+        while ((line = bufferedReader.readLine()) != null) {
+            line = line.trim();
+            if (TextUtils.isEmpty(line)) {
+                continue;
+            }
+            LogUtils.i(DownloadConstants.TAG, "line = " + line);
+            if (line.startsWith(M3U8Constants.TAG_PREFIX)) {
+                if (line.startsWith(M3U8Constants.TAG_MEDIA_DURATION)) {
+                    String ret = M3U8Utils.parseStringAttr(line, M3U8Constants.REGEX_MEDIA_DURATION);
+                    if (!TextUtils.isEmpty(ret)) {
+                        tsDuration = Float.parseFloat(ret);
+                    }
+                } else if (line.startsWith(M3U8Constants.TAG_BYTERANGE)) {
+                    byteRange = M3U8Utils.parseStringAttr(line, M3U8Constants.REGEX_BYTERANGE);
+                } else if (line.startsWith(M3U8Constants.TAG_TARGET_DURATION)) {
+                    String ret = M3U8Utils.parseStringAttr(line, M3U8Constants.REGEX_TARGET_DURATION);
+                    if (!TextUtils.isEmpty(ret)) {
+                        targetDuration = Integer.parseInt(ret);
+                    }
+                } else if (line.startsWith(M3U8Constants.TAG_VERSION)) {
+                    String ret = M3U8Utils.parseStringAttr(line, M3U8Constants.REGEX_VERSION);
+                    if (!TextUtils.isEmpty(ret)) {
+                        version = Integer.parseInt(ret);
+                    }
+                } else if (line.startsWith(M3U8Constants.TAG_MEDIA_SEQUENCE)) {
+                    String ret = M3U8Utils.parseStringAttr(line, M3U8Constants.REGEX_MEDIA_SEQUENCE);
+                    if (!TextUtils.isEmpty(ret)) {
+                        sequence = Integer.parseInt(ret);
+                        initSequence = sequence;
+                    }
+                } else if (line.startsWith(M3U8Constants.TAG_DISCONTINUITY)) {
+                    hasDiscontinuity = true;
+                } else if (line.startsWith(M3U8Constants.TAG_ENDLIST)) {
+                    hasEndList = true;
+                } else if (line.startsWith(M3U8Constants.TAG_KEY)) {
+                    hasKey = true;
+                    method = M3U8Utils.parseOptionalStringAttr(line, M3U8Constants.REGEX_METHOD);
+                    String keyFormat = M3U8Utils.parseOptionalStringAttr(line, M3U8Constants.REGEX_KEYFORMAT);
+                    if (!M3U8Constants.METHOD_NONE.equals(method)) {
+                        encryptionIV = M3U8Utils.parseOptionalStringAttr(line, M3U8Constants.REGEX_IV);
+                        if (M3U8Constants.KEYFORMAT_IDENTITY.equals(keyFormat) || keyFormat == null) {
+                            if (M3U8Constants.METHOD_AES_128.equals(method)) {
+                                String tempKeyUri = M3U8Utils.parseStringAttr(line, M3U8Constants.REGEX_URI);
+                                if (tempKeyUri != null) {
+                                    encryptionKeyUri = M3U8Utils.getM3U8AbsoluteUrl(videoUrl, tempKeyUri);
+                                }
+                            }
+                        }
+                    }
+                } else if (line.startsWith(M3U8Constants.TAG_INIT_SEGMENT)) {
+                    String tempInitSegmentUri = M3U8Utils.parseStringAttr(line, M3U8Constants.REGEX_URI);
+                    if (!TextUtils.isEmpty(tempInitSegmentUri)) {
+                        hasInitSegment = true;
+                        initSegmentUri = M3U8Utils.getM3U8AbsoluteUrl(videoUrl, tempInitSegmentUri);
+                        segmentByteRange = M3U8Utils.parseOptionalStringAttr(line, M3U8Constants.REGEX_ATTR_BYTERANGE);
+                    }
+                }
+                continue;
+            }
+            if (Math.abs(tsDuration) < 0.001f) {
+                continue;
+            }
+            M3U8Seg ts = new M3U8Seg();
+            ts.initTsAttributes(M3U8Utils.getM3U8AbsoluteUrl(videoUrl, line), tsDuration, tsIndex, sequence++, hasDiscontinuity, byteRange);
+            if (hasKey) {
+                ts.setKeyConfig(method, encryptionKeyUri, encryptionIV);
+            }
+            if (hasInitSegment) {
+                ts.setInitSegmentInfo(initSegmentUri, segmentByteRange);
+            }
+            m3u8.addTs(ts);
+            tsIndex++;
+            tsDuration = 0;
+            hasDiscontinuity = false;
+            hasKey = false;
+            hasInitSegment = false;
+            method = null;
+            encryptionKeyUri = null;
+            encryptionIV = null;
+            initSegmentUri = null;
+            segmentByteRange = null;
+        }
+        m3u8.setTargetDuration(targetDuration);
+        m3u8.setVersion(version);
+        m3u8.setSequence(initSequence);
+        m3u8.setHasEndList(hasEndList);
+        return m3u8;
+    }
+}
@@ -0,0 +1,146 @@
+package com.jeffmony.downloader.m3u8;
+
+import android.os.Build;
+import android.os.Debug;
+
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.LogUtils;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * M3U8Parser和之前正则解析(LegacyM3U8Parser)的对比, 只在debug包中.
+ * 合成的点播列表每50个分片一个#EXT-X-KEY, 带#EXT-X-MAP和#EXT-X-BYTERANGE, 相对地址和绝对地址交替,
+ * 两个解析器都按网络M3U8的方式解析, 需要把相对地址转换成绝对地址.
+ * 每种长度先各预热WARMUP_COUNT次, 再交替运行RUN_COUNT次, 输出耗时的中位数和平均每次分配的内存,
+ * 分配的内存通过ART的统计获取, Android 6.0以下输出-1.
+ * 旧的解析器每一行都会打印日志, 对比的时候日志级别保持默认的INFO, 和之前线上的表现一致
+ */
+public class M3U8ParserBenchmark {
+
+    public static final int[] DEFAULT_SEGMENT_COUNTS = {1000, 10000, 100000};
+
+    private static final String PLAYLIST_URL = "https://media.example.com/vod/2020/movie/index.m3u8";
+    private static final int KEY_INTERVAL = 50;
+    private static final int WARMUP_COUNT = 2;
+    private static final int RUN_COUNT = 5;
+
+    /**
+     * 耗时比较长, 不要在主线程调用
+     * @return 每种长度一行的对比结果
+     */
+    public static String run(int[] segmentCounts) throws IOException {
+        StringBuilder report = new StringBuilder();
+        report.append("segments   regex parser         tokenizer\n");
+        boolean countAlloc = getAllocatedBytes() >= 0;
+        for (int segmentCount : segmentCounts) {
+            String playlist = createPlaylist(segmentCount);
+            checkSameOutput(playlist, segmentCount);
+            for (int index = 0; index < WARMUP_COUNT; index++) {
+                parseLegacy(playlist);
+                parseTokenizer(playlist);
+            }
+            long[] legacyTimes = new long[RUN_COUNT];
+            long[] tokenizerTimes = new long[RUN_COUNT];
+            long legacyAlloc = 0;
+            long tokenizerAlloc = 0;
+            for (int index = 0; index < RUN_COUNT; index++) {
+                long allocSize = getAllocatedBytes();
+                long startTime = System.nanoTime();
+                parseLegacy(playlist);
+                legacyTimes[index] = System.nanoTime() - startTime;
+                legacyAlloc += getAllocatedBytes() - allocSize;
+
+                allocSize = getAllocatedBytes();
+                startTime = System.nanoTime();
+                parseTokenizer(playlist);
+                tokenizerTimes[index] = System.nanoTime() - startTime;
+                tokenizerAlloc += getAllocatedBytes() - allocSize;
+            }
+            String line = String.format("%-10d %-20s %s", segmentCount,
+                    formatResult(legacyTimes, countAlloc ? legacyAlloc : -1), formatResult(tokenizerTimes, countAlloc ? tokenizerAlloc : -1));
+            LogUtils.i(DownloadConstants.TAG, "M3U8ParserBenchmark " + line);
+            report.append(line).append('\n');
+        }
+        return report.toString();
+    }
+
+    static String createPlaylist(int segmentCount) {
+        StringBuilder builder = new StringBuilder(segmentCount * 96);
+        builder.append("#EXTM3U\n");
+        builder.append("#EXT-X-VERSION:7\n");
+        builder.append("#EXT-X-TARGETDURATION:6\n");
+        builder.append("#EXT-X-MEDIA-SEQUENCE:0\n");
+        builder.append("#EXT-X-PLAYLIST-TYPE:VOD\n");
+        builder.append("#EXT-X-MAP:URI=\"init.mp4\",BYTERANGE=\"720@0\"\n");
+        long offset = 720;
+        for (int index = 0; index < segmentCount; index++) {
+            if (index % KEY_INTERVAL == 0) {
+                builder.append("#EXT-X-KEY:METHOD=AES-128,URI=\"keys/key").append(index / KEY_INTERVAL)
+                        .append(".bin\",IV=0x").append(String.format("%032x", index)).append('\n');
+            }
+            builder.append("#EXTINF:6.006,\n");
+            long length = 500000 + (index % 7) * 1000;
+            builder.append("#EXT-X-BYTERANGE:").append(length).append('@').append(offset).append('\n');
+            offset += length;
+            if (index % 2 == 0) {
+                builder.append("segments/part").append(index / 1000).append("/seg").append(index).append(".m4s\n");
+            } else {
+                builder.append("https://cdn.example.com/vod/2020/movie/segments/seg").append(index).append(".m4s\n");
+            }
+        }
+        builder.append("#EXT-X-ENDLIST\n");
+        return builder.toString();
+    }
+
+    private static M3U8 parseLegacy(String playlist) throws IOException {
+        return LegacyM3U8Parser.parse(new StringReader(playlist), PLAYLIST_URL);
+    }
+
+    private static M3U8 parseTokenizer(String playlist) throws IOException {
+        return new M3U8Parser(new StringReader(playlist), PLAYLIST_URL).parse();
+    }
+
+    /**
+     * 只比较分片地址和时长, byteRange和key的作用范围新的解析器按照HLS的规定做了修正
+     */
+    private static void checkSameOutput(String playlist, int segmentCount) throws IOException {
+        List<M3U8Seg> legacyList = parseLegacy(playlist).getTsList();
+        List<M3U8Seg> tokenizerList = parseTokenizer(playlist).getTsList();
+        if (legacyList.size() != segmentCount || tokenizerList.size() != segmentCount) {
+            throw new IOException("Segment count mismatch, legacy=" + legacyList.size() + ", tokenizer=" + tokenizerList.size());
+        }
+        for (int index = 0; index < segmentCount; index++) {
+            M3U8Seg legacySeg = legacyList.get(index);
+            M3U8Seg tokenizerSeg = tokenizerList.get(index);
+            if (!legacySeg.getUrl().equals(tokenizerSeg.getUrl()) || legacySeg.getDuration() != tokenizerSeg.getDuration()) {
+                throw new IOException("Segment mismatch, legacy=" + legacySeg + ", tokenizer=" + tokenizerSeg);
+            }
+        }
+    }
+
+    private static String formatResult(long[] times, long allocSize) {
+        long[] sortedTimes = times.clone();
+        Arrays.sort(sortedTimes);
+        String time = String.format("%.1f ms", sortedTimes[sortedTimes.length / 2] / 1000000f);
+        if (allocSize < 0) {
+            return time + " / -1";
+        }
+        return time + String.format(" / %.1f MB", allocSize / (float) times.length / (1024 * 1024));
+    }
+
+    private static long getAllocatedBytes() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return -1;
+        }
+        String value = Debug.getRuntimeStat("art.gc.bytes-allocated");
+        try {
+            return value != null ? Long.parseLong(value) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
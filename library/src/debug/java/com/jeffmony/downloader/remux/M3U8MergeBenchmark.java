@@ -0,0 +1,95 @@
+package com.jeffmony.downloader.remux;
+
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.m3u8.M3U8;
+import com.jeffmony.downloader.m3u8.M3U8Utils;
+import com.jeffmony.downloader.utils.LogUtils;
+import com.jeffmony.m3u8library.VideoProcessManager;
+import com.jeffmony.m3u8library.listener.IVideoTransformListener;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分片直接拼接(M3U8ConcatMerger)和之前VideoProcessManager转换成MP4的合并耗时对比, 只在debug包中.
+ * 需要一个已经下载完成、还没有合并的任务的本地M3U8(xxx_local.m3u8), 合并完成之后分片会被删除.
+ * 第一次拼接时分片可能不在page cache中, 单独输出; 之后ffmpeg和第二次拼接读取的都是缓存中的分片.
+ * 输出文件写在分片目录中, 对比结束之后删除, 不影响任务本身
+ */
+public class M3U8MergeBenchmark {
+
+    private static final String OUTPUT_PREFIX = "benchmark_";
+    private static final long TRANSFORM_TIMEOUT = 10 * 60 * 1000L;
+
+    /**
+     * 耗时比较长, 不要在主线程调用
+     */
+    public static String run(File m3u8File) throws Exception {
+        File saveDir = m3u8File.getParentFile();
+        M3U8 m3u8 = M3U8Utils.parseLocalM3U8File(m3u8File);
+        int mergeFormat = M3U8ConcatMerger.getMergeFormat(m3u8, true);
+        StringBuilder report = new StringBuilder();
+        report.append(m3u8File.getName()).append(", segments=").append(m3u8.getTsList().size()).append('\n');
+        File concatFile = null;
+        if (mergeFormat == M3U8ConcatMerger.FORMAT_NONE) {
+            //加密或者中途切换了初始化分片, 只能走ffmpeg
+            report.append("concat      not applicable\n");
+        } else {
+            concatFile = new File(saveDir, OUTPUT_PREFIX + (mergeFormat == M3U8ConcatMerger.FORMAT_TS ? "concat.ts" : "concat.mp4"));
+            report.append(formatResult("concat cold", runConcat(m3u8, saveDir, concatFile), concatFile));
+            concatFile.delete();
+        }
+        File transformFile = new File(saveDir, OUTPUT_PREFIX + "ffmpeg.mp4");
+        report.append(formatResult("ffmpeg", runTransform(m3u8File, transformFile), transformFile));
+        transformFile.delete();
+        if (concatFile != null) {
+            report.append(formatResult("concat warm", runConcat(m3u8, saveDir, concatFile), concatFile));
+            concatFile.delete();
+        }
+        LogUtils.i(DownloadConstants.TAG, "M3U8MergeBenchmark\n" + report);
+        return report.toString();
+    }
+
+    private static long runConcat(M3U8 m3u8, File saveDir, File outputFile) throws Exception {
+        long startTime = System.nanoTime();
+        M3U8ConcatMerger.merge(m3u8, saveDir, outputFile);
+        return System.nanoTime() - startTime;
+    }
+
+    private static long runTransform(File m3u8File, File outputFile) throws Exception {
+        CountDownLatch latch = new CountDownLatch(1);
+        int[] error = {0};
+        long startTime = System.nanoTime();
+        VideoProcessManager.getInstance().transformM3U8ToMp4(m3u8File.getAbsolutePath(), outputFile.getAbsolutePath(), new IVideoTransformListener() {
+            @Override
+            public void onTransformProgress(float progress) {
+
+            }
+
+            @Override
+            public void onTransformFailed(int err) {
+                error[0] = err;
+                latch.countDown();
+            }
+
+            @Override
+            public void onTransformFinished() {
+                latch.countDown();
+            }
+        });
+        if (!latch.await(TRANSFORM_TIMEOUT, TimeUnit.MILLISECONDS)) {
+            throw new IOException("transformM3U8ToMp4 timeout");
+        }
+        long duration = System.nanoTime() - startTime;
+        if (error[0] != 0) {
+            throw new IOException("transformM3U8ToMp4 failed, err=" + error[0]);
+        }
+        return duration;
+    }
+
+    private static String formatResult(String name, long duration, File outputFile) {
+        return String.format("%-11s %.1f ms, %.1f MB\n", name, duration / 1000000f, outputFile.length() / (1024f * 1024));
+    }
+}
@@ -0,0 +1,85 @@
+package com.jeffmony.downloader;
+
+import android.os.Handler;
+
+import com.jeffmony.downloader.listener.IDownloadProgressSubscriber;
+import com.jeffmony.downloader.model.VideoTaskItem;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 合并之后的任务状态流.
+ *
+ * 每个任务只保留最新的状态, 最多每mInterval回调一次, 一次回调返回之后才安排下一次,
+ * 消费慢的订阅者只会拿到更新的状态, 不会积压消息.
+ */
+class DownloadProgressSubscription {
+
+    private final IDownloadProgressSubscriber mSubscriber;
+    private final long mInterval;
+    private final Handler mHandler;
+    private final Map<String, VideoTaskItem> mChangedMap = new ConcurrentHashMap<>();
+    private final AtomicBoolean mScheduled = new AtomicBoolean(false);
+    private final Runnable mDeliverRunnable = this::deliver;
+    private volatile boolean mCancelled;
+    private volatile long mLastDeliverTime;
+
+    DownloadProgressSubscription(IDownloadProgressSubscriber subscriber, long interval, Handler handler) {
+        mSubscriber = subscriber;
+        mInterval = interval;
+        mHandler = handler;
+    }
+
+    IDownloadProgressSubscriber getSubscriber() {
+        return mSubscriber;
+    }
+
+    void publish(VideoTaskItem taskItem) {
+        if (mCancelled) {
+            return;
+        }
+        mChangedMap.put(taskItem.getUrl(), taskItem);
+        schedule();
+    }
+
+    void cancel() {
+        mCancelled = true;
+        mHandler.removeCallbacks(mDeliverRunnable);
+        mChangedMap.clear();
+    }
+
+    private void schedule() {
+        if (mChangedMap.isEmpty() || !mScheduled.compareAndSet(false, true)) {
+            return;
+        }
+        long delay = mLastDeliverTime + mInterval - System.currentTimeMillis();
+        mHandler.postDelayed(mDeliverRunnable, Math.max(delay, 0));
+    }
+
+    //在订阅者的线程中执行
+    private void deliver() {
+        List<VideoTaskItem> items = new ArrayList<>(mChangedMap.size());
+        for (String url : mChangedMap.keySet()) {
+            VideoTaskItem taskItem = mChangedMap.remove(url);
+            if (taskItem != null) {
+                //取出的时候再拷贝, 拿到的是最新的状态
+                items.add((VideoTaskItem) taskItem.clone());
+            }
+        }
+        try {
+            if (!mCancelled && !items.isEmpty()) {
+                mSubscriber.onDownloadSnapshot(items);
+            }
+        } finally {
+            mLastDeliverTime = System.currentTimeMillis();
+            mScheduled.set(false);
+            if (!mCancelled) {
+                schedule();
+            }
+        }
+    }
+}
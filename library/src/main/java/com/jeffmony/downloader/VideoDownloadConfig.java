@@ -1,12 +1,37 @@
 package com.jeffmony.downloader;
 
 public class VideoDownloadConfig {
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 6;
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+
+    //多码率M3U8选择码率的方式
+    public static final int VARIANT_FIRST = 0;              // 列表中的第一个码率
+    public static final int VARIANT_MAX_RESOLUTION = 1;     // 分辨率最高的码率
+    public static final int VARIANT_MAX_BANDWIDTH = 2;      // 码率最高的码率
+    public static final int VARIANT_FIT_THROUGHPUT = 3;     // 按测得的下载速度, 能在目标时间内下载完的最高码率
+    public static final long DEFAULT_VARIANT_TARGET_TIME = 10 * 60 * 1000L;
+    public static final long DEFAULT_PROGRESS_INTERVAL = 200L;
+
+    //排队任务的调度策略
+    public static final int QUEUE_FIFO = 0;                 // 按加入队列的顺序
+    public static final int QUEUE_PRIORITY = 1;             // 优先级高的先下载, 相同优先级按加入顺序
+    public static final int QUEUE_SHORTEST_REMAINING = 2;   // 剩余大小最小的先下载, 大小未知的排在最后
+
     private String mCacheRoot;
     private int mReadTimeOut;
     private int mConnTimeOut;
     private boolean mIgnoreAllCertErrors;
     private int mConcurrentCount;
     private boolean mShouldM3U8Merged;
+    private boolean mShouldM3U8MergedToTs;
+    private int mMaxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    private int mMaxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int mVariantPolicy = VARIANT_FIRST;
+    private long mVariantTargetTime = DEFAULT_VARIANT_TARGET_TIME;
+    private boolean mShouldRecordLive;
+    private long mProgressInterval = DEFAULT_PROGRESS_INTERVAL;
+    private int mQueuePolicy = QUEUE_FIFO;
+    private boolean mQueuePreemptive;
 
     public VideoDownloadConfig(String cacheRoot, int readTimeOut,
                                int connTimeOut, boolean ignoreAllCertErrors,
@@ -50,4 +75,40 @@ public class VideoDownloadConfig {
     public void setShouldM3U8Merged(boolean enable) { mShouldM3U8Merged = enable; }
 
     public boolean shouldM3U8Merged() { return mShouldM3U8Merged; }
+
+    public void setShouldM3U8MergedToTs(boolean enable) { mShouldM3U8MergedToTs = enable; }
+
+    public boolean shouldM3U8MergedToTs() { return mShouldM3U8MergedToTs; }
+
+    public void setMaxConnectionsPerHost(int count) { mMaxConnectionsPerHost = count; }
+
+    public int getMaxConnectionsPerHost() { return mMaxConnectionsPerHost; }
+
+    public void setMaxConnections(int count) { mMaxConnections = count; }
+
+    public int getMaxConnections() { return mMaxConnections; }
+
+    public void setVariantPolicy(int policy) { mVariantPolicy = policy; }
+
+    public int getVariantPolicy() { return mVariantPolicy; }
+
+    public void setVariantTargetTime(long targetTime) { mVariantTargetTime = targetTime; }
+
+    public long getVariantTargetTime() { return mVariantTargetTime; }
+
+    public void setShouldRecordLive(boolean enable) { mShouldRecordLive = enable; }
+
+    public boolean shouldRecordLive() { return mShouldRecordLive; }
+
+    public void setProgressInterval(long interval) { mProgressInterval = interval; }
+
+    public long getProgressInterval() { return mProgressInterval; }
+
+    public void setQueuePolicy(int policy) { mQueuePolicy = policy; }
+
+    public int getQueuePolicy() { return mQueuePolicy; }
+
+    public void setQueuePreemptive(boolean enable) { mQueuePreemptive = enable; }
+
+    public boolean isQueuePreemptive() { return mQueuePreemptive; }
 }
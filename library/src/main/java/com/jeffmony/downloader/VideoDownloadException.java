@@ -2,12 +2,21 @@ package com.jeffmony.downloader;
 
 public class VideoDownloadException extends Exception {
     private String mMsg;
+    private int mResponseCode;      // 请求失败时的状态码, 不是请求失败则为0
+    private long mRetryAfter = -1;  // 服务端返回的Retry-After, 单位ms
 
     public VideoDownloadException(String message) {
         super(message);
         mMsg = message;
     }
 
+    public VideoDownloadException(String message, int responseCode, long retryAfter) {
+        super(message + ", responseCode=" + responseCode);
+        mMsg = message;
+        mResponseCode = responseCode;
+        mRetryAfter = retryAfter;
+    }
+
     public VideoDownloadException(String message, Throwable cause) {
         super(message, cause);
         mMsg = message;
@@ -20,4 +29,12 @@ public class VideoDownloadException extends Exception {
     public String getMsg() {
         return mMsg;
     }
-}
\ No newline at end of file
+
+    public int getResponseCode() {
+        return mResponseCode;
+    }
+
+    public long getRetryAfter() {
+        return mRetryAfter;
+    }
+}
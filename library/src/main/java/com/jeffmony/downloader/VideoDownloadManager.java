@@ -11,19 +11,29 @@ import com.jeffmony.downloader.common.DownloadConstants;
 import com.jeffmony.downloader.database.VideoDownloadDatabaseHelper;
 import com.jeffmony.downloader.listener.DownloadListener;
 import com.jeffmony.downloader.listener.IDownloadInfosCallback;
+import com.jeffmony.downloader.listener.IDownloadProgressSubscriber;
 import com.jeffmony.downloader.listener.IDownloadTaskListener;
 import com.jeffmony.downloader.listener.IVideoInfoListener;
 import com.jeffmony.downloader.listener.IVideoInfoParseListener;
+import com.jeffmony.downloader.listener.IVideoRemuxListener;
 import com.jeffmony.downloader.m3u8.M3U8;
+import com.jeffmony.downloader.m3u8.M3U8Utils;
 import com.jeffmony.downloader.model.Video;
 import com.jeffmony.downloader.model.VideoTaskItem;
 import com.jeffmony.downloader.model.VideoTaskState;
 import com.jeffmony.downloader.listener.IM3U8MergeResultListener;
+import com.jeffmony.downloader.task.ConcurrencyController;
+import com.jeffmony.downloader.task.BaseVideoDownloadTask;
+import com.jeffmony.downloader.task.DownloadScheduler;
+import com.jeffmony.downloader.proxy.LocalProxyServer;
+import com.jeffmony.downloader.remux.M3U8ConcatMerger;
+import com.jeffmony.downloader.remux.M3U8Remuxer;
 import com.jeffmony.downloader.task.M3U8VideoDownloadTask;
 import com.jeffmony.downloader.task.MultiSegVideoDownloadTask;
 import com.jeffmony.downloader.task.VideoDownloadTask;
 import com.jeffmony.downloader.utils.ContextUtils;
 import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+import com.jeffmony.downloader.utils.HttpConnectionPool;
 import com.jeffmony.downloader.utils.LogUtils;
 import com.jeffmony.downloader.utils.VideoDownloadUtils;
 import com.jeffmony.downloader.utils.VideoStorageUtils;
@@ -33,23 +43,32 @@ import com.jeffmony.m3u8library.listener.IVideoTransformListener;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 public class VideoDownloadManager {
+    private static final long MIN_FREE_SPACE = 50 * 1024 * 1024;   // 预留空间之外至少给系统和其他应用留下的空间
+
     private static volatile VideoDownloadManager sInstance = null;
     private DownloadListener mGlobalDownloadListener = null;
     private VideoDownloadDatabaseHelper mVideoDatabaseHelper = null;
     private VideoDownloadQueue mVideoDownloadQueue;
     private Object mQueueLock = new Object();
     private VideoDownloadConfig mConfig;
+    private final DownloadScheduler mDownloadScheduler = new DownloadScheduler();
 
     private VideoDownloadHandler mVideoDownloadHandler;
     private List<IDownloadInfosCallback> mDownloadInfoCallbacks = new CopyOnWriteArrayList<>();
     private Map<String, VideoDownloadTask> mVideoDownloadTaskMap = new ConcurrentHashMap<>();
+    private final Map<String, VideoDownloadTask> mStorageTaskMap = new ConcurrentHashMap<>();    // 正在下载, 预留了磁盘空间的任务
     private Map<String, VideoTaskItem> mVideoItemTaskMap = new ConcurrentHashMap<>();
+    private final Set<String> mBatchAddedUrls = Collections.newSetFromMap(new ConcurrentHashMap<>());    // 批量添加时已经在事务中写入数据库的任务
+    private final List<DownloadProgressSubscription> mProgressSubscriptions = new CopyOnWriteArrayList<>();
 
     public static class Build {
         private String mCacheRoot;
@@ -58,6 +77,15 @@ public class VideoDownloadManager {
         private boolean mIgnoreCertErrors = false;
         private int mConcurrentCount = 3;
         private boolean mShouldM3U8Merged = false;
+        private boolean mShouldM3U8MergedToTs = false;
+        private int mMaxConnectionsPerHost = VideoDownloadConfig.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+        private int mMaxConnections = VideoDownloadConfig.DEFAULT_MAX_CONNECTIONS;
+        private int mVariantPolicy = VideoDownloadConfig.VARIANT_FIRST;
+        private long mVariantTargetTime = VideoDownloadConfig.DEFAULT_VARIANT_TARGET_TIME;
+        private boolean mShouldRecordLive = false;
+        private long mProgressInterval = VideoDownloadConfig.DEFAULT_PROGRESS_INTERVAL;
+        private int mQueuePolicy = VideoDownloadConfig.QUEUE_FIFO;
+        private boolean mQueuePreemptive = false;
 
         public Build(Context context) {
             ContextUtils.initApplicationContext(context);
@@ -94,8 +122,72 @@ public class VideoDownloadManager {
             return this;
         }
 
+        //TS分片的M3U8是否直接拼接成TS文件, 不转换成MP4
+        public Build setShouldM3U8MergedToTs(boolean shouldM3U8MergedToTs) {
+            mShouldM3U8MergedToTs = shouldM3U8MergedToTs;
+            return this;
+        }
+
+        //设置同一个host最多保持的连接数
+        public Build setMaxConnectionsPerHost(int count) {
+            mMaxConnectionsPerHost = count;
+            return this;
+        }
+
+        //设置所有下载任务总共的连接数
+        public Build setMaxConnections(int count) {
+            mMaxConnections = count;
+            return this;
+        }
+
+        //多码率M3U8选择码率的方式, VideoDownloadConfig.VARIANT_XXX
+        public Build setVariantPolicy(int policy) {
+            mVariantPolicy = policy;
+            return this;
+        }
+
+        //VARIANT_FIT_THROUGHPUT期望的下载完成时间, 单位ms
+        public Build setVariantTargetTime(long targetTime) {
+            mVariantTargetTime = targetTime;
+            return this;
+        }
+
+        //直播M3U8是否录制, 不录制的直播M3U8回调onLiveM3U8Callback
+        public Build setShouldRecordLive(boolean enable) {
+            mShouldRecordLive = enable;
+            return this;
+        }
+
+        //多range下载汇总进度的间隔, 单位ms
+        public Build setProgressInterval(long interval) {
+            mProgressInterval = interval;
+            return this;
+        }
+
+        //排队任务的调度策略, VideoDownloadConfig.QUEUE_XXX
+        public Build setQueuePolicy(int policy) {
+            mQueuePolicy = policy;
+            return this;
+        }
+
+        //QUEUE_PRIORITY策略下, 高优先级的任务是否暂停正在下载的低优先级任务
+        public Build setQueuePreemptive(boolean enable) {
+            mQueuePreemptive = enable;
+            return this;
+        }
+
         public VideoDownloadConfig buildConfig() {
-            return new VideoDownloadConfig(mCacheRoot, mReadTimeOut, mConnTimeOut, mIgnoreCertErrors, mConcurrentCount, mShouldM3U8Merged);
+            VideoDownloadConfig config = new VideoDownloadConfig(mCacheRoot, mReadTimeOut, mConnTimeOut, mIgnoreCertErrors, mConcurrentCount, mShouldM3U8Merged);
+            config.setShouldM3U8MergedToTs(mShouldM3U8MergedToTs);
+            config.setMaxConnectionsPerHost(mMaxConnectionsPerHost);
+            config.setMaxConnections(mMaxConnections);
+            config.setVariantPolicy(mVariantPolicy);
+            config.setVariantTargetTime(mVariantTargetTime);
+            config.setShouldRecordLive(mShouldRecordLive);
+            config.setProgressInterval(mProgressInterval);
+            config.setQueuePolicy(mQueuePolicy);
+            config.setQueuePreemptive(mQueuePreemptive);
+            return config;
         }
     }
 
@@ -105,6 +197,13 @@ public class VideoDownloadManager {
         }
     }
 
+    public void setMaxConnections(int count) {
+        if (mConfig != null) {
+            mConfig.setMaxConnections(count);
+        }
+        mDownloadScheduler.setMaxConnections(count);
+    }
+
     public void setIgnoreAllCertErrors(boolean enable) {
         if (mConfig != null) {
             mConfig.setIgnoreAllCertErrors(enable);
@@ -118,6 +217,56 @@ public class VideoDownloadManager {
         }
     }
 
+    /**
+     * 之后开始解析的多码率M3U8生效
+     * @param policy VideoDownloadConfig.VARIANT_XXX
+     * @param targetTime VARIANT_FIT_THROUGHPUT期望的下载完成时间, 单位ms
+     */
+    public void setVariantPolicy(int policy, long targetTime) {
+        if (mConfig != null) {
+            mConfig.setVariantPolicy(policy);
+            mConfig.setVariantTargetTime(targetTime);
+        }
+    }
+
+    /**
+     * 修改排队任务的调度策略, 已经开始的任务不受影响
+     * @param policy VideoDownloadConfig.QUEUE_XXX
+     * @param preemptive QUEUE_PRIORITY策略下, 高优先级的任务是否暂停正在下载的低优先级任务
+     */
+    public void setQueuePolicy(int policy, boolean preemptive) {
+        if (mConfig != null) {
+            mConfig.setQueuePolicy(policy);
+            mConfig.setQueuePreemptive(preemptive);
+        }
+        synchronized (mQueueLock) {
+            mVideoDownloadQueue.setPolicy(policy);
+        }
+        scheduleDownloadTasks();
+    }
+
+    /**
+     * 修改任务的优先级, 越大越先下载, 排队中的任务按新的优先级重新排序
+     */
+    public void setTaskPriority(String videoUrl, int priority) {
+        VideoTaskItem taskItem;
+        synchronized (mQueueLock) {
+            taskItem = mVideoDownloadQueue.getTaskItem(videoUrl);
+            if (taskItem != null) {
+                taskItem.setPriority(priority);
+                mVideoDownloadQueue.updatePriority(taskItem);
+            }
+        }
+        if (taskItem == null) {
+            taskItem = mVideoItemTaskMap.get(videoUrl);
+            if (taskItem != null) {
+                taskItem.setPriority(priority);
+            }
+            return;
+        }
+        scheduleDownloadTasks();
+    }
+
     public static VideoDownloadManager getInstance() {
         if (sInstance == null) {
             synchronized (VideoDownloadManager.class) {
@@ -137,6 +286,12 @@ public class VideoDownloadManager {
         //如果为null, 会crash
         mConfig = config;
         VideoDownloadUtils.setDownloadConfig(config);
+        HttpConnectionPool.getInstance().setMaxConnectionsPerHost(config.getMaxConnectionsPerHost());
+        mDownloadScheduler.setMaxConnections(config.getMaxConnections());
+        mDownloadScheduler.setMaxConnectionsPerHost(config.getMaxConnectionsPerHost());
+        synchronized (mQueueLock) {
+            mVideoDownloadQueue.setPolicy(config.getQueuePolicy());
+        }
         mVideoDatabaseHelper = new VideoDownloadDatabaseHelper(ContextUtils.getApplicationContext());
         HandlerThread stateThread = new HandlerThread("Video_download_state_thread");
         stateThread.start();
@@ -160,29 +315,147 @@ public class VideoDownloadManager {
         mGlobalDownloadListener = downloadListener;
     }
 
+    public void subscribeDownloadProgress(IDownloadProgressSubscriber subscriber, long interval) {
+        subscribeDownloadProgress(subscriber, interval, WorkerThreadHandler.getMainHandler());
+    }
+
+    /**
+     * 订阅合并之后的任务状态, 和DownloadListener同时生效.
+     * 每interval最多回调一次, 只包含上次回调之后有变化的任务的最新状态; 回调在handler的线程执行, 执行完才安排下一次
+     */
+    public void subscribeDownloadProgress(IDownloadProgressSubscriber subscriber, long interval, Handler handler) {
+        if (subscriber == null || handler == null)
+            return;
+        unsubscribeDownloadProgress(subscriber);
+        mProgressSubscriptions.add(new DownloadProgressSubscription(subscriber, interval, handler));
+    }
+
+    public void unsubscribeDownloadProgress(IDownloadProgressSubscriber subscriber) {
+        for (DownloadProgressSubscription subscription : mProgressSubscriptions) {
+            if (subscription.getSubscriber() == subscriber) {
+                subscription.cancel();
+                mProgressSubscriptions.remove(subscription);
+            }
+        }
+    }
+
+    private void publishDownloadProgress(VideoTaskItem taskItem) {
+        for (DownloadProgressSubscription subscription : mProgressSubscriptions) {
+            subscription.publish(taskItem);
+        }
+    }
+
     public void startDownload(VideoTaskItem taskItem) {
+        startDownload(taskItem, null);
+    }
+
+    public void startDownload(VideoTaskItem taskItem, Map<String, String> headers) {
         if (taskItem == null || TextUtils.isEmpty(taskItem.getUrl()))
             return;
 
         synchronized (mQueueLock) {
             if (mVideoDownloadQueue.contains(taskItem)) {
                 taskItem = mVideoDownloadQueue.getTaskItem(taskItem.getUrl());
-            } else {
-                mVideoDownloadQueue.offer(taskItem);
+                if (mVideoDownloadQueue.isRunning(taskItem)) {
+                    return;
+                }
             }
+            mVideoDownloadQueue.offer(taskItem, headers);
         }
         taskItem.setPaused(false);
         taskItem.setDownloadCreateTime(taskItem.getDownloadCreateTime());
         taskItem.setTaskState(VideoTaskState.PENDING);
         VideoTaskItem tempTaskItem = (VideoTaskItem) taskItem.clone();
         mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOAD_PENDING, tempTaskItem).sendToTarget();
-        startDownload(taskItem, null);
+        scheduleDownloadTasks();
     }
 
-    public void startDownload(VideoTaskItem taskItem, Map<String, String> headers) {
-        if (taskItem == null || TextUtils.isEmpty(taskItem.getUrl()))
+    public void startDownloads(List<VideoTaskItem> taskItems) {
+        startDownloads(taskItems, null);
+    }
+
+    /**
+     * 批量添加下载任务: 一次加入队列, 在一个事务中写入数据库, 只回调一次onDownloadsPending.
+     * 解析和下载仍然按并发个数从队列中调度
+     */
+    public void startDownloads(List<VideoTaskItem> taskItems, Map<String, String> headers) {
+        if (taskItems == null || taskItems.isEmpty())
+            return;
+
+        List<VideoTaskItem> pendingItems = new ArrayList<>(taskItems.size());
+        Set<String> urlSet = new HashSet<>();
+        synchronized (mQueueLock) {
+            for (VideoTaskItem taskItem : taskItems) {
+                if (taskItem == null || TextUtils.isEmpty(taskItem.getUrl()) || !urlSet.add(taskItem.getUrl()))
+                    continue;
+                if (mVideoDownloadQueue.contains(taskItem)) {
+                    taskItem = mVideoDownloadQueue.getTaskItem(taskItem.getUrl());
+                    if (mVideoDownloadQueue.isRunning(taskItem)) {
+                        continue;
+                    }
+                }
+                mVideoDownloadQueue.offer(taskItem, headers);
+                taskItem.setPaused(false);
+                taskItem.setTaskState(VideoTaskState.PENDING);
+                pendingItems.add(taskItem);
+            }
+        }
+        if (pendingItems.isEmpty())
+            return;
+        LogUtils.i(DownloadConstants.TAG, "startDownloads count=" + pendingItems.size());
+        List<VideoTaskItem> tempTaskItems = new ArrayList<>(pendingItems.size());
+        for (VideoTaskItem taskItem : pendingItems) {
+            tempTaskItems.add((VideoTaskItem) taskItem.clone());
+            //在调度之前登记, 开始解析时不再逐个写入数据库
+            mBatchAddedUrls.add(taskItem.getUrl());
+        }
+        mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOADS_PENDING, tempTaskItems).sendToTarget();
+        WorkerThreadHandler.submitRunnableTask(() -> mVideoDatabaseHelper.markDownloadInfosAddEvent(pendingItems));
+        scheduleDownloadTasks();
+    }
+
+    /**
+     * 有空闲的并发名额时按调度策略取出排队的任务开始解析下载; 开启抢占时, 名额已满并且排队的任务优先级更高,
+     * 暂停优先级最低的正在下载的任务, 把它放回队列
+     */
+    private void scheduleDownloadTasks() {
+        if (mConfig == null) {
             return;
-        parseVideoDownloadInfo(taskItem, headers);
+        }
+        List<VideoTaskItem> startList = new ArrayList<>();
+        List<Map<String, String>> headersList = new ArrayList<>();
+        List<VideoTaskItem> preemptedList = new ArrayList<>();
+        synchronized (mQueueLock) {
+            while (mVideoDownloadQueue.getPendingCount() > 0) {
+                if (mVideoDownloadQueue.getDownloadingCount() < mConfig.getConcurrentCount()) {
+                    VideoTaskItem taskItem = mVideoDownloadQueue.pollPendingTask();
+                    startList.add(taskItem);
+                    headersList.add(mVideoDownloadQueue.getHeaders(taskItem));
+                    continue;
+                }
+                VideoTaskItem lowestItem = mConfig.isQueuePreemptive() ? mVideoDownloadQueue.peekPreemptibleTask() : null;
+                if (lowestItem == null) {
+                    break;
+                }
+                mVideoDownloadQueue.requeue(lowestItem);
+                preemptedList.add(lowestItem);
+            }
+        }
+        for (VideoTaskItem taskItem : preemptedList) {
+            LogUtils.i(DownloadConstants.TAG, "Preempt download task, url=" + taskItem.getUrl() + ", priority=" + taskItem.getPriority());
+            taskItem.setPaused(true);
+            taskItem.setTaskState(VideoTaskState.PENDING);
+            mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOAD_PENDING, (VideoTaskItem) taskItem.clone()).sendToTarget();
+            VideoDownloadTask downloadTask = mVideoDownloadTaskMap.get(taskItem.getUrl());
+            if (downloadTask != null) {
+                downloadTask.pauseDownload();
+            }
+        }
+        for (int index = 0; index < startList.size(); index++) {
+            VideoTaskItem taskItem = startList.get(index);
+            taskItem.setPaused(false);
+            parseVideoDownloadInfo(taskItem, headersList.get(index));
+        }
     }
 
     private void parseVideoDownloadInfo(VideoTaskItem taskItem, Map<String, String> headers) {
@@ -241,6 +514,12 @@ public class VideoDownloadManager {
                 startM3U8VideoDownloadTask(taskItem, m3u8, headers);
             }
 
+            @Override
+            public void onM3U8InfoStarted(VideoTaskItem info, M3U8 m3u8) {
+                taskItem.setMimeType(info.getMimeType());
+                startM3U8VideoDownloadTask(taskItem, m3u8, headers);
+            }
+
             @Override
             public void onLiveM3U8Callback(VideoTaskItem info) {
                 LogUtils.w(DownloadConstants.TAG, "onLiveM3U8Callback cannot be cached.");
@@ -261,16 +540,22 @@ public class VideoDownloadManager {
     }
 
     private void startM3U8VideoDownloadTask(final VideoTaskItem taskItem, M3U8 m3u8, Map<String, String> headers) {
-        taskItem.setTaskState(VideoTaskState.PREPARE);
-        mVideoItemTaskMap.put(taskItem.getUrl(), taskItem);
-        VideoTaskItem tempTaskItem = (VideoTaskItem) taskItem.clone();
-        mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOAD_PREPARE, tempTaskItem).sendToTarget();
         synchronized (mQueueLock) {
-            if (mVideoDownloadQueue.getDownloadingCount() >= mConfig.getConcurrentCount()) {
+            //解析的过程中任务被暂停或者被抢占
+            if (!mVideoDownloadQueue.isRunning(taskItem)) {
                 return;
             }
         }
+        taskItem.setTaskState(VideoTaskState.PREPARE);
+        mVideoItemTaskMap.put(taskItem.getUrl(), taskItem);
+        VideoTaskItem tempTaskItem = (VideoTaskItem) taskItem.clone();
+        mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOAD_PREPARE, tempTaskItem).sendToTarget();
         VideoDownloadTask downloadTask = mVideoDownloadTaskMap.get(taskItem.getUrl());
+        if (downloadTask instanceof M3U8VideoDownloadTask
+                && ((M3U8VideoDownloadTask) downloadTask).getM3U8().getParseState() == M3U8.PARSE_FAILED) {
+            //上次边解析边下载的时候列表解析失败, 使用新解析的M3U8重新创建任务
+            downloadTask = null;
+        }
         if (downloadTask == null) {
             downloadTask = new M3U8VideoDownloadTask(taskItem, m3u8, headers);
             mVideoDownloadTaskMap.put(taskItem.getUrl(), downloadTask);
@@ -279,26 +564,77 @@ public class VideoDownloadManager {
     }
 
     private void startBaseVideoDownloadTask(VideoTaskItem taskItem, Map<String, String> headers) {
-        taskItem.setTaskState(VideoTaskState.PREPARE);
-        mVideoItemTaskMap.put(taskItem.getUrl(), taskItem);
-        VideoTaskItem tempTaskItem = (VideoTaskItem) taskItem.clone();
-        mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOAD_PREPARE, tempTaskItem).sendToTarget();
         synchronized (mQueueLock) {
-            if (mVideoDownloadQueue.getDownloadingCount() >= mConfig.getConcurrentCount()) {
+            //解析的过程中任务被暂停或者被抢占
+            if (!mVideoDownloadQueue.isRunning(taskItem)) {
                 return;
             }
         }
+        taskItem.setTaskState(VideoTaskState.PREPARE);
+        mVideoItemTaskMap.put(taskItem.getUrl(), taskItem);
+        VideoTaskItem tempTaskItem = (VideoTaskItem) taskItem.clone();
+        mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOAD_PREPARE, tempTaskItem).sendToTarget();
         VideoDownloadTask downloadTask = mVideoDownloadTaskMap.get(taskItem.getUrl());
         if (downloadTask == null) {
-//            downloadTask = new BaseVideoDownloadTask(taskItem, headers);
-            downloadTask = new MultiSegVideoDownloadTask(taskItem, headers);
+            if (taskItem.isSupportRange()) {
+                downloadTask = new MultiSegVideoDownloadTask(taskItem, headers);
+            } else {
+                //不支持Range只能用一个连接顺序下载
+                downloadTask = new BaseVideoDownloadTask(taskItem, headers);
+            }
             mVideoDownloadTaskMap.put(taskItem.getUrl(), downloadTask);
         }
         startDownloadTask(downloadTask, taskItem);
     }
 
+    /**
+     * 开始下载之前检查磁盘空间: 任务还需要分配的大小加上其他正在下载的任务还需要的大小不能超过可用空间.
+     * 空间不足直接失败, 不等下载了很久之后写文件失败
+     */
+    private boolean reserveStorage(VideoDownloadTask downloadTask, VideoTaskItem taskItem) {
+        synchronized (mStorageTaskMap) {
+            long size = downloadTask.getUnallocatedSize();
+            long reservedSize = 0;
+            for (Map.Entry<String, VideoDownloadTask> entry : mStorageTaskMap.entrySet()) {
+                if (!entry.getKey().equals(taskItem.getUrl())) {
+                    reservedSize += entry.getValue().getUnallocatedSize();
+                }
+            }
+            File cacheRoot = new File(mConfig.getCacheRoot());
+            if (!cacheRoot.exists()) {
+                cacheRoot.mkdirs();
+            }
+            long usableSpace = cacheRoot.getUsableSpace();
+            if (size > 0 && size + reservedSize + MIN_FREE_SPACE > usableSpace) {
+                LogUtils.w(DownloadConstants.TAG, "Storage not enough, size=" + size + ", reservedSize=" + reservedSize + ", usableSpace=" + usableSpace);
+                taskItem.setErrorCode(DownloadExceptionUtils.STORAGE_NOT_ENOUGH_ERROR);
+                taskItem.setTaskState(VideoTaskState.ERROR);
+                mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOAD_ERROR, taskItem).sendToTarget();
+                return false;
+            }
+            mStorageTaskMap.put(taskItem.getUrl(), downloadTask);
+            return true;
+        }
+    }
+
+    /**
+     * @return 正在下载的任务还需要、但是还没有分配的磁盘空间
+     */
+    public long getReservedStorageSize() {
+        long reservedSize = 0;
+        for (VideoDownloadTask downloadTask : mStorageTaskMap.values()) {
+            reservedSize += downloadTask.getUnallocatedSize();
+        }
+        return reservedSize;
+    }
+
     private void startDownloadTask(VideoDownloadTask downloadTask, VideoTaskItem taskItem) {
         if (downloadTask != null) {
+            if (!reserveStorage(downloadTask, taskItem)) {
+                return;
+            }
+            downloadTask.setDownloadScheduler(mDownloadScheduler);
+            LocalProxyServer.getInstance().registerSource(VideoDownloadUtils.computeMD5(taskItem.getUrl()), downloadTask);
             downloadTask.setDownloadTaskListener(new IDownloadTaskListener() {
                 @Override
                 public void onTaskStart(String url) {
@@ -333,6 +669,13 @@ public class VideoDownloadManager {
 
                 @Override
                 public void onTaskPaused() {
+                    mStorageTaskMap.remove(taskItem.getUrl());
+                    synchronized (mQueueLock) {
+                        //被抢占的任务回到队列中等待, 不通知暂停
+                        if (mVideoDownloadQueue.isPending(taskItem)) {
+                            return;
+                        }
+                    }
                     if (!taskItem.isErrorState() || !taskItem.isSuccessState()) {
                         taskItem.setTaskState(VideoTaskState.PAUSE);
                         taskItem.setPaused(true);
@@ -343,6 +686,7 @@ public class VideoDownloadManager {
 
                 @Override
                 public void onTaskFinished(long totalSize) {
+                    mStorageTaskMap.remove(taskItem.getUrl());
                     if (taskItem.getTaskState() != VideoTaskState.SUCCESS) {
                         taskItem.setTaskState(VideoTaskState.SUCCESS);
                         taskItem.setDownloadSize(totalSize);
@@ -362,6 +706,8 @@ public class VideoDownloadManager {
 
                 @Override
                 public void onTaskFailed(Throwable e) {
+                    mStorageTaskMap.remove(taskItem.getUrl());
+                    VideoInfoParserManager.getInstance().removeProbeCache(taskItem.getUrl());
                     if (!taskItem.isSuccessState()) {
                         int errorCode = DownloadExceptionUtils.getErrorCode(e);
                         taskItem.setErrorCode(errorCode);
@@ -388,6 +734,8 @@ public class VideoDownloadManager {
             VideoStorageUtils.clearVideoCacheDir();
             mVideoItemTaskMap.clear();
             mVideoDownloadTaskMap.clear();
+            mBatchAddedUrls.clear();
+            LocalProxyServer.getInstance().unregisterAllSources();
             mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DELETE_ALL_FILES).sendToTarget();
         } catch (Exception e) {
             LogUtils.w(DownloadConstants.TAG, "clearVideoCacheDir failed, exception = " + e.getMessage());
@@ -398,18 +746,9 @@ public class VideoDownloadManager {
         synchronized (mQueueLock) {
             List<VideoTaskItem> taskList = mVideoDownloadQueue.getDownloadList();
             LogUtils.i(DownloadConstants.TAG, "pauseAllDownloadTasks queue size="+taskList.size());
-            List<String> pausedUrlList = new ArrayList<>();
             for (VideoTaskItem taskItem : taskList) {
-                if (taskItem.isPendingTask()) {
-                    mVideoDownloadQueue.remove(taskItem);
-                    taskItem.setTaskState(VideoTaskState.PAUSE);
-                    mVideoItemTaskMap.put(taskItem.getUrl(), taskItem);
-                    mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOAD_PAUSE, taskItem).sendToTarget();
-                } else {
-                    pausedUrlList.add(taskItem.getUrl());
-                }
+                pauseDownloadTask(taskItem);
             }
-            pauseDownloadTask(pausedUrlList);
         }
     }
 
@@ -429,16 +768,47 @@ public class VideoDownloadManager {
     public void pauseDownloadTask(VideoTaskItem taskItem) {
         if (taskItem == null || TextUtils.isEmpty(taskItem.getUrl()))
             return;
+        boolean pending;
+        boolean queued;
         synchronized (mQueueLock) {
-            mVideoDownloadQueue.remove(taskItem);
+            pending = mVideoDownloadQueue.isPending(taskItem);
+            queued = mVideoDownloadQueue.remove(taskItem);
         }
         String url = taskItem.getUrl();
         VideoDownloadTask task = mVideoDownloadTaskMap.get(url);
-        if (task != null) {
+        //恢复之后重新解析的任务还保留着之前的下载任务, 要看任务是不是真的在下载
+        boolean stopped = false;
+        if (task != null && !pending && task.isJobsRunning()) {
             task.pauseDownload();
+            stopped = true;
+        }
+        if (!stopped && queued) {
+            //还在排队或者还在解析的任务没有下载任务可以暂停, 直接通知暂停
+            taskItem.setPaused(true);
+            taskItem.setTaskState(VideoTaskState.PAUSE);
+            mVideoItemTaskMap.put(url, taskItem);
+            mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOAD_PAUSE, taskItem).sendToTarget();
         }
     }
 
+    /**
+     * 下载任务当前的并发窗口以及最近的调整记录, 任务不存在返回null
+     */
+    public ConcurrencyController getConcurrencyController(String videoUrl) {
+        VideoDownloadTask task = mVideoDownloadTaskMap.get(videoUrl);
+        if (task != null) {
+            return task.getConcurrencyController();
+        }
+        return null;
+    }
+
+    /**
+     * 边下边播的本地代理地址, 任务不存在或者代理启动失败返回null
+     */
+    public String getPlayUrl(String videoUrl) {
+        return LocalProxyServer.getInstance().getPlayUrl(VideoDownloadUtils.computeMD5(videoUrl));
+    }
+
     public void resumeDownload(String videoUrl) {
         if (mVideoItemTaskMap.containsKey(videoUrl)) {
             VideoTaskItem taskItem = mVideoItemTaskMap.get(videoUrl);
@@ -458,9 +828,18 @@ public class VideoDownloadManager {
                 if (shouldDeleteSourceFile) {
                     VideoStorageUtils.delete(file);
                 }
-                if (mVideoDownloadTaskMap.containsKey(taskItem.getUrl())) {
-                    mVideoDownloadTaskMap.remove(taskItem.getUrl());
+                VideoDownloadTask downloadTask = mVideoDownloadTaskMap.remove(taskItem.getUrl());
+                mStorageTaskMap.remove(taskItem.getUrl());
+                mBatchAddedUrls.remove(taskItem.getUrl());
+                if (downloadTask instanceof M3U8VideoDownloadTask) {
+                    M3U8VideoDownloadTask m3u8Task = (M3U8VideoDownloadTask) downloadTask;
+                    //停止直播录制的列表刷新
+                    m3u8Task.getM3U8().stopParse();
+                    if (m3u8Task.getRemuxer() != null) {
+                        m3u8Task.getRemuxer().release();
+                    }
                 }
+                LocalProxyServer.getInstance().unregisterSource(saveName);
                 taskItem.reset();
                 mVideoDownloadHandler.obtainMessage(DownloadConstants.MSG_DOWNLOAD_DEFAULT, taskItem).sendToTarget();
             } catch (Exception e) {
@@ -496,19 +875,8 @@ public class VideoDownloadManager {
         synchronized (mQueueLock) {
             mVideoDownloadQueue.remove(taskItem);
             LogUtils.w(DownloadConstants.TAG, "removeDownloadQueue size=" + mVideoDownloadQueue.size() + "," + mVideoDownloadQueue.getDownloadingCount() + "," + mVideoDownloadQueue.getPendingCount());
-            int pendingCount = mVideoDownloadQueue.getPendingCount();
-            int downloadingCount = mVideoDownloadQueue.getDownloadingCount();
-            while (downloadingCount < mConfig.getConcurrentCount() && pendingCount > 0) {
-                if (mVideoDownloadQueue.size() == 0)
-                    break;
-                if (downloadingCount == mVideoDownloadQueue.size())
-                    break;
-                VideoTaskItem item1 = mVideoDownloadQueue.peekPendingTask();
-                startDownload(item1, null);
-                pendingCount--;
-                downloadingCount++;
-            }
         }
+        scheduleDownloadTasks();
     }
 
 
@@ -526,8 +894,16 @@ public class VideoDownloadManager {
             } else if (msg.what == DownloadConstants.MSG_DELETE_ALL_FILES) {
                 //删除数据库中所有记录
                 WorkerThreadHandler.submitRunnableTask(() -> mVideoDatabaseHelper.deleteAllDownloadInfos());
+            } else if (msg.what == DownloadConstants.MSG_DOWNLOADS_PENDING) {
+                @SuppressWarnings("unchecked")
+                List<VideoTaskItem> taskItems = (List<VideoTaskItem>) msg.obj;
+                mGlobalDownloadListener.onDownloadsPending(taskItems);
+                for (VideoTaskItem taskItem : taskItems) {
+                    publishDownloadProgress(taskItem);
+                }
             } else {
                 dispatchDownloadMessage(msg.what, (VideoTaskItem) msg.obj);
+                publishDownloadProgress((VideoTaskItem) msg.obj);
             }
         }
 
@@ -591,7 +967,10 @@ public class VideoDownloadManager {
 
     private void handleOnDownloadPrepare(VideoTaskItem taskItem) {
         mGlobalDownloadListener.onDownloadPrepare(taskItem);
-        markDownloadInfoAddEvent(taskItem);
+        //批量添加的任务由markDownloadInfosAddEvent在一个事务中写入, 不管事务是否已经执行完
+        if (!mBatchAddedUrls.remove(taskItem.getUrl())) {
+            markDownloadInfoAddEvent(taskItem);
+        }
     }
 
     private void handleOnDownloadStart(VideoTaskItem taskItem) {
@@ -638,12 +1017,54 @@ public class VideoDownloadManager {
         if (TextUtils.isEmpty(taskItem.getFileHash())) {
             taskItem.setFileHash(VideoDownloadUtils.computeMD5(taskItem.getUrl()));
         }
-        String outputPath = inputPath.substring(0, inputPath.lastIndexOf("/")) + File.separator + taskItem.getFileHash() + "_" + VideoDownloadUtils.OUTPUT_VIDEO;
+        String saveDir = inputPath.substring(0, inputPath.lastIndexOf("/"));
+        String outputPath = saveDir + File.separator + taskItem.getFileHash() + "_" + VideoDownloadUtils.OUTPUT_VIDEO;
         File outputFile = new File(outputPath);
         if (outputFile.exists()) {
             outputFile.delete();
         }
 
+        //下载过程中已经在转换的, 只需要处理最后几个分片
+        VideoDownloadTask downloadTask = mVideoDownloadTaskMap.get(taskItem.getUrl());
+        M3U8Remuxer remuxer = downloadTask instanceof M3U8VideoDownloadTask ? ((M3U8VideoDownloadTask) downloadTask).getRemuxer() : null;
+        if (remuxer != null && !remuxer.isFailed()) {
+            remuxer.finish(outputPath, new IVideoRemuxListener() {
+                @Override
+                public void onRemuxFinished(String outputPath) {
+                    mVideoDownloadHandler.post(() -> onMergeFinished(taskItem, outputPath, listener));
+                }
+
+                @Override
+                public void onRemuxFailed(Exception e) {
+                    LogUtils.w(DownloadConstants.TAG, "VideoMerge remux failed, fallback to ffmpeg, exception=" + e);
+                    mVideoDownloadHandler.post(() -> transformM3U8ToMp4(taskItem, inputPath, outputPath, listener));
+                }
+            });
+            return;
+        }
+
+        //不需要转换格式的直接拼接分片
+        M3U8 runningM3U8 = downloadTask instanceof M3U8VideoDownloadTask ? ((M3U8VideoDownloadTask) downloadTask).getM3U8() : null;
+        WorkerThreadHandler.submitRunnableTask(() -> {
+            try {
+                M3U8 m3u8 = runningM3U8 != null ? runningM3U8 : M3U8Utils.parseLocalM3U8File(new File(inputPath));
+                int mergeFormat = M3U8ConcatMerger.getMergeFormat(m3u8, mConfig.shouldM3U8MergedToTs());
+                if (mergeFormat != M3U8ConcatMerger.FORMAT_NONE) {
+                    String concatPath = mergeFormat == M3U8ConcatMerger.FORMAT_TS ?
+                            saveDir + File.separator + taskItem.getFileHash() + "_" + VideoDownloadUtils.OUTPUT_TS_VIDEO : outputPath;
+                    M3U8ConcatMerger.merge(m3u8, new File(saveDir), new File(concatPath));
+                    mVideoDownloadHandler.post(() -> onMergeFinished(taskItem, concatPath, listener));
+                    return;
+                }
+            } catch (Exception e) {
+                LogUtils.w(DownloadConstants.TAG, "VideoMerge concat failed, fallback to ffmpeg, exception=" + e);
+            }
+            mVideoDownloadHandler.post(() -> transformM3U8ToMp4(taskItem, inputPath, outputPath, listener));
+        });
+    }
+
+    private void transformM3U8ToMp4(VideoTaskItem taskItem, String inputPath, String outputPath, IM3U8MergeResultListener listener) {
+        long startTime = System.currentTimeMillis();
         VideoProcessManager.getInstance().transformM3U8ToMp4(inputPath, outputPath, new IVideoTransformListener() {
             @Override
             public void onTransformProgress(float progress) {
@@ -663,26 +1084,36 @@ public class VideoDownloadManager {
 
             @Override
             public void onTransformFinished() {
-                LogUtils.i(DownloadConstants.TAG, "VideoMerge onTransformFinished outputPath=" + outputPath);
-                taskItem.setFileName(VideoDownloadUtils.OUTPUT_VIDEO);
-                taskItem.setFilePath(outputPath);
-                taskItem.setMimeType(Video.Mime.MIME_TYPE_MP4);
-                taskItem.setVideoType(Video.Type.MP4_TYPE);
-                listener.onCallback(taskItem);
-
-                /// delete source file
-                File outputFile = new File(outputPath);
-                File[] files = outputFile.getParentFile().listFiles();
-                for (File subFile : files) {
-                    String subFilePath = subFile.getAbsolutePath();
-                    if (!subFilePath.endsWith(VideoDownloadUtils.OUTPUT_VIDEO)) {
-                        subFile.delete();
-                    }
-                }
+                LogUtils.i(DownloadConstants.TAG, "VideoMerge onTransformFinished cost=" + (System.currentTimeMillis() - startTime) + "ms, outputPath=" + outputPath);
+                onMergeFinished(taskItem, outputPath, listener);
             }
         });
     }
 
+    private void onMergeFinished(VideoTaskItem taskItem, String outputPath, IM3U8MergeResultListener listener) {
+        String outputName = outputPath.endsWith(VideoDownloadUtils.OUTPUT_TS_VIDEO) ? VideoDownloadUtils.OUTPUT_TS_VIDEO : VideoDownloadUtils.OUTPUT_VIDEO;
+        taskItem.setFileName(outputName);
+        taskItem.setFilePath(outputPath);
+        if (VideoDownloadUtils.OUTPUT_TS_VIDEO.equals(outputName)) {
+            taskItem.setMimeType(Video.Mime.MIME_TYPE_TS);
+            taskItem.setVideoType(Video.Type.TS_TYPE);
+        } else {
+            taskItem.setMimeType(Video.Mime.MIME_TYPE_MP4);
+            taskItem.setVideoType(Video.Type.MP4_TYPE);
+        }
+        listener.onCallback(taskItem);
+
+        /// delete source file
+        File outputFile = new File(outputPath);
+        File[] files = outputFile.getParentFile().listFiles();
+        for (File subFile : files) {
+            String subFilePath = subFile.getAbsolutePath();
+            if (!subFilePath.endsWith(outputName)) {
+                subFile.delete();
+            }
+        }
+    }
+
     private void retryMerge(VideoTaskItem taskItem, IM3U8MergeResultListener listener) {
         LogUtils.i(DownloadConstants.TAG, "VideoMerge retryMerge taskItem=" + taskItem);
         String inputPath = taskItem.getFilePath();
@@ -714,21 +1145,7 @@ public class VideoDownloadManager {
             @Override
             public void onTransformFinished() {
                 LogUtils.i(DownloadConstants.TAG, "VideoMerge onTransformFinished outputPath=" + outputPath);
-                taskItem.setFileName(VideoDownloadUtils.OUTPUT_VIDEO);
-                taskItem.setFilePath(outputPath);
-                taskItem.setMimeType(Video.Mime.MIME_TYPE_MP4);
-                taskItem.setVideoType(Video.Type.MP4_TYPE);
-                listener.onCallback(taskItem);
-
-                /// delete source file
-                File outputFile = new File(outputPath);
-                File[] files = outputFile.getParentFile().listFiles();
-                for (File subFile : files) {
-                    String subFilePath = subFile.getAbsolutePath();
-                    if (!subFilePath.endsWith(VideoDownloadUtils.OUTPUT_VIDEO)) {
-                        subFile.delete();
-                    }
-                }
+                onMergeFinished(taskItem, outputPath, listener);
             }
         });
     }
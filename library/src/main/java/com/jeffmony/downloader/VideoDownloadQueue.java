@@ -1,139 +1,241 @@
 package com.jeffmony.downloader;
 
-import com.jeffmony.downloader.common.DownloadConstants;
 import com.jeffmony.downloader.model.VideoTaskItem;
 import com.jeffmony.downloader.model.VideoTaskState;
-import com.jeffmony.downloader.utils.LogUtils;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.TreeSet;
 
 /**
- * Custom Download Queue.
+ * 下载任务队列.
+ *
+ * 按url索引任务, 排队的任务放在按调度策略排序的TreeSet中, 入队、出队、删除都是O(log n);
+ * 已经调度出去的任务单独放在一个按优先级排序的TreeSet中, 抢占的时候取优先级最低的.
+ * 排序用到的优先级和剩余大小在入队的时候记录下来, 之后修改需要调用updatePriority重新排序.
+ * 队列本身不加锁, 由VideoDownloadManager的mQueueLock保护.
  */
 public class VideoDownloadQueue {
-    private CopyOnWriteArrayList<VideoTaskItem> mQueue;
+
+    private static final Comparator<Entry> FIFO_COMPARATOR = (lhs, rhs) -> Long.compare(lhs.mSequence, rhs.mSequence);
+
+    private static final Comparator<Entry> PRIORITY_COMPARATOR = (lhs, rhs) -> {
+        if (lhs.mPriority != rhs.mPriority) {
+            return lhs.mPriority > rhs.mPriority ? -1 : 1;
+        }
+        return Long.compare(lhs.mSequence, rhs.mSequence);
+    };
+
+    private static final Comparator<Entry> SHORTEST_REMAINING_COMPARATOR = (lhs, rhs) -> {
+        if (lhs.mRemainingSize != rhs.mRemainingSize) {
+            return Long.compare(lhs.mRemainingSize, rhs.mRemainingSize);
+        }
+        return Long.compare(lhs.mSequence, rhs.mSequence);
+    };
+
+    //优先级最低的排在最前面, 相同优先级后开始的排在前面
+    private static final Comparator<Entry> RUNNING_COMPARATOR = (lhs, rhs) -> {
+        if (lhs.mPriority != rhs.mPriority) {
+            return lhs.mPriority < rhs.mPriority ? -1 : 1;
+        }
+        return Long.compare(rhs.mSequence, lhs.mSequence);
+    };
+
+    private final Map<String, Entry> mEntryMap = new HashMap<>();
+    private final TreeSet<Entry> mRunningSet = new TreeSet<>(RUNNING_COMPARATOR);
+    private TreeSet<Entry> mPendingSet;
+    private int mPolicy;
+    private long mSequence;
 
     public VideoDownloadQueue() {
-        mQueue = new CopyOnWriteArrayList<>();
+        this(VideoDownloadConfig.QUEUE_FIFO);
+    }
+
+    public VideoDownloadQueue(int policy) {
+        mPolicy = policy;
+        mPendingSet = new TreeSet<>(getComparator(policy));
+    }
+
+    private static Comparator<Entry> getComparator(int policy) {
+        switch (policy) {
+            case VideoDownloadConfig.QUEUE_PRIORITY:
+                return PRIORITY_COMPARATOR;
+            case VideoDownloadConfig.QUEUE_SHORTEST_REMAINING:
+                return SHORTEST_REMAINING_COMPARATOR;
+            default:
+                return FIFO_COMPARATOR;
+        }
+    }
+
+    public int getPolicy() {
+        return mPolicy;
     }
 
+    /**
+     * 切换调度策略, 排队的任务按新的策略重新排序, 已经开始的任务不受影响
+     * @param policy VideoDownloadConfig.QUEUE_XXX
+     */
+    public void setPolicy(int policy) {
+        if (mPolicy == policy) {
+            return;
+        }
+        TreeSet<Entry> pendingSet = new TreeSet<>(getComparator(policy));
+        pendingSet.addAll(mPendingSet);
+        mPendingSet = pendingSet;
+        mPolicy = policy;
+    }
+
+    /**
+     * @return 所有任务, 正在下载的在前, 排队的按调度顺序在后
+     */
     public List<VideoTaskItem> getDownloadList() {
-        return mQueue;
+        List<VideoTaskItem> taskList = new ArrayList<>(mEntryMap.size());
+        for (Entry entry : mRunningSet) {
+            taskList.add(entry.mTaskItem);
+        }
+        for (Entry entry : mPendingSet) {
+            taskList.add(entry.mTaskItem);
+        }
+        return taskList;
     }
 
     //put it into queue
     public void offer(VideoTaskItem taskItem) {
-        mQueue.add(taskItem);
-    }
-
-    //Remove Queue head item,
-    //Return Next Queue head.
-    public VideoTaskItem poll() {
-        try {
-            if (mQueue.size() >= 2) {
-                mQueue.remove(0);
-                return mQueue.get(0);
-            } else if (mQueue.size() == 1) {
-                mQueue.remove(0);
-            }
-        } catch (Exception e) {
-            LogUtils.w(DownloadConstants.TAG, "DownloadQueue remove failed.");
-        }
-        return null;
+        offer(taskItem, null);
     }
 
-    public VideoTaskItem peek() {
-        try {
-            if (mQueue.size() >= 1) {
-                return mQueue.get(0);
+    /**
+     * 任务已经在队列中的时候只更新请求头
+     */
+    public void offer(VideoTaskItem taskItem, Map<String, String> headers) {
+        Entry entry = mEntryMap.get(taskItem.getUrl());
+        if (entry != null) {
+            if (headers != null) {
+                entry.mHeaders = headers;
             }
-        } catch (Exception e) {
-            LogUtils.w(DownloadConstants.TAG, "DownloadQueue get failed.");
+            return;
         }
-        return null;
+        entry = new Entry(taskItem, headers, mSequence++);
+        entry.snapshot();
+        mEntryMap.put(taskItem.getUrl(), entry);
+        mPendingSet.add(entry);
     }
 
     public boolean remove(VideoTaskItem taskItem) {
-        if (contains(taskItem)) {
-            return mQueue.remove(taskItem);
+        Entry entry = mEntryMap.remove(taskItem.getUrl());
+        if (entry == null) {
+            return false;
+        }
+        if (entry.mRunning) {
+            mRunningSet.remove(entry);
+        } else {
+            mPendingSet.remove(entry);
         }
-        return false;
+        return true;
     }
 
     public boolean contains(VideoTaskItem taskItem) {
-        return mQueue.contains(taskItem);
+        return mEntryMap.containsKey(taskItem.getUrl());
     }
 
     public VideoTaskItem getTaskItem(String url) {
-        try {
-            for (int index = 0; index < mQueue.size(); index++) {
-                VideoTaskItem taskItem = mQueue.get(index);
-                if (taskItem != null && taskItem.getUrl() != null &&
-                        taskItem.getUrl().equals(url)) {
-                    return taskItem;
-                }
-            }
-        } catch (Exception e) {
-            LogUtils.w(DownloadConstants.TAG, "DownloadQueue getTaskItem failed.");
-        }
-        return null;
+        Entry entry = mEntryMap.get(url);
+        return entry != null ? entry.mTaskItem : null;
+    }
+
+    public Map<String, String> getHeaders(VideoTaskItem taskItem) {
+        Entry entry = mEntryMap.get(taskItem.getUrl());
+        return entry != null ? entry.mHeaders : null;
     }
 
     public boolean isEmpty() {
-        return size() == 0;
+        return mEntryMap.isEmpty();
     }
 
     public int size() {
-        return mQueue.size();
+        return mEntryMap.size();
     }
 
-    public boolean isHead(VideoTaskItem taskItem) {
-        if (taskItem == null)
-            return false;
-        return taskItem.equals(peek());
+    /**
+     * @return 已经调度出去的任务个数, 包括还在解析的任务
+     */
+    public int getDownloadingCount() {
+        return mRunningSet.size();
     }
 
-    public int getDownloadingCount() {
-        int count = 0;
-        try {
-            for (int index = 0; index < mQueue.size(); index++) {
-                if (isTaskRunnig(mQueue.get(index))) {
-                    count++;
-                }
-            }
-        } catch (Exception e) {
-            LogUtils.w(DownloadConstants.TAG, "DownloadQueue getDownloadingCount failed.");
+    public int getPendingCount() {
+        return mPendingSet.size();
+    }
+
+    public VideoTaskItem peekPendingTask() {
+        return mPendingSet.isEmpty() ? null : mPendingSet.first().mTaskItem;
+    }
+
+    /**
+     * 取出下一个要下载的任务, 任务仍然留在队列中, 标记为已调度
+     */
+    public VideoTaskItem pollPendingTask() {
+        Entry entry = mPendingSet.pollFirst();
+        if (entry == null) {
+            return null;
         }
-        return count;
+        entry.mRunning = true;
+        mRunningSet.add(entry);
+        return entry.mTaskItem;
     }
 
-    public int getPendingCount() {
-        int count = 0;
-        try {
-            for (int index = 0; index < mQueue.size(); index++) {
-                if (isTaskPending(mQueue.get(index))) {
-                    count++;
-                }
-            }
-        } catch (Exception e) {
-            LogUtils.w(DownloadConstants.TAG, "DownloadQueue getDownloadingCount failed.");
+    /**
+     * 已经调度的任务重新排队, 保留原来的入队顺序
+     */
+    public boolean requeue(VideoTaskItem taskItem) {
+        Entry entry = mEntryMap.get(taskItem.getUrl());
+        if (entry == null || !entry.mRunning) {
+            return false;
         }
-        return count;
+        mRunningSet.remove(entry);
+        entry.mRunning = false;
+        entry.snapshot();
+        mPendingSet.add(entry);
+        return true;
     }
 
-    public VideoTaskItem peekPendingTask() {
-        try {
-            for (int index = 0; index < mQueue.size(); index++) {
-                VideoTaskItem taskItem = mQueue.get(index);
-                if (isTaskPending(taskItem)) {
-                    return taskItem;
-                }
-            }
-        } catch (Exception e) {
-            LogUtils.w(DownloadConstants.TAG, "DownloadQueue getDownloadingCount failed.");
+    /**
+     * 任务的优先级修改之后重新排序
+     */
+    public void updatePriority(VideoTaskItem taskItem) {
+        Entry entry = mEntryMap.get(taskItem.getUrl());
+        if (entry == null) {
+            return;
+        }
+        TreeSet<Entry> set = entry.mRunning ? mRunningSet : mPendingSet;
+        set.remove(entry);
+        entry.snapshot();
+        set.add(entry);
+    }
+
+    /**
+     * 只在QUEUE_PRIORITY策略下抢占, 其他策略下被抢占的任务可能马上又排到最前面
+     * @return 优先级低于下一个排队任务的、优先级最低的正在下载的任务, 没有返回null
+     */
+    public VideoTaskItem peekPreemptibleTask() {
+        if (mPolicy != VideoDownloadConfig.QUEUE_PRIORITY || mPendingSet.isEmpty() || mRunningSet.isEmpty()) {
+            return null;
         }
-        return null;
+        Entry lowest = mRunningSet.first();
+        return mPendingSet.first().mPriority > lowest.mPriority ? lowest.mTaskItem : null;
+    }
+
+    public boolean isPending(VideoTaskItem taskItem) {
+        Entry entry = mEntryMap.get(taskItem.getUrl());
+        return entry != null && !entry.mRunning;
+    }
+
+    public boolean isRunning(VideoTaskItem taskItem) {
+        Entry entry = mEntryMap.get(taskItem.getUrl());
+        return entry != null && entry.mRunning;
     }
 
     public boolean isTaskPending(VideoTaskItem taskItem) {
@@ -151,4 +253,26 @@ public class VideoDownloadQueue {
         return taskState == VideoTaskState.START ||
                 taskState == VideoTaskState.DOWNLOADING;
     }
+
+    private static class Entry {
+        private final VideoTaskItem mTaskItem;
+        private final long mSequence;
+        private Map<String, String> mHeaders;
+        private boolean mRunning;
+        private int mPriority;
+        private long mRemainingSize;
+
+        private Entry(VideoTaskItem taskItem, Map<String, String> headers, long sequence) {
+            mTaskItem = taskItem;
+            mHeaders = headers;
+            mSequence = sequence;
+        }
+
+        //不在TreeSet中的时候才能调用
+        private void snapshot() {
+            mPriority = mTaskItem.getPriority();
+            long totalSize = mTaskItem.getTotalSize();
+            mRemainingSize = totalSize > 0 ? Math.max(totalSize - mTaskItem.getDownloadSize(), 0) : Long.MAX_VALUE;
+        }
+    }
 }
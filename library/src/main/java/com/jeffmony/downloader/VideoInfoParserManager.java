@@ -6,10 +6,12 @@ import com.jeffmony.downloader.common.DownloadConstants;
 import com.jeffmony.downloader.listener.IVideoInfoListener;
 import com.jeffmony.downloader.listener.IVideoInfoParseListener;
 import com.jeffmony.downloader.m3u8.M3U8;
+import com.jeffmony.downloader.m3u8.M3U8LiveRefresher;
 import com.jeffmony.downloader.m3u8.M3U8Utils;
 import com.jeffmony.downloader.model.Video;
 import com.jeffmony.downloader.model.VideoTaskItem;
 import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+import com.jeffmony.downloader.utils.HttpConnectionPool;
 import com.jeffmony.downloader.utils.HttpUtils;
 import com.jeffmony.downloader.utils.LogUtils;
 import com.jeffmony.downloader.utils.VideoDownloadUtils;
@@ -21,11 +23,34 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+/**
+ * 解析视频信息: 跟随跳转得到最终的url, 区分M3U8和普通视频, 普通视频获取文件总长度.
+ *
+ * 解析在最多MAX_PROBE_COUNT个线程中并行, 封面图单独下载, 不阻塞解析.
+ * 探测结果按url缓存PROBE_CACHE_TTL, 重新添加或者恢复任务的时候不再重复请求, M3U8仍然需要请求列表.
+ */
 public class VideoInfoParserManager {
+    private static final int MAX_PROBE_COUNT = 4;
+    private static final int MAX_PROBE_CACHE_SIZE = 64;
+    private static final long PROBE_CACHE_TTL = 5 * 60 * 1000L;
+
     private static volatile VideoInfoParserManager sInstance;
 
+    private final ThreadPoolExecutor mProbeExecutor;
+    private final Map<String, ProbeResult> mProbeCache = new LinkedHashMap<String, ProbeResult>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, ProbeResult> eldest) {
+            return size() > MAX_PROBE_CACHE_SIZE;
+        }
+    };
+
     public static VideoInfoParserManager getInstance() {
         if (sInstance == null) {
             synchronized (VideoInfoParserManager.class) {
@@ -37,11 +62,45 @@ public class VideoInfoParserManager {
         return sInstance;
     }
 
-    public synchronized void parseVideoInfo(final VideoTaskItem taskItem, IVideoInfoListener listener, final Map<String, String> headers) {
-        WorkerThreadHandler.submitRunnableTask(() -> doParseVideoInfoTask(taskItem, listener, headers));
+    private VideoInfoParserManager() {
+        mProbeExecutor = new ThreadPoolExecutor(MAX_PROBE_COUNT, MAX_PROBE_COUNT, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), runnable -> new Thread(runnable, "Video-probe"));
+        mProbeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    public void parseVideoInfo(final VideoTaskItem taskItem, IVideoInfoListener listener, final Map<String, String> headers) {
+        mProbeExecutor.execute(() -> doParseVideoInfoTask(taskItem, listener, headers));
+    }
+
+    /**
+     * 下载失败之后调用, 避免重试的时候继续使用过期的跳转地址
+     */
+    public void removeProbeCache(String url) {
+        synchronized (mProbeCache) {
+            mProbeCache.remove(url);
+        }
+    }
+
+    private ProbeResult getProbeCache(String url) {
+        synchronized (mProbeCache) {
+            ProbeResult result = mProbeCache.get(url);
+            if (result != null && System.currentTimeMillis() - result.mTime > PROBE_CACHE_TTL) {
+                mProbeCache.remove(url);
+                return null;
+            }
+            return result;
+        }
+    }
+
+    private void putProbeCache(String url, ProbeResult result) {
+        synchronized (mProbeCache) {
+            mProbeCache.put(url, result);
+        }
     }
 
     private void doParseVideoInfoTask(VideoTaskItem taskItem, IVideoInfoListener listener, Map<String, String> headers) {
+        //交给后面的请求或者已经释放之后置为null, 其他情况在finally中断开
+        HttpURLConnection connection = null;
         try {
             if (taskItem == null) {
                 listener.onBaseVideoInfoFailed(new VideoDownloadException(DownloadExceptionUtils.VIDEO_INFO_EMPTY));
@@ -53,29 +112,32 @@ public class VideoInfoParserManager {
             }
 
             if (TextUtils.isEmpty(taskItem.getCoverPath()) && !TextUtils.isEmpty(taskItem.getCoverUrl())) {
-                //请求视频的封面图
-                HttpURLConnection coverConn = HttpUtils.getConnection(taskItem.getCoverUrl(), headers, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
-                int responseCode = coverConn.getResponseCode();
-                if (responseCode == HttpUtils.RESPONSE_200 || responseCode == HttpUtils.RESPONSE_206) {
-                    InputStream inputStream = coverConn.getInputStream();
-                    File coverFile = new File(VideoDownloadUtils.getDownloadConfig().getCacheRoot(), taskItem.getFileHash() + ".jpg");
-                    boolean result = saveCoverFile(inputStream, coverFile);
-                    if (result) {
-                        taskItem.setCoverPath(coverFile.getAbsolutePath());
-                    }
-                }
+                WorkerThreadHandler.submitRunnableTask(() -> requestCover(taskItem, headers));
             }
 
             String finalUrl = taskItem.getUrl();
             LogUtils.i(DownloadConstants.TAG, "doParseVideoInfoTask url="+finalUrl);
 
-            HttpURLConnection connection = null;
+            ProbeResult probeResult = getProbeCache(finalUrl);
+            if (probeResult != null) {
+                LogUtils.i(DownloadConstants.TAG, "doParseVideoInfoTask hit probe cache, finalUrl=" + probeResult.mFinalUrl + ", contentLength=" + probeResult.mContentLength);
+                taskItem.setFinalUrl(probeResult.mFinalUrl);
+                if (probeResult.mIsM3U8) {
+                    taskItem.setMimeType(Video.TypeInfo.M3U8);
+                    parseNetworkM3U8Info(taskItem, headers, listener);
+                } else {
+                    taskItem.setSupportRange(probeResult.mSupportRange);
+                    taskItem.setTotalSize(probeResult.mContentLength);
+                    listener.onBaseVideoInfoSuccess(taskItem);
+                }
+                return;
+            }
+
             // Redirect is enabled, send redirect request to get final location.
             try {
-                connection = HttpUtils.getConnection(finalUrl, headers, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+                connection = HttpConnectionPool.getInstance().getConnection(finalUrl, headers, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
             } catch (Exception e) {
                 listener.onBaseVideoInfoFailed(new VideoDownloadException(DownloadExceptionUtils.CREATE_CONNECTION_ERROR));
-                HttpUtils.closeConnection(connection);
                 return;
             }
             if (connection == null) {
@@ -85,29 +147,50 @@ public class VideoInfoParserManager {
             finalUrl = connection.getURL().toString();
             if (TextUtils.isEmpty(finalUrl)) {
                 listener.onBaseVideoInfoFailed(new VideoDownloadException(DownloadExceptionUtils.FINAL_URL_EMPTY));
-                HttpUtils.closeConnection(connection);
                 return;
             }
             taskItem.setFinalUrl(finalUrl);
             String contentType = connection.getContentType();
+            //没有带Range的200响应, 响应体就是从0开始的完整内容, 可以交给之后的请求继续读取
+            boolean handoff = connection.getResponseCode() == HttpUtils.RESPONSE_200 && (headers == null || !headers.containsKey("Range"));
 
             if (finalUrl.contains(Video.TypeInfo.M3U8) || VideoDownloadUtils.isM3U8Mimetype(contentType)) {
-                //这是M3U8视频类型
+                //这是M3U8视频类型, 响应体就是列表内容, 交给解析列表的请求
+                if (handoff) {
+                    HttpConnectionPool.getInstance().parkConnection(taskItem.getUrl(), connection);
+                } else {
+                    HttpConnectionPool.getInstance().releaseConnection(connection, false);
+                }
+                connection = null;
+                putProbeCache(taskItem.getUrl(), new ProbeResult(finalUrl, true, VideoDownloadUtils.DEFAULT_CONTENT_LENGTH, true));
                 taskItem.setMimeType(Video.TypeInfo.M3U8);
                 parseNetworkM3U8Info(taskItem, headers, listener);
             } else {
                 //这是非M3U8类型, 需要获取视频的totalLength ===> contentLength
+                boolean supportRange = !"none".equalsIgnoreCase(connection.getHeaderField("Accept-Ranges"));
+                //没有content-length需要重新请求的时候, 这个连接已经关闭了
+                handoff = handoff && !TextUtils.isEmpty(connection.getHeaderField("content-length"));
                 long contentLength = getContentLength(taskItem, headers, connection, false);
                 if (contentLength == VideoDownloadUtils.DEFAULT_CONTENT_LENGTH) {
                     listener.onBaseVideoInfoFailed(new VideoDownloadException(DownloadExceptionUtils.FILE_LENGTH_FETCHED_ERROR_STRING));
-                    HttpUtils.closeConnection(connection);
                     return;
                 }
+                if (handoff) {
+                    //响应体作为第一个range的数据, 省掉一次建连和首字节等待
+                    HttpConnectionPool.getInstance().parkConnection(finalUrl, connection);
+                } else {
+                    HttpConnectionPool.getInstance().releaseConnection(connection, false);
+                }
+                connection = null;
+                putProbeCache(taskItem.getUrl(), new ProbeResult(finalUrl, false, contentLength, supportRange));
+                taskItem.setSupportRange(supportRange);
                 taskItem.setTotalSize(contentLength);
                 listener.onBaseVideoInfoSuccess(taskItem);
             }
         } catch (Exception e) {
             listener.onBaseVideoInfoFailed(e);
+        } finally {
+            HttpConnectionPool.getInstance().releaseConnection(connection, false);
         }
     }
 
@@ -140,37 +223,98 @@ public class VideoInfoParserManager {
             HttpUtils.closeConnection(connection);
             return getContentLength(taskItem, headers, connection, true);
         } else {
-            long totalLength = Long.parseLong(length);
-            if (totalLength <= 0) {
+            long totalLength;
+            try {
+                totalLength = Long.parseLong(length.trim());
+            } catch (NumberFormatException e) {
+                totalLength = -1;
+            }
+            if (shouldRetry || totalLength <= 0) {
                 HttpUtils.closeConnection(connection);
+            }
+            if (totalLength <= 0) {
                 return VideoDownloadUtils.DEFAULT_CONTENT_LENGTH;
             }
             return totalLength;
         }
     }
 
+    private void requestCover(VideoTaskItem taskItem, Map<String, String> headers) {
+        HttpURLConnection connection = null;
+        try {
+            connection = HttpUtils.getConnection(taskItem.getCoverUrl(), headers, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpUtils.RESPONSE_200 || responseCode == HttpUtils.RESPONSE_206) {
+                File coverFile = new File(VideoDownloadUtils.getDownloadConfig().getCacheRoot(), taskItem.getFileHash() + ".jpg");
+                if (saveCoverFile(connection.getInputStream(), coverFile)) {
+                    taskItem.setCoverPath(coverFile.getAbsolutePath());
+                }
+            }
+        } catch (Exception e) {
+            LogUtils.w(DownloadConstants.TAG, "Request cover failed, exception=" + e);
+        } finally {
+            HttpUtils.closeConnection(connection);
+        }
+    }
+
+    /**
+     * 解析出第一个分片就开始下载, 剩下的分片边解析边加入下载队列.
+     * 开始下载之后解析的结果通过M3U8通知下载任务, 没有任务监听的时候才回调listener.
+     */
     private void parseNetworkM3U8Info(VideoTaskItem taskItem, Map<String, String> headers, IVideoInfoListener listener) {
+        String saveName = VideoDownloadUtils.computeMD5(taskItem.getUrl());
+        File dir = new File(VideoDownloadUtils.getDownloadConfig().getCacheRoot(), saveName);
+        AtomicReference<M3U8> startedM3U8 = new AtomicReference<>();
         try {
-            M3U8 m3u8 = M3U8Utils.parseNetworkM3U8Info(taskItem.getUrl(), headers, 0);
+            M3U8 m3u8 = M3U8Utils.parseNetworkM3U8Info(taskItem.getUrl(), headers, 0, parsingM3U8 -> {
+                if (!dir.exists()) {
+                    dir.mkdir();
+                }
+                startedM3U8.set(parsingM3U8);
+                taskItem.setSaveDir(dir.getAbsolutePath());
+                taskItem.setVideoType(Video.Type.HLS_TYPE);
+                listener.onM3U8InfoStarted(taskItem, parsingM3U8);
+            });
             // HLS LIVE video cannot be proxy cached.
             if (m3u8.hasEndList()) {
-                String saveName = VideoDownloadUtils.computeMD5(taskItem.getUrl());
-                File dir = new File(VideoDownloadUtils.getDownloadConfig().getCacheRoot(), saveName);
                 if (!dir.exists()) {
                     dir.mkdir();
                 }
 
                 M3U8Utils.createRemoteM3U8(dir, m3u8);
 
+                if (startedM3U8.get() != null) {
+                    m3u8.notifyParseCompleted();
+                    return;
+                }
                 taskItem.setSaveDir(dir.getAbsolutePath());
                 taskItem.setVideoType(Video.Type.HLS_TYPE);
                 listener.onM3U8InfoSuccess(taskItem, m3u8);
             } else {
+                if (startedM3U8.get() != null && VideoDownloadUtils.getDownloadConfig().shouldRecordLive()) {
+                    if (m3u8.hasSegListener()) {
+                        //上次录制的列表已经过期, 结束的时候重新写
+                        new File(dir, VideoDownloadUtils.REMOTE_M3U8).delete();
+                        new M3U8LiveRefresher(m3u8, dir, headers).start();
+                    } else {
+                        //没有下载任务在录制, 例如排队中或者已经有任务在下载
+                        LogUtils.w(DownloadConstants.TAG, "Live M3U8 has no recording task, url=" + taskItem.getUrl());
+                        m3u8.stopParse();
+                    }
+                    return;
+                }
                 taskItem.setVideoType(Video.Type.HLS_LIVE_TYPE);
+                if (startedM3U8.get() != null && m3u8.notifyParseFailed(new VideoDownloadException(DownloadExceptionUtils.LIVE_M3U8_ERROR_STRING))) {
+                    return;
+                }
                 listener.onLiveM3U8Callback(taskItem);
             }
         } catch (Exception e) {
             e.printStackTrace();
+            M3U8 m3u8 = startedM3U8.get();
+            if (m3u8 != null && m3u8.notifyParseFailed(e)) {
+                return;
+            }
             listener.onM3U8InfoFailed(e);
         }
     }
@@ -208,4 +352,19 @@ public class VideoInfoParserManager {
         return true;
     }
 
+    private static class ProbeResult {
+        private final String mFinalUrl;
+        private final boolean mIsM3U8;
+        private final long mContentLength;
+        private final boolean mSupportRange;
+        private final long mTime;
+
+        private ProbeResult(String finalUrl, boolean isM3U8, long contentLength, boolean supportRange) {
+            mFinalUrl = finalUrl;
+            mIsM3U8 = isM3U8;
+            mContentLength = contentLength;
+            mSupportRange = supportRange;
+            mTime = System.currentTimeMillis();
+        }
+    }
 }
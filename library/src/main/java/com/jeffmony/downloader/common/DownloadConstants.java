@@ -15,6 +15,7 @@ public class DownloadConstants {
     public static final int MSG_DOWNLOAD_PAUSE = 5;
     public static final int MSG_DOWNLOAD_SUCCESS = 6;
     public static final int MSG_DOWNLOAD_ERROR = 7;
+    public static final int MSG_DOWNLOADS_PENDING = 8;
 
     public static final int MSG_FETCH_DOWNLOAD_INFO = 100;
     public static final int MSG_DELETE_ALL_FILES = 101;
@@ -36,6 +36,37 @@ public class VideoDownloadDatabaseHelper {
         }
     }
 
+    /**
+     * 批量添加任务, 所有插入在同一个事务中完成
+     */
+    public void markDownloadInfosAddEvent(List<VideoTaskItem> items) {
+        SQLiteDatabase db = mSQLiteHelper.getWritableDatabase();
+        if (db == null) {
+            return;
+        }
+        synchronized (this) {
+            List<VideoTaskItem> insertedItems = new ArrayList<>();
+            db.beginTransaction();
+            try {
+                for (VideoTaskItem item : items) {
+                    if (item.isInDatabase() || isTaskInfoExistInTable(db, item)) {
+                        continue;
+                    }
+                    db.insert(VideoDownloadSQLiteHelper.TABLE_VIDEO_DOWNLOAD_INFO, null, getInsertValues(item));
+                    insertedItems.add(item);
+                }
+                db.setTransactionSuccessful();
+                for (VideoTaskItem item : insertedItems) {
+                    item.setIsInDatabase(true);
+                }
+            } catch (Exception e) {
+                LogUtils.w(DownloadConstants.TAG, "markDownloadInfosAddEvent failed, exception = " + e.getMessage());
+            } finally {
+                db.endTransaction();
+            }
+        }
+    }
+
     public void markDownloadProgressInfoUpdateEvent(VideoTaskItem item) {
         SQLiteDatabase db = mSQLiteHelper.getWritableDatabase();
         if (db == null) {
@@ -94,6 +125,7 @@ public class VideoDownloadDatabaseHelper {
             values.put(VideoDownloadSQLiteHelper.Columns.COVER_PATH, item.getCoverPath());
             values.put(VideoDownloadSQLiteHelper.Columns.VIDEO_TITLE, item.getTitle());
             values.put(VideoDownloadSQLiteHelper.Columns.GROUP_NAME, item.getGroupName());
+            values.put(VideoDownloadSQLiteHelper.Columns.SUPPORT_RANGE, item.isSupportRange());
             String whereClause = VideoDownloadSQLiteHelper.Columns.VIDEO_URL + " = ?";
             String[] whereArgs = {item.getUrl()};
             db.update(VideoDownloadSQLiteHelper.TABLE_VIDEO_DOWNLOAD_INFO, values, whereClause, whereArgs);
@@ -111,23 +143,7 @@ public class VideoDownloadDatabaseHelper {
         }
         db.beginTransaction();
         try {
-            ContentValues values = new ContentValues();
-            values.put(VideoDownloadSQLiteHelper.Columns.VIDEO_URL, item.getUrl());
-            values.put(VideoDownloadSQLiteHelper.Columns.MIME_TYPE, item.getMimeType());
-            values.put(VideoDownloadSQLiteHelper.Columns.DOWNLOAD_TIME, item.getDownloadCreateTime());
-            values.put(VideoDownloadSQLiteHelper.Columns.PERCENT, item.getPercent());
-            values.put(VideoDownloadSQLiteHelper.Columns.TASK_STATE, item.getTaskState());
-            values.put(VideoDownloadSQLiteHelper.Columns.VIDEO_TYPE, item.getVideoType());
-            values.put(VideoDownloadSQLiteHelper.Columns.CACHED_LENGTH, item.getDownloadSize());
-            values.put(VideoDownloadSQLiteHelper.Columns.TOTAL_LENGTH, item.getTotalSize());
-            values.put(VideoDownloadSQLiteHelper.Columns.CACHED_TS, item.getCurTs());
-            values.put(VideoDownloadSQLiteHelper.Columns.TOTAL_TS, item.getTotalTs());
-            values.put(VideoDownloadSQLiteHelper.Columns.COMPLETED, item.isCompleted());
-            values.put(VideoDownloadSQLiteHelper.Columns.COVER_URL, item.getCoverUrl());
-            values.put(VideoDownloadSQLiteHelper.Columns.COVER_PATH, item.getCoverPath());
-            values.put(VideoDownloadSQLiteHelper.Columns.VIDEO_TITLE, item.getTitle());
-            values.put(VideoDownloadSQLiteHelper.Columns.GROUP_NAME, item.getGroupName());
-            db.insert(VideoDownloadSQLiteHelper.TABLE_VIDEO_DOWNLOAD_INFO, null, values);
+            db.insert(VideoDownloadSQLiteHelper.TABLE_VIDEO_DOWNLOAD_INFO, null, getInsertValues(item));
             db.setTransactionSuccessful();
         } catch (Exception e) {
             LogUtils.w(DownloadConstants.TAG, "insertVideoDownloadInfo failed, exception = " + e.getMessage());
@@ -137,6 +153,27 @@ public class VideoDownloadDatabaseHelper {
         }
     }
 
+    private ContentValues getInsertValues(VideoTaskItem item) {
+        ContentValues values = new ContentValues();
+        values.put(VideoDownloadSQLiteHelper.Columns.VIDEO_URL, item.getUrl());
+        values.put(VideoDownloadSQLiteHelper.Columns.MIME_TYPE, item.getMimeType());
+        values.put(VideoDownloadSQLiteHelper.Columns.DOWNLOAD_TIME, item.getDownloadCreateTime());
+        values.put(VideoDownloadSQLiteHelper.Columns.PERCENT, item.getPercent());
+        values.put(VideoDownloadSQLiteHelper.Columns.TASK_STATE, item.getTaskState());
+        values.put(VideoDownloadSQLiteHelper.Columns.VIDEO_TYPE, item.getVideoType());
+        values.put(VideoDownloadSQLiteHelper.Columns.CACHED_LENGTH, item.getDownloadSize());
+        values.put(VideoDownloadSQLiteHelper.Columns.TOTAL_LENGTH, item.getTotalSize());
+        values.put(VideoDownloadSQLiteHelper.Columns.CACHED_TS, item.getCurTs());
+        values.put(VideoDownloadSQLiteHelper.Columns.TOTAL_TS, item.getTotalTs());
+        values.put(VideoDownloadSQLiteHelper.Columns.COMPLETED, item.isCompleted());
+        values.put(VideoDownloadSQLiteHelper.Columns.COVER_URL, item.getCoverUrl());
+        values.put(VideoDownloadSQLiteHelper.Columns.COVER_PATH, item.getCoverPath());
+        values.put(VideoDownloadSQLiteHelper.Columns.VIDEO_TITLE, item.getTitle());
+        values.put(VideoDownloadSQLiteHelper.Columns.GROUP_NAME, item.getGroupName());
+        values.put(VideoDownloadSQLiteHelper.Columns.SUPPORT_RANGE, item.isSupportRange());
+        return values;
+    }
+
     private boolean isTaskInfoExistInTable(SQLiteDatabase db,
                                            VideoTaskItem item) {
         if (db == null)
@@ -192,6 +229,7 @@ public class VideoDownloadDatabaseHelper {
                     item.setCoverPath(cursor.getString(cursor.getColumnIndex(VideoDownloadSQLiteHelper.Columns.COVER_PATH)));
                     item.setTitle(cursor.getString(cursor.getColumnIndex(VideoDownloadSQLiteHelper.Columns.VIDEO_TITLE)));
                     item.setGroupName(cursor.getString(cursor.getColumnIndex(VideoDownloadSQLiteHelper.Columns.GROUP_NAME)));
+                    item.setSupportRange(cursor.getInt(cursor.getColumnIndex(VideoDownloadSQLiteHelper.Columns.SUPPORT_RANGE)) != 0);
                     if (item.isRunningTask() && Math.abs(item.getSpeed()) < 0.0001f) {
                         item.setTaskState(VideoTaskState.PAUSE);
                     }
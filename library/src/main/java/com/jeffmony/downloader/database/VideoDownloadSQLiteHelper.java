@@ -7,7 +7,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 public class VideoDownloadSQLiteHelper extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "video_download_info.db";
-    private static final int DATABASE_VERSION = 4;
+    private static final int DATABASE_VERSION = 5;
 
     public static final String TABLE_VIDEO_DOWNLOAD_INFO = "video_download_info";
 
@@ -30,6 +30,7 @@ public class VideoDownloadSQLiteHelper extends SQLiteOpenHelper {
         public static final String COVER_PATH = "cover_path";
         public static final String VIDEO_TITLE = "video_title";
         public static final String GROUP_NAME = "group_name";
+        public static final String SUPPORT_RANGE = "support_range";
     }
 
     public VideoDownloadSQLiteHelper(Context context) {
@@ -52,6 +53,9 @@ public class VideoDownloadSQLiteHelper extends SQLiteOpenHelper {
         if (oldVersion == 3) {
             upgradeDatabaseToVersion4(db);
         }
+        if (oldVersion <= 4) {
+            upgradeDatabaseToVersion5(db);
+        }
     }
 
     @Override
@@ -78,7 +82,8 @@ public class VideoDownloadSQLiteHelper extends SQLiteOpenHelper {
                 + Columns.COVER_URL + " TEXT, "
                 + Columns.COVER_PATH + " TEXT,"
                 + Columns.VIDEO_TITLE + " TEXT,"
-                + Columns.GROUP_NAME + " TEXT);");
+                + Columns.GROUP_NAME + " TEXT,"
+                + Columns.SUPPORT_RANGE + " TINYINT Default 1);");
     }
 
     private void upgradeDatabaseToVersion2(SQLiteDatabase db) {
@@ -93,4 +98,8 @@ public class VideoDownloadSQLiteHelper extends SQLiteOpenHelper {
     private void upgradeDatabaseToVersion4(SQLiteDatabase db) {
         db.execSQL("ALTER TABLE " + TABLE_VIDEO_DOWNLOAD_INFO + " ADD COLUMN " + Columns.GROUP_NAME + " TEXT");
     }
+
+    private void upgradeDatabaseToVersion5(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TABLE_VIDEO_DOWNLOAD_INFO + " ADD COLUMN " + Columns.SUPPORT_RANGE + " TINYINT Default 1");
+    }
 }
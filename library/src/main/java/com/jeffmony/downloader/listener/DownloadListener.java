@@ -2,6 +2,8 @@ package com.jeffmony.downloader.listener;
 
 import com.jeffmony.downloader.model.VideoTaskItem;
 
+import java.util.List;
+
 public class DownloadListener implements IDownloadListener {
 
     @Override
@@ -14,6 +16,11 @@ public class DownloadListener implements IDownloadListener {
 
     }
 
+    @Override
+    public void onDownloadsPending(List<VideoTaskItem> items) {
+
+    }
+
     @Override
     public void onDownloadPrepare(VideoTaskItem item) {
 
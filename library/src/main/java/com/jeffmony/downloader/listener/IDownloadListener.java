@@ -2,12 +2,17 @@ package com.jeffmony.downloader.listener;
 
 import com.jeffmony.downloader.model.VideoTaskItem;
 
+import java.util.List;
+
 public interface IDownloadListener {
 
     void onDownloadDefault(VideoTaskItem item);
 
     void onDownloadPending(VideoTaskItem item);
 
+    //startDownloads批量添加的任务进入队列, 代替逐个回调onDownloadPending
+    void onDownloadsPending(List<VideoTaskItem> items);
+
     void onDownloadPrepare(VideoTaskItem item);
 
     void onDownloadStart(VideoTaskItem item);
@@ -0,0 +1,11 @@
+package com.jeffmony.downloader.listener;
+
+import com.jeffmony.downloader.model.VideoTaskItem;
+
+import java.util.List;
+
+public interface IDownloadProgressSubscriber {
+
+    //上次回调之后有变化的任务, 每个任务只有最新的状态, items是拷贝, 可以在其他线程使用
+    void onDownloadSnapshot(List<VideoTaskItem> items);
+}
@@ -0,0 +1,9 @@
+package com.jeffmony.downloader.listener;
+
+import com.jeffmony.downloader.m3u8.M3U8;
+
+public interface IM3U8ParseListener {
+
+    //解析出第一个分片, 这时候M3U8还在解析中, 之后的分片通过M3U8.setSegListener获取
+    void onParseStarted(M3U8 m3u8);
+}
@@ -0,0 +1,13 @@
+package com.jeffmony.downloader.listener;
+
+import com.jeffmony.downloader.m3u8.M3U8Seg;
+
+public interface IM3U8SegListener {
+
+    //注册之前已经解析出的分片在注册的时候补发, 和新解析的分片之间不保证顺序
+    void onSegmentAdded(M3U8Seg ts);
+
+    void onParseCompleted();
+
+    void onParseFailed(Exception e);
+}
@@ -13,6 +13,9 @@ public interface IVideoInfoListener {
 
     void onM3U8InfoSuccess(VideoTaskItem info, M3U8 m3u8);
 
+    //边解析边下载, M3U8还在解析中, 之后的结果通过M3U8通知, 不再回调onM3U8InfoSuccess
+    void onM3U8InfoStarted(VideoTaskItem info, M3U8 m3u8);
+
     void onLiveM3U8Callback(VideoTaskItem info);
 
     void onM3U8InfoFailed(Throwable error);
@@ -0,0 +1,8 @@
+package com.jeffmony.downloader.listener;
+
+public interface IVideoRemuxListener {
+
+    void onRemuxFinished(String outputPath);
+
+    void onRemuxFailed(Exception e);
+}
@@ -1,16 +1,25 @@
 package com.jeffmony.downloader.m3u8;
 
+import com.jeffmony.downloader.listener.IM3U8SegListener;
+
 import java.util.ArrayList;
 import java.util.List;
 
 public class M3U8 {
 
+    public static final int PARSE_COMPLETED = 0;
+    public static final int PARSE_RUNNING = 1;     // 边解析边下载, 分片数还会增加
+    public static final int PARSE_FAILED = 2;
+
     private String mUrl;
     private List<M3U8Seg> mTsList;
     private float mTargetDuration;
     private int mInitSequence;
     private int mVersion = 3;
     private boolean mHasEndList;
+    private volatile int mParseState = PARSE_COMPLETED;
+    private volatile boolean mLive;                // 直播录制, 解析中的状态一直持续到出现#EXT-X-ENDLIST
+    private IM3U8SegListener mSegListener;
 
     public M3U8() {
         this("");
@@ -23,7 +32,114 @@ public class M3U8 {
     }
 
     public void addTs(M3U8Seg ts) {
-        mTsList.add(ts);
+        IM3U8SegListener listener;
+        synchronized (this) {
+            mTsList.add(ts);
+            listener = mSegListener;
+        }
+        if (listener != null) {
+            listener.onSegmentAdded(ts);
+        }
+    }
+
+    /**
+     * 解析中的M3U8, 已经解析出的分片先补发给listener, 之后的分片和解析结果也通知listener.
+     * 已经解析完成的M3U8不需要监听.
+     */
+    public void setSegListener(IM3U8SegListener listener) {
+        M3U8Seg[] addedList;
+        synchronized (this) {
+            if (mParseState != PARSE_RUNNING) {
+                return;
+            }
+            addedList = mTsList.toArray(new M3U8Seg[0]);
+            mSegListener = listener;
+        }
+        //回调不持有锁, 补发的分片可能和新解析的分片交错
+        for (M3U8Seg ts : addedList) {
+            listener.onSegmentAdded(ts);
+        }
+    }
+
+    /**
+     * 删除任务或者任务失败的时候停止解析, 不再通知listener
+     */
+    public void stopParse() {
+        synchronized (this) {
+            if (mParseState != PARSE_RUNNING) {
+                return;
+            }
+            mParseState = PARSE_FAILED;
+            mSegListener = null;
+        }
+    }
+
+    public synchronized boolean hasSegListener() {
+        return mSegListener != null;
+    }
+
+    void setParseState(int parseState) {
+        mParseState = parseState;
+    }
+
+    public int getParseState() {
+        return mParseState;
+    }
+
+    public boolean isParsing() {
+        return mParseState == PARSE_RUNNING;
+    }
+
+    public void notifyParseCompleted() {
+        IM3U8SegListener listener;
+        synchronized (this) {
+            mParseState = PARSE_COMPLETED;
+            listener = mSegListener;
+            mSegListener = null;
+        }
+        if (listener != null) {
+            listener.onParseCompleted();
+        }
+    }
+
+    /**
+     * @return 是否有监听的下载任务处理这个错误
+     */
+    public boolean notifyParseFailed(Exception e) {
+        IM3U8SegListener listener;
+        synchronized (this) {
+            mParseState = PARSE_FAILED;
+            listener = mSegListener;
+            mSegListener = null;
+        }
+        if (listener != null) {
+            listener.onParseFailed(e);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 解析中也可以调用
+     */
+    public synchronized M3U8Seg getTs(int index) {
+        return mTsList.get(index);
+    }
+
+    public synchronized int getTsCount() {
+        return mTsList.size();
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public void setLive(boolean live) {
+        mLive = live;
+    }
+
+    public boolean isLive() {
+        return mLive;
     }
 
     public void setTargetDuration(float targetDuration) {
@@ -42,6 +158,9 @@ public class M3U8 {
         mHasEndList = hasEndList;
     }
 
+    /**
+     * 解析完成之后才能遍历, 解析中使用getTs/getTsCount
+     */
     public List<M3U8Seg> getTsList() {
         return mTsList;
     }
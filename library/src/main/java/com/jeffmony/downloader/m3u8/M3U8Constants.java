@@ -23,7 +23,7 @@ public class M3U8Constants {
     // #EXT-X-PLAYLIST-TYPE:VOD       is not live
     // #EXT-X-PLAYLIST-TYPE:EVENT   is live, we also can try '#EXT-X-ENDLIST'
     public static final String TAG_PLAYLIST_TYPE = "#EXT-X-PLAYLIST-TYPE";
-    public static final String TAG_STREAM_INF = "#EXT-X-STREAM-INF"; // Multiple m3u8 stream, we usually fetch the first.
+    public static final String TAG_STREAM_INF = "#EXT-X-STREAM-INF"; // Multiple m3u8 stream, selected by VideoDownloadConfig.getVariantPolicy().
     public static final String TAG_ALLOW_CACHE = "EXT-X-ALLOW-CACHE"; // YES : not live; NO: live
 
     public static final Pattern REGEX_TARGET_DURATION = Pattern.compile(TAG_TARGET_DURATION + ":(\\d+)\\b");
@@ -0,0 +1,221 @@
+package com.jeffmony.downloader.m3u8;
+
+import android.text.TextUtils;
+
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.HttpConnectionPool;
+import com.jeffmony.downloader.utils.HttpUtils;
+import com.jeffmony.downloader.utils.LogUtils;
+import com.jeffmony.downloader.utils.VideoDownloadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 直播录制: 按#EXT-X-TARGETDURATION的间隔重新请求媒体列表, 把新的分片追加到正在录制的M3U8中.
+ *
+ * 1.带上次响应的ETag/Last-Modified发起条件请求, 304说明列表没有变化
+ * 2.按media sequence对比, 只追加比已录制的最后一个分片更新的分片
+ * 3.列表没有变化的时候间隔减半, 参考RFC 8216 6.3.4
+ * 4.出现#EXT-X-ENDLIST之后写入remote.m3u8并通知解析完成, 连续失败超过MAX_FAILED_COUNT次通知解析失败
+ */
+public class M3U8LiveRefresher {
+
+    private static final int MAX_FAILED_COUNT = 10;
+    private static final long MIN_REFRESH_INTERVAL = 1000L;
+    private static final int RESPONSE_304 = 304;
+
+    private static final ScheduledThreadPoolExecutor sExecutor = new ScheduledThreadPoolExecutor(1, runnable -> {
+        Thread thread = new Thread(runnable, "Video-live-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final M3U8 mM3U8;
+    private final String mPlaylistUrl;
+    private final File mSaveDir;
+    private final Map<String, String> mHeaders;
+    private String mETag;
+    private String mLastModified;
+    private int mLastSequence;
+    private M3U8Seg mKeySeg;        // 已录制的最后一个分片使用的密钥
+    private M3U8Seg mInitSeg;       // 已录制的最后一个分片使用的初始化分片
+    private int mFailedCount;
+
+    /**
+     * @param m3u8 第一次解析的结果, 还是解析中的状态
+     */
+    public M3U8LiveRefresher(M3U8 m3u8, File saveDir, Map<String, String> headers) {
+        mM3U8 = m3u8;
+        mPlaylistUrl = m3u8.getUrl();
+        mSaveDir = saveDir;
+        mHeaders = headers;
+        mLastSequence = Integer.MIN_VALUE;
+        for (int index = 0; index < m3u8.getTsCount(); index++) {
+            M3U8Seg ts = m3u8.getTs(index);
+            updateContext(ts);
+            mLastSequence = ts.getSequence();
+        }
+    }
+
+    public void start() {
+        mM3U8.setLive(true);
+        LogUtils.i(DownloadConstants.TAG, "M3U8LiveRefresher start, url=" + mPlaylistUrl + ", lastSequence=" + mLastSequence);
+        schedule(getRefreshInterval(mM3U8.getTargetDuration(), true));
+    }
+
+    private void schedule(long delay) {
+        sExecutor.schedule(this::refresh, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private static long getRefreshInterval(float targetDuration, boolean changed) {
+        long interval = (long) (targetDuration * 1000);
+        if (!changed) {
+            interval /= 2;
+        }
+        return Math.max(interval, MIN_REFRESH_INTERVAL);
+    }
+
+    private void refresh() {
+        if (!mM3U8.isParsing()) {
+            //下载任务删除或者失败了
+            LogUtils.i(DownloadConstants.TAG, "M3U8LiveRefresher stopped, url=" + mPlaylistUrl);
+            return;
+        }
+        M3U8 playlist;
+        try {
+            playlist = requestPlaylist();
+            mFailedCount = 0;
+        } catch (Exception e) {
+            mFailedCount++;
+            LogUtils.w(DownloadConstants.TAG, "M3U8LiveRefresher refresh failed, failedCount=" + mFailedCount + ", exception=" + e);
+            if (mFailedCount > MAX_FAILED_COUNT) {
+                mM3U8.notifyParseFailed(e);
+                return;
+            }
+            schedule(getRefreshInterval(mM3U8.getTargetDuration(), false));
+            return;
+        }
+        int addedCount = playlist != null ? appendSegments(playlist) : 0;
+        if (playlist != null && playlist.hasEndList()) {
+            mM3U8.setHasEndList(true);
+            try {
+                M3U8Utils.createRemoteM3U8(mSaveDir, mM3U8);
+            } catch (IOException e) {
+                LogUtils.w(DownloadConstants.TAG, "M3U8LiveRefresher create remote m3u8 failed, exception=" + e);
+            }
+            LogUtils.i(DownloadConstants.TAG, "M3U8LiveRefresher live ended, totalTs=" + mM3U8.getTsCount());
+            mM3U8.notifyParseCompleted();
+            return;
+        }
+        float targetDuration = playlist != null && playlist.getTargetDuration() > 0 ? playlist.getTargetDuration() : mM3U8.getTargetDuration();
+        schedule(getRefreshInterval(targetDuration, addedCount > 0));
+    }
+
+    /**
+     * @return 列表没有变化时返回null
+     */
+    private M3U8 requestPlaylist() throws IOException {
+        Map<String, String> headers = mHeaders != null ? new HashMap<>(mHeaders) : new HashMap<>();
+        if (mETag != null) {
+            headers.put("If-None-Match", mETag);
+        }
+        if (mLastModified != null) {
+            headers.put("If-Modified-Since", mLastModified);
+        }
+        HttpURLConnection connection = null;
+        boolean reusable = false;
+        try {
+            connection = HttpConnectionPool.getInstance().getConnection(mPlaylistUrl, headers, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+            int responseCode = connection.getResponseCode();
+            if (responseCode == RESPONSE_304) {
+                reusable = true;
+                return null;
+            }
+            if (responseCode != HttpUtils.RESPONSE_200) {
+                throw new IOException("Refresh response code " + responseCode);
+            }
+            String eTag = connection.getHeaderField("ETag");
+            String lastModified = connection.getHeaderField("Last-Modified");
+            M3U8 playlist = new M3U8Parser(new InputStreamReader(connection.getInputStream()), mPlaylistUrl).parse();
+            if (playlist == null) {
+                throw new IOException("Live playlist changed to a master playlist");
+            }
+            mETag = eTag;
+            mLastModified = lastModified;
+            reusable = true;
+            return playlist;
+        } finally {
+            HttpConnectionPool.getInstance().releaseConnection(connection, reusable);
+        }
+    }
+
+    /**
+     * 新的分片按已录制的分片继续编号, 密钥和初始化分片变化的时候才带上对应的标签
+     */
+    private int appendSegments(M3U8 playlist) {
+        List<M3U8Seg> tsList = playlist.getTsList();
+        M3U8Seg keySeg = null;
+        M3U8Seg initSeg = null;
+        int addedCount = 0;
+        for (M3U8Seg ts : tsList) {
+            if (ts.hasKey()) {
+                keySeg = ts;
+            }
+            if (ts.hasInitSegment()) {
+                initSeg = ts;
+            }
+            if (ts.getSequence() <= mLastSequence) {
+                continue;
+            }
+            boolean hasDiscontinuity = ts.hasDiscontinuity();
+            if (addedCount == 0 && ts.getSequence() > mLastSequence + 1) {
+                //两次刷新之间有分片已经滑出了窗口
+                LogUtils.w(DownloadConstants.TAG, "M3U8LiveRefresher missed segments, lastSequence=" + mLastSequence + ", sequence=" + ts.getSequence());
+                hasDiscontinuity = true;
+            }
+            M3U8Seg seg = new M3U8Seg();
+            seg.initTsAttributes(ts.getUrl(), ts.getDuration(), mM3U8.getTsCount(), ts.getSequence(), hasDiscontinuity, ts.getByteRange());
+            if (keySeg != null && !isSameKey(keySeg, mKeySeg)) {
+                seg.setKeyConfig(keySeg.getMethod(), keySeg.getKeyUri(), keySeg.getKeyIV());
+            }
+            if (initSeg != null && !isSameInitSegment(initSeg, mInitSeg)) {
+                seg.setInitSegmentInfo(initSeg.getInitSegmentUri(), initSeg.getSegmentByteRange());
+            }
+            updateContext(seg);
+            mM3U8.addTs(seg);
+            mLastSequence = ts.getSequence();
+            addedCount++;
+        }
+        if (addedCount > 0) {
+            LogUtils.i(DownloadConstants.TAG, "M3U8LiveRefresher appended " + addedCount + " segments, totalTs=" + mM3U8.getTsCount());
+        }
+        return addedCount;
+    }
+
+    private void updateContext(M3U8Seg ts) {
+        if (ts.hasKey()) {
+            mKeySeg = ts;
+        }
+        if (ts.hasInitSegment()) {
+            mInitSeg = ts;
+        }
+    }
+
+    private static boolean isSameKey(M3U8Seg ts, M3U8Seg other) {
+        return other != null && TextUtils.equals(ts.getMethod(), other.getMethod())
+                && TextUtils.equals(ts.getKeyUri(), other.getKeyUri()) && TextUtils.equals(ts.getKeyIV(), other.getKeyIV());
+    }
+
+    private static boolean isSameInitSegment(M3U8Seg ts, M3U8Seg other) {
+        return other != null && TextUtils.equals(ts.getInitSegmentUri(), other.getInitSegmentUri())
+                && TextUtils.equals(ts.getSegmentByteRange(), other.getSegmentByteRange());
+    }
+}
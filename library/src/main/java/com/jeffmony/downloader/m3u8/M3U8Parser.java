@@ -0,0 +1,461 @@
+package com.jeffmony.downloader.m3u8;
+
+import android.text.TextUtils;
+
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.listener.IM3U8ParseListener;
+import com.jeffmony.downloader.utils.LogUtils;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 网络M3U8和本地M3U8共用的解析器.
+ * 直接在字符缓冲区中切分行和解析属性, 不使用正则, 只有分片地址和用到的属性值才会创建字符串.
+ * 设置了IM3U8ParseListener的时候, 解析出第一个分片就返回解析中的M3U8, 之后的分片边解析边添加.
+ */
+class M3U8Parser {
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final char BOM = '\uFEFF';
+
+    private final Reader mReader;
+    private final String mPlaylistUrl;      // 网络M3U8的地址, 本地M3U8为null, 其中的地址不需要转换
+    private final String mBaseUrl;          // 相对地址的前缀
+    private final IM3U8ParseListener mParseListener;
+    private char[] mBuffer = new char[BUFFER_SIZE];
+    private int mPosition;
+    private int mLimit;
+    private boolean mEndOfStream;
+    private int mLineStart;
+    private int mLineEnd;
+    private final List<M3U8Variant> mVariants = new ArrayList<>();
+
+    M3U8Parser(Reader reader, String playlistUrl) {
+        this(reader, playlistUrl, null);
+    }
+
+    M3U8Parser(Reader reader, String playlistUrl, IM3U8ParseListener listener) {
+        mReader = reader;
+        mPlaylistUrl = playlistUrl;
+        mParseListener = listener;
+        if (TextUtils.isEmpty(playlistUrl) || playlistUrl.startsWith("file://") || playlistUrl.startsWith("/")) {
+            mBaseUrl = null;
+        } else {
+            mBaseUrl = M3U8Utils.getBaseUrl(playlistUrl);
+        }
+    }
+
+    /**
+     * 头部的属性解析到就设置, 边解析边下载的时候M3U8可以先使用.
+     * 设置了IM3U8ParseListener的时候, 返回的M3U8还是解析中的状态, 由调用方确认之后调用notifyParseCompleted
+     * @return 多码率的M3U8返回null, 通过getVariants获取所有的码率
+     */
+    M3U8 parse() throws IOException {
+        M3U8 m3u8 = mPlaylistUrl != null ? new M3U8(mPlaylistUrl) : new M3U8();
+        float tsDuration = 0;
+        String byteRange = "";
+        int tsIndex = 0;
+        int sequence = 0;
+        boolean hasDiscontinuity = false;
+        boolean hasStreamInfo = false;
+        long bandwidth = 0;
+        String resolution = null;
+        String codecs = null;
+        boolean hasKey = false;
+        boolean hasInitSegment = false;
+        String method = null;
+        String encryptionIV = null;
+        String encryptionKeyUri = null;
+        String initSegmentUri = null;
+        String segmentByteRange = null;
+        String rangeUrl = null;      // 上一个带byteRange的分片地址
+        long rangeEnd = 0;           // 上一个byteRange的结束位置
+        m3u8.setTargetDuration(0);
+        m3u8.setVersion(0);
+        while (nextLine()) {
+            if (mLineStart == mLineEnd) {
+                continue;
+            }
+            if (LogUtils.isDebugEnabled()) {
+                LogUtils.d(DownloadConstants.TAG, "line = " + new String(mBuffer, mLineStart, mLineEnd - mLineStart));
+            }
+            if (mBuffer[mLineStart] == '#') {
+                if (isTag(M3U8Constants.TAG_MEDIA_DURATION)) {
+                    float duration = parseDecimal(M3U8Constants.TAG_MEDIA_DURATION);
+                    if (duration >= 0) {
+                        tsDuration = duration;
+                    }
+                } else if (isTag(M3U8Constants.TAG_BYTERANGE)) {
+                    byteRange = parseByteRange(M3U8Constants.TAG_BYTERANGE);
+                } else if (isTag(M3U8Constants.TAG_TARGET_DURATION)) {
+                    int value = parseInteger(M3U8Constants.TAG_TARGET_DURATION);
+                    if (value >= 0) {
+                        m3u8.setTargetDuration(value);
+                    }
+                } else if (isTag(M3U8Constants.TAG_VERSION)) {
+                    int value = parseInteger(M3U8Constants.TAG_VERSION);
+                    if (value >= 0) {
+                        m3u8.setVersion(value);
+                    }
+                } else if (isTag(M3U8Constants.TAG_MEDIA_SEQUENCE)) {
+                    int value = parseInteger(M3U8Constants.TAG_MEDIA_SEQUENCE);
+                    if (value >= 0) {
+                        sequence = value;
+                        m3u8.setSequence(value);
+                    }
+                } else if (isTag(M3U8Constants.TAG_STREAM_INF)) {
+                    hasStreamInfo = true;
+                    bandwidth = parseLong(getAttribute(M3U8Constants.TAG_STREAM_INF, "BANDWIDTH"));
+                    resolution = getAttribute(M3U8Constants.TAG_STREAM_INF, "RESOLUTION");
+                    codecs = getAttribute(M3U8Constants.TAG_STREAM_INF, "CODECS");
+                } else if (isTag(M3U8Constants.TAG_DISCONTINUITY)) {
+                    hasDiscontinuity = true;
+                } else if (isTag(M3U8Constants.TAG_ENDLIST)) {
+                    m3u8.setHasEndList(true);
+                } else if (isTag(M3U8Constants.TAG_KEY)) {
+                    hasKey = true;
+                    method = parseMethod(getAttribute(M3U8Constants.TAG_KEY, "METHOD"));
+                    encryptionIV = null;
+                    encryptionKeyUri = null;
+                    if (!M3U8Constants.METHOD_NONE.equals(method)) {
+                        String keyFormat = getAttribute(M3U8Constants.TAG_KEY, "KEYFORMAT");
+                        encryptionIV = getAttribute(M3U8Constants.TAG_KEY, "IV");
+                        if (M3U8Constants.KEYFORMAT_IDENTITY.equals(keyFormat) || keyFormat == null) {
+                            if (M3U8Constants.METHOD_AES_128.equals(method)) {
+                                // The segment is fully encrypted using an identity key.
+                                String keyUri = getAttribute(M3U8Constants.TAG_KEY, "URI");
+                                if (keyUri != null) {
+                                    encryptionKeyUri = resolveUrl(keyUri);
+                                }
+                            }
+                            // Samples encrypted using an identity key (SAMPLE-AES) are not supported.
+                        }
+                    }
+                } else if (isTag(M3U8Constants.TAG_INIT_SEGMENT)) {
+                    String uri = getAttribute(M3U8Constants.TAG_INIT_SEGMENT, "URI");
+                    if (uri != null) {
+                        hasInitSegment = true;
+                        initSegmentUri = resolveUrl(uri);
+                        segmentByteRange = getAttribute(M3U8Constants.TAG_INIT_SEGMENT, "BYTERANGE");
+                    }
+                }
+                //其他的标签和注释都忽略
+                continue;
+            }
+            // It has '#EXT-X-STREAM-INF' tag;
+            if (hasStreamInfo) {
+                mVariants.add(new M3U8Variant(resolveLineUrl(), bandwidth, resolution, codecs));
+                hasStreamInfo = false;
+                bandwidth = 0;
+                resolution = null;
+                codecs = null;
+                continue;
+            }
+            if (Math.abs(tsDuration) < 0.001f) {
+                continue;
+            }
+            String tsUrl = resolveLineUrl();
+            if (!TextUtils.isEmpty(byteRange) && byteRange.indexOf('@') < 0) {
+                //没有offset的byteRange紧接着同一个文件的上一个byteRange
+                byteRange = byteRange + "@" + (tsUrl.equals(rangeUrl) ? rangeEnd : 0);
+            }
+            M3U8Seg ts = new M3U8Seg();
+            ts.initTsAttributes(tsUrl, tsDuration, tsIndex, sequence++, hasDiscontinuity, byteRange);
+            if (ts.hasByteRange()) {
+                rangeUrl = tsUrl;
+                rangeEnd = ts.getRangeOffset() + ts.getRangeLength();
+            }
+            if (hasKey) {
+                ts.setKeyConfig(method, encryptionKeyUri, encryptionIV);
+            }
+            if (hasInitSegment) {
+                ts.setInitSegmentInfo(initSegmentUri, segmentByteRange);
+            }
+            if (tsIndex == 0 && mParseListener != null) {
+                m3u8.setParseState(M3U8.PARSE_RUNNING);
+                m3u8.addTs(ts);
+                mParseListener.onParseStarted(m3u8);
+            } else {
+                m3u8.addTs(ts);
+            }
+            tsIndex++;
+            tsDuration = 0;
+            byteRange = "";
+            hasDiscontinuity = false;
+            hasKey = false;
+            hasInitSegment = false;
+            method = null;
+            encryptionKeyUri = null;
+            encryptionIV = null;
+            initSegmentUri = null;
+            segmentByteRange = null;
+        }
+        if (!mVariants.isEmpty()) {
+            return null;
+        }
+        return m3u8;
+    }
+
+    /**
+     * 多码率M3U8中的所有码率, 按列表中的顺序
+     */
+    List<M3U8Variant> getVariants() {
+        return mVariants;
+    }
+
+    /**
+     * 当前行是分片地址, 相对地址直接和前缀拼接, 不生成中间的字符串
+     */
+    private String resolveLineUrl() {
+        int length = mLineEnd - mLineStart;
+        if (mPlaylistUrl != null && mBaseUrl != null && mBuffer[mLineStart] != '/' && !startsWith("http")) {
+            return new StringBuilder(mBaseUrl.length() + length).append(mBaseUrl).append(mBuffer, mLineStart, length).toString();
+        }
+        return resolveUrl(new String(mBuffer, mLineStart, length));
+    }
+
+    private boolean startsWith(String prefix) {
+        int length = prefix.length();
+        if (mLineEnd - mLineStart < length) {
+            return false;
+        }
+        for (int index = 0; index < length; index++) {
+            if (mBuffer[mLineStart + index] != prefix.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String resolveUrl(String url) {
+        if (mPlaylistUrl == null) {
+            return url;
+        }
+        //大部分分片都是相对地址, 前缀只计算一次
+        if (mBaseUrl != null && !url.startsWith("/") && !url.startsWith("http")) {
+            return mBaseUrl + url;
+        }
+        return M3U8Utils.getM3U8AbsoluteUrl(mPlaylistUrl, url);
+    }
+
+    private boolean nextLine() throws IOException {
+        while (true) {
+            for (int index = mPosition; index < mLimit; index++) {
+                char c = mBuffer[index];
+                if (c == '\n' || c == '\r') {
+                    setLine(mPosition, index);
+                    mPosition = index + 1;
+                    return true;
+                }
+            }
+            if (mEndOfStream) {
+                if (mPosition < mLimit) {
+                    setLine(mPosition, mLimit);
+                    mPosition = mLimit;
+                    return true;
+                }
+                return false;
+            }
+            fillBuffer();
+        }
+    }
+
+    private void fillBuffer() throws IOException {
+        int remaining = mLimit - mPosition;
+        if (mPosition > 0) {
+            System.arraycopy(mBuffer, mPosition, mBuffer, 0, remaining);
+        } else if (remaining == mBuffer.length) {
+            //一行比缓冲区还长
+            char[] buffer = new char[mBuffer.length * 2];
+            System.arraycopy(mBuffer, 0, buffer, 0, remaining);
+            mBuffer = buffer;
+        }
+        mPosition = 0;
+        mLimit = remaining;
+        int read = mReader.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        if (read < 0) {
+            mEndOfStream = true;
+        } else {
+            mLimit += read;
+        }
+    }
+
+    private void setLine(int start, int end) {
+        while (start < end && (mBuffer[start] <= ' ' || mBuffer[start] == BOM)) {
+            start++;
+        }
+        while (end > start && mBuffer[end - 1] <= ' ') {
+            end--;
+        }
+        mLineStart = start;
+        mLineEnd = end;
+    }
+
+    /**
+     * 标签后面必须是':'或者行尾, 避免#EXT-X-DISCONTINUITY匹配到#EXT-X-DISCONTINUITY-SEQUENCE
+     */
+    private boolean isTag(String tag) {
+        if (!startsWith(tag)) {
+            return false;
+        }
+        int length = tag.length();
+        return mLineStart + length == mLineEnd || mBuffer[mLineStart + length] == ':';
+    }
+
+    private int getValueStart(String tag) {
+        return Math.min(mLineStart + tag.length() + 1, mLineEnd);
+    }
+
+    /**
+     * @return 没有数字时返回-1
+     */
+    private int parseInteger(String tag) {
+        long value = 0;
+        int index = getValueStart(tag);
+        int start = index;
+        while (index < mLineEnd && mBuffer[index] >= '0' && mBuffer[index] <= '9' && value <= Integer.MAX_VALUE) {
+            value = value * 10 + (mBuffer[index] - '0');
+            index++;
+        }
+        if (index == start || value > Integer.MAX_VALUE) {
+            return -1;
+        }
+        return (int) value;
+    }
+
+    /**
+     * #EXTINF:<duration>,<title>
+     * @return 没有数字时返回-1
+     */
+    private float parseDecimal(String tag) {
+        long mantissa = 0;
+        int scale = 0;
+        int digits = 0;
+        boolean fraction = false;
+        for (int index = getValueStart(tag); index < mLineEnd; index++) {
+            char c = mBuffer[index];
+            if (c >= '0' && c <= '9') {
+                //超出精度的小数位直接忽略
+                if (mantissa < Long.MAX_VALUE / 100) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    if (fraction) {
+                        scale++;
+                    }
+                } else if (!fraction) {
+                    return -1;
+                }
+                digits++;
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+        if (digits == 0) {
+            return -1;
+        }
+        return (float) (mantissa / Math.pow(10, scale));
+    }
+
+    /**
+     * #EXT-X-BYTERANGE:<n>[@<o>]
+     */
+    private String parseByteRange(String tag) {
+        int start = getValueStart(tag);
+        int end = start;
+        while (end < mLineEnd && ((mBuffer[end] >= '0' && mBuffer[end] <= '9') || mBuffer[end] == '@')) {
+            end++;
+        }
+        return end > start ? new String(mBuffer, start, end - start) : null;
+    }
+
+    private static long parseLong(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private static String parseMethod(String method) {
+        if (M3U8Constants.METHOD_NONE.equals(method) || M3U8Constants.METHOD_AES_128.equals(method)
+                || M3U8Constants.METHOD_SAMPLE_AES.equals(method) || M3U8Constants.METHOD_SAMPLE_AES_CENC.equals(method)
+                || M3U8Constants.METHOD_SAMPLE_AES_CTR.equals(method)) {
+            return method;
+        }
+        return null;
+    }
+
+    /**
+     * 解析属性列表 NAME=VALUE,NAME="VALUE", 带引号的值中可以有逗号
+     * @return 属性不存在或者值为空时返回null
+     */
+    private String getAttribute(String tag, String name) {
+        int index = getValueStart(tag);
+        while (index < mLineEnd) {
+            while (index < mLineEnd && mBuffer[index] == ' ') {
+                index++;
+            }
+            int nameStart = index;
+            while (index < mLineEnd && mBuffer[index] != '=' && mBuffer[index] != ',') {
+                index++;
+            }
+            if (index >= mLineEnd) {
+                return null;
+            }
+            if (mBuffer[index] == ',') {
+                index++;
+                continue;
+            }
+            boolean matched = regionMatches(nameStart, index, name);
+            index++;
+            int valueStart;
+            int valueEnd;
+            if (index < mLineEnd && mBuffer[index] == '"') {
+                valueStart = ++index;
+                while (index < mLineEnd && mBuffer[index] != '"') {
+                    index++;
+                }
+                valueEnd = index;
+            } else {
+                valueStart = index;
+                while (index < mLineEnd && mBuffer[index] != ',') {
+                    index++;
+                }
+                valueEnd = index;
+                while (valueEnd > valueStart && mBuffer[valueEnd - 1] == ' ') {
+                    valueEnd--;
+                }
+            }
+            if (matched) {
+                return valueEnd > valueStart ? new String(mBuffer, valueStart, valueEnd - valueStart) : null;
+            }
+            while (index < mLineEnd && mBuffer[index] != ',') {
+                index++;
+            }
+            index++;
+        }
+        return null;
+    }
+
+    private boolean regionMatches(int start, int end, String name) {
+        while (end > start && mBuffer[end - 1] == ' ') {
+            end--;
+        }
+        if (end - start != name.length()) {
+            return false;
+        }
+        for (int index = 0; index < name.length(); index++) {
+            if (mBuffer[start + index] != name.charAt(index)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -23,6 +23,10 @@ public class M3U8Seg implements Comparable<M3U8Seg> {
     private String mInitSegmentUri;              // MAP的url
     private String mSegmentByteRange;            // MAP的range
     private String mByteRange;                   // byteRange属性
+    private long mRangeOffset = -1;              // byteRange的起始位置, 没有byteRange为-1
+    private long mRangeLength = -1;              // byteRange的长度, 没有byteRange为-1
+    private long mInitSegmentRangeOffset = -1;   // MAP的range起始位置, 没有range为-1
+    private long mInitSegmentRangeLength = -1;
 
     public M3U8Seg() { }
 
@@ -41,6 +45,11 @@ public class M3U8Seg implements Comparable<M3U8Seg> {
         mHasDiscontinuity = hasDiscontinuity;
         mTsSize = 0L;
         mByteRange = byteRange;
+        long[] range = parseByteRange(byteRange);
+        if (range != null) {
+            mRangeLength = range[0];
+            mRangeOffset = range[1];
+        }
     }
 
     public void setKeyConfig(String method, String keyUri, String keyIV) {
@@ -54,10 +63,36 @@ public class M3U8Seg implements Comparable<M3U8Seg> {
         mHasInitSegment = true;
         mInitSegmentUri = initSegmentUri;
         mSegmentByteRange = segmentByteRange;
+        long[] range = parseByteRange(segmentByteRange);
+        if (range != null) {
+            mInitSegmentRangeLength = range[0];
+            mInitSegmentRangeOffset = range[1];
+        }
+    }
+
+    /**
+     * @param byteRange <n>[@<o>], 没有o的从0开始, 分片的o由解析的时候补全
+     * @return {n, o}, 格式不对返回null
+     */
+    private static long[] parseByteRange(String byteRange) {
+        if (TextUtils.isEmpty(byteRange)) {
+            return null;
+        }
+        try {
+            int separator = byteRange.indexOf('@');
+            if (separator < 0) {
+                return new long[] { Long.parseLong(byteRange), 0 };
+            }
+            return new long[] { Long.parseLong(byteRange.substring(0, separator)), Long.parseLong(byteRange.substring(separator + 1)) };
+        } catch (NumberFormatException e) {
+            return null;
+        }
     }
 
     public int getSequence() { return mSequence; }
 
+    public int getIndex() { return mIndex; }
+
     public boolean hasKey() {
         return mHasKey;
     }
@@ -71,7 +106,7 @@ public class M3U8Seg implements Comparable<M3U8Seg> {
     }
 
     public String getLocalKeyUri() {
-        return  "local_"+ mIndex + ".key";
+        return  VideoDownloadUtils.LOCAL_KEY_PREFIX + mIndex + ".key";
     }
 
     public String getKeyIV() {
@@ -149,6 +184,16 @@ public class M3U8Seg implements Comparable<M3U8Seg> {
 
     public String getByteRange() { return mByteRange; }
 
+    public boolean hasByteRange() { return mRangeLength >= 0; }
+
+    public long getRangeOffset() { return mRangeOffset; }
+
+    public long getRangeLength() { return mRangeLength; }
+
+    public long getInitSegmentRangeOffset() { return mInitSegmentRangeOffset; }
+
+    public long getInitSegmentRangeLength() { return mInitSegmentRangeLength; }
+
     public String getInitSegmentName() {
         String suffixName = "";
         if (!TextUtils.isEmpty(mInitSegmentUri)) {
@@ -0,0 +1,297 @@
+package com.jeffmony.downloader.m3u8;
+
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.LogUtils;
+import com.jeffmony.downloader.utils.VideoDownloadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 记录M3U8分片是否下载完成的位图.
+ *
+ * 内存中是一个原子位图, 同时映射到保存目录下的 segment.bitmap 文件,
+ * 进程被杀之后重新打开可以直接恢复, 不需要再扫描目录下的分片文件.
+ * 边解析边下载的时候分片数还不确定, 通过setSegCount增加, 文件按倍数扩容.
+ *
+ * 文件格式:
+ * | magic(4) | segCount(4) | completedCount(4) | flags(4) | completedBytes(8) | words(8 * n) |
+ */
+public class M3U8SegBitmap {
+
+    private static final int MAGIC = 0x4D334253;
+    private static final int HEADER_SIZE = 24;
+    private static final int OFFSET_SEG_COUNT = 4;
+    private static final int OFFSET_COMPLETED_COUNT = 8;
+    private static final int OFFSET_FLAGS = 12;
+    private static final int OFFSET_COMPLETED_BYTES = 16;
+    private static final int FLAG_LIVE = 1;
+
+    private volatile int mSegCount;
+    private volatile AtomicLongArray mWords;   // 扩容的时候替换, 修改都在锁内
+    private final AtomicInteger mCompletedCount = new AtomicInteger(0);
+    private final AtomicLong mCompletedBytes = new AtomicLong(0);
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+    private boolean mRestored;
+    private boolean mGrowingRestored;   // 恢复了上一次没有解析完的位图, 分片数增加的时候要统计已经完成的分片
+
+    private M3U8SegBitmap(int segCount) {
+        mSegCount = segCount;
+        mWords = new AtomicLongArray(wordCount(segCount));
+    }
+
+    /**
+     * 打开保存目录下的位图文件, 如果文件不存在或者分片数不一致, 则重新创建.
+     * 文件映射失败的时候退化为纯内存的位图.
+     */
+    public static M3U8SegBitmap open(File saveDir, int segCount) {
+        M3U8SegBitmap bitmap = new M3U8SegBitmap(segCount);
+        File file = new File(saveDir, VideoDownloadUtils.SEG_BITMAP_FILE);
+        try {
+            bitmap.map(file);
+        } catch (IOException e) {
+            LogUtils.w(DownloadConstants.TAG, "M3U8SegBitmap map failed, exception=" + e.getMessage());
+            bitmap.close();
+        }
+        return bitmap;
+    }
+
+    /**
+     * 分片数还不确定的时候使用, 通过setSegCount增加分片数.
+     * 点播列表的同一个序号总是同一个分片, 上一次没有解析完就被杀掉的位图直接恢复, 分片数增加到的时候算作完成;
+     * 直播录制的位图不恢复, 新的录制中同一个序号是不同的分片
+     */
+    public static M3U8SegBitmap openGrowing(File saveDir) {
+        M3U8SegBitmap bitmap = new M3U8SegBitmap(0);
+        File file = new File(saveDir, VideoDownloadUtils.SEG_BITMAP_FILE);
+        try {
+            bitmap.mapGrowing(file);
+        } catch (IOException e) {
+            LogUtils.w(DownloadConstants.TAG, "M3U8SegBitmap map failed, exception=" + e.getMessage());
+            bitmap.close();
+        }
+        return bitmap;
+    }
+
+    private static int wordCount(int segCount) {
+        return (segCount + 63) >>> 6;
+    }
+
+    private void map(File file) throws IOException {
+        boolean existed = file.exists();
+        long fileSize = HEADER_SIZE + 8L * mWords.length();
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        //扩容过的文件可能比需要的大
+        if (existed && mRandomAccessFile.length() < fileSize) {
+            existed = false;
+        }
+        mRandomAccessFile.setLength(fileSize);
+        mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        if (existed && mBuffer.getInt(0) == MAGIC && mBuffer.getInt(OFFSET_SEG_COUNT) == mSegCount) {
+            int completedCount = 0;
+            for (int index = 0; index < mWords.length(); index++) {
+                long word = mBuffer.getLong(HEADER_SIZE + 8 * index);
+                mWords.set(index, word);
+                completedCount += Long.bitCount(word);
+            }
+            mCompletedCount.set(completedCount);
+            mCompletedBytes.set(mBuffer.getLong(OFFSET_COMPLETED_BYTES));
+            mRestored = true;
+        } else {
+            reset();
+        }
+    }
+
+    private void mapGrowing(File file) throws IOException {
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        long length = mRandomAccessFile.length();
+        int wordCount = length > HEADER_SIZE ? (int) ((length - HEADER_SIZE) / 8) : 0;
+        long fileSize = HEADER_SIZE + 8L * wordCount;
+        mRandomAccessFile.setLength(fileSize);
+        mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        if (wordCount > 0 && mBuffer.getInt(0) == MAGIC && (mBuffer.getInt(OFFSET_FLAGS) & FLAG_LIVE) == 0) {
+            AtomicLongArray words = new AtomicLongArray(wordCount);
+            for (int index = 0; index < wordCount; index++) {
+                words.set(index, mBuffer.getLong(HEADER_SIZE + 8 * index));
+            }
+            mWords = words;
+            //分片的大小没有单独记录, 已经下载的大小直接恢复
+            mCompletedBytes.set(mBuffer.getLong(OFFSET_COMPLETED_BYTES));
+            mGrowingRestored = true;
+        } else {
+            mWords = new AtomicLongArray(0);
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int index = 0; index < mWords.length(); index++) {
+            mBuffer.putLong(HEADER_SIZE + 8 * index, 0L);
+        }
+        mBuffer.putInt(OFFSET_SEG_COUNT, mSegCount);
+        mBuffer.putInt(OFFSET_COMPLETED_COUNT, 0);
+        mBuffer.putInt(OFFSET_FLAGS, 0);
+        mBuffer.putLong(OFFSET_COMPLETED_BYTES, 0L);
+        mBuffer.putInt(0, MAGIC);
+    }
+
+    /**
+     * 标记为直播录制, 之后重新打开的时候不再恢复
+     */
+    public synchronized void markLive() {
+        if (mBuffer != null) {
+            mBuffer.putInt(OFFSET_FLAGS, mBuffer.getInt(OFFSET_FLAGS) | FLAG_LIVE);
+        }
+    }
+
+    /**
+     * 是否从已有的位图文件中恢复, 没有恢复的话调用方需要自己确认一次已经存在的分片.
+     */
+    public boolean isRestored() {
+        return mRestored;
+    }
+
+    public int getSegCount() {
+        return mSegCount;
+    }
+
+    /**
+     * 分片数只能增加, 边解析边下载的时候每解析出一个分片调用一次
+     */
+    public synchronized void setSegCount(int segCount) {
+        if (segCount <= mSegCount) {
+            return;
+        }
+        AtomicLongArray words = mWords;
+        int wordCount = wordCount(segCount);
+        if (wordCount > words.length()) {
+            //按倍数扩容, 不需要每个分片都重新映射文件
+            AtomicLongArray newWords = new AtomicLongArray(Math.max(wordCount, words.length() * 2));
+            for (int index = 0; index < words.length(); index++) {
+                newWords.set(index, words.get(index));
+            }
+            mWords = newWords;
+            if (mRandomAccessFile != null) {
+                try {
+                    long fileSize = HEADER_SIZE + 8L * newWords.length();
+                    mRandomAccessFile.setLength(fileSize);
+                    mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+                    for (int index = words.length(); index < newWords.length(); index++) {
+                        mBuffer.putLong(HEADER_SIZE + 8 * index, 0L);
+                    }
+                } catch (IOException e) {
+                    LogUtils.w(DownloadConstants.TAG, "M3U8SegBitmap remap failed, exception=" + e.getMessage());
+                    mBuffer = null;
+                    VideoDownloadUtils.close(mRandomAccessFile);
+                    mRandomAccessFile = null;
+                }
+            }
+        }
+        if (mGrowingRestored) {
+            //恢复的位图中新加入的分片可能已经完成
+            AtomicLongArray currentWords = mWords;
+            int restoredCount = 0;
+            for (int index = mSegCount; index < segCount; index++) {
+                if ((currentWords.get(index >>> 6) & (1L << index)) != 0) {
+                    restoredCount++;
+                }
+            }
+            mCompletedCount.addAndGet(restoredCount);
+        }
+        mSegCount = segCount;
+        //恢复的位图中记录的分片数可能更大, 保留解析到过的最大值
+        if (mBuffer != null && segCount > mBuffer.getInt(OFFSET_SEG_COUNT)) {
+            mBuffer.putInt(OFFSET_SEG_COUNT, segCount);
+        }
+    }
+
+    public boolean isCompleted(int index) {
+        if (index < 0 || index >= mSegCount) {
+            return false;
+        }
+        return (mWords.get(index >>> 6) & (1L << index)) != 0;
+    }
+
+    /**
+     * 标记分片下载完成
+     * @return 这次调用是否改变了分片的状态
+     */
+    public boolean markCompleted(int index, long size) {
+        if (index < 0 || index >= mSegCount) {
+            return false;
+        }
+        int wordIndex = index >>> 6;
+        long mask = 1L << index;
+        //扩容的时候会替换数组, 修改和扩容互斥, 查询不需要加锁
+        synchronized (this) {
+            long word = mWords.get(wordIndex);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            mWords.set(wordIndex, word | mask);
+            int completedCount = mCompletedCount.incrementAndGet();
+            long completedBytes = mCompletedBytes.addAndGet(size);
+            if (mBuffer != null) {
+                mBuffer.putLong(HEADER_SIZE + 8 * wordIndex, word | mask);
+                mBuffer.putInt(OFFSET_COMPLETED_COUNT, completedCount);
+                mBuffer.putLong(OFFSET_COMPLETED_BYTES, completedBytes);
+            }
+        }
+        return true;
+    }
+
+    public int getCompletedCount() {
+        return mCompletedCount.get();
+    }
+
+    public long getCompletedBytes() {
+        return mCompletedBytes.get();
+    }
+
+    public boolean isAllCompleted() {
+        return mCompletedCount.get() >= mSegCount;
+    }
+
+    /**
+     * 从fromIndex开始第一个没有下载完成的分片, 全部完成则返回segCount
+     */
+    public int nextUncompletedIndex(int fromIndex) {
+        int segCount = mSegCount;
+        AtomicLongArray words = mWords;
+        if (fromIndex >= segCount) {
+            return segCount;
+        }
+        int wordIndex = fromIndex >>> 6;
+        long word = ~words.get(wordIndex) & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                int index = (wordIndex << 6) + Long.numberOfTrailingZeros(word);
+                return Math.min(index, segCount);
+            }
+            if (++wordIndex >= words.length()) {
+                return segCount;
+            }
+            word = ~words.get(wordIndex);
+        }
+    }
+
+    public synchronized void force() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+    }
+
+    public synchronized void close() {
+        force();
+        mBuffer = null;
+        VideoDownloadUtils.close(mRandomAccessFile);
+        mRandomAccessFile = null;
+    }
+}
@@ -3,17 +3,15 @@ package com.jeffmony.downloader.m3u8;
 import android.text.TextUtils;
 
 import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.listener.IM3U8ParseListener;
+import com.jeffmony.downloader.utils.HttpConnectionPool;
 import com.jeffmony.downloader.utils.HttpUtils;
 import com.jeffmony.downloader.utils.LogUtils;
 import com.jeffmony.downloader.utils.VideoDownloadUtils;
 
-import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
@@ -33,250 +31,57 @@ public class M3U8Utils {
      * @throws IOException
      */
     public static M3U8 parseNetworkM3U8Info(String videoUrl, Map<String, String> headers, int retryCount) throws IOException {
-        BufferedReader bufferedReader = null;
+        return parseNetworkM3U8Info(videoUrl, headers, retryCount, null);
+    }
+
+    /**
+     * 边解析边下载, 解析出第一个分片就通过listener返回解析中的M3U8, 返回之后需要调用方确认M3U8的解析结果
+     */
+    public static M3U8 parseNetworkM3U8Info(String videoUrl, Map<String, String> headers, int retryCount, IM3U8ParseListener listener) throws IOException {
+        HttpURLConnection connection = null;
+        boolean reusable = false;
         try {
-            HttpURLConnection connection = HttpUtils.getConnection(videoUrl, headers, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+            //探测类型的请求已经收到了列表, 直接读取它的响应体
+            connection = retryCount == 0 ? HttpConnectionPool.getInstance().takeParkedConnection(videoUrl) : null;
+            if (connection == null) {
+                connection = HttpConnectionPool.getInstance().getConnection(videoUrl, headers, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+            }
             int responseCode = connection.getResponseCode();
             LogUtils.i(DownloadConstants.TAG, "parseNetworkM3U8Info responseCode="+responseCode);
             if (responseCode == HttpUtils.RESPONSE_503 && retryCount < HttpUtils.MAX_RETRY_COUNT) {
-                return parseNetworkM3U8Info(videoUrl, headers, retryCount+1);
+                HttpConnectionPool.getInstance().releaseConnection(connection, false);
+                connection = null;
+                return parseNetworkM3U8Info(videoUrl, headers, retryCount+1, listener);
             }
-            bufferedReader = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-            M3U8 m3u8 = new M3U8(videoUrl);
-            float tsDuration = 0;
-            String byteRange = "";
-            int targetDuration = 0;
-            int tsIndex = 0;
-            int version = 0;
-            int sequence = 0;
-            int initSequence = 0;
-            boolean hasDiscontinuity = false;
-            boolean hasEndList = false;
-            boolean hasStreamInfo = false;
-            boolean hasKey = false;
-            boolean hasInitSegment = false;
-            String method = null;
-            String encryptionIV = null;
-            String encryptionKeyUri = null;
-            String initSegmentUri = null;
-            String segmentByteRange = null;
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                line = line.trim();
-                if (TextUtils.isEmpty(line)) {
-                    continue;
-                }
-                LogUtils.i(DownloadConstants.TAG, "line = " + line);
-                if (line.startsWith(M3U8Constants.TAG_PREFIX)) {
-                    if (line.startsWith(M3U8Constants.TAG_MEDIA_DURATION)) {
-                        String ret = parseStringAttr(line, M3U8Constants.REGEX_MEDIA_DURATION);
-                        if (!TextUtils.isEmpty(ret)) {
-                            tsDuration = Float.parseFloat(ret);
-                        }
-                    } else if (line.startsWith(M3U8Constants.TAG_BYTERANGE)) {
-                        byteRange = parseStringAttr(line, M3U8Constants.REGEX_BYTERANGE);
-                    } else if (line.startsWith(M3U8Constants.TAG_TARGET_DURATION)) {
-                        String ret = parseStringAttr(line, M3U8Constants.REGEX_TARGET_DURATION);
-                        if (!TextUtils.isEmpty(ret)) {
-                            targetDuration = Integer.parseInt(ret);
-                        }
-                    } else if (line.startsWith(M3U8Constants.TAG_VERSION)) {
-                        String ret = parseStringAttr(line, M3U8Constants.REGEX_VERSION);
-                        if (!TextUtils.isEmpty(ret)) {
-                            version = Integer.parseInt(ret);
-                        }
-                    } else if (line.startsWith(M3U8Constants.TAG_MEDIA_SEQUENCE)) {
-                        String ret = parseStringAttr(line, M3U8Constants.REGEX_MEDIA_SEQUENCE);
-                        if (!TextUtils.isEmpty(ret)) {
-                            sequence = Integer.parseInt(ret);
-                            initSequence = sequence;
-                        }
-                    } else if (line.startsWith(M3U8Constants.TAG_STREAM_INF)) {
-                        hasStreamInfo = true;
-                    } else if (line.startsWith(M3U8Constants.TAG_DISCONTINUITY)) {
-                        hasDiscontinuity = true;
-                    } else if (line.startsWith(M3U8Constants.TAG_ENDLIST)) {
-                        hasEndList = true;
-                    } else if (line.startsWith(M3U8Constants.TAG_KEY)) {
-                        hasKey = true;
-                        method = parseOptionalStringAttr(line, M3U8Constants.REGEX_METHOD);
-                        String keyFormat = parseOptionalStringAttr(line, M3U8Constants.REGEX_KEYFORMAT);
-                        if (!M3U8Constants.METHOD_NONE.equals(method)) {
-                            encryptionIV = parseOptionalStringAttr(line, M3U8Constants.REGEX_IV);
-                            if (M3U8Constants.KEYFORMAT_IDENTITY.equals(keyFormat) || keyFormat == null) {
-                                if (M3U8Constants.METHOD_AES_128.equals(method)) {
-                                    // The segment is fully encrypted using an identity key.
-                                    String tempKeyUri = parseStringAttr(line, M3U8Constants.REGEX_URI);
-                                    if (tempKeyUri != null) {
-                                        encryptionKeyUri = getM3U8AbsoluteUrl(videoUrl, tempKeyUri);
-                                    }
-                                } else {
-                                    // Do nothing. Samples are encrypted using an identity key,
-                                    // but this is not supported. Hopefully, a traditional DRM
-                                    // alternative is also provided.
-                                }
-                            } else {
-                                // Do nothing.
-                            }
-                        }
-                    } else if (line.startsWith(M3U8Constants.TAG_INIT_SEGMENT)) {
-                        String tempInitSegmentUri = parseStringAttr(line, M3U8Constants.REGEX_URI);
-                        if (!TextUtils.isEmpty(tempInitSegmentUri)) {
-                            hasInitSegment = true;
-                            initSegmentUri = getM3U8AbsoluteUrl(videoUrl, tempInitSegmentUri);
-                            segmentByteRange = parseOptionalStringAttr(line, M3U8Constants.REGEX_ATTR_BYTERANGE);
-                        }
-                    }
-                    continue;
-                }
+            M3U8Parser parser = new M3U8Parser(new InputStreamReader(connection.getInputStream()), videoUrl, listener);
+            M3U8 m3u8 = parser.parse();
+            if (m3u8 == null) {
                 // It has '#EXT-X-STREAM-INF' DownloadConstants.TAG;
-                if (hasStreamInfo) {
-                    return parseNetworkM3U8Info(getM3U8AbsoluteUrl(videoUrl, line), headers, retryCount);
-                }
-                if (Math.abs(tsDuration) < 0.001f) {
-                    continue;
-                }
-                M3U8Seg ts = new M3U8Seg();
-                ts.initTsAttributes(getM3U8AbsoluteUrl(videoUrl, line), tsDuration, tsIndex, sequence++, hasDiscontinuity, byteRange);
-                if (hasKey) {
-                    ts.setKeyConfig(method, encryptionKeyUri, encryptionIV);
-                }
-                if (hasInitSegment) {
-                    ts.setInitSegmentInfo(initSegmentUri, segmentByteRange);
-                }
-                m3u8.addTs(ts);
-                tsIndex++;
-                tsDuration = 0;
-                hasStreamInfo = false;
-                hasDiscontinuity = false;
-                hasKey = false;
-                hasInitSegment = false;
-                method = null;
-                encryptionKeyUri = null;
-                encryptionIV = null;
-                initSegmentUri = null;
-                segmentByteRange = null;
+                HttpConnectionPool.getInstance().releaseConnection(connection, false);
+                connection = null;
+                M3U8Variant variant = M3U8VariantSelector.select(parser.getVariants(), headers);
+                return parseNetworkM3U8Info(variant.getUrl(), headers, retryCount, listener);
             }
-            m3u8.setTargetDuration(targetDuration);
-            m3u8.setVersion(version);
-            m3u8.setSequence(initSequence);
-            m3u8.setHasEndList(hasEndList);
+            reusable = true;
             return m3u8;
         } catch (IOException e) {
             e.printStackTrace();
             throw e;
         } finally {
-            VideoDownloadUtils.close(bufferedReader);
+            HttpConnectionPool.getInstance().releaseConnection(connection, reusable);
         }
     }
 
     public static M3U8 parseLocalM3U8File(File m3u8File) throws IOException {
         InputStreamReader inputStreamReader = null;
-        BufferedReader bufferedReader = null;
         try {
             inputStreamReader = new InputStreamReader(new FileInputStream(m3u8File));
-            bufferedReader = new BufferedReader(inputStreamReader);
-            M3U8 m3u8 = new M3U8();
-            float tsDuration = 0;
-            String byteRange = "";
-            int targetDuration = 0;
-            int tsIndex = 0;
-            int version = 0;
-            int sequence = 0;
-            boolean hasDiscontinuity = false;
-            boolean hasKey = false;
-            boolean hasInitSegment = false;
-            String method = null;
-            String encryptionIV = null;
-            String encryptionKeyUri = null;
-            String initSegmentUri = null;
-            String segmentByteRange = null;
-            String line;
-            while ((line = bufferedReader.readLine()) != null) {
-                LogUtils.i(DownloadConstants.TAG, "line = " + line);
-                if (line.startsWith(M3U8Constants.TAG_PREFIX)) {
-                    if (line.startsWith(M3U8Constants.TAG_MEDIA_DURATION)) {
-                        String ret = parseStringAttr(line, M3U8Constants.REGEX_MEDIA_DURATION);
-                        if (!TextUtils.isEmpty(ret)) {
-                            tsDuration = Float.parseFloat(ret);
-                        }
-                    }  else if (line.startsWith(M3U8Constants.TAG_BYTERANGE)) {
-                        byteRange = parseStringAttr(line, M3U8Constants.REGEX_BYTERANGE);
-                    } else if (line.startsWith(M3U8Constants.TAG_TARGET_DURATION)) {
-                        String ret = parseStringAttr(line, M3U8Constants.REGEX_TARGET_DURATION);
-                        if (!TextUtils.isEmpty(ret)) {
-                            targetDuration = Integer.parseInt(ret);
-                        }
-                    } else if (line.startsWith(M3U8Constants.TAG_VERSION)) {
-                        String ret = parseStringAttr(line, M3U8Constants.REGEX_VERSION);
-                        if (!TextUtils.isEmpty(ret)) {
-                            version = Integer.parseInt(ret);
-                        }
-                    } else if (line.startsWith(M3U8Constants.TAG_MEDIA_SEQUENCE)) {
-                        String ret = parseStringAttr(line, M3U8Constants.REGEX_MEDIA_SEQUENCE);
-                        if (!TextUtils.isEmpty(ret)) {
-                            sequence = Integer.parseInt(ret);
-                        }
-                    } else if (line.startsWith(M3U8Constants.TAG_DISCONTINUITY)) {
-                        hasDiscontinuity = true;
-                    } else if (line.startsWith(M3U8Constants.TAG_KEY)) {
-                        hasKey = true;
-                        method = parseOptionalStringAttr(line, M3U8Constants.REGEX_METHOD);
-                        String keyFormat = parseOptionalStringAttr(line, M3U8Constants.REGEX_KEYFORMAT);
-                        if (!M3U8Constants.METHOD_NONE.equals(method)) {
-                            encryptionIV = parseOptionalStringAttr(line, M3U8Constants.REGEX_IV);
-                            if (M3U8Constants.KEYFORMAT_IDENTITY.equals(keyFormat) || keyFormat == null) {
-                                if (M3U8Constants.METHOD_AES_128.equals(method)) {
-                                    // The segment is fully encrypted using an identity key.
-                                    encryptionKeyUri = parseStringAttr(line, M3U8Constants.REGEX_URI);
-                                } else {
-                                    // Do nothing. Samples are encrypted using an identity key,
-                                    // but this is not supported. Hopefully, a traditional DRM
-                                    // alternative is also provided.
-                                }
-                            } else {
-                                // Do nothing.
-                            }
-                        }
-                    } else if (line.startsWith(M3U8Constants.TAG_INIT_SEGMENT)) {
-                        initSegmentUri = parseStringAttr(line, M3U8Constants.REGEX_URI);
-                        if (!TextUtils.isEmpty(initSegmentUri)) {
-                            hasInitSegment = true;
-                            segmentByteRange = parseOptionalStringAttr(line, M3U8Constants.REGEX_ATTR_BYTERANGE);
-                        }
-                    }
-                    continue;
-                }
-                M3U8Seg ts = new M3U8Seg();
-                ts.initTsAttributes(line, tsDuration, tsIndex, sequence++, hasDiscontinuity, byteRange);
-                if (hasKey) {
-                    ts.setKeyConfig(method, encryptionKeyUri, encryptionIV);
-                }
-                if (hasInitSegment) {
-                    ts.setInitSegmentInfo(initSegmentUri, segmentByteRange);
-                }
-                m3u8.addTs(ts);
-                tsIndex++;
-                tsDuration = 0;
-                hasDiscontinuity = false;
-                hasKey = false;
-                hasInitSegment = false;
-                method = null;
-                encryptionKeyUri = null;
-                encryptionIV = null;
-                initSegmentUri = null;
-                segmentByteRange = null;
-            }
-            m3u8.setTargetDuration(targetDuration);
-            m3u8.setVersion(version);
-            m3u8.setSequence(sequence);
-            return m3u8;
+            return new M3U8Parser(inputStreamReader, null).parse();
         } catch (IOException e) {
             e.printStackTrace();
             throw e;
         } finally {
             VideoDownloadUtils.close(inputStreamReader);
-            VideoDownloadUtils.close(bufferedReader);
         }
     }
 
@@ -321,19 +126,9 @@ public class M3U8Utils {
                 if (m3u8Ts.getMethod() != null) {
                     String key = "METHOD=" + m3u8Ts.getMethod();
                     if (m3u8Ts.getKeyUri() != null) {
+                        //密钥文件由下载任务异步请求, 地址相同的只请求一次
                         String keyUri = m3u8Ts.getKeyUri();
                         key += ",URI=\"" + keyUri + "\"";
-                        HttpURLConnection connection = HttpUtils.getConnection(keyUri, null, true);
-                        DataInputStream dis = new DataInputStream(connection.getInputStream());
-                        File keyFile = new File(dir, m3u8Ts.getLocalKeyUri());
-                        DataOutputStream dos = new DataOutputStream(new FileOutputStream(keyFile));
-                        byte[] buffer = new byte[4096];
-                        int count;
-                        while ((count = dis.read(buffer)) > 0) {
-                            dos.write(buffer, 0, count);
-                        }
-                        dis.close();
-                        dos.close();
                         if (m3u8Ts.getKeyIV() != null) {
                             key += ",IV=" + m3u8Ts.getKeyIV();
                         }
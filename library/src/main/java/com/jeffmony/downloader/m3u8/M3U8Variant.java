@@ -0,0 +1,61 @@
+package com.jeffmony.downloader.m3u8;
+
+import android.text.TextUtils;
+
+/**
+ * 多码率M3U8中的一个码率, 对应#EXT-X-STREAM-INF和后面的地址
+ */
+public class M3U8Variant {
+    private final String mUrl;
+    private final long mBandwidth;     // BANDWIDTH属性, 单位bit/s, 没有的时候为0
+    private final int mWidth;          // RESOLUTION属性, 没有的时候为0
+    private final int mHeight;
+    private final String mCodecs;
+
+    public M3U8Variant(String url, long bandwidth, String resolution, String codecs) {
+        mUrl = url;
+        mBandwidth = bandwidth;
+        mCodecs = codecs;
+        int width = 0;
+        int height = 0;
+        if (!TextUtils.isEmpty(resolution)) {
+            int index = resolution.indexOf('x');
+            if (index > 0) {
+                try {
+                    width = Integer.parseInt(resolution.substring(0, index).trim());
+                    height = Integer.parseInt(resolution.substring(index + 1).trim());
+                } catch (NumberFormatException e) {
+                    width = 0;
+                    height = 0;
+                }
+            }
+        }
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public String getUrl() {
+        return mUrl;
+    }
+
+    public long getBandwidth() {
+        return mBandwidth;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public String getCodecs() {
+        return mCodecs;
+    }
+
+    @Override
+    public String toString() {
+        return "M3U8Variant[bandwidth=" + mBandwidth + ", resolution=" + mWidth + "x" + mHeight + ", codecs=" + mCodecs + ", url=" + mUrl + "]";
+    }
+}
@@ -0,0 +1,145 @@
+package com.jeffmony.downloader.m3u8;
+
+import com.jeffmony.downloader.VideoDownloadConfig;
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.HttpConnectionPool;
+import com.jeffmony.downloader.utils.HttpUtils;
+import com.jeffmony.downloader.utils.LogUtils;
+import com.jeffmony.downloader.utils.VideoDownloadUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 按VideoDownloadConfig中的策略从多码率M3U8中选择一个码率.
+ *
+ * VARIANT_FIT_THROUGHPUT先请求码率最低的列表得到视频总时长, 再请求它第一个分片的前PROBE_SIZE字节测速,
+ * 选择 码率 * 时长 <= 速度 * 目标时间 的最高码率. 测速只用了一个连接, 实际下载是多个分片并发, 结果偏保守.
+ */
+class M3U8VariantSelector {
+
+    private static final int PROBE_SIZE = 256 * 1024;
+
+    static M3U8Variant select(List<M3U8Variant> variants, Map<String, String> headers) {
+        VideoDownloadConfig config = VideoDownloadUtils.getDownloadConfig();
+        M3U8Variant variant;
+        switch (config.getVariantPolicy()) {
+            case VideoDownloadConfig.VARIANT_MAX_RESOLUTION:
+                variant = selectMaxResolution(variants);
+                break;
+            case VideoDownloadConfig.VARIANT_MAX_BANDWIDTH:
+                variant = selectMaxBandwidth(variants);
+                break;
+            case VideoDownloadConfig.VARIANT_FIT_THROUGHPUT:
+                variant = selectFitThroughput(variants, headers, config.getVariantTargetTime());
+                break;
+            default:
+                variant = variants.get(0);
+                break;
+        }
+        LogUtils.i(DownloadConstants.TAG, "M3U8VariantSelector policy=" + config.getVariantPolicy() + ", variantCount=" + variants.size() + ", selected " + variant);
+        return variant;
+    }
+
+    private static M3U8Variant selectMaxResolution(List<M3U8Variant> variants) {
+        M3U8Variant result = variants.get(0);
+        for (M3U8Variant variant : variants) {
+            long pixels = (long) variant.getWidth() * variant.getHeight();
+            long resultPixels = (long) result.getWidth() * result.getHeight();
+            //分辨率相同的选码率高的
+            if (pixels > resultPixels || (pixels == resultPixels && variant.getBandwidth() > result.getBandwidth())) {
+                result = variant;
+            }
+        }
+        return result;
+    }
+
+    private static M3U8Variant selectMaxBandwidth(List<M3U8Variant> variants) {
+        M3U8Variant result = variants.get(0);
+        for (M3U8Variant variant : variants) {
+            if (variant.getBandwidth() > result.getBandwidth()) {
+                result = variant;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 没有BANDWIDTH属性或者测速失败的时候使用列表中的第一个码率
+     */
+    private static M3U8Variant selectFitThroughput(List<M3U8Variant> variants, Map<String, String> headers, long targetTime) {
+        M3U8Variant lowest = null;
+        for (M3U8Variant variant : variants) {
+            if (variant.getBandwidth() > 0 && (lowest == null || variant.getBandwidth() < lowest.getBandwidth())) {
+                lowest = variant;
+            }
+        }
+        if (lowest == null || targetTime <= 0) {
+            return variants.get(0);
+        }
+        float duration;
+        long throughput;
+        try {
+            M3U8 m3u8 = M3U8Utils.parseNetworkM3U8Info(lowest.getUrl(), headers, 0);
+            if (m3u8.getTsCount() == 0) {
+                return variants.get(0);
+            }
+            duration = 0;
+            for (M3U8Seg ts : m3u8.getTsList()) {
+                duration += ts.getDuration();
+            }
+            throughput = probeThroughput(m3u8.getTs(0).getUrl(), headers);
+        } catch (Exception e) {
+            LogUtils.w(DownloadConstants.TAG, "M3U8VariantSelector probe failed, exception=" + e);
+            return variants.get(0);
+        }
+        //能在目标时间内下载的字节数
+        double budget = (double) throughput * targetTime / 1000;
+        M3U8Variant result = lowest;
+        for (M3U8Variant variant : variants) {
+            double size = (double) variant.getBandwidth() / 8 * duration;
+            if (variant.getBandwidth() > result.getBandwidth() && size <= budget) {
+                result = variant;
+            }
+        }
+        LogUtils.i(DownloadConstants.TAG, "M3U8VariantSelector duration=" + duration + "s, throughput=" + throughput + "B/s, targetTime=" + targetTime + "ms");
+        return result;
+    }
+
+    /**
+     * @return 单个连接的下载速度, 单位B/s, 不包括建立连接和等待响应头的时间
+     */
+    private static long probeThroughput(String url, Map<String, String> headers) throws IOException {
+        Map<String, String> probeHeaders = headers != null ? new HashMap<>(headers) : new HashMap<>();
+        probeHeaders.put("Range", "bytes=0-" + (PROBE_SIZE - 1));
+        HttpURLConnection connection = null;
+        InputStream inputStream = null;
+        boolean reusable = false;
+        try {
+            connection = HttpConnectionPool.getInstance().getConnection(url, probeHeaders, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpUtils.RESPONSE_200 && responseCode != HttpUtils.RESPONSE_206) {
+                throw new IOException("Probe response code " + responseCode);
+            }
+            inputStream = connection.getInputStream();
+            byte[] buffer = new byte[VideoDownloadUtils.DEFAULT_BUFFER_SIZE];
+            long startTime = System.nanoTime();
+            long totalLength = 0;
+            int len;
+            while (totalLength < PROBE_SIZE && (len = inputStream.read(buffer)) != -1) {
+                totalLength += len;
+            }
+            //不支持Range的服务端会返回整个分片, 读到PROBE_SIZE就断开
+            reusable = responseCode == HttpUtils.RESPONSE_206;
+            long cost = Math.max(System.nanoTime() - startTime, 1000000L);
+            return totalLength * 1000000000L / cost;
+        } finally {
+            HttpConnectionPool.getInstance().releaseConnection(connection, reusable);
+            VideoDownloadUtils.close(inputStream);
+        }
+    }
+}
@@ -8,6 +8,10 @@ public class MultiRangeInfo implements Serializable {
 
     private static final long serialVersionUID = 1234567890123456789L;
 
+    //VERSION_SPLITTABLE之前的range首尾相接, 起始位置是上一个range的结束位置, mStarts记录的是请求的起始位置
+    public static final int VERSION_SPLITTABLE = 1;   // range可以拆分, 不再按顺序排列, mStarts记录每个range的起始位置
+
+    private int mVersion;
     private List<Integer> mIds;
     private List<Long> mSizes;
     private List<Long> mStarts;
@@ -20,6 +24,14 @@ public class MultiRangeInfo implements Serializable {
         mEnds = new ArrayList<>();
     }
 
+    public void setVersion(int version) {
+        mVersion = version;
+    }
+
+    public int getVersion() {
+        return mVersion;
+    }
+
     public void setIds(List<Integer> ids) {
         mIds.clear();
         mIds.addAll(ids);
@@ -32,6 +32,8 @@ public class VideoTaskItem implements Cloneable {
     private String mFileName;            //文件名
     private String mFilePath;            //文件完整路径(包括文件名)
     private boolean mPaused;
+    private int mPriority;               //排队的优先级, 越大越先下载, 默认0
+    private boolean mSupportRange = true; //服务端是否支持Range请求, 明确返回Accept-Ranges: none时为false
 
     public VideoTaskItem(String url) {
         this(url, "", "", "");
@@ -244,6 +246,22 @@ public class VideoTaskItem implements Cloneable {
         return mPaused;
     }
 
+    public void setPriority(int priority) {
+        mPriority = priority;
+    }
+
+    public int getPriority() {
+        return mPriority;
+    }
+
+    public void setSupportRange(boolean supportRange) {
+        mSupportRange = supportRange;
+    }
+
+    public boolean isSupportRange() {
+        return mSupportRange;
+    }
+
     public boolean isRunningTask() {
         return mTaskState == VideoTaskState.DOWNLOADING;
     }
@@ -311,6 +329,10 @@ public class VideoTaskItem implements Cloneable {
         taskItem.setCoverPath(mCoverPath);
         taskItem.setTitle(mTitle);
         taskItem.setGroupName(mGroupName);
+        taskItem.setPriority(mPriority);
+        taskItem.setSupportRange(mSupportRange);
+        taskItem.setCurTs(mCurTs);
+        taskItem.setTotalTs(mTotalTs);
         return taskItem;
     }
 
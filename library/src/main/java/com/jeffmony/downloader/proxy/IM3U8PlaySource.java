@@ -0,0 +1,25 @@
+package com.jeffmony.downloader.proxy;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 下载中的M3U8任务, 通过本地代理边下边播
+ */
+public interface IM3U8PlaySource {
+
+    /**
+     * 生成播放列表, 分片/密钥/初始化分片都指向本地代理
+     * @param urlPrefix 本地代理上这个任务的地址前缀, 以"/"结尾
+     */
+    String getPlaylist(String urlPrefix);
+
+    /**
+     * 获取播放列表中引用的本地文件, 分片还没有下载完成的时候提升它的下载优先级并等待
+     * @param fileName 文件名
+     * @param timeout 最多等待的时间
+     * @return 文件不存在返回null
+     * @throws IOException 等待超时
+     */
+    File waitForFile(String fileName, long timeout) throws IOException;
+}
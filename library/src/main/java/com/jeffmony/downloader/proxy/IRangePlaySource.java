@@ -0,0 +1,23 @@
+package com.jeffmony.downloader.proxy;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 下载中的单文件任务, 通过本地代理边下边播
+ */
+public interface IRangePlaySource {
+
+    File getVideoFile();
+
+    long getTotalLength();
+
+    /**
+     * 等待position开始的数据下载完成, 需要的时候提升所在range的下载优先级
+     * @param position 文件中的位置
+     * @param timeout 最多等待的时间
+     * @return position开始连续可读的字节数
+     * @throws IOException 等待超时
+     */
+    long waitForData(long position, long timeout) throws IOException;
+}
@@ -0,0 +1,353 @@
+package com.jeffmony.downloader.proxy;
+
+import android.text.TextUtils;
+
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.LogUtils;
+import com.jeffmony.downloader.utils.VideoDownloadUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 本地的HTTP代理, 用来边下边播.
+ *
+ * 地址格式:
+ * http://127.0.0.1:port/{md5}/playlist.m3u8   M3U8任务的播放列表
+ * http://127.0.0.1:port/{md5}/{fileName}      播放列表中的分片/密钥/初始化分片
+ * http://127.0.0.1:port/{md5}/video           单文件任务, 支持Range请求
+ *
+ * 文件内容通过FileChannel.transferTo直接发送到socket, 不经过用户态的缓冲区.
+ */
+public class LocalProxyServer {
+
+    public static final String PLAYLIST_NAME = "playlist.m3u8";
+    public static final String VIDEO_NAME = "video";
+    private static final long WAIT_TIMEOUT = 30 * 1000L;   // 播放器请求的数据最多等待30秒
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static volatile LocalProxyServer sInstance;
+
+    private final Map<String, Object> mSources = new ConcurrentHashMap<>();
+    private ServerSocketChannel mServerChannel;
+    private ExecutorService mExecutor;
+    private volatile int mPort;
+
+    public static LocalProxyServer getInstance() {
+        if (sInstance == null) {
+            synchronized (LocalProxyServer.class) {
+                if (sInstance == null) {
+                    sInstance = new LocalProxyServer();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private LocalProxyServer() { }
+
+    /**
+     * @param md5 任务的文件名md5
+     * @param source IM3U8PlaySource 或者 IRangePlaySource
+     */
+    public void registerSource(String md5, Object source) {
+        if (source instanceof IM3U8PlaySource || source instanceof IRangePlaySource) {
+            mSources.put(md5, source);
+        }
+    }
+
+    public void unregisterSource(String md5) {
+        mSources.remove(md5);
+    }
+
+    public void unregisterAllSources() {
+        mSources.clear();
+    }
+
+    public boolean hasSource(String md5) {
+        return mSources.containsKey(md5);
+    }
+
+    /**
+     * 任务的播放地址, 代理启动失败或者任务不存在返回null
+     */
+    public String getPlayUrl(String md5) {
+        Object source = mSources.get(md5);
+        if (source == null || !start()) {
+            return null;
+        }
+        String name = source instanceof IM3U8PlaySource ? PLAYLIST_NAME : VIDEO_NAME;
+        return getUrlPrefix(md5) + name;
+    }
+
+    private String getUrlPrefix(String md5) {
+        return "http://127.0.0.1:" + mPort + "/" + md5 + "/";
+    }
+
+    public synchronized boolean start() {
+        if (mServerChannel != null) {
+            return true;
+        }
+        try {
+            mServerChannel = ServerSocketChannel.open();
+            mServerChannel.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+            mPort = mServerChannel.socket().getLocalPort();
+        } catch (IOException e) {
+            LogUtils.w(DownloadConstants.TAG, "LocalProxyServer start failed, exception=" + e);
+            VideoDownloadUtils.close(mServerChannel);
+            mServerChannel = null;
+            return false;
+        }
+        mExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "Video-proxy");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final ServerSocketChannel serverChannel = mServerChannel;
+        mExecutor.execute(() -> acceptLoop(serverChannel));
+        LogUtils.i(DownloadConstants.TAG, "LocalProxyServer started, port=" + mPort);
+        return true;
+    }
+
+    public synchronized void stop() {
+        VideoDownloadUtils.close(mServerChannel);
+        mServerChannel = null;
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    private void acceptLoop(ServerSocketChannel serverChannel) {
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                ExecutorService executor = mExecutor;
+                if (executor == null) {
+                    VideoDownloadUtils.close(channel);
+                    break;
+                }
+                executor.execute(() -> handleConnection(channel));
+            } catch (IOException e) {
+                if (serverChannel.isOpen()) {
+                    LogUtils.w(DownloadConstants.TAG, "LocalProxyServer accept failed, exception=" + e);
+                }
+            }
+        }
+    }
+
+    private void handleConnection(SocketChannel channel) {
+        try {
+            ProxyRequest request = ProxyRequest.read(channel);
+            if (request == null) {
+                return;
+            }
+            LogUtils.d(DownloadConstants.TAG, "LocalProxyServer request " + request);
+            handleRequest(channel, request);
+        } catch (IOException e) {
+            //播放器seek的时候会主动断开连接
+            LogUtils.d(DownloadConstants.TAG, "LocalProxyServer connection closed, exception=" + e);
+        } finally {
+            VideoDownloadUtils.close(channel);
+        }
+    }
+
+    private void handleRequest(SocketChannel channel, ProxyRequest request) throws IOException {
+        String path = request.mPath;
+        int index = path.indexOf('/', 1);
+        if (index < 0) {
+            sendError(channel, 404, "Not Found");
+            return;
+        }
+        String md5 = path.substring(1, index);
+        String name = path.substring(index + 1);
+        Object source = mSources.get(md5);
+        if (source instanceof IM3U8PlaySource) {
+            IM3U8PlaySource m3u8Source = (IM3U8PlaySource) source;
+            if (PLAYLIST_NAME.equals(name)) {
+                byte[] playlist = m3u8Source.getPlaylist(getUrlPrefix(md5)).getBytes(UTF_8);
+                sendHeaders(channel, 200, "OK", "application/vnd.apple.mpegurl", playlist.length, null);
+                if (!request.mHead) {
+                    writeFully(channel, ByteBuffer.wrap(playlist));
+                }
+                return;
+            }
+            File file;
+            try {
+                file = m3u8Source.waitForFile(name, WAIT_TIMEOUT);
+            } catch (InterruptedIOException e) {
+                sendError(channel, 503, "Service Unavailable");
+                return;
+            }
+            if (file == null) {
+                sendError(channel, 404, "Not Found");
+                return;
+            }
+            sendFile(channel, request, file, file.length(), null);
+        } else if (source instanceof IRangePlaySource && VIDEO_NAME.equals(name)) {
+            IRangePlaySource rangeSource = (IRangePlaySource) source;
+            sendFile(channel, request, rangeSource.getVideoFile(), rangeSource.getTotalLength(), rangeSource);
+        } else {
+            sendError(channel, 404, "Not Found");
+        }
+    }
+
+    /**
+     * @param rangeSource 文件还在下载中, 需要等待数据, 已经完整的文件传null
+     */
+    private void sendFile(SocketChannel channel, ProxyRequest request, File file, long totalLength, IRangePlaySource rangeSource) throws IOException {
+        if (totalLength <= 0 || !file.exists()) {
+            sendError(channel, 404, "Not Found");
+            return;
+        }
+        long start = 0;
+        long end = totalLength - 1;
+        boolean partial = request.mRangeStart >= 0;
+        if (partial) {
+            start = request.mRangeStart;
+            if (request.mRangeEnd >= 0 && request.mRangeEnd < end) {
+                end = request.mRangeEnd;
+            }
+            if (start > end) {
+                sendHeaders(channel, 416, "Range Not Satisfiable", null, 0, "bytes */" + totalLength);
+                return;
+            }
+        }
+        String contentRange = partial ? "bytes " + start + "-" + end + "/" + totalLength : null;
+        sendHeaders(channel, partial ? 206 : 200, partial ? "Partial Content" : "OK",
+                getMimeType(file.getName()), end - start + 1, contentRange);
+        if (request.mHead) {
+            return;
+        }
+        FileInputStream inputStream = null;
+        try {
+            inputStream = new FileInputStream(file);
+            FileChannel fileChannel = inputStream.getChannel();
+            long position = start;
+            while (position <= end) {
+                long count = end - position + 1;
+                if (rangeSource != null) {
+                    count = Math.min(count, rangeSource.waitForData(position, WAIT_TIMEOUT));
+                }
+                long transferred = fileChannel.transferTo(position, count, channel);
+                if (transferred <= 0) {
+                    break;
+                }
+                position += transferred;
+            }
+        } finally {
+            VideoDownloadUtils.close(inputStream);
+        }
+    }
+
+    private void sendError(SocketChannel channel, int code, String message) throws IOException {
+        sendHeaders(channel, code, message, "text/plain", 0, null);
+    }
+
+    private void sendHeaders(SocketChannel channel, int code, String message, String mimeType, long contentLength, String contentRange) throws IOException {
+        StringBuilder builder = new StringBuilder();
+        builder.append("HTTP/1.1 ").append(code).append(' ').append(message).append("\r\n");
+        if (mimeType != null) {
+            builder.append("Content-Type: ").append(mimeType).append("\r\n");
+        }
+        builder.append("Content-Length: ").append(contentLength).append("\r\n");
+        if (contentRange != null) {
+            builder.append("Content-Range: ").append(contentRange).append("\r\n");
+        }
+        builder.append("Accept-Ranges: bytes\r\n");
+        builder.append("Connection: close\r\n\r\n");
+        writeFully(channel, ByteBuffer.wrap(builder.toString().getBytes(UTF_8)));
+    }
+
+    private void writeFully(SocketChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static String getMimeType(String fileName) {
+        String name = fileName.toLowerCase(Locale.US);
+        if (name.endsWith(".ts")) {
+            return "video/mp2t";
+        } else if (name.endsWith(".m4s") || name.endsWith(".mp4") || name.endsWith(".m4v")) {
+            return "video/mp4";
+        } else if (name.endsWith(".aac")) {
+            return "audio/aac";
+        }
+        return "application/octet-stream";
+    }
+
+    private static class ProxyRequest {
+        private String mPath;
+        private boolean mHead;
+        private long mRangeStart = -1;
+        private long mRangeEnd = -1;
+
+        static ProxyRequest read(SocketChannel channel) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(channel.socket().getInputStream(), UTF_8));
+            String requestLine = reader.readLine();
+            if (TextUtils.isEmpty(requestLine)) {
+                return null;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length < 2) {
+                return null;
+            }
+            ProxyRequest request = new ProxyRequest();
+            request.mHead = "HEAD".equals(parts[0]);
+            String path = parts[1];
+            int queryIndex = path.indexOf('?');
+            request.mPath = queryIndex >= 0 ? path.substring(0, queryIndex) : path;
+            String line;
+            while (!TextUtils.isEmpty(line = reader.readLine())) {
+                int index = line.indexOf(':');
+                if (index > 0 && "range".equals(line.substring(0, index).trim().toLowerCase(Locale.US))) {
+                    request.parseRange(line.substring(index + 1).trim());
+                }
+            }
+            return request;
+        }
+
+        //只支持单个range: bytes=start-end 或者 bytes=start-
+        private void parseRange(String value) {
+            if (!value.startsWith("bytes=")) {
+                return;
+            }
+            String range = value.substring("bytes=".length());
+            int index = range.indexOf('-');
+            if (index <= 0 || range.indexOf(',') >= 0) {
+                return;
+            }
+            try {
+                mRangeStart = Long.parseLong(range.substring(0, index).trim());
+                String end = range.substring(index + 1).trim();
+                if (!end.isEmpty()) {
+                    mRangeEnd = Long.parseLong(end);
+                }
+            } catch (NumberFormatException e) {
+                mRangeStart = -1;
+                mRangeEnd = -1;
+            }
+        }
+
+        public String toString() {
+            return "ProxyRequest[path=" + mPath + ", head=" + mHead + ", range=" + mRangeStart + "-" + mRangeEnd + "]";
+        }
+    }
+}
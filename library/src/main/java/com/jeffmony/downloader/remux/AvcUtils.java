@@ -0,0 +1,205 @@
+package com.jeffmony.downloader.remux;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * H.264码流相关的工具: 拆分Annex-B格式的NAL单元, 解析SPS中的宽高和格式
+ */
+class AvcUtils {
+
+    static final int NAL_TYPE_IDR = 5;
+    static final int NAL_TYPE_SPS = 7;
+    static final int NAL_TYPE_PPS = 8;
+    static final int NAL_TYPE_AUD = 9;
+    static final int NAL_TYPE_FILLER = 12;
+
+    /**
+     * @return 每个NAL单元在data中的[起始位置, 结束位置], 不包含起始码
+     */
+    static List<int[]> findNalUnits(byte[] data, int offset, int length) {
+        List<int[]> nalUnits = new ArrayList<>();
+        int end = offset + length;
+        int nalStart = -1;
+        int index = offset;
+        while (index + 2 < end) {
+            if (data[index] == 0 && data[index + 1] == 0 && data[index + 2] == 1) {
+                if (nalStart >= 0) {
+                    //去掉四字节起始码多出来的0
+                    int nalEnd = index;
+                    while (nalEnd > nalStart && data[nalEnd - 1] == 0) {
+                        nalEnd--;
+                    }
+                    nalUnits.add(new int[] { nalStart, nalEnd });
+                }
+                index += 3;
+                nalStart = index;
+            } else {
+                index++;
+            }
+        }
+        if (nalStart >= 0 && nalStart < end) {
+            nalUnits.add(new int[] { nalStart, end });
+        }
+        return nalUnits;
+    }
+
+    static int getNalType(byte[] data, int offset) {
+        return data[offset] & 0x1F;
+    }
+
+    static class SpsInfo {
+        int mProfileIdc;
+        int mConstraintFlags;
+        int mLevelIdc;
+        int mChromaFormatIdc = 1;
+        int mBitDepthLuma = 8;
+        int mBitDepthChroma = 8;
+        int mWidth;
+        int mHeight;
+
+        boolean isHighProfile() {
+            return mProfileIdc == 100 || mProfileIdc == 110 || mProfileIdc == 122 || mProfileIdc == 144;
+        }
+    }
+
+    static SpsInfo parseSps(byte[] sps) {
+        BitReader reader = new BitReader(unescape(sps));
+        SpsInfo info = new SpsInfo();
+        reader.skipBits(8);     // nal header
+        info.mProfileIdc = reader.readBits(8);
+        info.mConstraintFlags = reader.readBits(8);
+        info.mLevelIdc = reader.readBits(8);
+        reader.readUe();        // seq_parameter_set_id
+        int profile = info.mProfileIdc;
+        boolean separateColourPlane = false;
+        if (profile == 100 || profile == 110 || profile == 122 || profile == 244 || profile == 44 || profile == 83
+                || profile == 86 || profile == 118 || profile == 128 || profile == 138 || profile == 139
+                || profile == 134 || profile == 135) {
+            info.mChromaFormatIdc = reader.readUe();
+            if (info.mChromaFormatIdc == 3) {
+                separateColourPlane = reader.readBits(1) == 1;
+            }
+            info.mBitDepthLuma = reader.readUe() + 8;
+            info.mBitDepthChroma = reader.readUe() + 8;
+            reader.skipBits(1); // qpprime_y_zero_transform_bypass_flag
+            if (reader.readBits(1) == 1) {
+                int count = info.mChromaFormatIdc != 3 ? 8 : 12;
+                for (int i = 0; i < count; i++) {
+                    if (reader.readBits(1) == 1) {
+                        skipScalingList(reader, i < 6 ? 16 : 64);
+                    }
+                }
+            }
+        }
+        reader.readUe();        // log2_max_frame_num_minus4
+        int picOrderCntType = reader.readUe();
+        if (picOrderCntType == 0) {
+            reader.readUe();    // log2_max_pic_order_cnt_lsb_minus4
+        } else if (picOrderCntType == 1) {
+            reader.skipBits(1);
+            reader.readSe();
+            reader.readSe();
+            int count = reader.readUe();
+            for (int i = 0; i < count; i++) {
+                reader.readSe();
+            }
+        }
+        reader.readUe();        // max_num_ref_frames
+        reader.skipBits(1);     // gaps_in_frame_num_value_allowed_flag
+        int widthInMbs = reader.readUe() + 1;
+        int heightInMapUnits = reader.readUe() + 1;
+        int frameMbsOnly = reader.readBits(1);
+        if (frameMbsOnly == 0) {
+            reader.skipBits(1); // mb_adaptive_frame_field_flag
+        }
+        reader.skipBits(1);     // direct_8x8_inference_flag
+        int width = widthInMbs * 16;
+        int height = (2 - frameMbsOnly) * heightInMapUnits * 16;
+        if (reader.readBits(1) == 1) {
+            int left = reader.readUe();
+            int right = reader.readUe();
+            int top = reader.readUe();
+            int bottom = reader.readUe();
+            int cropUnitX = 1;
+            int cropUnitY = 2 - frameMbsOnly;
+            if (info.mChromaFormatIdc != 0 && !separateColourPlane) {
+                cropUnitX = info.mChromaFormatIdc == 3 ? 1 : 2;
+                cropUnitY *= info.mChromaFormatIdc == 1 ? 2 : 1;
+            }
+            width -= (left + right) * cropUnitX;
+            height -= (top + bottom) * cropUnitY;
+        }
+        info.mWidth = width;
+        info.mHeight = height;
+        return info;
+    }
+
+    private static void skipScalingList(BitReader reader, int size) {
+        int lastScale = 8;
+        int nextScale = 8;
+        for (int i = 0; i < size; i++) {
+            if (nextScale != 0) {
+                nextScale = (lastScale + reader.readSe() + 256) % 256;
+            }
+            lastScale = nextScale == 0 ? lastScale : nextScale;
+        }
+    }
+
+    /**
+     * 去掉防竞争字节 00 00 03
+     */
+    private static byte[] unescape(byte[] data) {
+        byte[] result = new byte[data.length];
+        int length = 0;
+        int zeroCount = 0;
+        for (byte value : data) {
+            if (zeroCount >= 2 && value == 3) {
+                zeroCount = 0;
+                continue;
+            }
+            result[length++] = value;
+            zeroCount = value == 0 ? zeroCount + 1 : 0;
+        }
+        byte[] unescaped = new byte[length];
+        System.arraycopy(result, 0, unescaped, 0, length);
+        return unescaped;
+    }
+
+    private static class BitReader {
+        private final byte[] mData;
+        private int mBitOffset;
+
+        BitReader(byte[] data) {
+            mData = data;
+        }
+
+        int readBits(int count) {
+            int value = 0;
+            for (int i = 0; i < count; i++) {
+                int byteIndex = mBitOffset >> 3;
+                int bit = byteIndex < mData.length ? (mData[byteIndex] >> (7 - (mBitOffset & 7))) & 1 : 0;
+                value = (value << 1) | bit;
+                mBitOffset++;
+            }
+            return value;
+        }
+
+        void skipBits(int count) {
+            mBitOffset += count;
+        }
+
+        int readUe() {
+            int leadingZeros = 0;
+            while (readBits(1) == 0 && leadingZeros < 32) {
+                leadingZeros++;
+            }
+            return (1 << leadingZeros) - 1 + readBits(leadingZeros);
+        }
+
+        int readSe() {
+            int value = readUe();
+            return (value & 1) == 1 ? (value + 1) / 2 : -(value / 2);
+        }
+    }
+}
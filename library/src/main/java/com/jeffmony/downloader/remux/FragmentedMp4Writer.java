@@ -0,0 +1,644 @@
+package com.jeffmony.downloader.remux;
+
+import com.jeffmony.downloader.VideoDownloadException;
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+import com.jeffmony.downloader.utils.LogUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 把TS分片逐个转换成fragmented MP4: 第一个分片之后写入ftyp+moov, 之后每个分片追加一个moof+mdat.
+ * 分片之间的时间戳按照PTS衔接, 遇到不连续的时间戳(#EXT-X-DISCONTINUITY或者跳变)时重新对齐.
+ */
+class FragmentedMp4Writer implements TsDemuxer.Listener {
+
+    private static final int VIDEO_TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int AAC_FRAME_SAMPLES = 1024;
+    private static final long TIMESTAMP_WRAP = 1L << 33;
+    private static final long MAX_TIMESTAMP_GAP = 10 * 90000L;  // 分片之间超过10秒的跳变认为是不连续
+    private static final int DEFAULT_VIDEO_DURATION = 3000;     // 拿不到帧间隔时按30fps
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    private static final int VIDEO_TRACK_ID = 1;
+    private static final int AUDIO_TRACK_ID = 2;
+    private static final int[] AAC_SAMPLE_RATES = { 96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000, 12000, 11025, 8000, 7350 };
+
+    private final OutputStream mOutputStream;
+    private final TsDemuxer mDemuxer = new TsDemuxer(this);
+    private long mWrittenBytes;
+    private long mMehdPosition = -1;
+    private int mSequenceNumber;
+
+    //编码参数, 写入moov之后不能再变化
+    private byte[] mSps;
+    private byte[] mPps;
+    private AvcUtils.SpsInfo mSpsInfo;
+    private int mAudioObjectType;
+    private int mAudioFreqIndex = -1;
+    private int mAudioChannels;
+    private boolean mHasVideoTrack;
+    private boolean mHasAudioTrack;
+
+    //当前分片的样本, 时间戳是展开之后的90kHz
+    private final List<Sample> mVideoSamples = new ArrayList<>();
+    private final List<Sample> mAudioSamples = new ArrayList<>();
+    private byte[] mAudioRemaining;
+    private double mAudioNextPts = -1;
+    private long mLastTimestamp = TsDemuxer.NO_TIMESTAMP;
+
+    //输出的时间轴
+    private long mTimeBase = -1;        // 90kHz, 输入时间戳减去它得到输出时间
+    private long mVideoEndTime;         // 90kHz
+    private long mAudioEndTime;         // 采样率
+
+    FragmentedMp4Writer(OutputStream outputStream) {
+        mOutputStream = outputStream;
+    }
+
+    /**
+     * 输出文件中mehd的fragment_duration字段的位置, 转换结束之后回填总时长
+     */
+    long getMehdPosition() {
+        return mMehdPosition;
+    }
+
+    long getDurationMs() {
+        long videoDuration = mVideoEndTime * MOVIE_TIMESCALE / VIDEO_TIMESCALE;
+        long audioDuration = mHasAudioTrack ? mAudioEndTime * MOVIE_TIMESCALE / getAudioSampleRate() : 0;
+        return Math.max(videoDuration, audioDuration);
+    }
+
+    void writeSegment(InputStream inputStream, boolean discontinuity) throws Exception {
+        mVideoSamples.clear();
+        mAudioSamples.clear();
+        mAudioRemaining = null;
+        mAudioNextPts = -1;
+        mDemuxer.demux(inputStream);
+        if (mVideoSamples.isEmpty() && mAudioSamples.isEmpty()) {
+            return;
+        }
+        if (mSequenceNumber == 0) {
+            writeHeader();
+        }
+        alignTimeline(discontinuity);
+        writeFragment();
+    }
+
+    @Override
+    public void onVideoPes(long pts, long dts, byte[] data, int offset, int length) throws Exception {
+        Sample sample = null;
+        if (pts == TsDemuxer.NO_TIMESTAMP) {
+            //没有时间戳的PES是上一帧的延续
+            if (mVideoSamples.isEmpty()) {
+                return;
+            }
+            sample = mVideoSamples.get(mVideoSamples.size() - 1);
+        }
+        ByteArrayOutputStream sampleData = new ByteArrayOutputStream(length + 64);
+        boolean keyFrame = false;
+        for (int[] nal : AvcUtils.findNalUnits(data, offset, length)) {
+            int nalLength = nal[1] - nal[0];
+            if (nalLength <= 0) {
+                continue;
+            }
+            int nalType = AvcUtils.getNalType(data, nal[0]);
+            if (nalType == AvcUtils.NAL_TYPE_SPS) {
+                onSps(Arrays.copyOfRange(data, nal[0], nal[1]));
+            } else if (nalType == AvcUtils.NAL_TYPE_PPS) {
+                onPps(Arrays.copyOfRange(data, nal[0], nal[1]));
+            } else if (nalType != AvcUtils.NAL_TYPE_AUD && nalType != AvcUtils.NAL_TYPE_FILLER) {
+                //参数集放在avcC中, 样本里的NAL改成4字节长度前缀
+                sampleData.write(nalLength >>> 24);
+                sampleData.write(nalLength >>> 16);
+                sampleData.write(nalLength >>> 8);
+                sampleData.write(nalLength);
+                sampleData.write(data, nal[0], nalLength);
+                keyFrame |= nalType == AvcUtils.NAL_TYPE_IDR;
+            }
+        }
+        if (sample != null) {
+            byte[] merged = Arrays.copyOf(sample.mData, sample.mData.length + sampleData.size());
+            System.arraycopy(sampleData.toByteArray(), 0, merged, sample.mData.length, sampleData.size());
+            sample.mData = merged;
+            sample.mKeyFrame |= keyFrame;
+            return;
+        }
+        if (sampleData.size() == 0) {
+            return;
+        }
+        long unwrappedDts = unwrap(dts);
+        long unwrappedPts = unwrappedDts + ((pts - dts + TIMESTAMP_WRAP) % TIMESTAMP_WRAP);
+        mVideoSamples.add(new Sample(unwrappedDts, unwrappedPts, sampleData.toByteArray(), keyFrame));
+    }
+
+    private void onSps(byte[] sps) throws Exception {
+        if (mSps == null) {
+            mSps = sps;
+            mSpsInfo = AvcUtils.parseSps(sps);
+        } else if (!Arrays.equals(mSps, sps) && mHasVideoTrack) {
+            //分辨率切换需要多个sample entry, 交给ffmpeg处理
+            throw new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", sps changed");
+        }
+    }
+
+    private void onPps(byte[] pps) throws Exception {
+        if (mPps == null) {
+            mPps = pps;
+        } else if (!Arrays.equals(mPps, pps) && mHasVideoTrack) {
+            throw new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", pps changed");
+        }
+    }
+
+    @Override
+    public void onAudioPes(long pts, byte[] data, int offset, int length) throws Exception {
+        if (pts != TsDemuxer.NO_TIMESTAMP) {
+            mAudioNextPts = unwrap(pts);
+        }
+        byte[] buffer = data;
+        int index = offset;
+        int end = offset + length;
+        if (mAudioRemaining != null) {
+            //上一个PES结尾不完整的ADTS帧
+            buffer = new byte[mAudioRemaining.length + length];
+            System.arraycopy(mAudioRemaining, 0, buffer, 0, mAudioRemaining.length);
+            System.arraycopy(data, offset, buffer, mAudioRemaining.length, length);
+            index = 0;
+            end = buffer.length;
+            mAudioRemaining = null;
+        }
+        while (index + 7 <= end) {
+            if ((buffer[index] & 0xFF) != 0xFF || (buffer[index + 1] & 0xF0) != 0xF0) {
+                index++;
+                continue;
+            }
+            boolean protectionAbsent = (buffer[index + 1] & 0x01) == 1;
+            int headerLength = protectionAbsent ? 7 : 9;
+            int frameLength = ((buffer[index + 3] & 0x03) << 11) | ((buffer[index + 4] & 0xFF) << 3) | ((buffer[index + 5] & 0xE0) >> 5);
+            if (frameLength < headerLength) {
+                index++;
+                continue;
+            }
+            if (index + frameLength > end) {
+                break;
+            }
+            onAdtsHeader(buffer, index);
+            if (mAudioNextPts >= 0) {
+                byte[] frame = Arrays.copyOfRange(buffer, index + headerLength, index + frameLength);
+                long time = (long) mAudioNextPts;
+                mAudioSamples.add(new Sample(time, time, frame, true));
+                mAudioNextPts += AAC_FRAME_SAMPLES * 90000.0 / getAudioSampleRate();
+            }
+            index += frameLength;
+        }
+        if (index < end) {
+            mAudioRemaining = Arrays.copyOfRange(buffer, index, end);
+        }
+    }
+
+    private void onAdtsHeader(byte[] buffer, int index) throws Exception {
+        int objectType = ((buffer[index + 2] & 0xC0) >> 6) + 1;
+        int freqIndex = (buffer[index + 2] & 0x3C) >> 2;
+        int channels = ((buffer[index + 2] & 0x01) << 2) | ((buffer[index + 3] & 0xC0) >> 6);
+        if (freqIndex >= AAC_SAMPLE_RATES.length) {
+            throw new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", sampling frequency index=" + freqIndex);
+        }
+        if (mAudioFreqIndex < 0) {
+            mAudioObjectType = objectType;
+            mAudioFreqIndex = freqIndex;
+            mAudioChannels = channels;
+        } else if (mHasAudioTrack && (freqIndex != mAudioFreqIndex || channels != mAudioChannels)) {
+            throw new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", audio config changed");
+        }
+    }
+
+    private int getAudioSampleRate() {
+        return AAC_SAMPLE_RATES[mAudioFreqIndex];
+    }
+
+    /**
+     * 展开33位的时间戳, 处理回绕
+     */
+    private long unwrap(long timestamp) {
+        if (mLastTimestamp != TsDemuxer.NO_TIMESTAMP) {
+            while (timestamp - mLastTimestamp > TIMESTAMP_WRAP / 2) {
+                timestamp -= TIMESTAMP_WRAP;
+            }
+            while (mLastTimestamp - timestamp > TIMESTAMP_WRAP / 2) {
+                timestamp += TIMESTAMP_WRAP;
+            }
+        }
+        mLastTimestamp = timestamp;
+        return timestamp;
+    }
+
+    private void writeHeader() throws Exception {
+        mHasVideoTrack = !mVideoSamples.isEmpty();
+        mHasAudioTrack = !mAudioSamples.isEmpty();
+        if (mHasVideoTrack && (mSps == null || mPps == null)) {
+            throw new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", missing sps/pps");
+        }
+        Mp4BoxWriter writer = new Mp4BoxWriter(4 * 1024);
+        writer.startBox("ftyp");
+        writer.writeType("isom");
+        writer.writeInt(0x200);
+        writer.writeType("isom");
+        writer.writeType("iso6");
+        writer.writeType("avc1");
+        writer.writeType("mp41");
+        writer.endBox();
+
+        writer.startBox("moov");
+        writer.startFullBox("mvhd", 0, 0);
+        writer.writeInt(0);                     // creation_time
+        writer.writeInt(0);                     // modification_time
+        writer.writeInt(MOVIE_TIMESCALE);
+        writer.writeInt(0);                     // duration, 分片的时长在mehd中
+        writer.writeInt(0x00010000);            // rate
+        writer.writeShort(0x0100);              // volume
+        writer.writeZeros(10);
+        writeMatrix(writer);
+        writer.writeZeros(24);
+        writer.writeInt(AUDIO_TRACK_ID + 1);    // next_track_ID
+        writer.endBox();
+
+        writer.startBox("mvex");
+        writer.startFullBox("mehd", 1, 0);
+        long mehdPosition = writer.position();
+        writer.writeLong(0);
+        writer.endBox();
+        if (mHasVideoTrack) {
+            writeTrex(writer, VIDEO_TRACK_ID);
+        }
+        if (mHasAudioTrack) {
+            writeTrex(writer, AUDIO_TRACK_ID);
+        }
+        writer.endBox();
+
+        if (mHasVideoTrack) {
+            writeVideoTrack(writer);
+        }
+        if (mHasAudioTrack) {
+            writeAudioTrack(writer);
+        }
+        writer.endBox();
+
+        writer.writeTo(mOutputStream);
+        mMehdPosition = mWrittenBytes + mehdPosition;
+        mWrittenBytes += writer.position();
+        LogUtils.i(DownloadConstants.TAG, "FragmentedMp4Writer header video=" + mHasVideoTrack +
+                (mHasVideoTrack ? " " + mSpsInfo.mWidth + "x" + mSpsInfo.mHeight : "") +
+                ", audio=" + mHasAudioTrack + (mHasAudioTrack ? " " + getAudioSampleRate() + "Hz/" + mAudioChannels : ""));
+    }
+
+    private static void writeMatrix(Mp4BoxWriter writer) {
+        int[] matrix = { 0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000 };
+        for (int value : matrix) {
+            writer.writeInt(value);
+        }
+    }
+
+    private static void writeTrex(Mp4BoxWriter writer, int trackId) {
+        writer.startFullBox("trex", 0, 0);
+        writer.writeInt(trackId);
+        writer.writeInt(1);                     // default_sample_description_index
+        writer.writeInt(0);
+        writer.writeInt(0);
+        writer.writeInt(0);
+        writer.endBox();
+    }
+
+    private void writeTrackHeader(Mp4BoxWriter writer, int trackId, boolean audio, int width, int height) {
+        writer.startFullBox("tkhd", 0, 0x000003);   // enabled | in_movie
+        writer.writeInt(0);
+        writer.writeInt(0);
+        writer.writeInt(trackId);
+        writer.writeInt(0);
+        writer.writeInt(0);                     // duration
+        writer.writeZeros(8);
+        writer.writeShort(0);                   // layer
+        writer.writeShort(audio ? 1 : 0);       // alternate_group
+        writer.writeShort(audio ? 0x0100 : 0);  // volume
+        writer.writeShort(0);
+        writeMatrix(writer);
+        writer.writeInt(width << 16);
+        writer.writeInt(height << 16);
+        writer.endBox();
+    }
+
+    private static void writeMediaHeader(Mp4BoxWriter writer, int timescale, String handlerType, String handlerName) {
+        writer.startFullBox("mdhd", 0, 0);
+        writer.writeInt(0);
+        writer.writeInt(0);
+        writer.writeInt(timescale);
+        writer.writeInt(0);
+        writer.writeShort(0x55C4);              // language: und
+        writer.writeShort(0);
+        writer.endBox();
+        writer.startFullBox("hdlr", 0, 0);
+        writer.writeInt(0);
+        writer.writeType(handlerType);
+        writer.writeZeros(12);
+        writer.writeBytes(handlerName.getBytes());
+        writer.writeByte(0);
+        writer.endBox();
+    }
+
+    private static void writeDataInformation(Mp4BoxWriter writer) {
+        writer.startBox("dinf");
+        writer.startFullBox("dref", 0, 0);
+        writer.writeInt(1);
+        writer.startFullBox("url ", 0, 1);      // 数据在同一个文件中
+        writer.endBox();
+        writer.endBox();
+        writer.endBox();
+    }
+
+    /**
+     * 分片的样本信息都在moof中, stbl里只有sample entry
+     */
+    private static void writeEmptySampleTables(Mp4BoxWriter writer) {
+        String[] boxes = { "stts", "stsc", "stco" };
+        for (String box : boxes) {
+            writer.startFullBox(box, 0, 0);
+            writer.writeInt(0);
+            writer.endBox();
+        }
+        writer.startFullBox("stsz", 0, 0);
+        writer.writeInt(0);
+        writer.writeInt(0);
+        writer.endBox();
+    }
+
+    private void writeVideoTrack(Mp4BoxWriter writer) {
+        writer.startBox("trak");
+        writeTrackHeader(writer, VIDEO_TRACK_ID, false, mSpsInfo.mWidth, mSpsInfo.mHeight);
+        writer.startBox("mdia");
+        writeMediaHeader(writer, VIDEO_TIMESCALE, "vide", "VideoHandler");
+        writer.startBox("minf");
+        writer.startFullBox("vmhd", 0, 1);
+        writer.writeZeros(8);
+        writer.endBox();
+        writeDataInformation(writer);
+        writer.startBox("stbl");
+        writer.startFullBox("stsd", 0, 0);
+        writer.writeInt(1);
+        writer.startBox("avc1");
+        writer.writeZeros(6);
+        writer.writeShort(1);                   // data_reference_index
+        writer.writeZeros(16);
+        writer.writeShort(mSpsInfo.mWidth);
+        writer.writeShort(mSpsInfo.mHeight);
+        writer.writeInt(0x00480000);            // 72 dpi
+        writer.writeInt(0x00480000);
+        writer.writeInt(0);
+        writer.writeShort(1);                   // frame_count
+        writer.writeZeros(32);                  // compressorname
+        writer.writeShort(0x0018);              // depth
+        writer.writeShort(0xFFFF);
+        writer.startBox("avcC");
+        writer.writeByte(1);
+        writer.writeByte(mSpsInfo.mProfileIdc);
+        writer.writeByte(mSpsInfo.mConstraintFlags);
+        writer.writeByte(mSpsInfo.mLevelIdc);
+        writer.writeByte(0xFF);                 // 4字节的NAL长度
+        writer.writeByte(0xE1);                 // 1个SPS
+        writer.writeShort(mSps.length);
+        writer.writeBytes(mSps);
+        writer.writeByte(1);                    // 1个PPS
+        writer.writeShort(mPps.length);
+        writer.writeBytes(mPps);
+        if (mSpsInfo.isHighProfile()) {
+            writer.writeByte(0xFC | mSpsInfo.mChromaFormatIdc);
+            writer.writeByte(0xF8 | (mSpsInfo.mBitDepthLuma - 8));
+            writer.writeByte(0xF8 | (mSpsInfo.mBitDepthChroma - 8));
+            writer.writeByte(0);
+        }
+        writer.endBox();
+        writer.endBox();
+        writer.endBox();
+        writeEmptySampleTables(writer);
+        writer.endBox();
+        writer.endBox();
+        writer.endBox();
+        writer.endBox();
+    }
+
+    private void writeAudioTrack(Mp4BoxWriter writer) {
+        writer.startBox("trak");
+        writeTrackHeader(writer, AUDIO_TRACK_ID, true, 0, 0);
+        writer.startBox("mdia");
+        writeMediaHeader(writer, getAudioSampleRate(), "soun", "SoundHandler");
+        writer.startBox("minf");
+        writer.startFullBox("smhd", 0, 0);
+        writer.writeInt(0);
+        writer.endBox();
+        writeDataInformation(writer);
+        writer.startBox("stbl");
+        writer.startFullBox("stsd", 0, 0);
+        writer.writeInt(1);
+        writer.startBox("mp4a");
+        writer.writeZeros(6);
+        writer.writeShort(1);                   // data_reference_index
+        writer.writeZeros(8);
+        writer.writeShort(mAudioChannels);
+        writer.writeShort(16);                  // samplesize
+        writer.writeZeros(4);
+        writer.writeInt(getAudioSampleRate() << 16);
+        writer.startFullBox("esds", 0, 0);
+        byte[] audioSpecificConfig = {
+                (byte) ((mAudioObjectType << 3) | (mAudioFreqIndex >> 1)),
+                (byte) (((mAudioFreqIndex & 0x01) << 7) | (mAudioChannels << 3)) };
+        writer.writeByte(0x03);                 // ES_Descriptor
+        writer.writeByte(23 + audioSpecificConfig.length);
+        writer.writeShort(AUDIO_TRACK_ID);
+        writer.writeByte(0);
+        writer.writeByte(0x04);                 // DecoderConfigDescriptor
+        writer.writeByte(15 + audioSpecificConfig.length);
+        writer.writeByte(0x40);                 // MPEG-4 audio
+        writer.writeByte(0x15);                 // audio stream
+        writer.writeZeros(3);                   // bufferSizeDB
+        writer.writeInt(0);                     // maxBitrate
+        writer.writeInt(0);                     // avgBitrate
+        writer.writeByte(0x05);                 // DecoderSpecificInfo
+        writer.writeByte(audioSpecificConfig.length);
+        writer.writeBytes(audioSpecificConfig);
+        writer.writeByte(0x06);                 // SLConfigDescriptor
+        writer.writeByte(1);
+        writer.writeByte(0x02);
+        writer.endBox();
+        writer.endBox();
+        writer.endBox();
+        writeEmptySampleTables(writer);
+        writer.endBox();
+        writer.endBox();
+        writer.endBox();
+        writer.endBox();
+    }
+
+    /**
+     * 分片第一个样本的时间和已经输出的时间轴对不上的时候, 把它接到时间轴的末尾
+     */
+    private void alignTimeline(boolean discontinuity) {
+        long firstTime = Long.MAX_VALUE;
+        if (mHasVideoTrack && !mVideoSamples.isEmpty()) {
+            firstTime = mVideoSamples.get(0).mDts;
+        }
+        if (mHasAudioTrack && !mAudioSamples.isEmpty()) {
+            firstTime = Math.min(firstTime, mAudioSamples.get(0).mDts);
+        }
+        if (firstTime == Long.MAX_VALUE) {
+            return;
+        }
+        long endTime = Math.max(mVideoEndTime, mHasAudioTrack ? mAudioEndTime * VIDEO_TIMESCALE / getAudioSampleRate() : 0);
+        if (mTimeBase < 0) {
+            mTimeBase = firstTime;
+        } else {
+            long relative = firstTime - mTimeBase;
+            if (discontinuity || relative < endTime - MAX_TIMESTAMP_GAP || relative > endTime + MAX_TIMESTAMP_GAP) {
+                LogUtils.i(DownloadConstants.TAG, "FragmentedMp4Writer realign timeline, relative=" + relative + ", end=" + endTime);
+                mTimeBase = firstTime - endTime;
+            }
+        }
+    }
+
+    private void writeFragment() throws Exception {
+        boolean hasVideo = mHasVideoTrack && !mVideoSamples.isEmpty();
+        boolean hasAudio = mHasAudioTrack && !mAudioSamples.isEmpty();
+        if (!hasVideo && !hasAudio) {
+            return;
+        }
+        mSequenceNumber++;
+        Mp4BoxWriter moof = new Mp4BoxWriter(16 * 1024);
+        moof.startBox("moof");
+        moof.startFullBox("mfhd", 0, 0);
+        moof.writeInt(mSequenceNumber);
+        moof.endBox();
+        int videoOffsetPosition = -1;
+        int audioOffsetPosition = -1;
+        long videoDataSize = 0;
+        if (hasVideo) {
+            videoOffsetPosition = writeVideoTraf(moof);
+            for (Sample sample : mVideoSamples) {
+                videoDataSize += sample.mData.length;
+            }
+        }
+        if (hasAudio) {
+            audioOffsetPosition = writeAudioTraf(moof);
+        }
+        moof.endBox();
+        //data_offset相对moof的起点, 视频数据在前, 音频数据在后
+        int mdatHeaderSize = 8;
+        if (videoOffsetPosition >= 0) {
+            moof.putInt(videoOffsetPosition, moof.position() + mdatHeaderSize);
+        }
+        if (audioOffsetPosition >= 0) {
+            moof.putInt(audioOffsetPosition, (int) (moof.position() + mdatHeaderSize + videoDataSize));
+        }
+        long mdatSize = mdatHeaderSize + videoDataSize;
+        if (hasAudio) {
+            for (Sample sample : mAudioSamples) {
+                mdatSize += sample.mData.length;
+            }
+        }
+        moof.writeInt((int) mdatSize);
+        moof.writeType("mdat");
+        moof.writeTo(mOutputStream);
+        if (hasVideo) {
+            for (Sample sample : mVideoSamples) {
+                mOutputStream.write(sample.mData);
+            }
+        }
+        if (hasAudio) {
+            for (Sample sample : mAudioSamples) {
+                mOutputStream.write(sample.mData);
+            }
+        }
+        mWrittenBytes += moof.position() - mdatHeaderSize + mdatSize;
+    }
+
+    /**
+     * @return trun中data_offset字段的位置
+     */
+    private int writeVideoTraf(Mp4BoxWriter writer) {
+        List<Sample> samples = mVideoSamples;
+        //解码时间只能往后走
+        long baseTime = Math.max(samples.get(0).mDts - mTimeBase, mVideoEndTime);
+        long shift = baseTime - (samples.get(0).mDts - mTimeBase);
+        writer.startBox("traf");
+        writeTrackFragmentHeader(writer, VIDEO_TRACK_ID, baseTime);
+        writer.startFullBox("trun", 0, 0x000F01);   // data_offset | duration | size | flags | composition_time_offset
+        writer.writeInt(samples.size());
+        int dataOffsetPosition = writer.position();
+        writer.writeInt(0);
+        int lastDuration = DEFAULT_VIDEO_DURATION;
+        long decodeTime = baseTime;
+        for (int index = 0; index < samples.size(); index++) {
+            Sample sample = samples.get(index);
+            int duration = lastDuration;
+            if (index + 1 < samples.size()) {
+                long nextTime = samples.get(index + 1).mDts - mTimeBase + shift;
+                duration = (int) Math.max(0, nextTime - decodeTime);
+                lastDuration = duration > 0 ? duration : lastDuration;
+            }
+            writer.writeInt(duration);
+            writer.writeInt(sample.mData.length);
+            writer.writeInt(sample.mKeyFrame ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+            writer.writeInt((int) Math.max(0, sample.mPts - sample.mDts));
+            decodeTime += duration;
+        }
+        writer.endBox();
+        writer.endBox();
+        mVideoEndTime = decodeTime;
+        return dataOffsetPosition;
+    }
+
+    private int writeAudioTraf(Mp4BoxWriter writer) {
+        List<Sample> samples = mAudioSamples;
+        long baseTime = Math.max((samples.get(0).mDts - mTimeBase) * getAudioSampleRate() / VIDEO_TIMESCALE, mAudioEndTime);
+        writer.startBox("traf");
+        writeTrackFragmentHeader(writer, AUDIO_TRACK_ID, baseTime);
+        writer.startFullBox("trun", 0, 0x000701);   // data_offset | duration | size | flags
+        writer.writeInt(samples.size());
+        int dataOffsetPosition = writer.position();
+        writer.writeInt(0);
+        for (Sample sample : samples) {
+            writer.writeInt(AAC_FRAME_SAMPLES);
+            writer.writeInt(sample.mData.length);
+            writer.writeInt(SAMPLE_FLAGS_SYNC);
+        }
+        writer.endBox();
+        writer.endBox();
+        mAudioEndTime = baseTime + (long) samples.size() * AAC_FRAME_SAMPLES;
+        return dataOffsetPosition;
+    }
+
+    private static void writeTrackFragmentHeader(Mp4BoxWriter writer, int trackId, long baseMediaDecodeTime) {
+        writer.startFullBox("tfhd", 0, 0x020000);   // default-base-is-moof
+        writer.writeInt(trackId);
+        writer.endBox();
+        writer.startFullBox("tfdt", 1, 0);
+        writer.writeLong(baseMediaDecodeTime);
+        writer.endBox();
+    }
+
+    private static class Sample {
+        private final long mDts;
+        private final long mPts;
+        private byte[] mData;
+        private boolean mKeyFrame;
+
+        Sample(long dts, long pts, byte[] data, boolean keyFrame) {
+            mDts = dts;
+            mPts = pts;
+            mData = data;
+            mKeyFrame = keyFrame;
+        }
+    }
+}
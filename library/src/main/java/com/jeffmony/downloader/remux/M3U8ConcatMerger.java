@@ -0,0 +1,120 @@
+package com.jeffmony.downloader.remux;
+
+import android.text.TextUtils;
+
+import com.jeffmony.downloader.VideoDownloadException;
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.m3u8.M3U8;
+import com.jeffmony.downloader.m3u8.M3U8Seg;
+import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+import com.jeffmony.downloader.utils.LogUtils;
+import com.jeffmony.downloader.utils.VideoDownloadUtils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * 不需要转换格式的M3U8直接拼接分片:
+ * 1.fMP4分片(#EXT-X-MAP), 初始化分片加上所有分片就是一个完整的fragmented MP4
+ * 2.TS分片, 所有分片拼接成一个TS文件
+ * 分片通过FileChannel.transferTo复制, 不经过用户态的缓冲区.
+ */
+public class M3U8ConcatMerger {
+
+    public static final int FORMAT_NONE = 0;    // 需要转换格式
+    public static final int FORMAT_MP4 = 1;
+    public static final int FORMAT_TS = 2;
+
+    private static final String TEMP_FILE_SUFFIX = ".concat";
+
+    /**
+     * @param mergeToTs TS分片是否允许直接合并成TS文件
+     * @return 可以直接拼接时输出的格式, 否则返回FORMAT_NONE
+     */
+    public static int getMergeFormat(M3U8 m3u8, boolean mergeToTs) {
+        List<M3U8Seg> tsList = m3u8.getTsList();
+        if (tsList.isEmpty()) {
+            return FORMAT_NONE;
+        }
+        M3U8SegContext[] contexts = M3U8SegContext.resolve(tsList);
+        boolean hasInitSegment = contexts[0].mInitSeg != null;
+        String initSegmentUri = hasInitSegment ? contexts[0].mInitSeg.getInitSegmentUri() : null;
+        String initSegmentRange = hasInitSegment ? contexts[0].mInitSeg.getSegmentByteRange() : null;
+        for (int index = 0; index < contexts.length; index++) {
+            M3U8SegContext context = contexts[index];
+            //加密的分片需要解密, byteRange分片本地只保存了范围内的数据, 可以直接拼接
+            if (context.isEncrypted()) {
+                return FORMAT_NONE;
+            }
+            if (hasInitSegment) {
+                if (context.mInitSeg == null || !initSegmentUri.equals(context.mInitSeg.getInitSegmentUri())
+                        || !TextUtils.equals(initSegmentRange, context.mInitSeg.getSegmentByteRange())) {
+                    //中途切换了初始化分片, 拼接之后的文件只有第一个moov
+                    return FORMAT_NONE;
+                }
+            }
+        }
+        if (hasInitSegment) {
+            return FORMAT_MP4;
+        }
+        return mergeToTs ? FORMAT_TS : FORMAT_NONE;
+    }
+
+    /**
+     * 按顺序拼接所有分片, 需要先通过getMergeFormat确认可以拼接
+     */
+    public static void merge(M3U8 m3u8, File saveDir, File outputFile) throws Exception {
+        long startTime = System.currentTimeMillis();
+        List<M3U8Seg> tsList = m3u8.getTsList();
+        M3U8SegContext[] contexts = M3U8SegContext.resolve(tsList);
+        File tempFile = new File(outputFile.getPath() + TEMP_FILE_SUFFIX);
+        FileOutputStream outputStream = new FileOutputStream(tempFile);
+        FileChannel outputChannel = outputStream.getChannel();
+        long totalSize = 0;
+        try {
+            if (contexts.length > 0 && contexts[0].mInitSeg != null) {
+                totalSize += transferFile(new File(saveDir, contexts[0].mInitSeg.getInitSegmentName()), outputChannel);
+            }
+            for (M3U8Seg ts : tsList) {
+                totalSize += transferFile(new File(saveDir, ts.getIndexName()), outputChannel);
+            }
+        } catch (Exception e) {
+            VideoDownloadUtils.close(outputStream);
+            tempFile.delete();
+            throw e;
+        }
+        VideoDownloadUtils.close(outputStream);
+        if (outputFile.exists()) {
+            outputFile.delete();
+        }
+        if (!tempFile.renameTo(outputFile)) {
+            tempFile.delete();
+            throw new IOException("Rename " + tempFile.getName() + " to " + outputFile.getName() + " failed");
+        }
+        LogUtils.i(DownloadConstants.TAG, "M3U8ConcatMerger merged " + tsList.size() + " segments, size=" + totalSize +
+                ", cost=" + (System.currentTimeMillis() - startTime) + "ms, outputPath=" + outputFile.getAbsolutePath());
+    }
+
+    private static long transferFile(File file, FileChannel outputChannel) throws Exception {
+        if (!file.exists()) {
+            throw new VideoDownloadException(DownloadExceptionUtils.MERGE_SEGMENT_MISSING + ", file=" + file.getName());
+        }
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel inputChannel = inputStream.getChannel();
+            long size = inputChannel.size();
+            long position = 0;
+            //transferTo不保证一次传输完
+            while (position < size) {
+                position += inputChannel.transferTo(position, size - position, outputChannel);
+            }
+            return size;
+        } finally {
+            VideoDownloadUtils.close(inputStream);
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.jeffmony.downloader.remux;
+
+import com.jeffmony.downloader.VideoDownloadException;
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.listener.IVideoRemuxListener;
+import com.jeffmony.downloader.m3u8.M3U8;
+import com.jeffmony.downloader.m3u8.M3U8Constants;
+import com.jeffmony.downloader.m3u8.M3U8Seg;
+import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+import com.jeffmony.downloader.utils.LogUtils;
+import com.jeffmony.downloader.utils.VideoDownloadUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * 边下载边合并M3U8: 按照分片顺序, 连续下载完成的前缀分片一完成就追加到输出的MP4中.
+ *
+ * TS分片(H.264 + AAC)转换成fragmented MP4, 带#EXT-X-MAP的fMP4分片不需要转换, 由M3U8ConcatMerger直接拼接.
+ * 其他情况(HEVC/MP3/SAMPLE-AES等)转换失败, 由调用方回退到ffmpeg合并.
+ */
+public class M3U8Remuxer {
+
+    private static final String TEMP_FILE_SUFFIX = ".remux";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    public interface SegmentChecker {
+        boolean isSegmentCompleted(int index);
+    }
+
+    private final List<M3U8Seg> mTsList;
+    private final M3U8SegContext[] mSegContexts;
+    private final File mSaveDir;
+    private final File mTempFile;
+    private final SegmentChecker mSegmentChecker;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicBoolean mDrainPending = new AtomicBoolean(false);
+    private final Map<String, byte[]> mKeys = new HashMap<>();
+    private OutputStream mOutputStream;
+    private FragmentedMp4Writer mMp4Writer;
+    private int mNextIndex;
+    private long mRemuxTime;
+    private volatile Exception mError;
+    private volatile boolean mReleased;
+
+    public M3U8Remuxer(M3U8 m3u8, File saveDir, String saveName, SegmentChecker checker) {
+        mTsList = m3u8.getTsList();
+        mSaveDir = saveDir;
+        mTempFile = new File(saveDir, saveName + "_" + VideoDownloadUtils.OUTPUT_VIDEO + TEMP_FILE_SUFFIX);
+        mSegContexts = M3U8SegContext.resolve(mTsList);
+        mSegmentChecker = checker;
+        mExecutor = new ThreadPoolExecutor(1, 1, 30L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "Video-remux"));
+        mExecutor.allowCoreThreadTimeOut(true);
+        mError = checkSupported();
+    }
+
+    private Exception checkSupported() {
+        for (int index = 0; index < mTsList.size(); index++) {
+            M3U8SegContext context = mSegContexts[index];
+            if (context.mInitSeg != null) {
+                //fMP4分片由M3U8ConcatMerger直接拼接
+                return new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", init segment");
+            }
+            //整段AES-128加密的TS可以解密, 样本级加密不处理
+            if (context.isEncrypted() && !M3U8Constants.METHOD_AES_128.equals(context.mKeySeg.getMethod())) {
+                return new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", method=" + context.mKeySeg.getMethod());
+            }
+        }
+        return null;
+    }
+
+    public boolean isFailed() {
+        return mError != null;
+    }
+
+    /**
+     * 有分片下载完成, 在转换线程中处理新增的连续分片, 多次通知会合并
+     */
+    public void onSegmentCompleted() {
+        if (mError != null || mReleased) {
+            return;
+        }
+        if (mDrainPending.compareAndSet(false, true)) {
+            mExecutor.execute(() -> {
+                mDrainPending.set(false);
+                drain();
+            });
+        }
+    }
+
+    /**
+     * 所有分片下载完成之后调用, 处理剩下的分片并生成最终的文件
+     */
+    public void finish(String outputPath, IVideoRemuxListener listener) {
+        mExecutor.execute(() -> {
+            long startTime = System.currentTimeMillis();
+            drain();
+            if (mError == null && mNextIndex < mTsList.size()) {
+                mError = new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", segment " + mNextIndex + " not completed");
+            }
+            Exception error = mError;
+            if (error == null) {
+                try {
+                    completeOutput(new File(outputPath));
+                } catch (Exception e) {
+                    error = e;
+                }
+            }
+            closeOutput();
+            if (error != null) {
+                LogUtils.w(DownloadConstants.TAG, "M3U8Remuxer failed, exception=" + error);
+                mTempFile.delete();
+                listener.onRemuxFailed(error);
+            } else {
+                LogUtils.i(DownloadConstants.TAG, "M3U8Remuxer finished " + (System.currentTimeMillis() - startTime) +
+                        "ms after download, total remux time=" + mRemuxTime + "ms, outputPath=" + outputPath);
+                listener.onRemuxFinished(outputPath);
+            }
+        });
+    }
+
+    /**
+     * 任务被删除, 放弃转换
+     */
+    public void release() {
+        mReleased = true;
+        mExecutor.execute(() -> {
+            closeOutput();
+            mTempFile.delete();
+        });
+    }
+
+    private void drain() {
+        if (mError != null || mReleased) {
+            return;
+        }
+        try {
+            while (mNextIndex < mTsList.size() && mSegmentChecker.isSegmentCompleted(mNextIndex) && isKeyReady(mNextIndex)) {
+                long startTime = System.currentTimeMillis();
+                remuxSegment(mTsList.get(mNextIndex));
+                mRemuxTime += System.currentTimeMillis() - startTime;
+                mNextIndex++;
+            }
+        } catch (Exception e) {
+            LogUtils.w(DownloadConstants.TAG, "M3U8Remuxer segment " + mNextIndex + " failed, exception=" + e);
+            mError = e;
+            closeOutput();
+            mTempFile.delete();
+        }
+    }
+
+    /**
+     * 密钥是异步请求的, 保存好之后下载任务会再通知一次
+     */
+    private boolean isKeyReady(int index) {
+        M3U8Seg keySeg = mSegContexts[index].mKeySeg;
+        return keySeg == null || new File(mSaveDir, keySeg.getLocalKeyUri()).exists();
+    }
+
+    private void remuxSegment(M3U8Seg ts) throws Exception {
+        if (mOutputStream == null) {
+            mOutputStream = new BufferedOutputStream(new FileOutputStream(mTempFile), BUFFER_SIZE);
+        }
+        if (mMp4Writer == null) {
+            mMp4Writer = new FragmentedMp4Writer(mOutputStream);
+        }
+        InputStream inputStream = openSegment(ts, mSegContexts[mNextIndex].mKeySeg);
+        try {
+            mMp4Writer.writeSegment(inputStream, ts.hasDiscontinuity());
+        } finally {
+            VideoDownloadUtils.close(inputStream);
+        }
+    }
+
+    /**
+     * @param keySeg 记录了分片所用密钥的分片, 没有加密时为null
+     */
+    private InputStream openSegment(M3U8Seg ts, M3U8Seg keySeg) throws Exception {
+        InputStream inputStream = new BufferedInputStream(new FileInputStream(new File(mSaveDir, ts.getIndexName())), BUFFER_SIZE);
+        if (keySeg == null) {
+            return inputStream;
+        }
+        try {
+            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(getKey(keySeg), "AES"), new IvParameterSpec(getIv(ts, keySeg)));
+            return new CipherInputStream(inputStream, cipher);
+        } catch (GeneralSecurityException e) {
+            VideoDownloadUtils.close(inputStream);
+            throw new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", decrypt failed", e);
+        }
+    }
+
+    private byte[] getKey(M3U8Seg keySeg) throws Exception {
+        String keyName = keySeg.getLocalKeyUri();
+        byte[] key = mKeys.get(keySeg.getKeyUri());
+        if (key == null) {
+            File keyFile = new File(mSaveDir, keyName);
+            key = new byte[16];
+            InputStream inputStream = new FileInputStream(keyFile);
+            try {
+                int offset = 0;
+                int length;
+                while (offset < key.length && (length = inputStream.read(key, offset, key.length - offset)) != -1) {
+                    offset += length;
+                }
+                if (offset < key.length) {
+                    throw new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", invalid key " + keyName);
+                }
+            } finally {
+                VideoDownloadUtils.close(inputStream);
+            }
+            mKeys.put(keySeg.getKeyUri(), key);
+        }
+        return key;
+    }
+
+    /**
+     * 没有指定IV的时候使用分片的sequence
+     */
+    private static byte[] getIv(M3U8Seg ts, M3U8Seg keySeg) {
+        byte[] iv = new byte[16];
+        String keyIV = keySeg.getKeyIV();
+        if (keyIV != null) {
+            String hex = keyIV.startsWith("0x") || keyIV.startsWith("0X") ? keyIV.substring(2) : keyIV;
+            int index = iv.length - 1;
+            for (int end = hex.length(); end > 0 && index >= 0; end -= 2) {
+                int start = Math.max(0, end - 2);
+                iv[index--] = (byte) Integer.parseInt(hex.substring(start, end), 16);
+            }
+        } else {
+            int sequence = ts.getSequence();
+            iv[12] = (byte) (sequence >> 24);
+            iv[13] = (byte) (sequence >> 16);
+            iv[14] = (byte) (sequence >> 8);
+            iv[15] = (byte) sequence;
+        }
+        return iv;
+    }
+
+    private void completeOutput(File outputFile) throws Exception {
+        if (mOutputStream == null) {
+            throw new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", no segment");
+        }
+        mOutputStream.flush();
+        closeOutput();
+        if (mMp4Writer != null) {
+            if (mMp4Writer.getMehdPosition() < 0) {
+                throw new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", no media samples");
+            }
+            //回填总时长
+            RandomAccessFile randomAccessFile = new RandomAccessFile(mTempFile, "rw");
+            try {
+                randomAccessFile.seek(mMp4Writer.getMehdPosition());
+                randomAccessFile.writeLong(mMp4Writer.getDurationMs());
+            } finally {
+                VideoDownloadUtils.close(randomAccessFile);
+            }
+        }
+        if (outputFile.exists()) {
+            outputFile.delete();
+        }
+        if (!mTempFile.renameTo(outputFile)) {
+            throw new IOException("Rename " + mTempFile.getName() + " to " + outputFile.getName() + " failed");
+        }
+    }
+
+    private void closeOutput() {
+        VideoDownloadUtils.close(mOutputStream);
+        mOutputStream = null;
+    }
+}
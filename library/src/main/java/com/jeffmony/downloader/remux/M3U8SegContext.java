@@ -0,0 +1,43 @@
+package com.jeffmony.downloader.remux;
+
+import com.jeffmony.downloader.m3u8.M3U8Constants;
+import com.jeffmony.downloader.m3u8.M3U8Seg;
+
+import java.util.List;
+
+/**
+ * M3U8Seg只在紧跟#EXT-X-KEY/#EXT-X-MAP的分片上记录了这两个属性,
+ * 按照HLS的规定它们对后面的分片一直有效, 这里找出每个分片实际使用的密钥和初始化分片.
+ */
+class M3U8SegContext {
+
+    final M3U8Seg mKeySeg;      // 记录当前密钥的分片, 没有加密时为null
+    final M3U8Seg mInitSeg;     // 记录当前初始化分片的分片, 没有初始化分片时为null
+
+    private M3U8SegContext(M3U8Seg keySeg, M3U8Seg initSeg) {
+        mKeySeg = keySeg;
+        mInitSeg = initSeg;
+    }
+
+    boolean isEncrypted() {
+        return mKeySeg != null;
+    }
+
+    static M3U8SegContext[] resolve(List<M3U8Seg> tsList) {
+        M3U8SegContext[] contexts = new M3U8SegContext[tsList.size()];
+        M3U8Seg keySeg = null;
+        M3U8Seg initSeg = null;
+        for (int index = 0; index < contexts.length; index++) {
+            M3U8Seg ts = tsList.get(index);
+            if (ts.hasKey()) {
+                //METHOD=NONE表示后面的分片不再加密
+                keySeg = ts.getMethod() == null || M3U8Constants.METHOD_NONE.equals(ts.getMethod()) ? null : ts;
+            }
+            if (ts.hasInitSegment()) {
+                initSeg = ts;
+            }
+            contexts[index] = new M3U8SegContext(keySeg, initSeg);
+        }
+        return contexts;
+    }
+}
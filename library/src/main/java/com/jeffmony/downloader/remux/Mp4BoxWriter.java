@@ -0,0 +1,102 @@
+package com.jeffmony.downloader.remux;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * 在内存中拼装MP4的box, 嵌套box的大小在结束时回填
+ */
+class Mp4BoxWriter {
+
+    private static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private byte[] mBuffer;
+    private int mPosition;
+    private final ArrayDeque<Integer> mBoxStarts = new ArrayDeque<>();
+
+    Mp4BoxWriter(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    void startBox(String type) {
+        mBoxStarts.push(mPosition);
+        writeInt(0);
+        writeType(type);
+    }
+
+    void startFullBox(String type, int version, int flags) {
+        startBox(type);
+        writeInt((version << 24) | (flags & 0xFFFFFF));
+    }
+
+    void endBox() {
+        int start = mBoxStarts.pop();
+        putInt(start, mPosition - start);
+    }
+
+    void writeType(String type) {
+        writeBytes(type.getBytes(US_ASCII));
+    }
+
+    void writeByte(int value) {
+        ensureCapacity(1);
+        mBuffer[mPosition++] = (byte) value;
+    }
+
+    void writeShort(int value) {
+        ensureCapacity(2);
+        mBuffer[mPosition++] = (byte) (value >> 8);
+        mBuffer[mPosition++] = (byte) value;
+    }
+
+    void writeInt(int value) {
+        ensureCapacity(4);
+        putInt(mPosition, value);
+        mPosition += 4;
+    }
+
+    void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    void writeBytes(byte[] data) {
+        writeBytes(data, 0, data.length);
+    }
+
+    void writeBytes(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, mBuffer, mPosition, length);
+        mPosition += length;
+    }
+
+    void writeZeros(int count) {
+        ensureCapacity(count);
+        Arrays.fill(mBuffer, mPosition, mPosition + count, (byte) 0);
+        mPosition += count;
+    }
+
+    void putInt(int position, int value) {
+        mBuffer[position] = (byte) (value >> 24);
+        mBuffer[position + 1] = (byte) (value >> 16);
+        mBuffer[position + 2] = (byte) (value >> 8);
+        mBuffer[position + 3] = (byte) value;
+    }
+
+    int position() {
+        return mPosition;
+    }
+
+    void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(mBuffer, 0, mPosition);
+    }
+
+    private void ensureCapacity(int count) {
+        if (mPosition + count > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(mBuffer.length * 2, mPosition + count));
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.jeffmony.downloader.remux;
+
+import com.jeffmony.downloader.VideoDownloadException;
+import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+/**
+ * MPEG-TS解复用, 只处理一路H.264视频和一路AAC(ADTS)音频.
+ * PAT/PMT的状态跨分片保留, PES在每个分片结束时输出.
+ */
+class TsDemuxer {
+
+    static final int TS_PACKET_SIZE = 188;
+    private static final int SYNC_BYTE = 0x47;
+    private static final int STREAM_TYPE_H264 = 0x1B;
+    private static final int STREAM_TYPE_AAC = 0x0F;
+    static final long NO_TIMESTAMP = -1;
+
+    interface Listener {
+        void onVideoPes(long pts, long dts, byte[] data, int offset, int length) throws Exception;
+
+        void onAudioPes(long pts, byte[] data, int offset, int length) throws Exception;
+    }
+
+    private final Listener mListener;
+    private int mPmtPid = -1;
+    private int mVideoPid = -1;
+    private int mAudioPid = -1;
+    private final ByteArrayOutputStream mVideoPes = new ByteArrayOutputStream(256 * 1024);
+    private final ByteArrayOutputStream mAudioPes = new ByteArrayOutputStream(16 * 1024);
+
+    TsDemuxer(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * 解析一个完整的分片
+     */
+    void demux(InputStream inputStream) throws Exception {
+        byte[] packet = new byte[TS_PACKET_SIZE];
+        mVideoPes.reset();
+        mAudioPes.reset();
+        while (readPacket(inputStream, packet)) {
+            parsePacket(packet);
+        }
+        flushPes(mVideoPid, mVideoPes);
+        flushPes(mAudioPid, mAudioPes);
+    }
+
+    private static boolean readPacket(InputStream inputStream, byte[] packet) throws Exception {
+        if (!readFully(inputStream, packet, 0, 1)) {
+            return false;
+        }
+        //丢掉不是同步字节开头的数据, 重新对齐
+        while ((packet[0] & 0xFF) != SYNC_BYTE) {
+            if (!readFully(inputStream, packet, 0, 1)) {
+                return false;
+            }
+        }
+        return readFully(inputStream, packet, 1, TS_PACKET_SIZE - 1);
+    }
+
+    private static boolean readFully(InputStream inputStream, byte[] buffer, int offset, int length) throws Exception {
+        while (length > 0) {
+            int read = inputStream.read(buffer, offset, length);
+            if (read < 0) {
+                return false;
+            }
+            offset += read;
+            length -= read;
+        }
+        return true;
+    }
+
+    private void parsePacket(byte[] packet) throws Exception {
+        boolean payloadStart = (packet[1] & 0x40) != 0;
+        int pid = ((packet[1] & 0x1F) << 8) | (packet[2] & 0xFF);
+        int adaptationControl = (packet[3] >> 4) & 0x03;
+        int offset = 4;
+        if (adaptationControl == 2 || adaptationControl == 3) {
+            offset += 1 + (packet[4] & 0xFF);
+        }
+        if (adaptationControl == 2 || offset >= TS_PACKET_SIZE) {
+            return;
+        }
+        if (pid == 0) {
+            if (payloadStart) {
+                parsePat(packet, offset + 1 + (packet[offset] & 0xFF));
+            }
+        } else if (pid == mPmtPid) {
+            if (payloadStart) {
+                parsePmt(packet, offset + 1 + (packet[offset] & 0xFF));
+            }
+        } else if (pid == mVideoPid) {
+            appendPes(pid, mVideoPes, payloadStart, packet, offset);
+        } else if (pid == mAudioPid) {
+            appendPes(pid, mAudioPes, payloadStart, packet, offset);
+        }
+    }
+
+    private void parsePat(byte[] packet, int offset) {
+        if (offset + 8 > TS_PACKET_SIZE) {
+            return;
+        }
+        int sectionLength = ((packet[offset + 1] & 0x0F) << 8) | (packet[offset + 2] & 0xFF);
+        int end = Math.min(TS_PACKET_SIZE, offset + 3 + sectionLength - 4);
+        for (int index = offset + 8; index + 4 <= end; index += 4) {
+            int programNumber = ((packet[index] & 0xFF) << 8) | (packet[index + 1] & 0xFF);
+            if (programNumber != 0) {
+                mPmtPid = ((packet[index + 2] & 0x1F) << 8) | (packet[index + 3] & 0xFF);
+                return;
+            }
+        }
+    }
+
+    private void parsePmt(byte[] packet, int offset) throws Exception {
+        if (offset + 12 > TS_PACKET_SIZE) {
+            return;
+        }
+        int sectionLength = ((packet[offset + 1] & 0x0F) << 8) | (packet[offset + 2] & 0xFF);
+        int end = Math.min(TS_PACKET_SIZE, offset + 3 + sectionLength - 4);
+        int programInfoLength = ((packet[offset + 10] & 0x0F) << 8) | (packet[offset + 11] & 0xFF);
+        int index = offset + 12 + programInfoLength;
+        while (index + 5 <= end) {
+            int streamType = packet[index] & 0xFF;
+            int pid = ((packet[index + 1] & 0x1F) << 8) | (packet[index + 2] & 0xFF);
+            int esInfoLength = ((packet[index + 3] & 0x0F) << 8) | (packet[index + 4] & 0xFF);
+            if (streamType == STREAM_TYPE_H264) {
+                mVideoPid = pid;
+            } else if (streamType == STREAM_TYPE_AAC) {
+                mAudioPid = pid;
+            } else if (isUnsupportedMediaType(streamType)) {
+                //HEVC/MPEG2/MP3/AC3这些不处理, 交给ffmpeg
+                throw new VideoDownloadException(DownloadExceptionUtils.REMUX_UNSUPPORTED_STREAM + ", streamType=" + streamType);
+            }
+            index += 5 + esInfoLength;
+        }
+    }
+
+    private static boolean isUnsupportedMediaType(int streamType) {
+        switch (streamType) {
+            case 0x01:  // MPEG-1 video
+            case 0x02:  // MPEG-2 video
+            case 0x03:  // MPEG-1 audio
+            case 0x04:  // MPEG-2 audio
+            case 0x10:  // MPEG-4 visual
+            case 0x11:  // AAC LATM
+            case 0x24:  // HEVC
+            case 0x81:  // AC-3
+            case 0x87:  // E-AC-3
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void appendPes(int pid, ByteArrayOutputStream pes, boolean payloadStart, byte[] packet, int offset) throws Exception {
+        if (payloadStart) {
+            flushPes(pid, pes);
+        } else if (pes.size() == 0) {
+            //还没有遇到PES的开头
+            return;
+        }
+        pes.write(packet, offset, TS_PACKET_SIZE - offset);
+    }
+
+    private void flushPes(int pid, ByteArrayOutputStream pes) throws Exception {
+        if (pes.size() == 0) {
+            return;
+        }
+        byte[] data = pes.toByteArray();
+        pes.reset();
+        if (data.length < 9 || data[0] != 0 || data[1] != 0 || data[2] != 1) {
+            return;
+        }
+        int flags = data[7] & 0xFF;
+        int headerLength = data[8] & 0xFF;
+        int payloadOffset = 9 + headerLength;
+        if (payloadOffset > data.length) {
+            return;
+        }
+        long pts = NO_TIMESTAMP;
+        long dts = NO_TIMESTAMP;
+        if ((flags & 0x80) != 0 && headerLength >= 5) {
+            pts = readTimestamp(data, 9);
+            dts = pts;
+            if ((flags & 0x40) != 0 && headerLength >= 10) {
+                dts = readTimestamp(data, 14);
+            }
+        }
+        if (pid == mVideoPid) {
+            mListener.onVideoPes(pts, dts, data, payloadOffset, data.length - payloadOffset);
+        } else if (pid == mAudioPid) {
+            mListener.onAudioPes(pts, data, payloadOffset, data.length - payloadOffset);
+        }
+    }
+
+    private static long readTimestamp(byte[] data, int offset) {
+        return (((long) data[offset] & 0x0E) << 29)
+                | ((data[offset + 1] & 0xFF) << 22)
+                | (((data[offset + 2] & 0xFE)) << 14)
+                | ((data[offset + 3] & 0xFF) << 7)
+                | ((data[offset + 4] & 0xFE) >> 1);
+    }
+
+    boolean hasVideo() {
+        return mVideoPid >= 0;
+    }
+
+    boolean hasAudio() {
+        return mAudioPid >= 0;
+    }
+}
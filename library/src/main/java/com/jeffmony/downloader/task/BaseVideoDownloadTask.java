@@ -1,22 +1,23 @@
 package com.jeffmony.downloader.task;
 
+import com.jeffmony.downloader.VideoDownloadException;
 import com.jeffmony.downloader.common.DownloadConstants;
 import com.jeffmony.downloader.model.VideoTaskItem;
+import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+import com.jeffmony.downloader.utils.FileChannelWriter;
+import com.jeffmony.downloader.utils.HttpConnectionPool;
 import com.jeffmony.downloader.utils.HttpUtils;
 import com.jeffmony.downloader.utils.LogUtils;
 import com.jeffmony.downloader.utils.VideoDownloadUtils;
+import com.jeffmony.downloader.utils.VideoStorageUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.ProtocolException;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 public class BaseVideoDownloadTask extends VideoDownloadTask {
 
@@ -44,59 +45,75 @@ public class BaseVideoDownloadTask extends VideoDownloadTask {
             return;
         }
         mCurrentCachedSize = curLength;
-        mDownloadExecutor = new ThreadPoolExecutor(
-                THREAD_COUNT, THREAD_COUNT, 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>(), Executors.defaultThreadFactory(),
-                new ThreadPoolExecutor.DiscardOldestPolicy());
-        mDownloadExecutor.execute(() -> {
-            File videoFile;
+        startJobs();
+        submitJob(mFinalUrl, () -> {
+            File videoFile = new File(mSaveDir, mSaveName + VideoDownloadUtils.VIDEO_SUFFIX);
             try {
-                videoFile = new File(mSaveDir, mSaveName + VideoDownloadUtils.VIDEO_SUFFIX);
-                if (!videoFile.exists()) {
-                    videoFile.createNewFile();
-                    mCurrentCachedSize = 0;
-                } else {
+                if (videoFile.length() < mTotalLength) {
+                    //没有预分配过的文件, 文件长度就是已经下载的大小
                     mCurrentCachedSize = videoFile.length();
+                } else {
+                    //预分配之后文件长度不再表示进度, 使用记录的已经写入文件的大小
+                    mCurrentCachedSize = Math.min(mCurrentCachedSize, mTotalLength);
                 }
+                VideoStorageUtils.preallocate(videoFile, mTotalLength);
             } catch (Exception e) {
-                LogUtils.w(DownloadConstants.TAG, "BaseDownloadTask createNewFile failed, exception=" + e.getMessage());
+                LogUtils.w(DownloadConstants.TAG, "BaseDownloadTask preallocate failed, exception=" + e.getMessage());
+                notifyDownloadError(e);
                 return;
             }
 
+            HttpURLConnection connection = null;
             InputStream inputStream = null;
-            RandomAccessFile randomAccessFile = null;
+            FileChannelWriter writer = null;
             try {
-                inputStream = getResponseBody(mFinalUrl, mCurrentCachedSize, mTotalLength);
-                byte[] buf = new byte[BUFFER_SIZE];
-
-                randomAccessFile = new RandomAccessFile(videoFile.getAbsolutePath(), "rw");
-                randomAccessFile.seek(mCurrentCachedSize);
-                int readLength;
-                while ((readLength = inputStream.read(buf)) != -1) {
-                    if (mCurrentCachedSize + readLength > mTotalLength) {
-                        randomAccessFile.write(buf, 0, (int) (mTotalLength - mCurrentCachedSize));
-                        mCurrentCachedSize = mTotalLength;
-                    } else {
-                        randomAccessFile.write(buf, 0, readLength);
-                        mCurrentCachedSize += readLength;
+                connection = openConnection(mFinalUrl, mCurrentCachedSize, mTotalLength);
+                int responseCode = connection.getResponseCode();
+                if (responseCode == HttpUtils.RESPONSE_200 && mCurrentCachedSize > 0) {
+                    //服务端忽略了Range, 返回的是整个文件, 只能从头开始写
+                    LogUtils.w(DownloadConstants.TAG, "BaseVideoDownloadTask range ignored, restart from 0, cached=" + mCurrentCachedSize);
+                    mCurrentCachedSize = 0;
+                    mLastCachedSize = 0;
+                    mPercent = 0;
+                } else if (responseCode != HttpUtils.RESPONSE_200 && responseCode != HttpUtils.RESPONSE_206) {
+                    throw new VideoDownloadException(DownloadExceptionUtils.VIDEO_REQUEST_FAILED, responseCode, HttpUtils.getRetryAfter(connection));
+                }
+                inputStream = connection.getInputStream();
+
+                writer = FileChannelWriter.open(videoFile, mCurrentCachedSize);
+                while (writer.getPosition() < mTotalLength && writer.read(inputStream, mTotalLength - writer.getPosition()) != -1) {
+                    if (writer.getPosition() >= mTotalLength) {
+                        writer.flush();
                     }
+                    //恢复下载依赖这个大小, 只算已经写入文件的部分
+                    mCurrentCachedSize = writer.getWrittenPosition();
                     notifyDownloadProgress();
                 }
+                if (writer.getPosition() < mTotalLength && isJobsRunning()) {
+                    //服务端提前结束了响应
+                    throw new ProtocolException(DownloadExceptionUtils.PROTOCOL_UNEXPECTED_END_OF_STREAM);
+                }
             } catch (Exception e) {
                 LogUtils.w(DownloadConstants.TAG, "FAILED, exception=" + e.getMessage());
                 e.printStackTrace();
                 notifyDownloadError(e);
             } finally {
+                HttpConnectionPool.getInstance().releaseConnection(connection, false);
                 VideoDownloadUtils.close(inputStream);
-                VideoDownloadUtils.close(randomAccessFile);
+                VideoDownloadUtils.close(writer);
             }
         });
     }
 
+    @Override
+    public long getUnallocatedSize() {
+        File videoFile = new File(mSaveDir, mSaveName + VideoDownloadUtils.VIDEO_SUFFIX);
+        return Math.max(mTotalLength - videoFile.length(), 0);
+    }
+
     @Override
     public void pauseDownload() {
-        if (mDownloadExecutor != null && !mDownloadExecutor.isShutdown()) {
-            mDownloadExecutor.shutdownNow();
+        if (stopJobs()) {
             notifyOnTaskPaused();
         }
     }
@@ -135,18 +152,25 @@ public class BaseVideoDownloadTask extends VideoDownloadTask {
             if (!mDownloadFinished) {
                 mDownloadTaskListener.onTaskFinished(mTotalLength);
                 mDownloadFinished = true;
+                finishJobs();
             }
         }
     }
 
-    private InputStream getResponseBody(String url, long start, long end) throws IOException {
+    private HttpURLConnection openConnection(String url, long start, long end) throws IOException {
+        if (start == 0) {
+            //从头下载的时候接手探测请求的连接
+            HttpURLConnection connection = HttpConnectionPool.getInstance().takeParkedConnection(url);
+            if (connection != null) {
+                return connection;
+            }
+        }
         if (end == mTotalLength) {
             mHeaders.put("Range", "bytes=" + start + "-");
         } else {
             mHeaders.put("Range", "bytes=" + start + "-" + end);
         }
-        HttpURLConnection connection = HttpUtils.getConnection(url, mHeaders, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
-        return connection.getInputStream();
+        return HttpConnectionPool.getInstance().getConnection(url, mHeaders, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
     }
 
 }
@@ -0,0 +1,234 @@
+package com.jeffmony.downloader.task;
+
+import android.text.TextUtils;
+
+import com.jeffmony.downloader.VideoDownloadException;
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+import com.jeffmony.downloader.utils.HttpUtils;
+import com.jeffmony.downloader.utils.LogUtils;
+import com.jeffmony.downloader.utils.VideoStorageUtils;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 下载并发数的自适应控制(AIMD).
+ *
+ * 每一轮(window个请求完成)统计一次总的有效吞吐:
+ * 1.吞吐还在上涨, 并发数 +1
+ * 2.吞吐不再上涨并且首字节延迟明显变大, 并发数 -1
+ * 遇到503/429/连接被断开/超时这些拥塞信号, 并发数减半.
+ * 并发数的上限是单个host的连接上限.
+ */
+public class ConcurrencyController {
+
+    private static final float ALPHA = 0.25f;                  // EWMA的平滑系数
+    private static final float DECREASE_FACTOR = 0.5f;         // 拥塞时的乘性减
+    private static final float GROWTH_RATIO = 1.05f;           // 吞吐至少提升5%才继续加并发
+    private static final float LATENCY_INFLATION_RATIO = 2.0f; // 延迟翻倍说明排队了
+    private static final long MIN_CONGESTION_INTERVAL = 1000L; // 同一批拥塞信号只减一次
+    private static final int MAX_DECISION_COUNT = 20;
+
+    private final String mName;
+    private final int mMinWindow;
+    private final int mMaxWindow;
+    private float mWindow;
+
+    private float mGoodput;                       // 单个连接的有效吞吐, bytes/ms
+    private float mLatency;                       // 首字节延迟, ms
+    private float mMinLatency = Float.MAX_VALUE;
+
+    private long mEpochStartTime;
+    private long mEpochBytes;
+    private int mEpochCount;
+    private float mLastEpochThroughput;           // 上一轮的总吞吐, bytes/ms
+    private long mLastCongestionTime;
+    private final ArrayDeque<Decision> mDecisions = new ArrayDeque<>();
+
+    public ConcurrencyController(String name, int initWindow, int maxWindow) {
+        mName = name;
+        mMinWindow = 1;
+        mMaxWindow = Math.max(mMinWindow, maxWindow);
+        mWindow = Math.max(mMinWindow, Math.min(initWindow, mMaxWindow));
+        mEpochStartTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 服务端返回的状态码是否是限流
+     * @return 限流的原因, 不是限流返回null
+     */
+    public static String getCongestionReason(int responseCode) {
+        if (responseCode == HttpUtils.RESPONSE_503 || responseCode == HttpUtils.RESPONSE_429) {
+            return "HTTP " + responseCode;
+        }
+        return null;
+    }
+
+    /**
+     * 请求失败是否是拥塞导致的, 拥塞导致的失败应该降低并发之后重试
+     * @return 拥塞的原因, 不是拥塞返回null
+     */
+    public static String getCongestionReason(Exception e) {
+        if (e instanceof SocketTimeoutException) {
+            return "timeout";
+        }
+        if (e instanceof VideoDownloadException) {
+            return getCongestionReason(((VideoDownloadException) e).getResponseCode());
+        }
+        if (e instanceof IOException && !TextUtils.isEmpty(e.getMessage()) && e.getMessage().contains(DownloadExceptionUtils.PROTOCOL_UNEXPECTED_END_OF_STREAM)) {
+            return DownloadExceptionUtils.PROTOCOL_UNEXPECTED_END_OF_STREAM;
+        }
+        return null;
+    }
+
+    /**
+     * 一次传输成功
+     * @param bytes 传输的字节数
+     * @param latency 发出请求到收到响应头的时间
+     * @param duration 整个传输的时间
+     */
+    public synchronized void onTransferSuccess(long bytes, long latency, long duration) {
+        if (duration > 0) {
+            float goodput = bytes * 1.0f / duration;
+            mGoodput = mGoodput <= 0 ? goodput : mGoodput + ALPHA * (goodput - mGoodput);
+        }
+        if (latency >= 0) {
+            mLatency = mLatency <= 0 ? latency : mLatency + ALPHA * (latency - mLatency);
+            mMinLatency = Math.min(mMinLatency, latency);
+        }
+        mEpochBytes += bytes;
+        mEpochCount++;
+        if (mEpochCount < getWindow()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long elapsed = Math.max(1, now - mEpochStartTime);
+        float throughput = mEpochBytes * 1.0f / elapsed;
+        int oldWindow = getWindow();
+        if (mLastEpochThroughput <= 0 || throughput > mLastEpochThroughput * GROWTH_RATIO) {
+            if (oldWindow < mMaxWindow) {
+                mWindow = oldWindow + 1;
+                record(oldWindow, "throughput rising to " + formatSpeed(throughput));
+            }
+        } else if (mLatency > mMinLatency * LATENCY_INFLATION_RATIO && throughput * GROWTH_RATIO < mLastEpochThroughput) {
+            if (oldWindow > mMinWindow) {
+                mWindow = oldWindow - 1;
+                record(oldWindow, "latency inflated to " + (int) mLatency + "ms, throughput " + formatSpeed(throughput));
+            }
+        } else if (oldWindow < mMaxWindow) {
+            record(oldWindow, "throughput plateau at " + formatSpeed(throughput));
+        }
+        mLastEpochThroughput = throughput;
+        resetEpoch(now);
+    }
+
+    /**
+     * 服务端限流或者连接被断开
+     * @param reason 拥塞的原因, 例如 "HTTP 503"
+     */
+    public synchronized void onCongestion(String reason) {
+        long now = System.currentTimeMillis();
+        long interval = Math.max(MIN_CONGESTION_INTERVAL, (long) (mLatency * 2));
+        if (now - mLastCongestionTime < interval) {
+            return;
+        }
+        mLastCongestionTime = now;
+        int oldWindow = getWindow();
+        mWindow = Math.max(mMinWindow, (int) (oldWindow * DECREASE_FACTOR));
+        mLastEpochThroughput = 0;
+        resetEpoch(now);
+        record(oldWindow, "congestion: " + reason);
+    }
+
+    private void resetEpoch(long now) {
+        mEpochStartTime = now;
+        mEpochBytes = 0;
+        mEpochCount = 0;
+    }
+
+    private void record(int oldWindow, String reason) {
+        Decision last = mDecisions.peekLast();
+        int newWindow = getWindow();
+        if (oldWindow == newWindow && last != null && last.mOldWindow == last.mNewWindow && last.mNewWindow == newWindow) {
+            //连续的"保持不变"只记录一次
+            return;
+        }
+        Decision decision = new Decision(System.currentTimeMillis(), oldWindow, newWindow, reason);
+        mDecisions.offerLast(decision);
+        if (mDecisions.size() > MAX_DECISION_COUNT) {
+            mDecisions.pollFirst();
+        }
+        LogUtils.i(DownloadConstants.TAG, "ConcurrencyController " + mName + " " + decision);
+    }
+
+    private static String formatSpeed(float bytesPerMs) {
+        return VideoStorageUtils.getSizeStr((long) (bytesPerMs * 1000)) + "/s";
+    }
+
+    public synchronized int getWindow() {
+        return (int) mWindow;
+    }
+
+    public int getMaxWindow() {
+        return mMaxWindow;
+    }
+
+    public synchronized float getGoodput() {
+        return mGoodput;
+    }
+
+    public synchronized float getLatency() {
+        return mLatency;
+    }
+
+    public synchronized List<Decision> getDecisions() {
+        return new ArrayList<>(mDecisions);
+    }
+
+    public synchronized String toString() {
+        return "ConcurrencyController[name=" + mName +
+                ", window=" + getWindow() + "/" + mMaxWindow +
+                ", goodput=" + formatSpeed(mGoodput) +
+                ", latency=" + (int) mLatency + "ms" +
+                ", lastDecision=" + mDecisions.peekLast() +
+                "]";
+    }
+
+    public static class Decision {
+        private final long mTime;
+        private final int mOldWindow;
+        private final int mNewWindow;
+        private final String mReason;
+
+        Decision(long time, int oldWindow, int newWindow, String reason) {
+            mTime = time;
+            mOldWindow = oldWindow;
+            mNewWindow = newWindow;
+            mReason = reason;
+        }
+
+        public long getTime() {
+            return mTime;
+        }
+
+        public int getOldWindow() {
+            return mOldWindow;
+        }
+
+        public int getNewWindow() {
+            return mNewWindow;
+        }
+
+        public String getReason() {
+            return mReason;
+        }
+
+        public String toString() {
+            return "Decision[" + mOldWindow + "->" + mNewWindow + ", " + mReason + "]";
+        }
+    }
+}
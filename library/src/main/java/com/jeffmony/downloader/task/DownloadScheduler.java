@@ -0,0 +1,331 @@
+package com.jeffmony.downloader.task;
+
+import com.jeffmony.downloader.VideoDownloadConfig;
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.LogUtils;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 所有下载任务共享的连接调度器.
+ *
+ * 分片/Range请求都提交到这里, 同时受三个限制:
+ * 1.全局的连接预算 maxConnections
+ * 2.同一个host的连接上限 maxConnectionsPerHost
+ * 3.每个任务自己的并发窗口(ConcurrencyController)
+ * 满足限制的前提下, 多个任务之间轮流分配连接.
+ */
+public class DownloadScheduler {
+
+    private final Object mLock = new Object();
+    private final ThreadPoolExecutor mExecutor;
+    private final ScheduledThreadPoolExecutor mTimer;      // 延迟重试和定时检查共用
+    private final Map<String, TaskQueue> mTaskQueues = new HashMap<>();
+    private final ArrayDeque<TaskQueue> mTaskOrder = new ArrayDeque<>();   // 轮转的顺序
+    private final Map<String, Integer> mHostRunningCounts = new HashMap<>();
+    private int mRunningCount;
+    private int mMaxConnections = VideoDownloadConfig.DEFAULT_MAX_CONNECTIONS;
+    private int mMaxConnectionsPerHost = VideoDownloadConfig.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    public DownloadScheduler() {
+        //线程数由调度器自己控制, 线程池只负责复用线程
+        mExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), new ThreadFactory() {
+            private final AtomicInteger mCount = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                return new Thread(runnable, "Video-download-" + mCount.incrementAndGet());
+            }
+        });
+        mTimer = new ScheduledThreadPoolExecutor(1, runnable -> new Thread(runnable, "Video-download-timer"));
+    }
+
+    public void setMaxConnections(int count) {
+        if (count <= 0) {
+            return;
+        }
+        synchronized (mLock) {
+            mMaxConnections = count;
+        }
+        dispatch();
+    }
+
+    public void setMaxConnectionsPerHost(int count) {
+        if (count <= 0) {
+            return;
+        }
+        synchronized (mLock) {
+            mMaxConnectionsPerHost = count;
+        }
+        dispatch();
+    }
+
+    /**
+     * 注册下载任务, 任务的并发数受controller的窗口限制
+     */
+    public void registerTask(String taskKey, ConcurrencyController controller) {
+        synchronized (mLock) {
+            TaskQueue queue = obtainTaskQueue(taskKey);
+            queue.mController = controller;
+            queue.mReleased = false;
+        }
+    }
+
+    /**
+     * 提交一个请求
+     * @param taskKey 所属的下载任务
+     * @param url 请求的url, 用来计算host的连接数
+     * @param job
+     */
+    public void submit(String taskKey, String url, Runnable job) {
+        synchronized (mLock) {
+            TaskQueue queue = obtainTaskQueue(taskKey);
+            queue.mPendingJobs.offerLast(new Job(queue, getHost(url), job));
+        }
+        dispatch();
+    }
+
+    /**
+     * 提交一个需要优先执行的请求, 排在任务队列的最前面
+     */
+    public void submitFirst(String taskKey, String url, Runnable job) {
+        synchronized (mLock) {
+            TaskQueue queue = obtainTaskQueue(taskKey);
+            queue.mPendingJobs.offerFirst(new Job(queue, getHost(url), job));
+        }
+        dispatch();
+    }
+
+    /**
+     * 定时执行的检查, 例如检测卡住的请求, 不占用下载连接
+     */
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long delay) {
+        return mTimer.scheduleWithFixedDelay(command, delay, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 延迟提交一个请求, 用于失败之后的退避重试, 等待期间不占用连接
+     */
+    public void submitDelayed(String taskKey, String url, Runnable job, long delay) {
+        synchronized (mLock) {
+            TaskQueue queue = obtainTaskQueue(taskKey);
+            Job delayedJob = new Job(queue, getHost(url), job);
+            queue.mDelayedCount++;
+            mTimer.schedule(() -> onDelayExpired(delayedJob), delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void onDelayExpired(Job job) {
+        synchronized (mLock) {
+            TaskQueue queue = job.mQueue;
+            queue.mDelayedCount--;
+            if (queue.mCancelled) {
+                return;
+            }
+            //重试的请求排在最前面, 尽快补上缺失的分片
+            queue.mPendingJobs.offerFirst(job);
+        }
+        dispatch();
+    }
+
+    private TaskQueue obtainTaskQueue(String taskKey) {
+        TaskQueue queue = mTaskQueues.get(taskKey);
+        if (queue == null) {
+            queue = new TaskQueue(taskKey);
+            mTaskQueues.put(taskKey, queue);
+            mTaskOrder.offerLast(queue);
+        }
+        return queue;
+    }
+
+    /**
+     * 取消任务: 丢弃还没有开始的请求(包括等待重试的), 中断正在执行的请求
+     */
+    public void cancel(String taskKey) {
+        synchronized (mLock) {
+            TaskQueue queue = mTaskQueues.remove(taskKey);
+            if (queue == null) {
+                return;
+            }
+            mTaskOrder.remove(queue);
+            queue.mCancelled = true;
+            queue.mPendingJobs.clear();
+            for (Job job : queue.mRunningJobs) {
+                if (job.mThread != null) {
+                    job.mThread.interrupt();
+                }
+            }
+        }
+        dispatch();
+    }
+
+    /**
+     * 任务已经结束, 不会再提交请求, 等正在执行的请求结束之后移除
+     */
+    public void unregisterTask(String taskKey) {
+        synchronized (mLock) {
+            TaskQueue queue = mTaskQueues.get(taskKey);
+            if (queue != null) {
+                queue.mReleased = true;
+                removeIfIdle(queue);
+            }
+        }
+    }
+
+    private void removeIfIdle(TaskQueue queue) {
+        if (queue.mReleased && queue.mPendingJobs.isEmpty() && queue.mRunningJobs.isEmpty() && queue.mDelayedCount == 0
+                && mTaskQueues.get(queue.mTaskKey) == queue) {
+            mTaskQueues.remove(queue.mTaskKey);
+            mTaskOrder.remove(queue);
+        }
+    }
+
+    public int getRunningCount(String taskKey) {
+        synchronized (mLock) {
+            TaskQueue queue = mTaskQueues.get(taskKey);
+            return queue != null ? queue.mRunningJobs.size() : 0;
+        }
+    }
+
+    public int getPendingCount(String taskKey) {
+        synchronized (mLock) {
+            TaskQueue queue = mTaskQueues.get(taskKey);
+            return queue != null ? queue.mPendingJobs.size() : 0;
+        }
+    }
+
+    /**
+     * 按照轮转的顺序, 每一轮每个任务最多启动一个请求, 直到没有可以启动的请求
+     */
+    public void dispatch() {
+        synchronized (mLock) {
+            boolean started = true;
+            while (started && mRunningCount < mMaxConnections) {
+                started = false;
+                int taskCount = mTaskOrder.size();
+                for (int index = 0; index < taskCount && mRunningCount < mMaxConnections; index++) {
+                    TaskQueue queue = mTaskOrder.pollFirst();
+                    mTaskOrder.offerLast(queue);
+                    Job job = queue.mPendingJobs.peekFirst();
+                    if (job == null || queue.mRunningJobs.size() >= queue.getWindow()) {
+                        continue;
+                    }
+                    if (getHostRunningCount(job.mHost) >= mMaxConnectionsPerHost) {
+                        continue;
+                    }
+                    queue.mPendingJobs.pollFirst();
+                    start(job);
+                    started = true;
+                }
+            }
+        }
+    }
+
+    private void start(Job job) {
+        job.mQueue.mRunningJobs.add(job);
+        mHostRunningCounts.put(job.mHost, getHostRunningCount(job.mHost) + 1);
+        mRunningCount++;
+        mExecutor.execute(job);
+    }
+
+    private void finish(Job job) {
+        synchronized (mLock) {
+            job.mQueue.mRunningJobs.remove(job);
+            int hostCount = getHostRunningCount(job.mHost) - 1;
+            if (hostCount > 0) {
+                mHostRunningCounts.put(job.mHost, hostCount);
+            } else {
+                mHostRunningCounts.remove(job.mHost);
+            }
+            mRunningCount--;
+            removeIfIdle(job.mQueue);
+        }
+        dispatch();
+    }
+
+    private int getHostRunningCount(String host) {
+        Integer count = mHostRunningCounts.get(host);
+        return count != null ? count : 0;
+    }
+
+    private static String getHost(String url) {
+        try {
+            return new URL(url).getHost();
+        } catch (MalformedURLException e) {
+            return "";
+        }
+    }
+
+    public String toString() {
+        synchronized (mLock) {
+            return "DownloadScheduler[running=" + mRunningCount + "/" + mMaxConnections +
+                    ", hosts=" + mHostRunningCounts +
+                    ", tasks=" + mTaskQueues.size() + "]";
+        }
+    }
+
+    private static class TaskQueue {
+        private final String mTaskKey;
+        private final ArrayDeque<Job> mPendingJobs = new ArrayDeque<>();
+        private final Set<Job> mRunningJobs = new HashSet<>();
+        private ConcurrencyController mController;
+        private boolean mCancelled;
+        private boolean mReleased;
+        private int mDelayedCount;
+
+        TaskQueue(String taskKey) {
+            mTaskKey = taskKey;
+        }
+
+        int getWindow() {
+            return mController != null ? mController.getWindow() : Integer.MAX_VALUE;
+        }
+    }
+
+    private class Job implements Runnable {
+        private final TaskQueue mQueue;
+        private final String mHost;
+        private final Runnable mRunnable;
+        private volatile Thread mThread;
+
+        Job(TaskQueue queue, String host, Runnable runnable) {
+            mQueue = queue;
+            mHost = host;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public void run() {
+            mThread = Thread.currentThread();
+            try {
+                synchronized (mLock) {
+                    if (mQueue.mCancelled) {
+                        return;
+                    }
+                }
+                mRunnable.run();
+            } catch (Exception e) {
+                LogUtils.w(DownloadConstants.TAG, "DownloadScheduler job " + mQueue.mTaskKey + " failed, exception=" + e);
+            } finally {
+                finish(this);
+                mThread = null;
+                //从运行队列移除之后不会再被中断, 清掉取消时设置的中断标记, 线程还要复用
+                Thread.interrupted();
+            }
+        }
+    }
+}
@@ -1,82 +1,225 @@
 package com.jeffmony.downloader.task;
 
-import android.text.TextUtils;
-
+import com.jeffmony.downloader.VideoDownloadConfig;
 import com.jeffmony.downloader.VideoDownloadException;
 import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.listener.IM3U8SegListener;
 import com.jeffmony.downloader.m3u8.M3U8;
 import com.jeffmony.downloader.m3u8.M3U8Constants;
 import com.jeffmony.downloader.m3u8.M3U8Seg;
+import com.jeffmony.downloader.m3u8.M3U8SegBitmap;
 import com.jeffmony.downloader.model.VideoTaskItem;
+import com.jeffmony.downloader.proxy.IM3U8PlaySource;
+import com.jeffmony.downloader.remux.M3U8ConcatMerger;
+import com.jeffmony.downloader.remux.M3U8Remuxer;
 import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+import com.jeffmony.downloader.utils.FileChannelWriter;
+import com.jeffmony.downloader.utils.HttpConnectionPool;
 import com.jeffmony.downloader.utils.HttpUtils;
 import com.jeffmony.downloader.utils.LogUtils;
 import com.jeffmony.downloader.utils.VideoDownloadUtils;
-import com.jeffmony.downloader.utils.VideoStorageUtils;
 
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.HttpURLConnection;
-import java.net.ProtocolException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
-public class M3U8VideoDownloadTask extends VideoDownloadTask {
-    private static final int CONTINUOUS_SUCCESS_TS_THRESHOLD = 6;
+public class M3U8VideoDownloadTask extends VideoDownloadTask implements IM3U8PlaySource, IM3U8SegListener {
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+    private static final String HEDGE_FILE_SUFFIX = ".hedge";
+    private static final int PRIORITY_SEGMENT_COUNT = 3;   // 边下边播的时候优先下载的分片数
+    private static final int MAX_COALESCED_SEGMENTS = 16;  // 同一个文件相邻的byteRange分片最多合并成一个请求的个数
+    private static final long MAX_COALESCED_SIZE = 16 * 1024 * 1024;
     private final Object mFileLock = new Object();
-
-    private volatile int mM3U8DownloadPoolCount;
-    private volatile int mContinuousSuccessTsCount;   //连续请求ts成功的个数
+    private final Object mSegmentLock = new Object();
+    private final Object mPlaylistLock = new Object();   // 边解析边下载的时候, 新分片和重新初始化互斥
+    private final Set<Integer> mActiveSegments = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    //分片正在下载的时候到达的请求被跳过了, 正在下载的请求释放分片的时候, 分片还没有完成就重新提交
+    private final Set<Integer> mDeferredSegments = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final SingleFlightCache mSharedFiles = new SingleFlightCache();   // 多个分片共用的密钥和初始化分片
 
     private final M3U8 mM3U8;
-    private List<M3U8Seg> mTsList;
+    private volatile M3U8SegBitmap mSegBitmap;
+    private volatile M3U8Remuxer mRemuxer;
     private volatile int mCurTs = 0;
-    private int mTotalTs;
+    private volatile int mTotalTs;
     private long mTotalSize;
+    private int mAppendedTs;   // 直播录制已经追加到本地M3U8的分片数, mFileLock保护
+    private boolean mLocalM3U8Ended;
 
     public M3U8VideoDownloadTask(VideoTaskItem taskItem, M3U8 m3u8, Map<String, String> headers) {
         super(taskItem, headers);
         mM3U8 = m3u8;
-        mTsList = m3u8.getTsList();
-        mTotalTs = mTsList.size();
+        mTotalTs = m3u8.getTsCount();
         mPercent = taskItem.getPercent();
         if (mHeaders == null) {
             mHeaders = new HashMap<>();
         }
-        mHeaders.put("Connection", "close");
         taskItem.setTotalTs(mTotalTs);
         taskItem.setCurTs(mCurTs);
+        //从单host连接上限的一半开始探测
+        int maxWindow = VideoDownloadUtils.getDownloadConfig().getMaxConnectionsPerHost();
+        mConcurrencyController = new ConcurrencyController(mSaveName, maxWindow / 2, maxWindow);
+        //卡住的分片再发起一个同样的请求, 排在队列最前面
+        mStallDetector = new StallDetector(mConcurrencyController, transfer -> {
+            M3U8Seg ts = mM3U8.getTs((Integer) transfer.getTag());
+            submitJobFirst(ts.getUrl(), createSegmentJob(ts, true));
+        });
+        if (m3u8.isParsing()) {
+            //还在解析的M3U8, 新的分片边解析边加入下载队列, 解析完成之后再确定合并的方式
+            m3u8.setSegListener(this);
+        } else {
+            mRemuxer = createRemuxer();
+        }
+    }
+
+    private M3U8Remuxer createRemuxer() {
+        VideoDownloadConfig config = VideoDownloadUtils.getDownloadConfig();
+        if (config.shouldM3U8Merged()
+                && M3U8ConcatMerger.getMergeFormat(mM3U8, config.shouldM3U8MergedToTs()) == M3U8ConcatMerger.FORMAT_NONE) {
+            //需要转换格式的, 下载过程中就按顺序合并已经完成的分片
+            return new M3U8Remuxer(mM3U8, mSaveDir, mSaveName, index -> {
+                M3U8SegBitmap segBitmap = mSegBitmap;
+                return segBitmap != null && segBitmap.isCompleted(index);
+            });
+        }
+        return null;
+    }
+
+    @Override
+    public void onSegmentAdded(M3U8Seg ts) {
+        synchronized (mPlaylistLock) {
+            int index = ts.getIndex();
+            mTotalTs = Math.max(mTotalTs, index + 1);
+            M3U8SegBitmap segBitmap = mSegBitmap;
+            if (segBitmap == null) {
+                //任务还没开始, 开始的时候统一处理
+                return;
+            }
+            //直播录制的位图下次不能恢复, 目录中的分片到时候已经是过期的内容
+            if (mM3U8.isLive()) {
+                segBitmap.markLive();
+            }
+            segBitmap.setSegCount(mTotalTs);
+            submitKey(ts);
+            submitSegment(ts, 0);
+        }
+    }
+
+    @Override
+    public void onParseCompleted() {
+        synchronized (mPlaylistLock) {
+            mTotalTs = mM3U8.getTsCount();
+            if (mSegBitmap != null) {
+                mSegBitmap.setSegCount(mTotalTs);
+            }
+            mRemuxer = createRemuxer();
+        }
+        LogUtils.i(DownloadConstants.TAG, "M3U8VideoDownloadTask playlist parsed, totalTs=" + mTotalTs + ", curTs=" + mCurTs);
+        mTaskItem.setTotalTs(mTotalTs);
+        if (mSegBitmap == null) {
+            return;
+        }
+        if (mRemuxer != null) {
+            mRemuxer.onSegmentCompleted();
+        }
+        //解析过程中完成的分片没有通知进度, 可能已经全部下载完成了
+        notifyDownloadProgress();
+    }
+
+    @Override
+    public void onParseFailed(Exception e) {
+        LogUtils.w(DownloadConstants.TAG, "M3U8VideoDownloadTask playlist parse failed, exception=" + e);
+        notifyDownloadError(e);
+    }
+
+    /**
+     * 边下载边合并的转换器, 没有开启合并或者可以直接拼接分片时返回null
+     */
+    public M3U8Remuxer getRemuxer() {
+        return mRemuxer;
+    }
+
+    public M3U8 getM3U8() {
+        return mM3U8;
+    }
+
+    /**
+     * 分片的大小要下载之后才知道, 只有所有分片都带#EXT-X-BYTERANGE的时候才能计算
+     */
+    @Override
+    public long getUnallocatedSize() {
+        if (mM3U8.isParsing()) {
+            return 0;
+        }
+        M3U8SegBitmap segBitmap = mSegBitmap;
+        long size = 0;
+        for (int index = 0; index < mM3U8.getTsCount(); index++) {
+            M3U8Seg ts = mM3U8.getTs(index);
+            if (!ts.hasByteRange()) {
+                return 0;
+            }
+            if (segBitmap == null || !segBitmap.isCompleted(index)) {
+                size += ts.getRangeLength();
+            }
+        }
+        return size;
     }
 
     private void initM3U8Ts() {
-        long tempCurrentCachedSize = 0;
-        int tempCurTs = 0;
-        for (M3U8Seg ts : mTsList) {
-            File tempTsFile = new File(mSaveDir, ts.getIndexName());
-            if (tempTsFile.exists() && tempTsFile.length() > 0) {
-                ts.setTsSize(tempTsFile.length());
-                tempCurTs++;
+        M3U8SegBitmap segBitmap;
+        synchronized (mPlaylistLock) {
+            mTotalTs = mM3U8.getTsCount();
+            if (mM3U8.isParsing()) {
+                //同一次解析中暂停之后恢复, 继续使用原来的位图; 进程被杀之后重新解析的点播列表从位图文件恢复
+                segBitmap = mSegBitmap != null ? mSegBitmap : M3U8SegBitmap.openGrowing(mSaveDir);
+                if (mM3U8.isLive()) {
+                    segBitmap.markLive();
+                }
+                segBitmap.setSegCount(mTotalTs);
             } else {
-                break;
+                if (mSegBitmap != null) {
+                    mSegBitmap.close();
+                }
+                segBitmap = M3U8SegBitmap.open(mSaveDir, mTotalTs);
             }
+            if (!segBitmap.isRestored() && !mM3U8.isParsing()) {
+                //没有位图文件的旧任务, 只扫描一次已经存在的分片
+                for (int index = 0; index < mTotalTs; index++) {
+                    M3U8Seg ts = mM3U8.getTs(index);
+                    File tempTsFile = new File(mSaveDir, ts.getIndexName());
+                    if (tempTsFile.exists() && tempTsFile.length() > 0) {
+                        ts.setTsSize(tempTsFile.length());
+                        segBitmap.markCompleted(ts.getIndex(), tempTsFile.length());
+                    }
+                }
+            }
+            mSegBitmap = segBitmap;
         }
-        mCurTs = tempCurTs;
-        mCurrentCachedSize = tempCurrentCachedSize;
-        if (mCurTs == mTotalTs) {
+        mCurTs = segBitmap.getCompletedCount();
+        mCurrentCachedSize = segBitmap.getCompletedBytes();
+        if (mRemuxer != null) {
+            mRemuxer.onSegmentCompleted();
+        }
+        File localM3U8File = new File(mSaveDir, mSaveName + "_" + VideoDownloadUtils.LOCAL_M3U8);
+        if (!mM3U8.isParsing() && segBitmap.isAllCompleted() && localM3U8File.exists()) {
             mTaskItem.setIsCompleted(true);
         }
     }
 
-
     @Override
     public void startDownload() {
         mDownloadTaskListener.onTaskStart(mTaskItem.getUrl());
@@ -92,43 +235,368 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
         }
         mCurTs = curDownloadTs;
         LogUtils.i(DownloadConstants.TAG, "startDownload curDownloadTs = " + curDownloadTs);
-        mDownloadExecutor = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, 0L,
-                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), Executors.defaultThreadFactory(),
-                new ThreadPoolExecutor.DiscardOldestPolicy());
-        for (int index = curDownloadTs; index < mTotalTs; index++) {
-            final M3U8Seg ts = mTsList.get(index);
-            mDownloadExecutor.execute(() -> {
-                try {
-                    downloadTsTask(ts);
-                } catch (Exception e) {
-                    LogUtils.w(DownloadConstants.TAG, "M3U8TsDownloadThread download failed, exception=" + e);
-                    notifyDownloadError(e);
-                }
-            });
+        startJobs();
+        M3U8SegBitmap segBitmap = mSegBitmap;
+        //边解析边下载的时候分片数还在增加, 开始之前加入的分片在这里提交, 之后的由onSegmentAdded提交
+        for (int index = 0; index < segBitmap.getSegCount(); index++) {
+            submitKey(mM3U8.getTs(index));
+        }
+        for (int index = segBitmap.nextUncompletedIndex(0); index < segBitmap.getSegCount(); index = segBitmap.nextUncompletedIndex(index + 1)) {
+            submitSegment(mM3U8.getTs(index), 0);
         }
 
+        if (mSegBitmap.isAllCompleted()) {
+            //分片都已经下载完成, 只是缺少本地的M3U8文件
+            notifyDownloadProgress();
+        }
         notifyDownloadFinish(mCurrentCachedSize);
     }
 
-    private void downloadTsTask(M3U8Seg ts) throws Exception {
-        if (ts.hasInitSegment()) {
-            String tsInitSegmentName = ts.getInitSegmentName();
-            File tsInitSegmentFile = new File(mSaveDir, tsInitSegmentName);
-            if (!tsInitSegmentFile.exists()) {
-                downloadFile(ts, tsInitSegmentFile, ts.getInitSegmentUri());
+    /**
+     * 分片下载不需要密钥, 密钥和分片一起异步请求, 用到密钥的地方通过fetchKey等待同一个请求
+     */
+    private void submitKey(M3U8Seg ts) {
+        if (!hasKeyFile(ts) || new File(mSaveDir, ts.getLocalKeyUri()).exists()) {
+            return;
+        }
+        submitJob(ts.getKeyUri(), () -> {
+            try {
+                fetchKey(ts);
+                if (mRemuxer != null) {
+                    mRemuxer.onSegmentCompleted();
+                }
+            } catch (Exception e) {
+                //全部分片下载完成的时候还会再请求一次
+                LogUtils.w(DownloadConstants.TAG, "M3U8VideoDownloadTask fetch key failed, index=" + ts.getIndex() + ", exception=" + e);
+            }
+        });
+    }
+
+    private static boolean hasKeyFile(M3U8Seg ts) {
+        return ts.hasKey() && ts.getMethod() != null && !M3U8Constants.METHOD_NONE.equals(ts.getMethod()) && ts.getKeyUri() != null;
+    }
+
+    private void fetchKey(M3U8Seg ts) throws Exception {
+        fetchSharedFile(ts, ts.getKeyUri(), ts.getKeyUri(), -1, -1, new File(mSaveDir, ts.getLocalKeyUri()));
+    }
+
+    /**
+     * 地址相同的文件只请求一次, 其他分片从已经保存的文件复制一份, 本地的M3U8中每个分片引用的还是自己的文件
+     * @param cacheKey 请求的地址, 带BYTERANGE的初始化分片还包括range
+     * @param rangeLength 小于0的时候请求整个文件
+     */
+    private void fetchSharedFile(M3U8Seg ts, String cacheKey, String url, long rangeOffset, long rangeLength, File file) throws Exception {
+        if (file.exists()) {
+            return;
+        }
+        File sharedFile = mSharedFiles.get(cacheKey, () -> {
+            File tempFile = new File(mSaveDir, file.getName() + TEMP_FILE_SUFFIX);
+            if (rangeLength >= 0) {
+                downloadRange(url, rangeOffset, new long[] { rangeLength }, new File[] { tempFile }, null, null);
+            } else {
+                downloadFile(ts, tempFile, url, null);
+            }
+            renameFile(tempFile, file);
+            return file;
+        });
+        //同一个分片的对冲请求也可能同时在复制
+        synchronized (ts) {
+            if (!file.exists()) {
+                File tempFile = new File(mSaveDir, file.getName() + TEMP_FILE_SUFFIX);
+                copyFile(sharedFile, tempFile);
+                renameFile(tempFile, file);
             }
         }
+    }
+
+    private static void copyFile(File srcFile, File destFile) throws IOException {
+        FileInputStream inputStream = null;
+        FileOutputStream outputStream = null;
+        try {
+            inputStream = new FileInputStream(srcFile);
+            outputStream = new FileOutputStream(destFile);
+            FileChannel inputChannel = inputStream.getChannel();
+            long size = inputChannel.size();
+            long position = 0;
+            while (position < size) {
+                position += inputChannel.transferTo(position, size - position, outputStream.getChannel());
+            }
+        } finally {
+            VideoDownloadUtils.close(inputStream);
+            VideoDownloadUtils.close(outputStream);
+        }
+    }
+
+    private Runnable createSegmentJob(M3U8Seg ts, boolean hedge) {
+        return () -> {
+            try {
+                downloadTsTask(ts, hedge, false);
+            } catch (Exception e) {
+                onSegmentFailed(ts, e);
+            }
+        };
+    }
+
+    private void submitSegment(M3U8Seg ts, long delay) {
+        Runnable job = createSegmentJob(ts, false);
+        if (delay > 0) {
+            submitJobDelayed(ts.getUrl(), job, delay);
+        } else {
+            submitJob(ts.getUrl(), job);
+        }
+    }
+
+    /**
+     * 分片失败之后放到延迟队列中退避重试, 其他分片继续下载, 只有不可重试的错误或者超过重试次数才让整个任务失败
+     */
+    private void onSegmentFailed(M3U8Seg ts, Exception e) {
+        String congestionReason = ConcurrencyController.getCongestionReason(e);
+        if (congestionReason != null) {
+            mConcurrencyController.onCongestion(congestionReason);
+            applyConcurrencyWindow();
+        }
+        int retryCount = ts.getRetryCount() + 1;
+        ts.setRetryCount(retryCount);
+        if (!RetryPolicy.isRetryable(e) || retryCount > RetryPolicy.MAX_RETRY_COUNT) {
+            LogUtils.w(DownloadConstants.TAG, "M3U8TsDownloadThread download failed, index=" + ts.getIndex() + ", retryCount=" + retryCount + ", exception=" + e);
+            notifyDownloadError(e);
+            return;
+        }
+        long delay = RetryPolicy.getRetryDelay(retryCount, RetryPolicy.getRetryAfter(e));
+        LogUtils.w(DownloadConstants.TAG, "M3U8TsDownloadThread retry index=" + ts.getIndex() + ", retryCount=" + retryCount + ", delay=" + delay + ", exception=" + e);
+        submitSegment(ts, delay);
+    }
+
+    /**
+     * 分片先下载到临时文件, 完整之后再重命名, 同一个分片的对冲请求使用不同的临时文件
+     * @param hedge 是否是对冲请求
+     * @param prioritized 是否是边下边播提前的请求, 失败的时候只打印日志, 不计重试次数, 重试交给分片原来的请求
+     */
+    private void downloadTsTask(M3U8Seg ts, boolean hedge, boolean prioritized) throws Exception {
+        if (mSegBitmap.isCompleted(ts.getIndex())) {
+            return;
+        }
+        //同一个分片只有对冲请求可以并行, 遇到正在下载的分片直接返回
+        if (!hedge && !mActiveSegments.add(ts.getIndex())) {
+            if (!prioritized) {
+                mDeferredSegments.add(ts.getIndex());
+                //记录之前正在下载的请求已经释放了分片, 由这里重新提交
+                if (!mActiveSegments.contains(ts.getIndex()) && mDeferredSegments.remove(ts.getIndex())) {
+                    submitSegment(ts, 0);
+                }
+            }
+            return;
+        }
+        //对冲请求只请求卡住的分片
+        List<M3U8Seg> segs = hedge || !ts.hasByteRange() ? Collections.singletonList(ts) : claimAdjacentRanges(ts);
+        try {
+            if (ts.hasByteRange()) {
+                downloadRangeTsFiles(segs, hedge);
+            } else {
+                downloadTsFile(ts, hedge);
+            }
+        } catch (Exception e) {
+            if (prioritized) {
+                LogUtils.w(DownloadConstants.TAG, "M3U8TsDownloadThread prioritized download failed, index=" + ts.getIndex() + ", exception=" + e);
+            } else if (ts.hasByteRange()) {
+                onRangeTsFilesFailed(segs, e);
+            } else {
+                throw e;
+            }
+        } finally {
+            if (!hedge) {
+                releaseSegments(segs);
+            }
+        }
+    }
+
+    /**
+     * 先释放再检查被跳过的请求, 释放之后到达的请求会自己下载, 不会丢失.
+     * 被跳过的请求可能是放弃的合并请求在释放之前重新提交的, 不管谁持有分片都要补回去
+     */
+    private void releaseSegments(List<M3U8Seg> segs) {
+        M3U8SegBitmap segBitmap = mSegBitmap;
+        for (M3U8Seg seg : segs) {
+            mActiveSegments.remove(seg.getIndex());
+        }
+        for (M3U8Seg seg : segs) {
+            if (mDeferredSegments.remove(seg.getIndex())
+                    && !segBitmap.isCompleted(seg.getIndex()) && isJobsRunning()) {
+                submitSegment(seg, 0);
+            }
+        }
+    }
+
+    private void fetchInitSegment(M3U8Seg ts) throws Exception {
+        File tsInitSegmentFile = new File(mSaveDir, ts.getInitSegmentName());
+        if (!tsInitSegmentFile.exists()) {
+            String cacheKey = ts.getSegmentByteRange() != null ? ts.getInitSegmentUri() + "@" + ts.getSegmentByteRange() : ts.getInitSegmentUri();
+            fetchSharedFile(ts, cacheKey, ts.getInitSegmentUri(), ts.getInitSegmentRangeOffset(), ts.getInitSegmentRangeLength(), tsInitSegmentFile);
+            notifySegmentReady();
+        }
+    }
+
+    private void downloadTsFile(M3U8Seg ts, boolean hedge) throws Exception {
+        String tempSuffix = hedge ? HEDGE_FILE_SUFFIX : TEMP_FILE_SUFFIX;
+        if (ts.hasInitSegment()) {
+            fetchInitSegment(ts);
+        }
         File tsFile = new File(mSaveDir, ts.getIndexName());
-        if (!tsFile.exists()) {
-            // ts is network resource, download ts file then rename it to local file.
-            downloadFile(ts, tsFile, ts.getUrl());
+        File tempTsFile = new File(mSaveDir, ts.getIndexName() + tempSuffix);
+        StallDetector.Transfer transfer = mStallDetector.start(ts.getIndex(), hedge);
+        try {
+            downloadFile(ts, tempTsFile, ts.getUrl(), transfer);
+        } catch (Exception e) {
+            if (transfer.isCancelled() || mStallDetector.hasOthers(transfer)) {
+                //被取消了, 或者同一个分片的对冲请求还在进行, 由它来完成
+                LogUtils.i(DownloadConstants.TAG, "M3U8TsDownloadThread abandoned index=" + ts.getIndex() + ", exception=" + e);
+                tempTsFile.delete();
+                return;
+            }
+            throw e;
+        } finally {
+            mStallDetector.finish(transfer);
+        }
+        if (transfer.isCancelled() || !isJobsRunning()) {
+            //暂停的时候断开了连接, 读到的数据不一定完整, 不能标记为完成
+            LogUtils.i(DownloadConstants.TAG, "M3U8TsDownloadThread cancelled index=" + ts.getIndex());
+            tempTsFile.delete();
+            return;
         }
 
-        if (tsFile.exists() && (tsFile.length() == ts.getContentLength())) {
+        onTsFileSaved(ts, tempTsFile);
+        mStallDetector.cancelOthers(transfer);
+    }
+
+    private void onTsFileSaved(M3U8Seg ts, File tempTsFile) throws IOException {
+        File tsFile = new File(mSaveDir, ts.getIndexName());
+        synchronized (ts) {
+            if (mSegBitmap.isCompleted(ts.getIndex())) {
+                //同一个分片的另一个请求已经完成了
+                tempTsFile.delete();
+                return;
+            }
+            renameFile(tempTsFile, tsFile);
             // rename network ts name to local file name.
             ts.setName(ts.getIndexName());
             ts.setTsSize(tsFile.length());
-            notifyDownloadProgress();
+            mSegBitmap.markCompleted(ts.getIndex(), tsFile.length());
+        }
+        notifySegmentReady();
+        if (mRemuxer != null) {
+            mRemuxer.onSegmentCompleted();
+        }
+        notifyDownloadProgress();
+    }
+
+    /**
+     * 单文件的M3U8中相邻分片的byteRange是连续的, 后面还没有开始下载的分片合并到同一个请求中
+     * @return 第一个是ts, 后面是合并进来的分片, 已经加入mActiveSegments
+     */
+    private List<M3U8Seg> claimAdjacentRanges(M3U8Seg ts) {
+        List<M3U8Seg> segs = new ArrayList<>();
+        segs.add(ts);
+        M3U8SegBitmap segBitmap = mSegBitmap;
+        M3U8Seg last = ts;
+        long size = ts.getRangeLength();
+        for (int index = ts.getIndex() + 1; index < segBitmap.getSegCount() && segs.size() < MAX_COALESCED_SEGMENTS; index++) {
+            M3U8Seg next = mM3U8.getTs(index);
+            if (!next.hasByteRange() || !next.getUrl().equals(last.getUrl())
+                    || next.getRangeOffset() != last.getRangeOffset() + last.getRangeLength()
+                    || size + next.getRangeLength() > MAX_COALESCED_SIZE) {
+                break;
+            }
+            if (segBitmap.isCompleted(index) || !mActiveSegments.add(index)) {
+                break;
+            }
+            segs.add(next);
+            size += next.getRangeLength();
+            last = next;
+        }
+        return segs;
+    }
+
+    /**
+     * 合并的分片只发一个Range请求, 响应按每个分片的长度拆分写入, 每写完一个分片就算完成
+     */
+    private void downloadRangeTsFiles(List<M3U8Seg> segs, boolean hedge) throws Exception {
+        String tempSuffix = hedge ? HEDGE_FILE_SUFFIX : TEMP_FILE_SUFFIX;
+        int count = segs.size();
+        long[] lengths = new long[count];
+        File[] tempFiles = new File[count];
+        for (int index = 0; index < count; index++) {
+            M3U8Seg ts = segs.get(index);
+            if (ts.hasInitSegment()) {
+                fetchInitSegment(ts);
+            }
+            lengths[index] = ts.getRangeLength();
+            tempFiles[index] = new File(mSaveDir, ts.getIndexName() + tempSuffix);
+        }
+        M3U8Seg firstTs = segs.get(0);
+        //请求的tag是正在写的分片, 卡住的时候对冲这个分片
+        StallDetector.Transfer transfer = mStallDetector.start(firstTs.getIndex(), hedge);
+        try {
+            downloadRange(firstTs.getUrl(), firstTs.getRangeOffset(), lengths, tempFiles, transfer,
+                    (index, file) -> {
+                        onTsFileSaved(segs.get(index), file);
+                        if (index + 1 < count) {
+                            transfer.setTag(segs.get(index + 1).getIndex());
+                        }
+                    });
+        } catch (Exception e) {
+            for (File tempFile : tempFiles) {
+                tempFile.delete();
+            }
+            if (transfer.isCancelled() || mStallDetector.hasOthers(transfer)) {
+                //对冲请求只负责正在写的分片, 剩下没有完成的分片重新排队
+                int stalledIndex = (Integer) transfer.getTag();
+                LogUtils.i(DownloadConstants.TAG, "M3U8TsDownloadThread abandoned index=" + stalledIndex + ", count=" + count + ", exception=" + e);
+                List<M3U8Seg> remaining = new ArrayList<>(count);
+                for (M3U8Seg ts : segs) {
+                    if (ts.getIndex() != stalledIndex) {
+                        remaining.add(ts);
+                    }
+                }
+                resubmitUncompleted(remaining, 0);
+                return;
+            }
+            throw e;
+        } finally {
+            mStallDetector.finish(transfer);
+        }
+        mStallDetector.cancelOthers(transfer);
+    }
+
+    /**
+     * 第一个没有完成的分片按分片失败处理, 后面的分片和它一起退避之后重新排队
+     */
+    private void onRangeTsFilesFailed(List<M3U8Seg> segs, Exception e) {
+        M3U8SegBitmap segBitmap = mSegBitmap;
+        for (int index = 0; index < segs.size(); index++) {
+            M3U8Seg ts = segs.get(index);
+            if (!segBitmap.isCompleted(ts.getIndex())) {
+                onSegmentFailed(ts, e);
+                resubmitUncompleted(segs.subList(index + 1, segs.size()), RetryPolicy.getRetryDelay(ts.getRetryCount(), RetryPolicy.getRetryAfter(e)));
+                return;
+            }
+        }
+    }
+
+    private void resubmitUncompleted(List<M3U8Seg> segs, long delay) {
+        M3U8SegBitmap segBitmap = mSegBitmap;
+        for (M3U8Seg ts : segs) {
+            if (!segBitmap.isCompleted(ts.getIndex())) {
+                submitSegment(ts, delay);
+            }
+        }
+    }
+
+    private void renameFile(File srcFile, File destFile) throws IOException {
+        if (destFile.exists()) {
+            destFile.delete();
+        }
+        if (!srcFile.renameTo(destFile)) {
+            throw new IOException("Rename " + srcFile.getName() + " to " + destFile.getName() + " failed");
         }
     }
 
@@ -140,16 +608,29 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
 
     @Override
     public void pauseDownload() {
-        if (mDownloadExecutor != null && !mDownloadExecutor.isShutdown()) {
-            mDownloadExecutor.shutdownNow();
+        if (stopJobs()) {
+            if (mSegBitmap != null) {
+                mSegBitmap.force();
+            }
             notifyOnTaskPaused();
         }
     }
 
     private void notifyDownloadProgress() {
-        updateM3U8TsInfo();
-        if (mCurrentCachedSize == 0) {
-            mCurrentCachedSize = VideoStorageUtils.countTotalSize(mSaveDir);
+        mCurTs = mSegBitmap.getCompletedCount();
+        mCurrentCachedSize = mSegBitmap.getCompletedBytes();
+        boolean parsing = mM3U8.isParsing();
+        if (parsing && !mM3U8.isLive()) {
+            //总分片数还没确定, 解析完成之后再通知进度
+            return;
+        }
+        if (mM3U8.isLive()) {
+            try {
+                appendLocalM3U8File(false);
+            } catch (Exception e) {
+                //下一个分片完成的时候再追加, 录制结束的时候失败才让任务失败
+                LogUtils.w(DownloadConstants.TAG, "M3U8VideoDownloadTask append local m3u8 failed, exception=" + e);
+            }
         }
         if (mTaskItem.isCompleted()) {
             mCurTs = mTotalTs;
@@ -160,6 +641,7 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
                     mTotalSize = mCurrentCachedSize;
                     mDownloadTaskListener.onTaskFinished(mTotalSize);
                     mDownloadFinished = true;
+                    finishJobs();
                 }
             }
             return;
@@ -182,18 +664,22 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
                 mLastInvokeTime = nowTime;
             }
         }
-        boolean isCompleted = true;
-        for (M3U8Seg ts : mTsList) {
-            File tsFile = new File(mSaveDir, ts.getIndexName());
-            if (!tsFile.exists()) {
-                isCompleted = false;
-                break;
-            }
-        }
-        if (isCompleted) {
+        //直播录制的分片数还在增加, 出现#EXT-X-ENDLIST之后才算完成
+        if (!parsing && mSegBitmap.isAllCompleted()) {
+            mSegBitmap.force();
             try {
-                createLocalM3U8File();
-                createLocalM3U8FileWithKey();
+                //本地的M3U8引用了密钥文件, 还没有请求成功的这里等待或者重新请求
+                for (M3U8Seg ts : mM3U8.getTsList()) {
+                    if (hasKeyFile(ts)) {
+                        fetchKey(ts);
+                    }
+                }
+                if (mM3U8.isLive()) {
+                    appendLocalM3U8File(true);
+                } else {
+                    createLocalM3U8File(VideoDownloadUtils.LOCAL_M3U8, true);
+                }
+                createLocalM3U8File(VideoDownloadUtils.LOCAL_M3U8_WITH_KEY, false);
             } catch (Exception e) {
                 notifyDownloadError(e);
             }
@@ -203,25 +689,13 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
                     mDownloadTaskListener.onTaskProgressForM3U8(100.0f, mCurrentCachedSize, mCurTs, mTotalTs, mSpeed);
                     mDownloadTaskListener.onTaskFinished(mTotalSize);
                     mDownloadFinished = true;
+                    finishJobs();
+                    LogUtils.i(DownloadConstants.TAG, "M3U8VideoDownloadTask finished, " + HttpConnectionPool.getInstance() + ", " + mConcurrencyController);
                 }
             }
         }
     }
 
-    private void updateM3U8TsInfo() {
-        long tempCurrentCachedSize = 0;
-        int tempCurTs = 0;
-        for (M3U8Seg ts : mTsList) {
-            File tempTsFile = new File(mSaveDir, ts.getIndexName());
-            if (tempTsFile.exists() && tempTsFile.length() > 0) {
-                ts.setTsSize(tempTsFile.length());
-                tempCurTs++;
-            }
-        }
-        mCurTs = tempCurTs;
-        mCurrentCachedSize = tempCurrentCachedSize;
-    }
-
     private void notifyDownloadFinish() {
         notifyDownloadProgress();
         notifyDownloadFinish(mTotalSize);
@@ -233,129 +707,178 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
                 if (!mDownloadFinished) {
                     mDownloadTaskListener.onTaskFinished(size);
                     mDownloadFinished = true;
+                    finishJobs();
                 }
             }
         }
     }
 
     private void notifyDownloadError(Exception e) {
+        if (mM3U8.isLive()) {
+            //停止刷新直播列表
+            mM3U8.stopParse();
+        }
         notifyOnTaskFailed(e);
     }
 
-    public void downloadFile(M3U8Seg ts, File file, String videoUrl) throws Exception {
+    private interface OnRangeSavedListener {
+        void onRangeSaved(int index, File file) throws IOException;
+    }
+
+    /**
+     * 请求[offset, offset + lengths的和)的范围, 按lengths拆分依次写入files.
+     * 不支持Range的服务端返回200, 跳过前面的数据, 读完需要的范围就断开连接
+     * @param transfer 可以为null
+     * @param listener 每个文件写完之后回调, 可以为null
+     */
+    private void downloadRange(String url, long offset, long[] lengths, File[] files, StallDetector.Transfer transfer, OnRangeSavedListener listener) throws Exception {
+        long totalLength = 0;
+        for (long length : lengths) {
+            totalLength += length;
+        }
+        Map<String, String> headers = new HashMap<>(mHeaders);
+        headers.put("Range", "bytes=" + offset + "-" + (offset + totalLength - 1));
         HttpURLConnection connection = null;
         InputStream inputStream = null;
+        boolean reusable = false;
         try {
-            connection = HttpUtils.getConnection(videoUrl, mHeaders, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+            long requestTime = System.currentTimeMillis();
+            connection = HttpConnectionPool.getInstance().getConnection(url, headers, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+            if (transfer != null) {
+                transfer.onConnected(connection);
+            }
             int responseCode = connection.getResponseCode();
-            if (responseCode == HttpUtils.RESPONSE_200 || responseCode == HttpUtils.RESPONSE_206) {
-                ts.setRetryCount(0);
-                mContinuousSuccessTsCount++;
-                if (mContinuousSuccessTsCount > CONTINUOUS_SUCCESS_TS_THRESHOLD && mM3U8DownloadPoolCount < THREAD_COUNT) {
-                    mM3U8DownloadPoolCount += 1;
-                    mContinuousSuccessTsCount -= 1;
-                    setThreadPoolArgument(mM3U8DownloadPoolCount, mM3U8DownloadPoolCount);
+            long latency = System.currentTimeMillis() - requestTime;
+            if (responseCode != HttpUtils.RESPONSE_200 && responseCode != HttpUtils.RESPONSE_206) {
+                throw new VideoDownloadException(DownloadExceptionUtils.VIDEO_REQUEST_FAILED, responseCode, HttpUtils.getRetryAfter(connection));
+            }
+            inputStream = connection.getInputStream();
+            long skip = responseCode == HttpUtils.RESPONSE_206 ? 0 : offset;
+            if (skip > 0) {
+                byte[] buf = new byte[BUFFER_SIZE];
+                while (skip > 0) {
+                    int len = inputStream.read(buf, 0, (int) Math.min(buf.length, skip));
+                    if (len == -1) {
+                        throw new IOException("Unexpected end of stream, skip=" + skip);
+                    }
+                    skip -= len;
                 }
-                inputStream = connection.getInputStream();
-                long contentLength = connection.getContentLength();
-                saveFile(inputStream, file, contentLength, ts, videoUrl);
-            } else {
-                mContinuousSuccessTsCount = 0;
-                if (responseCode == HttpUtils.RESPONSE_503) {
-                    if (mM3U8DownloadPoolCount > 1) {
-                        mM3U8DownloadPoolCount -= 1;
-                        setThreadPoolArgument(mM3U8DownloadPoolCount, mM3U8DownloadPoolCount);
-                        downloadFile(ts, file, videoUrl);
-                    } else {
-                        ts.setRetryCount(ts.getRetryCount() + 1);
-                        if (ts.getRetryCount() < HttpUtils.MAX_RETRY_COUNT) {
-                            downloadFile(ts, file, videoUrl);
-                        } else {
-                            throw new VideoDownloadException(DownloadExceptionUtils.RETRY_COUNT_EXCEED_WITH_THREAD_CONTROL_STRING);
+            }
+            long readLength = 0;
+            for (int index = 0; index < files.length; index++) {
+                FileChannelWriter writer = FileChannelWriter.create(files[index]);
+                try {
+                    long remaining = lengths[index];
+                    while (remaining > 0) {
+                        int len = writer.read(inputStream, remaining);
+                        if (len == -1) {
+                            throw new IOException("Unexpected end of range, remaining=" + remaining);
+                        }
+                        remaining -= len;
+                        readLength += len;
+                        if (transfer != null) {
+                            transfer.onProgress(readLength);
                         }
                     }
-                } else {
-                    throw new VideoDownloadException(DownloadExceptionUtils.VIDEO_REQUEST_FAILED);
+                    writer.flush();
+                } finally {
+                    VideoDownloadUtils.close(writer);
+                }
+                if (listener != null) {
+                    listener.onRangeSaved(index, files[index]);
                 }
             }
+            //206的响应体正好是请求的范围, 读到结尾的连接可以复用
+            reusable = responseCode == HttpUtils.RESPONSE_206 && inputStream.read() == -1;
+            mConcurrencyController.onTransferSuccess(totalLength, latency, System.currentTimeMillis() - requestTime);
+            applyConcurrencyWindow();
         } catch (Exception e) {
-            mContinuousSuccessTsCount = 0;
-            if (e instanceof IOException && e.getMessage().contains(DownloadExceptionUtils.PROTOCOL_UNEXPECTED_END_OF_STREAM)) {
-                if (mM3U8DownloadPoolCount > 1) {
-                    mM3U8DownloadPoolCount -= 1;
-                    setThreadPoolArgument(mM3U8DownloadPoolCount, mM3U8DownloadPoolCount);
-                    downloadFile(ts, file, videoUrl);
-                } else {
-                    ts.setRetryCount(ts.getRetryCount() + 1);
-                    if (ts.getRetryCount() < HttpUtils.MAX_RETRY_COUNT) {
-                        downloadFile(ts, file, videoUrl);
-                    } else {
-                        throw e;
-                    }
-                }
+            LogUtils.w(DownloadConstants.TAG, "downloadRange failed, offset=" + offset + ", count=" + files.length + ", exception=" + e.getMessage());
+            throw e;
+        } finally {
+            HttpConnectionPool.getInstance().releaseConnection(connection, reusable);
+            VideoDownloadUtils.close(inputStream);
+        }
+    }
+
+    /**
+     * @param transfer 用来检测请求是否卡住, 以及取消请求, 可以为null
+     */
+    public void downloadFile(M3U8Seg ts, File file, String videoUrl, StallDetector.Transfer transfer) throws Exception {
+        HttpURLConnection connection = null;
+        InputStream inputStream = null;
+        boolean reusable = false;
+        try {
+            long requestTime = System.currentTimeMillis();
+            connection = HttpConnectionPool.getInstance().getConnection(videoUrl, mHeaders, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+            if (transfer != null) {
+                transfer.onConnected(connection);
+            }
+            int responseCode = connection.getResponseCode();
+            long latency = System.currentTimeMillis() - requestTime;
+            if (responseCode == HttpUtils.RESPONSE_200 || responseCode == HttpUtils.RESPONSE_206) {
+                inputStream = connection.getInputStream();
+                long contentLength = connection.getContentLength();
+                reusable = saveFile(inputStream, file, contentLength, ts, transfer);
+                mConcurrencyController.onTransferSuccess(file.length(), latency, System.currentTimeMillis() - requestTime);
+                applyConcurrencyWindow();
             } else {
-                LogUtils.w(DownloadConstants.TAG, "downloadFile failed, exception="+e.getMessage());
-                throw e;
+                throw new VideoDownloadException(DownloadExceptionUtils.VIDEO_REQUEST_FAILED, responseCode, HttpUtils.getRetryAfter(connection));
             }
+        } catch (Exception e) {
+            LogUtils.w(DownloadConstants.TAG, "downloadFile failed, exception="+e.getMessage());
+            throw e;
         } finally {
-            HttpUtils.closeConnection(connection);
+            HttpConnectionPool.getInstance().releaseConnection(connection, reusable);
             VideoDownloadUtils.close(inputStream);
         }
     }
 
-    private void saveFile(InputStream inputStream, File file, long contentLength, M3U8Seg ts, String videoUrl) throws Exception {
-        FileOutputStream fos = null;
+    /**
+     * @return 响应体是否被完整读取, 完整读取的连接可以归还到连接池中复用
+     */
+    private boolean saveFile(InputStream inputStream, File file, long contentLength, M3U8Seg ts, StallDetector.Transfer transfer) throws IOException {
+        FileChannelWriter writer = null;
         long totalLength = 0;
         try {
-            fos = new FileOutputStream(file);
+            writer = FileChannelWriter.create(file);
             int len;
-            byte[] buf = new byte[BUFFER_SIZE];
-            while ((len = inputStream.read(buf)) != -1) {
+            while ((len = writer.read(inputStream, Long.MAX_VALUE)) != -1) {
                 totalLength += (long)len;
-                fos.write(buf, 0, len);
+                if (transfer != null) {
+                    transfer.onProgress(totalLength);
+                }
             }
+            writer.flush();
             if (contentLength > 0 && contentLength == totalLength) {
                 ts.setContentLength(contentLength);
             } else {
                 ts.setContentLength(totalLength);
             }
+            return true;
         } catch (IOException e) {
-            if (file.exists() && ((contentLength > 0 && contentLength == file.length()) || (contentLength == -1 && totalLength == file.length()))) {
+            //先把读到的数据写入文件再比较长度
+            VideoDownloadUtils.close(writer);
+            //没有Content-Length的时候读取失败无法判断分片是否完整, 只能重新下载
+            if (file.exists() && contentLength > 0 && contentLength == file.length()) {
                 //这时候也能说明ts已经下载好了
+                ts.setContentLength(file.length());
             } else {
-                if ((e instanceof ProtocolException &&
-                        !TextUtils.isEmpty(e.getMessage()) &&
-                        e.getMessage().contains(DownloadExceptionUtils.PROTOCOL_UNEXPECTED_END_OF_STREAM)) &&
-                        (contentLength > totalLength && totalLength == file.length())) {
-                    if (file.length() == 0) {
-                        ts.setRetryCount(ts.getRetryCount() + 1);
-                        if (ts.getRetryCount() < HttpUtils.MAX_RETRY_COUNT) {
-                            downloadFile(ts, file, videoUrl);
-                        } else {
-                            LogUtils.w(DownloadConstants.TAG, file.getAbsolutePath() + ", length=" + file.length() + ", saveFile failed, exception=" + e);
-                            if (file.exists()) {
-                                file.delete();
-                            }
-                            throw e;
-                        }
-                    } else {
-                        ts.setContentLength(totalLength);
-                    }
-                } else {
-                    LogUtils.w(DownloadConstants.TAG, file.getAbsolutePath() + ", length=" + file.length() + ", saveFile failed, exception=" + e);
-                    if (file.exists()) {
-                        file.delete();
-                    }
-                    throw e;
+                //不完整的分片交给重试队列重新下载
+                LogUtils.w(DownloadConstants.TAG, file.getAbsolutePath() + ", length=" + file.length() + ", saveFile failed, exception=" + e);
+                if (file.exists()) {
+                    file.delete();
                 }
+                throw e;
             }
         } finally {
             VideoDownloadUtils.close(inputStream);
-            VideoDownloadUtils.close(fos);
+            VideoDownloadUtils.close(writer);
         }
+        return false;
     }
 
-    private void createLocalM3U8File() throws IOException {
+    private void createLocalM3U8File(String fileName, boolean localKey) throws IOException {
         synchronized (mFileLock) {
             File tempM3U8File = new File(mSaveDir, "temp.m3u8");
             if (tempM3U8File.exists()) {
@@ -363,52 +886,11 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
             }
 
             BufferedWriter bfw = new BufferedWriter(new FileWriter(tempM3U8File, false));
-            bfw.write(M3U8Constants.PLAYLIST_HEADER + "\n");
-            bfw.write(M3U8Constants.TAG_VERSION + ":" + mM3U8.getVersion() + "\n");
-            bfw.write(M3U8Constants.TAG_MEDIA_SEQUENCE + ":" + mM3U8.getInitSequence() + "\n");
-
-            bfw.write(M3U8Constants.TAG_TARGET_DURATION + ":" + mM3U8.getTargetDuration() + "\n");
-
-            for (M3U8Seg m3u8Ts : mTsList) {
-                if (m3u8Ts.hasInitSegment()) {
-                    String initSegmentInfo;
-                    String initSegmentFilePath = mSaveDir.getAbsolutePath() + File.separator + m3u8Ts.getInitSegmentName();
-                    if (m3u8Ts.getSegmentByteRange() != null) {
-                        initSegmentInfo = "URI=\"" + initSegmentFilePath + "\"" + ",BYTERANGE=\"" + m3u8Ts.getSegmentByteRange() + "\"";
-                    } else {
-                        initSegmentInfo = "URI=\"" + initSegmentFilePath  + "\"";
-                    }
-                    bfw.write(M3U8Constants.TAG_INIT_SEGMENT + ":" + initSegmentInfo + "\n");
-                }
-                if (m3u8Ts.hasKey()) {
-                    if (m3u8Ts.getMethod() != null) {
-                        String key = "METHOD=" + m3u8Ts.getMethod();
-                        if (m3u8Ts.getKeyUri() != null) {
-                            File keyFile = new File(mSaveDir, m3u8Ts.getLocalKeyUri());
-                            key += ",URI=\"" + keyFile.getAbsolutePath() + "\"";
-                        }
-                        if (m3u8Ts.getKeyIV() != null) {
-                            key += ",IV=" + m3u8Ts.getKeyIV();
-                        }
-                        bfw.write(M3U8Constants.TAG_KEY + ":" + key + "\n");
-                    }
-                }
-                if (m3u8Ts.hasDiscontinuity()) {
-                    bfw.write(M3U8Constants.TAG_DISCONTINUITY + "\n");
-                }
-                bfw.write(M3U8Constants.TAG_MEDIA_DURATION + ":" + m3u8Ts.getDuration() + ",\n");
-                String byteRange = m3u8Ts.getByteRange();
-                if (!TextUtils.isEmpty(byteRange)) {
-                    bfw.write(M3U8Constants.TAG_BYTERANGE + ":" + byteRange + "\n");
-                }
-                bfw.write(mSaveDir.getAbsolutePath() + File.separator + m3u8Ts.getIndexName());
-                bfw.newLine();
-            }
-            bfw.write(M3U8Constants.TAG_ENDLIST);
+            bfw.write(buildPlaylist(mSaveDir.getAbsolutePath() + File.separator, localKey));
             bfw.flush();
             bfw.close();
 
-            File localM3U8File = new File(mSaveDir, mSaveName + "_" + VideoDownloadUtils.LOCAL_M3U8);
+            File localM3U8File = new File(mSaveDir, mSaveName + "_" + fileName);
             if (localM3U8File.exists()) {
                 localM3U8File.delete();
             }
@@ -416,63 +898,217 @@ public class M3U8VideoDownloadTask extends VideoDownloadTask {
         }
     }
 
-    private void createLocalM3U8FileWithKey() throws IOException {
+    /**
+     * @param pathPrefix 分片/初始化分片/本地密钥的路径前缀, 本地目录或者本地代理的地址
+     * @param localKey 使用本地保存的密钥文件, 否则使用原始的密钥地址
+     */
+    private String buildPlaylist(String pathPrefix, boolean localKey) {
+        StringBuilder builder = new StringBuilder();
+        appendPlaylistHeader(builder);
+        boolean parsing = mM3U8.isParsing();
+        int totalTs = mM3U8.getTsCount();
+        for (int index = 0; index < totalTs; index++) {
+            appendPlaylistSegment(builder, mM3U8.getTs(index), pathPrefix, localKey);
+        }
+        if (!parsing) {
+            //还在解析的时候不加结束标签, 播放器会像直播一样重新请求列表
+            builder.append(M3U8Constants.TAG_ENDLIST);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 直播录制的时候把已经连续下载完成的分片追加到本地M3U8, 不用每次重写整个文件
+     * @param endList 录制结束, 追加剩下的分片和结束标签
+     */
+    private void appendLocalM3U8File(boolean endList) throws Exception {
         synchronized (mFileLock) {
-            File tempM3U8File = new File(mSaveDir, "temp.m3u8");
-            if (tempM3U8File.exists()) {
-                tempM3U8File.delete();
+            if (mLocalM3U8Ended) {
+                return;
+            }
+            M3U8SegBitmap segBitmap = mSegBitmap;
+            int end = segBitmap.nextUncompletedIndex(mAppendedTs);
+            if (end <= mAppendedTs && !endList) {
+                return;
             }
+            String pathPrefix = mSaveDir.getAbsolutePath() + File.separator;
+            StringBuilder builder = new StringBuilder();
+            if (mAppendedTs == 0) {
+                appendPlaylistHeader(builder);
+            }
+            for (int index = mAppendedTs; index < end; index++) {
+                M3U8Seg ts = mM3U8.getTs(index);
+                if (hasKeyFile(ts)) {
+                    //本地M3U8引用的密钥文件要先保存好
+                    fetchKey(ts);
+                }
+                appendPlaylistSegment(builder, ts, pathPrefix, true);
+            }
+            if (endList) {
+                builder.append(M3U8Constants.TAG_ENDLIST);
+            }
+            File localM3U8File = new File(mSaveDir, mSaveName + "_" + VideoDownloadUtils.LOCAL_M3U8);
+            BufferedWriter bfw = new BufferedWriter(new FileWriter(localM3U8File, mAppendedTs > 0));
+            try {
+                bfw.write(builder.toString());
+            } finally {
+                bfw.close();
+            }
+            mAppendedTs = end;
+            mLocalM3U8Ended = endList;
+        }
+    }
 
-            BufferedWriter bfw = new BufferedWriter(new FileWriter(tempM3U8File, false));
-            bfw.write(M3U8Constants.PLAYLIST_HEADER + "\n");
-            bfw.write(M3U8Constants.TAG_VERSION + ":" + mM3U8.getVersion() + "\n");
-            bfw.write(M3U8Constants.TAG_MEDIA_SEQUENCE + ":" + mM3U8.getInitSequence() + "\n");
-
-            bfw.write(M3U8Constants.TAG_TARGET_DURATION + ":" + mM3U8.getTargetDuration() + "\n");
-
-            for (M3U8Seg m3u8Ts : mTsList) {
-                if (m3u8Ts.hasInitSegment()) {
-                    String initSegmentInfo;
-                    String initSegmentFilePath = mSaveDir.getAbsolutePath() + File.separator + m3u8Ts.getInitSegmentName();
-                    if (m3u8Ts.getSegmentByteRange() != null) {
-                        initSegmentInfo = "URI=\"" + initSegmentFilePath + "\"" + ",BYTERANGE=\"" + m3u8Ts.getSegmentByteRange() + "\"";
-                    } else {
-                        initSegmentInfo = "URI=\"" + initSegmentFilePath  + "\"";
-                    }
-                    bfw.write(M3U8Constants.TAG_INIT_SEGMENT + ":" + initSegmentInfo + "\n");
+    private void appendPlaylistHeader(StringBuilder builder) {
+        builder.append(M3U8Constants.PLAYLIST_HEADER + "\n");
+        builder.append(M3U8Constants.TAG_VERSION + ":" + mM3U8.getVersion() + "\n");
+        builder.append(M3U8Constants.TAG_MEDIA_SEQUENCE + ":" + mM3U8.getInitSequence() + "\n");
+
+        builder.append(M3U8Constants.TAG_TARGET_DURATION + ":" + mM3U8.getTargetDuration() + "\n");
+    }
+
+    private void appendPlaylistSegment(StringBuilder builder, M3U8Seg m3u8Ts, String pathPrefix, boolean localKey) {
+        if (m3u8Ts.hasInitSegment()) {
+            //本地的初始化分片和分片只保存了byteRange范围内的数据, 不再需要BYTERANGE
+            String initSegmentInfo = "URI=\"" + pathPrefix + m3u8Ts.getInitSegmentName() + "\"";
+            builder.append(M3U8Constants.TAG_INIT_SEGMENT + ":" + initSegmentInfo + "\n");
+        }
+        if (m3u8Ts.hasKey()) {
+            if (m3u8Ts.getMethod() != null) {
+                String key = "METHOD=" + m3u8Ts.getMethod();
+                if (m3u8Ts.getKeyUri() != null) {
+                    String keyUri = localKey ? pathPrefix + m3u8Ts.getLocalKeyUri() : m3u8Ts.getKeyUri();
+                    key += ",URI=\"" + keyUri + "\"";
                 }
-                if (m3u8Ts.hasKey()) {
-                    if (m3u8Ts.getMethod() != null) {
-                        String key = "METHOD=" + m3u8Ts.getMethod();
-                        if (m3u8Ts.getKeyUri() != null) {
-                            key += ",URI=\"" + m3u8Ts.getKeyUri() + "\"";
-                        }
-                        if (m3u8Ts.getKeyIV() != null) {
-                            key += ",IV=" + m3u8Ts.getKeyIV();
-                        }
-                        bfw.write(M3U8Constants.TAG_KEY + ":" + key + "\n");
-                    }
+                if (m3u8Ts.getKeyIV() != null) {
+                    key += ",IV=" + m3u8Ts.getKeyIV();
                 }
-                if (m3u8Ts.hasDiscontinuity()) {
-                    bfw.write(M3U8Constants.TAG_DISCONTINUITY + "\n");
+                builder.append(M3U8Constants.TAG_KEY + ":" + key + "\n");
+            }
+        }
+        if (m3u8Ts.hasDiscontinuity()) {
+            builder.append(M3U8Constants.TAG_DISCONTINUITY + "\n");
+        }
+        builder.append(M3U8Constants.TAG_MEDIA_DURATION + ":" + m3u8Ts.getDuration() + ",\n");
+        builder.append(pathPrefix + m3u8Ts.getIndexName() + "\n");
+    }
+
+    @Override
+    public String getPlaylist(String urlPrefix) {
+        return buildPlaylist(urlPrefix, true);
+    }
+
+    @Override
+    public File waitForFile(String fileName, long timeout) throws IOException {
+        if (fileName.indexOf('/') >= 0 || fileName.startsWith(".")) {
+            return null;
+        }
+        File file = new File(mSaveDir, fileName);
+        boolean isInitSegment = fileName.startsWith(VideoDownloadUtils.INIT_SEGMENT_PREFIX);
+        if (fileName.startsWith(VideoDownloadUtils.LOCAL_KEY_PREFIX)) {
+            return waitForKey(fileName, file);
+        }
+        int index = parseSegmentIndex(fileName, isInitSegment ? VideoDownloadUtils.INIT_SEGMENT_PREFIX : VideoDownloadUtils.SEGMENT_PREFIX);
+        if (index < 0 || index >= mTotalTs) {
+            return null;
+        }
+        M3U8Seg ts = mM3U8.getTs(index);
+        if (!fileName.equals(isInitSegment ? ts.getInitSegmentName() : ts.getIndexName())) {
+            return null;
+        }
+        if (isFileReady(index, file, isInitSegment)) {
+            return file;
+        }
+        prioritizeSegments(index);
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mSegmentLock) {
+            while (!isFileReady(index, file, isInitSegment)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new InterruptedIOException("Wait for " + fileName + " timeout");
                 }
-                bfw.write(M3U8Constants.TAG_MEDIA_DURATION + ":" + m3u8Ts.getDuration() + ",\n");
-                String byteRange = m3u8Ts.getByteRange();
-                if (!TextUtils.isEmpty(byteRange)) {
-                    bfw.write(M3U8Constants.TAG_BYTERANGE + ":" + byteRange + "\n");
+                try {
+                    mSegmentLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Wait for " + fileName + " interrupted");
                 }
-                bfw.write(mSaveDir.getAbsolutePath() + File.separator + m3u8Ts.getIndexName());
-                bfw.newLine();
             }
-            bfw.write(M3U8Constants.TAG_ENDLIST);
-            bfw.flush();
-            bfw.close();
+        }
+        return file;
+    }
 
-            File localM3U8File = new File(mSaveDir, mSaveName + "_" + VideoDownloadUtils.LOCAL_M3U8_WITH_KEY);
-            if (localM3U8File.exists()) {
-                localM3U8File.delete();
+    private File waitForKey(String fileName, File file) throws IOException {
+        int index = parseSegmentIndex(fileName, VideoDownloadUtils.LOCAL_KEY_PREFIX);
+        if (index < 0 || index >= mTotalTs) {
+            return null;
+        }
+        M3U8Seg ts = mM3U8.getTs(index);
+        if (!hasKeyFile(ts) || !fileName.equals(ts.getLocalKeyUri())) {
+            return null;
+        }
+        try {
+            fetchKey(ts);
+        } catch (Exception e) {
+            throw new InterruptedIOException("Fetch " + fileName + " failed, exception=" + e);
+        }
+        return file;
+    }
+
+    private boolean isFileReady(int index, File file, boolean isInitSegment) {
+        if (isInitSegment) {
+            //初始化分片下载完成之后才重命名
+            return file.exists();
+        }
+        M3U8SegBitmap segBitmap = mSegBitmap;
+        return segBitmap != null && segBitmap.isCompleted(index);
+    }
+
+    private static int parseSegmentIndex(String fileName, String prefix) {
+        if (!fileName.startsWith(prefix)) {
+            return -1;
+        }
+        int end = prefix.length();
+        while (end < fileName.length() && Character.isDigit(fileName.charAt(end))) {
+            end++;
+        }
+        if (end == prefix.length()) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(fileName.substring(prefix.length(), end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * 播放器请求的分片和后面的几个分片排到队列的最前面, 已经在下载的分片不会重复下载
+     */
+    private void prioritizeSegments(int index) {
+        M3U8SegBitmap segBitmap = mSegBitmap;
+        if (segBitmap == null || !isJobsRunning()) {
+            return;
+        }
+        int end = Math.min(mTotalTs, index + PRIORITY_SEGMENT_COUNT);
+        //倒序提交, 保证请求的分片排在最前面
+        for (int i = end - 1; i >= index; i--) {
+            if (segBitmap.isCompleted(i) || mActiveSegments.contains(i)) {
+                continue;
             }
-            tempM3U8File.renameTo(localM3U8File);
+            M3U8Seg ts = mM3U8.getTs(i);
+            submitJobFirst(ts.getUrl(), () -> {
+                try {
+                    downloadTsTask(ts, false, true);
+                } catch (Exception e) {
+                    LogUtils.w(DownloadConstants.TAG, "M3U8TsDownloadThread prioritized download failed, index=" + ts.getIndex() + ", exception=" + e);
+                }
+            });
+        }
+    }
+
+    private void notifySegmentReady() {
+        synchronized (mSegmentLock) {
+            mSegmentLock.notifyAll();
         }
     }
 }
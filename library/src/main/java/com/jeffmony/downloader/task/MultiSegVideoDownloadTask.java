@@ -8,28 +8,47 @@ import com.jeffmony.downloader.listener.IVideoCacheListener;
 import com.jeffmony.downloader.model.MultiRangeInfo;
 import com.jeffmony.downloader.model.VideoRange;
 import com.jeffmony.downloader.model.VideoTaskItem;
+import com.jeffmony.downloader.proxy.IRangePlaySource;
 import com.jeffmony.downloader.utils.LogUtils;
 import com.jeffmony.downloader.utils.VideoDownloadUtils;
+import com.jeffmony.downloader.utils.VideoStorageUtils;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class MultiSegVideoDownloadTask extends VideoDownloadTask {
+/**
+ * 文件按range多个请求并发下载. 一个range下载完成并且没有排队的range时, 把剩下最多的range后半段拆分出来,
+ * 避免慢的连接拖住整个任务. 拆分之后range不再按id的顺序排列, 每个range记录自己的起始位置.
+ */
+public class MultiSegVideoDownloadTask extends VideoDownloadTask implements IRangePlaySource {
+
+    private static final long MIN_SPLIT_SIZE = 1024 * 1024;   // 拆分之后每一半至少的长度
 
     private HandlerThread mMultiMsgThread;
     private Handler mMultiMsgHandler;
-    private List<VideoRange> mRangeList;
+    private final Map<Integer, Long> mStartMap = new ConcurrentHashMap<>();         // 每个range的起始位置
+    private final Map<Integer, AtomicLong> mEndMap = new ConcurrentHashMap<>();     // 每个range的结束位置, 拆分之后变小
+    private final Map<Integer, AtomicLong> mCachedMap = new ConcurrentHashMap<>();  // 每个range已经下载的大小, 下载线程直接累加
+    private final Map<Integer, Boolean> mCompletedMap = new ConcurrentHashMap<>();
+    private final Map<Integer, Integer> mRetryCountMap = new ConcurrentHashMap<>();
+    private final Map<Integer, Runnable> mWaitingJobs = new ConcurrentHashMap<>(); // 还在排队没有开始的range请求
+    private final Object mDataLock = new Object();
+    private RangeCheckpoint mCheckpoint;
+    private volatile int mProgressGeneration;      // 每次开始下载加1, 旧的进度定时器看到变化之后停止
 
     private final long mTotalLength;
 
     private final int mThreadCount;
 
+    private final long mProgressInterval;
+
     public MultiSegVideoDownloadTask(VideoTaskItem taskItem, Map<String, String> headers) {
         super(taskItem, headers);
         if (mHeaders == null) {
@@ -37,8 +56,12 @@ public class MultiSegVideoDownloadTask extends VideoDownloadTask {
         }
         mTotalLength = taskItem.getTotalSize();
         mThreadCount = VideoDownloadUtils.getDownloadConfig().getConcurrentCount();
-
-        mRangeList = new ArrayList<>();
+        mProgressInterval = VideoDownloadUtils.getDownloadConfig().getProgressInterval();
+        //从配置的并发数开始, 最多加到单host的连接上限
+        int maxWindow = Math.max(mThreadCount, VideoDownloadUtils.getDownloadConfig().getMaxConnectionsPerHost());
+        mConcurrencyController = new ConcurrencyController(mSaveName, mThreadCount, maxWindow);
+        mStallDetector = new StallDetector(mConcurrencyController, transfer ->
+                mMultiMsgHandler.post(() -> hedgeRange((Integer) transfer.getTag())));
 
         mMultiMsgThread = new HandlerThread("Multi-thread download");
         mMultiMsgThread.start();
@@ -57,22 +80,39 @@ public class MultiSegVideoDownloadTask extends VideoDownloadTask {
             notifyDownloadFinish();
             return;
         }
-        mDownloadExecutor = new ThreadPoolExecutor(
-                mThreadCount + 1, mThreadCount + 1, 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>(), Executors.defaultThreadFactory(),
-                new ThreadPoolExecutor.DiscardOldestPolicy());
-
-
-        long requestSegment;
-        mRangeList.clear();
+        startJobs();
+        try {
+            //多个range同时写入, 预先分配整个文件, 避免稀疏和碎片化的文件
+            VideoStorageUtils.preallocate(getVideoFile(), mTotalLength);
+        } catch (Exception e) {
+            LogUtils.w(DownloadConstants.TAG, "Preallocate failed, exception=" + e);
+            notifyDownloadError(e);
+            return;
+        }
 
-        List<Long> startList = new ArrayList<>();
+        mStartMap.clear();
+        mEndMap.clear();
+        mCachedMap.clear();
+        mCompletedMap.clear();
+        mRetryCountMap.clear();
+        mWaitingJobs.clear();
 
-        MultiRangeInfo rangeInfo = VideoDownloadUtils.readRangeInfo(mSaveDir);
-        if (rangeInfo == null) {
-            requestSegment = mThreadCount;
+        if (mCheckpoint != null) {
+            mCheckpoint.close();
+        }
+        mCheckpoint = RangeCheckpoint.open(mSaveDir, mTotalLength);
+        int requestSegment;
+        MultiRangeInfo rangeInfo = mCheckpoint.isRestored() ? null : VideoDownloadUtils.readRangeInfo(mSaveDir);
+        if (mCheckpoint.isRestored()) {
+            requestSegment = mCheckpoint.getRangeCount();
+            for (int i = 0; i < requestSegment; i++) {
+                long start = mCheckpoint.getStart(i);
+                putRange(i, start, mCheckpoint.getEnd(i), mCheckpoint.getCommitted(i) - start);
+            }
+        } else if (rangeInfo == null) {
+            //分片数取并发窗口的上限, 窗口变大的时候才有分片可以并行
+            requestSegment = mConcurrencyController.getMaxWindow();
             long segSize = mTotalLength / requestSegment;
-            /// 三个线程，每个线程下载segSize大小
 
             for (int i = 0; i < requestSegment; i++) {
                 long requestStart = segSize * i;
@@ -80,140 +120,378 @@ public class MultiSegVideoDownloadTask extends VideoDownloadTask {
                 if (i == requestSegment - 1) {
                     requestEnd = mTotalLength;
                 }
-
-                VideoRange range = new VideoRange(requestStart, requestEnd);
-
-                mRangeList.add(range);
-                startList.add(0L);
+                putRange(i, requestStart, requestEnd, 0L);
             }
         } else {
             List<Integer> ids = rangeInfo.getIds();
             requestSegment = ids.size();
+            List<Long> starts = rangeInfo.getStarts();
             List<Long> ends = rangeInfo.getEnds();
             List<Long> sizes = rangeInfo.getSizes();
             for (int i = 0; i < requestSegment; i++) {
-                if (i == 0) {
-                    VideoRange range = new VideoRange(sizes.get(i), ends.get(i));
-                    mRangeList.add(range);
+                long start;
+                if (rangeInfo.getVersion() >= MultiRangeInfo.VERSION_SPLITTABLE) {
+                    start = starts.get(i);
                 } else {
-                    VideoRange range = new VideoRange(ends.get(i - 1) + sizes.get(i), ends.get(i));
-                    mRangeList.add(range);
+                    start = i == 0 ? 0 : ends.get(i - 1);
                 }
+                putRange(i, start, ends.get(i), sizes.get(i));
+            }
+        }
+        if (!mCheckpoint.isRestored()) {
+            //新的任务或者从range.info迁移过来, 写入所有range之后旧的文件不再需要
+            for (int i = 0; i < requestSegment; i++) {
+                mCheckpoint.putRange(i, mStartMap.get(i), mEndMap.get(i).get(), mStartMap.get(i) + mCachedMap.get(i).get());
+            }
+            mCheckpoint.force();
+            if (rangeInfo != null) {
+                new File(mSaveDir, VideoDownloadUtils.INFO_FILE).delete();
+            }
+        }
 
+        for (int i = 0; i < requestSegment; i++) {
+            long start = mStartMap.get(i) + mCachedMap.get(i).get();
+            long end = mEndMap.get(i).get();
+            if (start - 10 >= Math.min(end + 1, mTotalLength)) {
+                //请求是从start往前10个字节开始的, 已经写到了结束位置, 最后一个range的结束位置是文件长度
+                mCompletedMap.put(i, true);
+                continue;
             }
-            startList.addAll(sizes);
+            startRangeThread(i, new VideoRange(start, end), mCachedMap.get(i).get(), false, 0);
         }
+        if (!mCompletedMap.containsValue(false)) {
+            notifyDownloadFinish();
+            return;
+        }
+        scheduleProgressTick(++mProgressGeneration);
+    }
 
+    /**
+     * 下载线程只累加每个range的计数, 按固定间隔汇总一次进度、速度和断点, 消息数和下载速度无关
+     */
+    private void scheduleProgressTick(int generation) {
+        mMultiMsgHandler.postDelayed(() -> {
+            if (generation != mProgressGeneration || !isJobsRunning() || mDownloadFinished) {
+                return;
+            }
+            updateProgress();
+            scheduleProgressTick(generation);
+        }, mProgressInterval);
+    }
 
-        Map<Integer, Long> cachedMap = new HashMap<>();
-        Map<Integer, Boolean> completedMap = new HashMap<>();
+    private void updateProgress() {
+        for (Map.Entry<Integer, AtomicLong> entry : mCachedMap.entrySet()) {
+            int id = entry.getKey();
+            mCheckpoint.setCommitted(id, mStartMap.get(id) + entry.getValue().get());
+        }
+        notifyDataReady();
+        applyConcurrencyWindow();
+        notifyOnProgress();
+    }
 
-        for (int i = 0; i < requestSegment; i++) {
-            cachedMap.put(i, 0L);
-            completedMap.put(i, false);
-            SingleVideoCacheThread thread = new SingleVideoCacheThread(mFinalUrl, mHeaders, mRangeList.get(i), mTotalLength, mSaveDir.getAbsolutePath());
+    /**
+     * @param cachedSize 从start开始已经下载的大小, 包含请求往前多取的字节
+     */
+    private void putRange(int id, long start, long end, long cachedSize) {
+        mStartMap.put(id, start);
+        mEndMap.put(id, new AtomicLong(end));
+        mCachedMap.put(id, new AtomicLong(cachedSize));
+        mCompletedMap.put(id, false);
+        mRetryCountMap.put(id, 0);
+    }
 
-            thread.setHandler(mMultiMsgHandler);
+    /**
+     * @param baseSize range开始之前这个分片已经下载的大小
+     * @param hedge 是否是对冲请求, 对冲请求和原来的请求下载同样的数据, 写入文件同样的位置
+     */
+    private void startRangeThread(int id, VideoRange videoRange, long baseSize, boolean hedge, long delay) {
+        SingleVideoCacheThread thread = new SingleVideoCacheThread(mFinalUrl, mHeaders, videoRange, mTotalLength, mSaveDir.getAbsolutePath());
 
-            thread.setId(i);
+        thread.setHandler(mMultiMsgHandler);
 
-            thread.setCacheListener(new IVideoCacheListener() {
+        thread.setId(id);
 
-                @Override
-                public void onFailed(VideoRange range, int id, Exception e) {
-                    notifyDownloadError(e);
-                }
+        thread.setConcurrencyController(mConcurrencyController);
 
-                @Override
-                public void onProgress(VideoRange range, int id, long cachedSize) {
-                    long size = startList.get(id) +  cachedSize;
-                    LogUtils.i(DownloadConstants.TAG, "onProgress ID="+id+", size=" + size);
-                    cachedMap.put(id, size);
-                    notifyOnProgress(cachedMap);
-                }
+        thread.setStallDetector(mStallDetector, hedge);
 
-                @Override
-                public void onRangeCompleted(VideoRange range, int id) {
-                    LogUtils.i(DownloadConstants.TAG, "onRangeCompleted Range=" + range +", completeMap size=" + completedMap.size());
-                    completedMap.put(id, true);
-
-                    boolean completed = true;
-                    for (boolean tag : completedMap.values()) {
-                        LogUtils.i(DownloadConstants.TAG, "onRangeCompleted tag = " + tag);
-                        if (!tag) {
-                            completed = false;
-                            break;
-                        }
-                    }
+        thread.setRangeEnd(mEndMap.get(id));
+
+        thread.setCachedSize(mCachedMap.get(id), baseSize);
+
+        thread.setCacheListener(new IVideoCacheListener() {
 
-                    if (completed) {
-                        LogUtils.i(DownloadConstants.TAG, "TotalSize=" + mTotalLength);
-                        notifyDownloadFinish();
+            @Override
+            public void onFailed(VideoRange range, int id, Exception e) {
+                retryRange(id, e);
+            }
+
+            @Override
+            public void onRangeCompleted(VideoRange range, int id) {
+                LogUtils.i(DownloadConstants.TAG, "onRangeCompleted Range=" + range +", completeMap size=" + mCompletedMap.size());
+                if (mCompletedMap.get(id)) {
+                    //对冲请求中的另一个已经完成了
+                    return;
+                }
+                mCompletedMap.put(id, true);
+                updateProgress();
+
+                boolean completed = true;
+                for (boolean tag : mCompletedMap.values()) {
+                    LogUtils.i(DownloadConstants.TAG, "onRangeCompleted tag = " + tag);
+                    if (!tag) {
+                        completed = false;
+                        break;
                     }
                 }
 
-                @Override
-                public void onCompleted(VideoRange range, int id) {
+                if (completed) {
+                    LogUtils.i(DownloadConstants.TAG, "TotalSize=" + mTotalLength + ", " + mConcurrencyController);
+                    notifyDownloadFinish();
+                } else {
+                    splitLargestRange();
+                }
+            }
+
+            @Override
+            public void onCompleted(VideoRange range, int id) {
+
+            }
+        });
 
+        if (hedge) {
+            submitJobFirst(mFinalUrl, thread);
+            return;
+        }
+        //边下边播的时候可能被提前执行, 同一个请求只执行一次
+        AtomicBoolean started = new AtomicBoolean(false);
+        Runnable job = new Runnable() {
+            @Override
+            public void run() {
+                if (started.compareAndSet(false, true)) {
+                    mWaitingJobs.remove(id, this);
+                    thread.run();
                 }
-            });
+            }
+        };
+        mWaitingJobs.put(id, job);
+        if (delay > 0) {
+            submitJobDelayed(mFinalUrl, job, delay);
+        } else {
+            submitJob(mFinalUrl, job);
+        }
+    }
 
-            mDownloadExecutor.execute(thread);
+    private void notifyDataReady() {
+        synchronized (mDataLock) {
+            mDataLock.notifyAll();
         }
     }
 
     @Override
-    public void pauseDownload() {
-        if (mDownloadExecutor != null && !mDownloadExecutor.isShutdown()) {
-            mDownloadExecutor.shutdownNow();
-            notifyOnTaskPaused();
-        }
+    public File getVideoFile() {
+        //和SingleVideoCacheThread保存的文件保持一致
+        return new File(mSaveDir, VideoDownloadUtils.computeMD5(mFinalUrl) + VideoDownloadUtils.VIDEO_SUFFIX);
     }
 
     @Override
-    public void resumeDownload() {
-        startDownloadVideo();
+    public long getUnallocatedSize() {
+        return Math.max(mTotalLength - getVideoFile().length(), 0);
+    }
+
+    @Override
+    public long getTotalLength() {
+        return mTotalLength;
+    }
+
+    @Override
+    public long waitForData(long position, long timeout) throws IOException {
+        long available = getAvailableLength(position);
+        if (available > 0) {
+            return available;
+        }
+        //所在的range还在排队, 提前执行; range中间的位置只能等顺序下载到达
+        int id = getRangeId(position);
+        Runnable job = id >= 0 ? mWaitingJobs.get(id) : null;
+        if (job != null && isJobsRunning()) {
+            LogUtils.i(DownloadConstants.TAG, "Prioritize range id=" + id + ", position=" + position);
+            submitJobFirst(mFinalUrl, job);
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (mDataLock) {
+            while ((available = getAvailableLength(position)) <= 0) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    throw new InterruptedIOException("Wait for position " + position + " timeout");
+                }
+                try {
+                    mDataLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Wait for position " + position + " interrupted");
+                }
+            }
+        }
+        return available;
     }
 
-    private void saveCacheInfo(Map<Integer, Long> cacheMap) {
-        int size = cacheMap.size();
-        List<Integer> ids = new ArrayList<>();
-        for (int i = 0; i < size; i++) {
-            ids.add(i);
+    private int getRangeId(long position) {
+        for (Map.Entry<Integer, Long> entry : mStartMap.entrySet()) {
+            AtomicLong end = mEndMap.get(entry.getKey());
+            if (end != null && entry.getValue() <= position && position <= end.get()) {
+                return entry.getKey();
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return position开始连续已经写入文件的字节数
+     */
+    private long getAvailableLength(long position) {
+        if (position >= mTotalLength) {
+            return 0;
         }
-        List<Long> starts = new ArrayList<>();
-        List<Long> ends = new ArrayList<>();
-        for(VideoRange range : mRangeList) {
-            starts.add(range.getStart());
-            ends.add(range.getEnd());
+        if (mTaskItem.isCompleted() || mDownloadFinished) {
+            return mTotalLength - position;
+        }
+        long end = position;
+        int id = getRangeId(position);
+        //完成的range接着找下一个位置所在的range
+        while (id >= 0) {
+            Boolean completed = mCompletedMap.get(id);
+            long rangeWritten = completed != null && completed ? mEndMap.get(id).get() + 1 : getWrittenPosition(id);
+            if (rangeWritten <= end) {
+                break;
+            }
+            end = Math.min(rangeWritten, mTotalLength);
+            if (completed == null || !completed) {
+                break;
+            }
+            id = getRangeId(end);
         }
+        return end - position;
+    }
+
+    /**
+     * 请求是从已经下载的位置往前10个字节开始写的, 对冲和重试的请求都从已经写入的位置之前开始, 写入的数据是连续的
+     * @return range从头开始连续写入到的文件位置
+     */
+    private long getWrittenPosition(int id) {
+        Long start = mStartMap.get(id);
+        AtomicLong cachedSize = mCachedMap.get(id);
+        if (start == null || cachedSize == null) {
+            return 0;
+        }
+        //恢复下载时记录的大小包含了请求往前多取的字节, 保守一点从请求的起点算
+        long position = start + cachedSize.get();
+        return position - 10 > 0 ? position - 10 : position;
+    }
 
-        List<Long> cachedSizes = new ArrayList<>();
-        for (Map.Entry entry : cacheMap.entrySet()) {
-            int id = (int) entry.getKey();
-            long cachedSize = (long) entry.getValue();
-            cachedSizes.add(id, cachedSize);
-            LogUtils.i(DownloadConstants.TAG, "saveCacheInfo id="+id+", cachedSize=" + cachedSize);
+    /**
+     * 从卡住的range已经下载的位置开始, 再发起一个同样的请求, 先完成的生效
+     */
+    private void hedgeRange(int id) {
+        if (!isJobsRunning() || mCompletedMap.get(id)) {
+            return;
         }
+        long cachedSize = mCachedMap.get(id).get();
+        VideoRange range = new VideoRange(mStartMap.get(id) + cachedSize, mEndMap.get(id).get());
+        LogUtils.i(DownloadConstants.TAG, "Hedge range id=" + id + ", range=" + range);
+        startRangeThread(id, range, cachedSize, true, 0);
+    }
 
-        MultiRangeInfo rangeInfo = new MultiRangeInfo();
+    /**
+     * 分片失败之后从已经下载的位置退避重试, 只有不可重试的错误或者超过重试次数才让整个任务失败
+     */
+    private void retryRange(int id, Exception e) {
+        if (mCompletedMap.get(id)) {
+            return;
+        }
+        String congestionReason = ConcurrencyController.getCongestionReason(e);
+        if (congestionReason != null) {
+            mConcurrencyController.onCongestion(congestionReason);
+            applyConcurrencyWindow();
+        }
+        int retryCount = mRetryCountMap.get(id) + 1;
+        if (!RetryPolicy.isRetryable(e) || retryCount > RetryPolicy.MAX_RETRY_COUNT) {
+            notifyDownloadError(e);
+            return;
+        }
+        mRetryCountMap.put(id, retryCount);
+
+        //和恢复下载时计算起始位置的方式保持一致
+        long cachedSize = mCachedMap.get(id).get();
+        VideoRange range = new VideoRange(mStartMap.get(id) + cachedSize, mEndMap.get(id).get());
+        long delay = RetryPolicy.getRetryDelay(retryCount, RetryPolicy.getRetryAfter(e));
+        LogUtils.w(DownloadConstants.TAG, "Retry range id=" + id + ", retryCount=" + retryCount + ", delay=" + delay + ", range=" + range + ", exception=" + e);
+        startRangeThread(id, range, cachedSize, false, delay);
+    }
 
-        rangeInfo.setIds(ids);
-        rangeInfo.setStarts(starts);
-        rangeInfo.setEnds(ends);
-        rangeInfo.setSizes(cachedSizes);
+    /**
+     * 没有排队的range时, 剩下最多的range从剩余部分的中间拆成两半, 后一半作为新的range开始下载.
+     * 原来的请求通过共用的结束位置得知拆分, 下载到新的结束位置为止.
+     */
+    private void splitLargestRange() {
+        if (!isJobsRunning() || !mWaitingJobs.isEmpty()) {
+            return;
+        }
+        int largestId = -1;
+        long largestPosition = 0;
+        long largestRemaining = 0;
+        for (Map.Entry<Integer, Long> entry : mStartMap.entrySet()) {
+            int id = entry.getKey();
+            if (mCompletedMap.get(id)) {
+                continue;
+            }
+            long position = entry.getValue() + mCachedMap.get(id).get();
+            long remaining = mEndMap.get(id).get() - position;
+            if (remaining > largestRemaining) {
+                largestId = id;
+                largestPosition = position;
+                largestRemaining = remaining;
+            }
+        }
+        if (largestId < 0 || largestRemaining < 2 * MIN_SPLIT_SIZE) {
+            return;
+        }
+        int id = mStartMap.size();
+        AtomicLong largestEnd = mEndMap.get(largestId);
+        long end = largestEnd.get();
+        long splitPosition = largestPosition + largestRemaining / 2;
+        putRange(id, splitPosition + 1, end, 0L);
+        largestEnd.set(splitPosition);
+        //先记录新的range再缩小原来的range, 中途被杀只会重复下载
+        mCheckpoint.putRange(id, splitPosition + 1, end, splitPosition + 1);
+        mCheckpoint.setEnd(largestId, splitPosition);
+        mCheckpoint.force();
+        LogUtils.i(DownloadConstants.TAG, "Split range id=" + largestId + " at " + splitPosition + ", new range id=" + id + ", end=" + end);
+        startRangeThread(id, new VideoRange(splitPosition + 1, end), 0L, false, 0);
+    }
 
-        VideoDownloadUtils.saveRangeInfo(rangeInfo, mSaveDir);
+    @Override
+    public void pauseDownload() {
+        if (stopJobs()) {
+            if (mCheckpoint != null) {
+                mCheckpoint.force();
+            }
+            notifyOnTaskPaused();
+        }
+    }
 
+    @Override
+    public void resumeDownload() {
+        startDownloadVideo();
     }
 
-    private void notifyOnProgress(Map<Integer, Long> cachedMap) {
+    private void notifyOnProgress() {
         long currentSize = 0;
-        for (long size : cachedMap.values()) {
-            currentSize += size;
+        for (Map.Entry<Integer, AtomicLong> entry : mCachedMap.entrySet()) {
+            //拆分之前多下载的部分由新的range再下载一次, 不重复计算
+            long rangeLength = mEndMap.get(entry.getKey()).get() - mStartMap.get(entry.getKey()) + 1;
+            currentSize += Math.min(entry.getValue().get(), rangeLength);
         }
-        mCurrentCachedSize = currentSize;
-        if (mCurrentCachedSize >= mTotalLength ) {
+        mCurrentCachedSize = Math.min(currentSize, mTotalLength);
+        if (mCurrentCachedSize >= mTotalLength && !mCompletedMap.containsValue(false)) {
             mDownloadTaskListener.onTaskProgress(100, mTotalLength, mTotalLength, mSpeed);
             mPercent = 100.0f;
             notifyDownloadFinish();
@@ -228,13 +506,14 @@ public class MultiSegVideoDownloadTask extends VideoDownloadTask {
                 mPercent = percent;
                 mLastInvokeTime = nowTime;
                 mLastCachedSize = mCurrentCachedSize;
-
-                saveCacheInfo(cachedMap);
             }
         }
     }
 
     private void notifyDownloadError(Exception e) {
+        if (mCheckpoint != null) {
+            mCheckpoint.force();
+        }
         notifyOnTaskFailed(e);
     }
 
@@ -243,6 +522,10 @@ public class MultiSegVideoDownloadTask extends VideoDownloadTask {
             if (!mDownloadFinished) {
                 mDownloadTaskListener.onTaskFinished(mTotalLength);
                 mDownloadFinished = true;
+                finishJobs();
+                if (mCheckpoint != null) {
+                    mCheckpoint.close();
+                }
             }
         }
     }
@@ -0,0 +1,193 @@
+package com.jeffmony.downloader.task;
+
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.LogUtils;
+import com.jeffmony.downloader.utils.VideoDownloadUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 多range下载的断点文件, 映射到保存目录下的 range.checkpoint 文件, 每个range一个固定位置的槽.
+ *
+ * 下载进度直接写到映射的内存中, 不分配对象, 进程被杀之后写入的数据还在页缓存里, 不会丢失.
+ * 每个值都是对齐的8字节, 单独更新, 不会出现写了一半的文件; 每下载FORCE_SIZE字节force一次, 减少断电时丢失的进度.
+ * 拆分range的时候先写新的槽再增加rangeCount, 最后缩小原来range的结束位置, 任何时候中断都只会多下载, 不会漏下载.
+ *
+ * 文件格式:
+ * | magic(4) | rangeCount(4) | totalLength(8) | reserved(8) | [start(8) | end(8) | committed(8)] * n |
+ */
+public class RangeCheckpoint {
+
+    private static final int MAGIC = 0x52414E47;
+    private static final int HEADER_SIZE = 24;
+    private static final int SLOT_SIZE = 24;
+    private static final int OFFSET_RANGE_COUNT = 4;
+    private static final int OFFSET_TOTAL_LENGTH = 8;
+    private static final int MIN_CAPACITY = 16;
+    private static final long FORCE_SIZE = 4 * 1024 * 1024;
+
+    private RandomAccessFile mRandomAccessFile;
+    private MappedByteBuffer mBuffer;
+    private int mCapacity;
+    private int mRangeCount;
+    private long mUnforcedSize;    // 上次force之后增加的下载大小
+    private boolean mRestored;
+
+    private RangeCheckpoint() {
+    }
+
+    /**
+     * 打开保存目录下的断点文件, 文件不存在或者视频总长度不一致的时候重新创建.
+     * 文件映射失败的时候不再记录进度.
+     */
+    public static RangeCheckpoint open(File saveDir, long totalLength) {
+        RangeCheckpoint checkpoint = new RangeCheckpoint();
+        File file = new File(saveDir, VideoDownloadUtils.RANGE_CHECKPOINT_FILE);
+        try {
+            checkpoint.map(file, totalLength);
+        } catch (IOException e) {
+            LogUtils.w(DownloadConstants.TAG, "RangeCheckpoint map failed, exception=" + e.getMessage());
+            checkpoint.close();
+        }
+        return checkpoint;
+    }
+
+    private static long fileSize(int capacity) {
+        return HEADER_SIZE + (long) SLOT_SIZE * capacity;
+    }
+
+    private void map(File file, long totalLength) throws IOException {
+        boolean existed = file.exists();
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        long length = mRandomAccessFile.length();
+        int capacity = length > HEADER_SIZE ? (int) ((length - HEADER_SIZE) / SLOT_SIZE) : 0;
+        if (existed && capacity > 0) {
+            mCapacity = capacity;
+            mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+            int rangeCount = mBuffer.getInt(OFFSET_RANGE_COUNT);
+            if (mBuffer.getInt(0) == MAGIC && mBuffer.getLong(OFFSET_TOTAL_LENGTH) == totalLength
+                    && rangeCount > 0 && rangeCount <= capacity) {
+                mRangeCount = rangeCount;
+                mRestored = true;
+                return;
+            }
+        } else {
+            mCapacity = MIN_CAPACITY;
+            mRandomAccessFile.setLength(fileSize(mCapacity));
+            mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize(mCapacity));
+        }
+        //magic最后写, 初始化到一半被杀的文件下次会重新创建
+        mBuffer.putInt(0, 0);
+        mBuffer.putInt(OFFSET_RANGE_COUNT, 0);
+        mBuffer.putLong(OFFSET_TOTAL_LENGTH, totalLength);
+        mBuffer.putInt(0, MAGIC);
+    }
+
+    /**
+     * 是否从已有的断点文件中恢复, 恢复之后通过getStart/getEnd/getCommitted读取每个range
+     */
+    public boolean isRestored() {
+        return mRestored;
+    }
+
+    public synchronized int getRangeCount() {
+        return mRangeCount;
+    }
+
+    public synchronized long getStart(int id) {
+        return mBuffer != null ? mBuffer.getLong(slotOffset(id)) : 0;
+    }
+
+    public synchronized long getEnd(int id) {
+        return mBuffer != null ? mBuffer.getLong(slotOffset(id) + 8) : 0;
+    }
+
+    /**
+     * @return range从起始位置开始连续写入到的文件位置
+     */
+    public synchronized long getCommitted(int id) {
+        return mBuffer != null ? mBuffer.getLong(slotOffset(id) + 16) : 0;
+    }
+
+    private static int slotOffset(int id) {
+        return HEADER_SIZE + SLOT_SIZE * id;
+    }
+
+    /**
+     * 写入一个range, id等于rangeCount的时候追加一个新的range
+     */
+    public synchronized void putRange(int id, long start, long end, long committed) {
+        if (mBuffer == null || id > mRangeCount) {
+            return;
+        }
+        if (id >= mCapacity && !grow(Math.max(id + 1, mCapacity * 2))) {
+            return;
+        }
+        int offset = slotOffset(id);
+        mBuffer.putLong(offset, start);
+        mBuffer.putLong(offset + 8, end);
+        mBuffer.putLong(offset + 16, committed);
+        if (id == mRangeCount) {
+            mRangeCount = id + 1;
+            mBuffer.putInt(OFFSET_RANGE_COUNT, mRangeCount);
+        }
+    }
+
+    public synchronized void setEnd(int id, long end) {
+        if (mBuffer != null && id < mRangeCount) {
+            mBuffer.putLong(slotOffset(id) + 8, end);
+        }
+    }
+
+    /**
+     * 更新range写入到的位置, 累计超过FORCE_SIZE之后把映射的内容同步到磁盘
+     */
+    public synchronized void setCommitted(int id, long committed) {
+        if (mBuffer == null || id >= mRangeCount) {
+            return;
+        }
+        int offset = slotOffset(id) + 16;
+        long oldCommitted = mBuffer.getLong(offset);
+        mBuffer.putLong(offset, committed);
+        if (committed > oldCommitted) {
+            mUnforcedSize += committed - oldCommitted;
+        }
+        if (mUnforcedSize >= FORCE_SIZE) {
+            force();
+        }
+    }
+
+    private boolean grow(int capacity) {
+        try {
+            long fileSize = fileSize(capacity);
+            mRandomAccessFile.setLength(fileSize);
+            mBuffer = mRandomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            mCapacity = capacity;
+            return true;
+        } catch (IOException e) {
+            LogUtils.w(DownloadConstants.TAG, "RangeCheckpoint remap failed, exception=" + e.getMessage());
+            mBuffer = null;
+            VideoDownloadUtils.close(mRandomAccessFile);
+            mRandomAccessFile = null;
+            return false;
+        }
+    }
+
+    public synchronized void force() {
+        if (mBuffer != null) {
+            mBuffer.force();
+        }
+        mUnforcedSize = 0;
+    }
+
+    public synchronized void close() {
+        force();
+        mBuffer = null;
+        VideoDownloadUtils.close(mRandomAccessFile);
+        mRandomAccessFile = null;
+    }
+}
@@ -0,0 +1,63 @@
+package com.jeffmony.downloader.task;
+
+import com.jeffmony.downloader.VideoDownloadException;
+import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 分片/Range请求失败之后的重试策略: 指数退避 + 随机抖动, 服务端给了Retry-After则至少等待这么久.
+ */
+public class RetryPolicy {
+
+    public static final int MAX_RETRY_COUNT = 10;
+    private static final long BASE_DELAY = 500L;
+    private static final long MAX_DELAY = 30 * 1000L;
+    private static final long MAX_RETRY_AFTER = 5 * 60 * 1000L;   // 不接受超过5分钟的Retry-After
+
+    /**
+     * 4xx(除了408/429)、磁盘空间不足和其他非网络错误不需要重试
+     */
+    public static boolean isRetryable(Exception e) {
+        if (e instanceof VideoDownloadException) {
+            int responseCode = ((VideoDownloadException) e).getResponseCode();
+            if (responseCode >= 400 && responseCode < 500) {
+                return responseCode == 408 || responseCode == 429;
+            }
+            return responseCode > 0;
+        }
+        if (DownloadExceptionUtils.isStorageNotEnough(e)) {
+            //磁盘满了重试也不会成功
+            return false;
+        }
+        if (e instanceof FileNotFoundException) {
+            //HttpURLConnection 404/410 的时候抛出这个异常
+            return false;
+        }
+        return e instanceof IOException;
+    }
+
+    /**
+     * @param retryCount 第几次重试, 从1开始
+     * @param retryAfter 服务端要求的等待时间, 没有则小于等于0
+     * @return 下一次重试前需要等待的时间
+     */
+    public static long getRetryDelay(int retryCount, long retryAfter) {
+        long delay = Math.min(MAX_DELAY, BASE_DELAY << Math.min(Math.max(retryCount - 1, 0), 16));
+        //一半固定, 一半随机, 避免多个分片同时重试
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        if (retryAfter > 0) {
+            delay = Math.max(delay, Math.min(retryAfter, MAX_RETRY_AFTER));
+        }
+        return delay;
+    }
+
+    public static long getRetryAfter(Exception e) {
+        if (e instanceof VideoDownloadException) {
+            return ((VideoDownloadException) e).getRetryAfter();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,42 @@
+package com.jeffmony.downloader.task;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 密钥/初始化分片这类多个分片共用的文件, 同一个key只请求一次.
+ * 第一个调用方负责请求, 同时到达的调用方等待同一个结果; 失败的结果不缓存, 下次调用重新请求.
+ */
+class SingleFlightCache {
+
+    private final ConcurrentHashMap<String, FutureTask<File>> mFlights = new ConcurrentHashMap<>();
+
+    /**
+     * @param loader 请求并保存文件, 返回保存的文件
+     * @return 这个key对应的文件, 可能是其他调用方保存的
+     */
+    File get(String key, Callable<File> loader) throws Exception {
+        FutureTask<File> flight = mFlights.get(key);
+        if (flight == null) {
+            FutureTask<File> task = new FutureTask<>(loader);
+            flight = mFlights.putIfAbsent(key, task);
+            if (flight == null) {
+                flight = task;
+                task.run();
+            }
+        }
+        try {
+            return flight.get();
+        } catch (ExecutionException e) {
+            mFlights.remove(key, flight);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+}
@@ -2,22 +2,29 @@ package com.jeffmony.downloader.task;
 
 import android.os.Handler;
 
+import com.jeffmony.downloader.VideoDownloadException;
 import com.jeffmony.downloader.common.DownloadConstants;
 import com.jeffmony.downloader.listener.IVideoCacheListener;
 import com.jeffmony.downloader.model.VideoRange;
+import com.jeffmony.downloader.utils.DownloadExceptionUtils;
+import com.jeffmony.downloader.utils.FileChannelWriter;
+import com.jeffmony.downloader.utils.HttpConnectionPool;
 import com.jeffmony.downloader.utils.HttpUtils;
 import com.jeffmony.downloader.utils.LogUtils;
 import com.jeffmony.downloader.utils.VideoDownloadUtils;
 
 import java.io.File;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
+import java.net.ProtocolException;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class SingleVideoCacheThread implements Runnable {
 
+    private static final long SAMPLE_SIZE = 1024 * 1024;   // 每下载1M向并发控制器汇报一次吞吐
+
     private final VideoRange mRange;
     private final String mUrl;
     private final Map<String, String> mHeaders;
@@ -28,13 +35,18 @@ public class SingleVideoCacheThread implements Runnable {
     private boolean mIsRunning = true;
     private Handler mMsgHandler;
     private int mId;
+    private ConcurrencyController mConcurrencyController;
+    private StallDetector mStallDetector;
+    private boolean mHedge;
+    private volatile StallDetector.Transfer mTransfer;
+    private AtomicLong mRangeEnd;
+    private AtomicLong mCachedSize;
+    private long mBaseSize;
 
     public SingleVideoCacheThread(String url, Map<String, String> headers, VideoRange range, long totalSize, String saveDir) {
         mUrl = url;
-        if (headers == null) {
-            headers = new HashMap<>();
-        }
-        mHeaders = headers;
+        //每个range的Range请求头不同, 不能修改任务共用的headers
+        mHeaders = headers == null ? new HashMap<>() : new HashMap<>(headers);
         mRange = range;
         mTotalSize = totalSize;
         mMd5 = VideoDownloadUtils.computeMD5(url);
@@ -52,6 +64,35 @@ public class SingleVideoCacheThread implements Runnable {
         mMsgHandler = handler;
     }
 
+    public void setConcurrencyController(ConcurrencyController controller) {
+        mConcurrencyController = controller;
+    }
+
+    /**
+     * @param hedge 是否是对冲请求
+     */
+    public void setStallDetector(StallDetector detector, boolean hedge) {
+        mStallDetector = detector;
+        mHedge = hedge;
+    }
+
+    /**
+     * @param rangeEnd 同一个range的请求共用, range被拆分之后结束位置变小, 请求下载到新的结束位置为止
+     */
+    public void setRangeEnd(AtomicLong rangeEnd) {
+        mRangeEnd = rangeEnd;
+    }
+
+    /**
+     * 下载进度直接累加到range共用的计数上, 由任务定时汇总, 不再每读一次都发消息
+     * @param cachedSize 同一个range的请求共用, 从range起始位置开始已经下载的大小
+     * @param baseSize 这个请求开始之前range已经下载的大小
+     */
+    public void setCachedSize(AtomicLong cachedSize, long baseSize) {
+        mCachedSize = cachedSize;
+        mBaseSize = baseSize;
+    }
+
     public void setCacheListener(IVideoCacheListener listener) {
         mListener = listener;
     }
@@ -63,6 +104,10 @@ public class SingleVideoCacheThread implements Runnable {
     public void pause() {
         LogUtils.i(DownloadConstants.TAG, "Pause task");
         mIsRunning = false;
+        StallDetector.Transfer transfer = mTransfer;
+        if (transfer != null) {
+            transfer.cancel();
+        }
     }
 
     @Override
@@ -86,57 +131,128 @@ public class SingleVideoCacheThread implements Runnable {
         }
 
         long requestStart = mRange.getStart();
-        long requestEnd = mRange.getEnd();
+        long requestEnd = getRequestEnd(mRange.getEnd());
         if (requestStart - 10 > 0) {
             requestStart = requestStart - 10;
         }
-        if (requestEnd + 10 < mTotalSize) {
-            requestEnd = requestEnd + 10;
-        }
         long rangeGap = requestEnd - requestStart;
+        boolean split = false;
         mHeaders.put("Range", "bytes=" + requestStart + "-" + requestEnd);
         HttpURLConnection connection = null;
         InputStream inputStream = null;
-        RandomAccessFile randomAccessFile = null;
+        FileChannelWriter writer = null;
+        boolean reusable = false;
+        boolean completed = false;
+        StallDetector.Transfer transfer = mStallDetector != null ? mStallDetector.start(mId, mHedge) : null;
+        mTransfer = transfer;
 
         try {
-            randomAccessFile = new RandomAccessFile(videoFile.getAbsoluteFile(), "rw");
-            randomAccessFile.seek(requestStart);
+            writer = FileChannelWriter.open(videoFile.getAbsoluteFile(), requestStart);
             long cachedSize = 0;
             LogUtils.i(DownloadConstants.TAG, "Request range = " + mRange);
-            connection = HttpUtils.getConnection(mUrl, mHeaders, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+            long requestTime = System.currentTimeMillis();
+            //从0开始的range接手探测请求的连接, 它的响应体就是从0开始的完整内容
+            connection = requestStart == 0 ? HttpConnectionPool.getInstance().takeParkedConnection(mUrl) : null;
+            if (connection == null) {
+                connection = HttpConnectionPool.getInstance().getConnection(mUrl, mHeaders, VideoDownloadUtils.getDownloadConfig().shouldIgnoreCertErrors());
+            }
+            if (transfer != null) {
+                transfer.onConnected(connection);
+            }
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpUtils.RESPONSE_200 && responseCode != HttpUtils.RESPONSE_206) {
+                throw new VideoDownloadException(DownloadExceptionUtils.VIDEO_REQUEST_FAILED, responseCode, HttpUtils.getRetryAfter(connection));
+            }
             inputStream = connection.getInputStream();
             LogUtils.i(DownloadConstants.TAG, "Receive response");
+            long latency = System.currentTimeMillis() - requestTime;
+            long sampleTime = System.currentTimeMillis();
+            long sampleSize = 0;
 
-            byte[] buffer = new byte[VideoDownloadUtils.DEFAULT_BUFFER_SIZE];
-            int readLength;
-            while (mIsRunning && (readLength = inputStream.read(buffer)) != -1) {
-                if (cachedSize + readLength > rangeGap) {
-                    long read = rangeGap - cachedSize;
-                    randomAccessFile.write(buffer, 0, (int)read);
-                    cachedSize = rangeGap;
-                } else {
-                    randomAccessFile.write(buffer, 0, readLength);
+            while (mIsRunning) {
+                long splitGap = mRangeEnd != null ? getRequestEnd(mRangeEnd.get()) - requestStart : rangeGap;
+                if (splitGap < rangeGap) {
+                    //后半段被其他请求拿走了, 已经超过新的结束位置的直接结束
+                    LogUtils.i(DownloadConstants.TAG, "Range id=" + mId + " split, end=" + mRangeEnd.get());
+                    rangeGap = splitGap;
+                    split = true;
+                }
+                if (cachedSize < rangeGap) {
+                    int readLength = writer.read(inputStream, rangeGap - cachedSize);
+                    if (readLength == -1) {
+                        break;
+                    }
                     cachedSize += readLength;
                 }
+                if (cachedSize >= rangeGap) {
+                    writer.flush();
+                }
 
-                notifyOnProgress(cachedSize);
+                //只汇报已经写入文件的部分, 断点和边下边播都依赖这个大小
+                updateCachedSize(mBaseSize + writer.getWrittenPosition() - requestStart);
+                if (transfer != null) {
+                    transfer.onProgress(cachedSize);
+                }
+
+                if (cachedSize - sampleSize >= SAMPLE_SIZE || cachedSize >= rangeGap) {
+                    long now = System.currentTimeMillis();
+                    notifyOnTransferSample(cachedSize - sampleSize, latency, now - sampleTime);
+                    //首字节延迟只在第一次采样时有意义
+                    latency = -1;
+                    sampleTime = now;
+                    sampleSize = cachedSize;
+                }
 
                 if (cachedSize >= rangeGap) {
                     LogUtils.i(DownloadConstants.TAG, "Exceed cachedSize=" + cachedSize +", Range[start=" + requestStart +", end="+requestEnd+"]");
+                    if (transfer != null) {
+                        //先完成的请求生效, 取消同一个range的其他请求
+                        mStallDetector.cancelOthers(transfer);
+                    }
                     notifyOnRangeCompleted();
+                    //拆分之后响应体还有剩下的数据, 不能复用
+                    reusable = !split;
+                    completed = true;
                     break;
                 }
             }
 
+            if (mIsRunning && !completed) {
+                //服务端提前结束了响应, 交给重试处理
+                throw new ProtocolException(DownloadExceptionUtils.PROTOCOL_UNEXPECTED_END_OF_STREAM);
+            }
             mIsRunning = false;
         } catch (Exception e) {
-            notifyOnFailed(e);
+            if (transfer != null && (transfer.isCancelled() || mStallDetector.hasOthers(transfer))) {
+                //被取消了, 或者同一个range的对冲请求还在进行, 由它来完成
+                LogUtils.i(DownloadConstants.TAG, "Range request id=" + mId + " abandoned, exception=" + e);
+            } else {
+                notifyOnFailed(e);
+            }
         } finally {
+            if (transfer != null) {
+                mStallDetector.finish(transfer);
+            }
+            mTransfer = null;
             mIsRunning = false;
+            HttpConnectionPool.getInstance().releaseConnection(connection, reusable);
             VideoDownloadUtils.close(inputStream);
-            VideoDownloadUtils.close(randomAccessFile);
-            HttpUtils.closeConnection(connection);
+            if (writer != null) {
+                //失败或者暂停的时候buffer中剩下的数据在关闭时写入
+                VideoDownloadUtils.close(writer);
+                updateCachedSize(mBaseSize + writer.getWrittenPosition() - requestStart);
+            }
+        }
+    }
+
+    private long getRequestEnd(long end) {
+        //往后多取10个字节, 和下一个range的请求重叠
+        return end + 10 < mTotalSize ? end + 10 : end;
+    }
+
+    private void notifyOnTransferSample(long size, long latency, long duration) {
+        if (mConcurrencyController != null) {
+            mConcurrencyController.onTransferSuccess(size, latency, duration);
         }
     }
 
@@ -144,8 +260,14 @@ public class SingleVideoCacheThread implements Runnable {
         mMsgHandler.post(() -> mListener.onFailed(mRange, mId, e));
     }
 
-    private void notifyOnProgress(long cachedSize) {
-        mMsgHandler.post(() -> mListener.onProgress(mRange, mId, cachedSize));
+    private void updateCachedSize(long size) {
+        if (mCachedSize == null) {
+            return;
+        }
+        //对冲请求和原来的请求都会累加, 取较大的
+        long current;
+        while ((current = mCachedSize.get()) < size && !mCachedSize.compareAndSet(current, size)) {
+        }
     }
 
     private void notifyOnRangeCompleted() {
@@ -0,0 +1,192 @@
+package com.jeffmony.downloader.task;
+
+import com.jeffmony.downloader.common.DownloadConstants;
+import com.jeffmony.downloader.utils.HttpUtils;
+import com.jeffmony.downloader.utils.LogUtils;
+
+import java.net.HttpURLConnection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 检测卡住的分片/Range请求, 并发起对冲请求.
+ *
+ * 根据ConcurrencyController估计的单连接吞吐和首字节延迟, 满足下面任意一个条件认为请求卡住了:
+ * 1.超过 max(MIN_STALL_TIME, STALL_FACTOR * 首字节延迟) 没有收到数据
+ * 2.已经进行了MIN_STALL_TIME, 平均速度低于单连接吞吐的 1/STALL_FACTOR
+ * 每个请求最多对冲一次, 同一个任务同时最多有MAX_HEDGE_COUNT个对冲请求.
+ */
+public class StallDetector {
+
+    public static final long CHECK_INTERVAL = 1000L;
+    private static final long MIN_STALL_TIME = 3000L;
+    private static final float STALL_FACTOR = 4.0f;
+    private static final int MAX_HEDGE_COUNT = 2;
+
+    public interface OnStallListener {
+        /**
+         * 请求卡住了, 需要发起对冲请求
+         * @param transfer 卡住的请求
+         */
+        void onStall(Transfer transfer);
+    }
+
+    private final ConcurrencyController mController;
+    private final OnStallListener mListener;
+    private final Set<Transfer> mTransfers = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    public StallDetector(ConcurrencyController controller, OnStallListener listener) {
+        mController = controller;
+        mListener = listener;
+    }
+
+    /**
+     * @param tag 请求对应的分片, 发起对冲的时候回传给调用方
+     * @param hedge 这个请求本身是否是对冲请求, 对冲请求不会再被对冲
+     */
+    public Transfer start(Object tag, boolean hedge) {
+        Transfer transfer = new Transfer(tag, hedge);
+        mTransfers.add(transfer);
+        return transfer;
+    }
+
+    public void finish(Transfer transfer) {
+        if (transfer != null) {
+            mTransfers.remove(transfer);
+        }
+    }
+
+    /**
+     * 同一个分片的其他请求, 例如对冲请求胜出之后取消原来的请求
+     */
+    public void cancelOthers(Transfer winner) {
+        for (Transfer transfer : mTransfers) {
+            if (transfer != winner && transfer.mTag.equals(winner.mTag)) {
+                transfer.cancel();
+            }
+        }
+    }
+
+    public void cancelAll() {
+        for (Transfer transfer : mTransfers) {
+            transfer.cancel();
+        }
+    }
+
+    /**
+     * 同一个分片是否还有其他在进行的请求
+     */
+    public boolean hasOthers(Transfer transfer) {
+        for (Transfer other : mTransfers) {
+            if (other != transfer && other.mTag.equals(transfer.mTag) && !other.isCancelled()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void check() {
+        float goodput = mController.getGoodput();
+        float latency = mController.getLatency();
+        if (goodput <= 0) {
+            //还没有吞吐的估计值, 无法判断
+            return;
+        }
+        int hedgeCount = 0;
+        for (Transfer transfer : mTransfers) {
+            //已经发起对冲并且还没有结束的请求, 包括对冲请求还在排队的
+            if (transfer.mHedged) {
+                hedgeCount++;
+            }
+        }
+        long now = System.currentTimeMillis();
+        long progressTimeout = Math.max(MIN_STALL_TIME, (long) (STALL_FACTOR * latency));
+        for (Transfer transfer : mTransfers) {
+            if (hedgeCount >= MAX_HEDGE_COUNT) {
+                return;
+            }
+            if (transfer.mHedge || transfer.mHedged || transfer.isCancelled()) {
+                continue;
+            }
+            long elapsed = now - transfer.mStartTime;
+            String reason = null;
+            if (now - transfer.mLastProgressTime > progressTimeout) {
+                reason = "no data for " + (now - transfer.mLastProgressTime) + "ms";
+            } else if (elapsed > MIN_STALL_TIME && transfer.mBytes * STALL_FACTOR < goodput * elapsed) {
+                reason = "speed " + (int) (transfer.mBytes / elapsed) + "B/ms, expected " + (int) goodput + "B/ms";
+            }
+            if (reason != null) {
+                transfer.mHedged = true;
+                hedgeCount++;
+                LogUtils.i(DownloadConstants.TAG, "StallDetector hedge " + transfer.mTag + ", " + reason);
+                try {
+                    mListener.onStall(transfer);
+                } catch (Exception e) {
+                    LogUtils.w(DownloadConstants.TAG, "StallDetector hedge failed, exception=" + e);
+                }
+            }
+        }
+    }
+
+    public static class Transfer {
+        private volatile Object mTag;
+        private final boolean mHedge;
+        private final long mStartTime;
+        private volatile long mLastProgressTime;
+        private volatile long mBytes;
+        private volatile boolean mHedged;
+        private volatile boolean mCancelled;
+        private volatile HttpURLConnection mConnection;
+
+        Transfer(Object tag, boolean hedge) {
+            mTag = tag;
+            mHedge = hedge;
+            mStartTime = System.currentTimeMillis();
+            mLastProgressTime = mStartTime;
+        }
+
+        public Object getTag() {
+            return mTag;
+        }
+
+        /**
+         * 合并的请求写完一个分片之后切换到正在写的分片, 之前的对冲针对的是已经完成的分片, 可以重新对冲
+         */
+        public void setTag(Object tag) {
+            mTag = tag;
+            mHedged = false;
+        }
+
+        public boolean isHedge() {
+            return mHedge;
+        }
+
+        public void onConnected(HttpURLConnection connection) {
+            mConnection = connection;
+            if (mCancelled) {
+                HttpUtils.closeConnection(connection);
+            }
+        }
+
+        public void onProgress(long bytes) {
+            mBytes = bytes;
+            mLastProgressTime = System.currentTimeMillis();
+        }
+
+        /**
+         * 取消请求, 断开连接让阻塞中的读操作立即返回
+         */
+        public void cancel() {
+            mCancelled = true;
+            HttpURLConnection connection = mConnection;
+            if (connection != null) {
+                HttpUtils.closeConnection(connection);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mCancelled;
+        }
+    }
+}
@@ -6,18 +6,22 @@ import com.jeffmony.downloader.utils.VideoDownloadUtils;
 
 import java.io.File;
 import java.util.Map;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ScheduledFuture;
 
 public abstract class VideoDownloadTask {
 
-    protected static final int THREAD_COUNT = 6;
     protected static final int BUFFER_SIZE = VideoDownloadUtils.DEFAULT_BUFFER_SIZE;
     protected final VideoTaskItem mTaskItem;
     protected final String mFinalUrl;
     protected Map<String, String> mHeaders;
     protected File mSaveDir;
     protected String mSaveName;
-    protected ThreadPoolExecutor mDownloadExecutor;
+    protected DownloadScheduler mDownloadScheduler;
+    protected ConcurrencyController mConcurrencyController;
+    protected StallDetector mStallDetector;
+    private ScheduledFuture<?> mStallCheckFuture;
+    private volatile boolean mJobsRunning = false;
+    private int mAppliedWindow;
     protected IDownloadTaskListener mDownloadTaskListener;
     protected volatile boolean mDownloadFinished = false;
     protected final Object mDownloadLock = new Object();
@@ -43,6 +47,22 @@ public abstract class VideoDownloadTask {
         mDownloadTaskListener = listener;
     }
 
+    public void setDownloadScheduler(DownloadScheduler scheduler) {
+        mDownloadScheduler = scheduler;
+    }
+
+    public ConcurrencyController getConcurrencyController() {
+        return mConcurrencyController;
+    }
+
+    /**
+     * 下载管理按这个大小预留磁盘空间
+     * @return 还需要写入磁盘但是还没有分配空间的大小, 不知道的时候返回0
+     */
+    public long getUnallocatedSize() {
+        return 0;
+    }
+
     public abstract void startDownload();
 
     public abstract void resumeDownload();
@@ -56,17 +76,93 @@ public abstract class VideoDownloadTask {
     }
 
     protected void notifyOnTaskFailed(Exception e) {
-        if (mDownloadExecutor != null && mDownloadExecutor.isShutdown()) {
+        if (!stopJobs()) {
             return;
         }
-        mDownloadExecutor.shutdownNow();
         mDownloadTaskListener.onTaskFailed(e);
     }
 
-    protected void setThreadPoolArgument(int corePoolSize, int maxPoolSize) {
-        if (mDownloadExecutor != null && !mDownloadExecutor.isShutdown()) {
-            mDownloadExecutor.setCorePoolSize(corePoolSize);
-            mDownloadExecutor.setMaximumPoolSize(maxPoolSize);
+    /**
+     * 开始向调度器提交请求, 任务的并发受mConcurrencyController的窗口限制
+     */
+    protected void startJobs() {
+        mDownloadScheduler.registerTask(mTaskItem.getUrl(), mConcurrencyController);
+        mJobsRunning = true;
+        if (mStallDetector != null) {
+            cancelStallCheck();
+            mStallCheckFuture = mDownloadScheduler.scheduleWithFixedDelay(() -> mStallDetector.check(), StallDetector.CHECK_INTERVAL);
+        }
+    }
+
+    private void cancelStallCheck() {
+        if (mStallCheckFuture != null) {
+            mStallCheckFuture.cancel(false);
+            mStallCheckFuture = null;
+        }
+    }
+
+    /**
+     * 丢弃调度器中还没开始的请求, 中断正在执行的请求
+     * @return 调用之前任务的请求是否在运行
+     */
+    protected boolean stopJobs() {
+        if (!mJobsRunning) {
+            return false;
+        }
+        mJobsRunning = false;
+        cancelStallCheck();
+        mDownloadScheduler.cancel(mTaskItem.getUrl());
+        if (mStallDetector != null) {
+            mStallDetector.cancelAll();
+        }
+        return true;
+    }
+
+    /**
+     * 任务下载完成, 正在执行的请求结束之后从调度器中移除
+     */
+    protected void finishJobs() {
+        if (mJobsRunning) {
+            mJobsRunning = false;
+            cancelStallCheck();
+            mDownloadScheduler.unregisterTask(mTaskItem.getUrl());
+        }
+    }
+
+    public boolean isJobsRunning() {
+        return mJobsRunning;
+    }
+
+    protected void submitJob(String url, Runnable job) {
+        if (mJobsRunning) {
+            mDownloadScheduler.submit(mTaskItem.getUrl(), url, job);
+        }
+    }
+
+    protected void submitJobFirst(String url, Runnable job) {
+        if (mJobsRunning) {
+            mDownloadScheduler.submitFirst(mTaskItem.getUrl(), url, job);
+        }
+    }
+
+    protected void submitJobDelayed(String url, Runnable job, long delay) {
+        if (mJobsRunning) {
+            mDownloadScheduler.submitDelayed(mTaskItem.getUrl(), url, job, delay);
+        }
+    }
+
+    /**
+     * 并发窗口变大之后, 通知调度器启动排队中的请求
+     */
+    protected void applyConcurrencyWindow() {
+        if (mConcurrencyController != null) {
+            int window = mConcurrencyController.getWindow();
+            if (window != mAppliedWindow) {
+                mAppliedWindow = window;
+                if (mJobsRunning) {
+                    mDownloadScheduler.dispatch();
+                }
+            }
         }
     }
 }
@@ -0,0 +1,97 @@
+package com.jeffmony.downloader.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 写文件用的DirectByteBuffer池.
+ *
+ * 大小按MIN_BUFFER_SIZE的2的幂次分级, 申请的时候向上取整.
+ * DirectByteBuffer的内存不在Java堆上, 创建和回收都比较重, 用完归还之后给下一个下载请求继续使用,
+ * 池中保留的总大小不超过MAX_POOLED_SIZE.
+ */
+public class DirectBufferPool {
+
+    public static final int MIN_BUFFER_SIZE = 64 * 1024;
+    public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+    private static final long MAX_POOLED_SIZE = 8 * 1024 * 1024;
+
+    private static volatile DirectBufferPool sInstance;
+
+    private final ArrayDeque<ByteBuffer>[] mBuffers;
+    private final AtomicLong mPooledSize = new AtomicLong(0);
+    private final AtomicLong mAllocateCount = new AtomicLong(0);
+    private final AtomicLong mAcquireCount = new AtomicLong(0);
+
+    public static DirectBufferPool getInstance() {
+        if (sInstance == null) {
+            synchronized (DirectBufferPool.class) {
+                if (sInstance == null) {
+                    sInstance = new DirectBufferPool();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private DirectBufferPool() {
+        mBuffers = new ArrayDeque[levelOf(MAX_BUFFER_SIZE) + 1];
+        for (int level = 0; level < mBuffers.length; level++) {
+            mBuffers[level] = new ArrayDeque<>();
+        }
+    }
+
+    private static int levelOf(int size) {
+        int level = 0;
+        while (level < 31 && (MIN_BUFFER_SIZE << level) < size) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * @return 大小向上取整到分级的buffer, 超过MAX_BUFFER_SIZE的按MAX_BUFFER_SIZE分配
+     */
+    public ByteBuffer acquire(int size) {
+        int level = levelOf(Math.min(size, MAX_BUFFER_SIZE));
+        mAcquireCount.incrementAndGet();
+        ArrayDeque<ByteBuffer> buffers = mBuffers[level];
+        ByteBuffer buffer;
+        synchronized (buffers) {
+            buffer = buffers.pollFirst();
+        }
+        if (buffer != null) {
+            mPooledSize.addAndGet(-buffer.capacity());
+            return buffer;
+        }
+        mAllocateCount.incrementAndGet();
+        return ByteBuffer.allocateDirect(MIN_BUFFER_SIZE << level);
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        int level = levelOf(buffer.capacity());
+        if (level >= mBuffers.length || (MIN_BUFFER_SIZE << level) != buffer.capacity()) {
+            return;
+        }
+        if (mPooledSize.addAndGet(buffer.capacity()) > MAX_POOLED_SIZE) {
+            //超出上限的交给GC回收
+            mPooledSize.addAndGet(-buffer.capacity());
+            return;
+        }
+        buffer.clear();
+        ArrayDeque<ByteBuffer> buffers = mBuffers[level];
+        synchronized (buffers) {
+            buffers.offerFirst(buffer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DirectBufferPool[acquire=" + mAcquireCount.get() + ", allocate=" + mAllocateCount.get() + ", pooledSize=" + mPooledSize.get() + "]";
+    }
+}
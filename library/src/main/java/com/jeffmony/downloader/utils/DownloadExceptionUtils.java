@@ -3,6 +3,7 @@ package com.jeffmony.downloader.utils;
 import com.jeffmony.downloader.VideoDownloadException;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
@@ -24,6 +25,7 @@ public class DownloadExceptionUtils {
     private static final int MIMETYPE_NULL_ERROR = 5102; // https://api.xiaomingming.org/cloud/h
     private static final int MIMETYPE_NOT_FOUND = 5103; // https://sina.com-h-sina.com/share/fb5ac34d9ac3cc3883230cb5b2b417bb
     public static final int LIVE_M3U8_ERROR = 5104;
+    public static final int STORAGE_NOT_ENOUGH_ERROR = 5105;
 
     public static final String FILE_LENGTH_FETCHED_ERROR_STRING = "File Length Cannot be fetched";
     public static final String M3U8_FILE_CONTENT_ERROR_STRING = "M3U8 File content error";
@@ -37,8 +39,26 @@ public class DownloadExceptionUtils {
     public static final String PROTOCOL_UNEXPECTED_END_OF_STREAM = "unexpected end of stream";
     public static final String RETRY_COUNT_EXCEED_WITH_THREAD_CONTROL_STRING = "Retry count exceeding with thread control";
     public static final String VIDEO_REQUEST_FAILED = "Video request failed";
+    public static final String REMUX_UNSUPPORTED_STREAM = "Remux unsupported stream";
+    public static final String MERGE_SEGMENT_MISSING = "Merge segment file missing";
+    public static final String LIVE_M3U8_ERROR_STRING = "Live M3U8 cannot be cached";
+    public static final String STORAGE_NOT_ENOUGH_STRING = "Storage space not enough";
+
+    /**
+     * 预留空间失败, 或者写文件的时候磁盘已满(Android上是"write failed: ENOSPC (No space left on device)")
+     */
+    public static boolean isStorageNotEnough(Throwable e) {
+        if (e instanceof VideoDownloadException) {
+            return STORAGE_NOT_ENOUGH_STRING.equals(((VideoDownloadException) e).getMsg());
+        }
+        return e instanceof IOException && e.getMessage() != null
+                && (e.getMessage().contains("ENOSPC") || e.getMessage().contains("No space left on device"));
+    }
 
     public static int getErrorCode(Throwable e) {
+        if (isStorageNotEnough(e)) {
+            return STORAGE_NOT_ENOUGH_ERROR;
+        }
         if (e instanceof SocketTimeoutException) {
             return SOCKET_TIMEOUT_ERROR;
         } else if (e instanceof FileNotFoundException) {
@@ -52,6 +72,8 @@ public class DownloadExceptionUtils {
                 return MIMETYPE_NULL_ERROR;
             } else if (((VideoDownloadException) e).getMsg().equals(MIMETYPE_NOT_FOUND_STRING)) {
                 return MIMETYPE_NOT_FOUND;
+            } else if (((VideoDownloadException) e).getMsg().equals(LIVE_M3U8_ERROR_STRING)) {
+                return LIVE_M3U8_ERROR;
             }
         } else if (e instanceof UnknownHostException) {
             return UNKNOWN_HOST_ERROR;
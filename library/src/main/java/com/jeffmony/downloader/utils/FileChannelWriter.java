@@ -0,0 +1,153 @@
+package com.jeffmony.downloader.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 下载数据写文件的统一路径.
+ *
+ * 从输入流读出的数据先攒到DirectBufferPool的DirectByteBuffer中, 攒满之后用FileChannel按位置写入, 不需要seek,
+ * 一次系统调用写入几百K, 代替每读8K写一次.
+ * buffer的大小按上一次写入期间的下载速度调整, 大约攒FLUSH_INTERVAL的数据写一次, 速度慢的时候不会长时间不落盘.
+ * getWrittenPosition只包含已经写入文件的数据, 断点和边下边播的可用长度都应该用它.
+ */
+public class FileChannelWriter implements Closeable {
+
+    private static final long FLUSH_INTERVAL = 100;     // 单位ms
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    //读数据用的临时数组, 下载线程是复用的, 每个线程一个
+    private static final ThreadLocal<byte[]> sReadBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[READ_BUFFER_SIZE];
+        }
+    };
+
+    private final File mFile;
+    private RandomAccessFile mRandomAccessFile;
+    private FileChannel mChannel;
+    private ByteBuffer mBuffer;
+    private long mWrittenPosition;     // 已经写入文件的位置, buffer中的数据从这里开始
+    private long mLastFlushTime;
+
+    private FileChannelWriter(File file, long position, boolean truncate) throws IOException {
+        mFile = file;
+        mRandomAccessFile = new RandomAccessFile(file, "rw");
+        if (truncate) {
+            mRandomAccessFile.setLength(0);
+        }
+        mChannel = mRandomAccessFile.getChannel();
+        mWrittenPosition = position;
+        mBuffer = DirectBufferPool.getInstance().acquire(DirectBufferPool.MIN_BUFFER_SIZE);
+        mLastFlushTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 从position开始写入已经存在的文件, 不改变文件原有的内容
+     */
+    public static FileChannelWriter open(File file, long position) throws IOException {
+        return new FileChannelWriter(file, position, false);
+    }
+
+    /**
+     * 清空文件之后从头写入
+     */
+    public static FileChannelWriter create(File file) throws IOException {
+        return new FileChannelWriter(file, 0, true);
+    }
+
+    /**
+     * 从输入流读一次, 最多读maxLength字节
+     * @return 读到的字节数, 输入流结束时返回-1
+     */
+    public int read(InputStream inputStream, long maxLength) throws IOException {
+        byte[] readBuffer = sReadBuffer.get();
+        int length = (int) Math.min(Math.min(readBuffer.length, maxLength), mBuffer.remaining());
+        int readLength = inputStream.read(readBuffer, 0, length);
+        if (readLength > 0) {
+            mBuffer.put(readBuffer, 0, readLength);
+            if (!mBuffer.hasRemaining()) {
+                flush();
+            }
+        }
+        return readLength;
+    }
+
+    /**
+     * 把buffer中的数据写入文件, 同时按这段时间的下载速度调整buffer的大小
+     */
+    public void flush() throws IOException {
+        if (mBuffer == null || mBuffer.position() == 0) {
+            return;
+        }
+        mBuffer.flip();
+        int size = mBuffer.remaining();
+        try {
+            while (mBuffer.hasRemaining()) {
+                mWrittenPosition += mChannel.write(mBuffer, mWrittenPosition);
+            }
+        } finally {
+            //写入失败的时候没有写完的数据留在buffer中, 关闭的时候再写一次
+            mBuffer.compact();
+        }
+        long now = System.currentTimeMillis();
+        long duration = Math.max(now - mLastFlushTime, 1);
+        mLastFlushTime = now;
+        long targetSize = size * FLUSH_INTERVAL / duration;
+        int capacity = mBuffer.capacity();
+        if (targetSize >= capacity * 2L && capacity < DirectBufferPool.MAX_BUFFER_SIZE) {
+            resize(capacity * 2);
+        } else if (targetSize < capacity / 2 && capacity > DirectBufferPool.MIN_BUFFER_SIZE) {
+            resize(capacity / 2);
+        }
+    }
+
+    private void resize(int size) {
+        DirectBufferPool.getInstance().release(mBuffer);
+        mBuffer = DirectBufferPool.getInstance().acquire(size);
+    }
+
+    /**
+     * @return 包括buffer中还没有写入文件的数据
+     */
+    public long getPosition() {
+        return mWrittenPosition + (mBuffer != null ? mBuffer.position() : 0);
+    }
+
+    public long getWrittenPosition() {
+        return mWrittenPosition;
+    }
+
+    /**
+     * 关闭之前写入buffer中剩下的数据, 失败的下载也保留已经读到的数据.
+     * 暂停的时候下载线程会被中断, FileChannel被中断之后会自动关闭, 这时先清除中断状态, 重新打开文件写入, 再恢复中断状态
+     */
+    @Override
+    public void close() throws IOException {
+        if (mBuffer == null) {
+            return;
+        }
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!mChannel.isOpen() && mBuffer.position() > 0) {
+                VideoDownloadUtils.close(mRandomAccessFile);
+                mRandomAccessFile = new RandomAccessFile(mFile, "rw");
+                mChannel = mRandomAccessFile.getChannel();
+            }
+            flush();
+        } finally {
+            DirectBufferPool.getInstance().release(mBuffer);
+            mBuffer = null;
+            mRandomAccessFile.close();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.jeffmony.downloader.utils;
+
+import com.jeffmony.downloader.VideoDownloadConfig;
+import com.jeffmony.downloader.common.DownloadConstants;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 长连接复用的辅助类.
+ *
+ * HttpURLConnection的socket复用是由系统(Android上是OkHttp)的keep-alive缓存完成的,
+ * 前提是请求不带"Connection: close", 并且响应体被完整读取之后才关闭输入流.
+ * 这个类不持有socket, 只负责:
+ * 1.归还连接的时候剩余数据不多的先读完, 让socket回到系统的keep-alive缓存, 否则直接断开
+ * 2.统计每个请求从建连到收到响应头的耗时(TTFB), 每个host的第一个请求一定要做TCP/TLS握手,
+ *   和之后请求的平均耗时对比, 就是复用连接实际节省的时间
+ * 3.暂存探测请求还没有读取响应体的连接, 交给之后从0开始下载同一个url的请求
+ * 系统缓存的连接上限"http.maxConnections"只在系统的HTTP栈初始化时读取,
+ * 需要在第一个请求之前通过VideoDownloadConfig设置, 同一个host同时进行的请求数由DownloadScheduler限制.
+ */
+public class HttpConnectionPool {
+
+    private static final int MAX_DRAIN_SIZE = 64 * 1024;        // 归还连接时最多丢弃的剩余字节数
+    public static final long PARK_DURATION = 10 * 1000L;        // 暂存的探测连接等待接手的时间
+
+    private static volatile HttpConnectionPool sInstance;
+
+    private final Map<String, HostStats> mHostStats = new ConcurrentHashMap<>();
+    private final Map<String, ParkedConnection> mParkedConnections = new ConcurrentHashMap<>();
+    private final AtomicLong mRequestCount = new AtomicLong(0);
+    private final AtomicLong mKeepAliveCount = new AtomicLong(0);
+    private final AtomicLong mDiscardCount = new AtomicLong(0);
+    private final AtomicLong mEvictCount = new AtomicLong(0);
+    private final AtomicLong mHandoffCount = new AtomicLong(0);
+    private volatile int mMaxConnectionsPerHost = VideoDownloadConfig.DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    public static HttpConnectionPool getInstance() {
+        if (sInstance == null) {
+            synchronized (HttpConnectionPool.class) {
+                if (sInstance == null) {
+                    sInstance = new HttpConnectionPool();
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    private HttpConnectionPool() {
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", String.valueOf(mMaxConnectionsPerHost));
+    }
+
+    public void setMaxConnectionsPerHost(int count) {
+        if (count <= 0) {
+            return;
+        }
+        mMaxConnectionsPerHost = count;
+        //系统的HTTP栈已经初始化之后不一定生效
+        System.setProperty("http.maxConnections", String.valueOf(count));
+    }
+
+    public int getMaxConnectionsPerHost() {
+        return mMaxConnectionsPerHost;
+    }
+
+    /**
+     * 返回的连接已经收到了响应头, 用完之后调用releaseConnection
+     */
+    public HttpURLConnection getConnection(String videoUrl, Map<String, String> headers, boolean shouldIgnoreCertErrors) throws IOException {
+        evictParked(System.currentTimeMillis());
+        String host = new URL(videoUrl).getHost();
+        mRequestCount.incrementAndGet();
+        long requestTime = System.currentTimeMillis();
+        HttpURLConnection connection = HttpUtils.getConnection(videoUrl, headers, shouldIgnoreCertErrors);
+        obtainHostStats(host).record(System.currentTimeMillis() - requestTime);
+        return connection;
+    }
+
+    /**
+     * 归还连接
+     * @param connection
+     * @param reusable 响应体是否已经完整读取, 只有完整读取的连接才能被复用
+     */
+    public void releaseConnection(HttpURLConnection connection, boolean reusable) {
+        if (connection == null) {
+            return;
+        }
+        if (!reusable) {
+            HttpUtils.closeConnection(connection);
+            return;
+        }
+        if (drainAndClose(connection)) {
+            mKeepAliveCount.incrementAndGet();
+        } else {
+            mDiscardCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * 暂存一个已经收到响应头、响应体还没有读取的连接.
+     * 同一个url之前暂存的连接直接断开
+     */
+    public void parkConnection(String url, HttpURLConnection connection) {
+        long now = System.currentTimeMillis();
+        evictParked(now);
+        ParkedConnection oldParked = mParkedConnections.put(url, new ParkedConnection(connection, now));
+        if (oldParked != null) {
+            releaseConnection(oldParked.mConnection, false);
+        }
+    }
+
+    /**
+     * 接手暂存的连接, 用完之后和getConnection得到的连接一样调用releaseConnection
+     * @return 没有暂存或者已经过期返回null
+     */
+    public HttpURLConnection takeParkedConnection(String url) {
+        evictParked(System.currentTimeMillis());
+        ParkedConnection parked = mParkedConnections.remove(url);
+        if (parked == null) {
+            return null;
+        }
+        mRequestCount.incrementAndGet();
+        mHandoffCount.incrementAndGet();
+        LogUtils.i(DownloadConstants.TAG, "HttpConnectionPool handoff parked connection, url=" + url);
+        return parked.mConnection;
+    }
+
+    private void evictParked(long now) {
+        if (mParkedConnections.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<String, ParkedConnection> entry : mParkedConnections.entrySet()) {
+            ParkedConnection parked = entry.getValue();
+            if (now - parked.mParkTime > PARK_DURATION && mParkedConnections.remove(entry.getKey(), parked)) {
+                mEvictCount.incrementAndGet();
+                releaseConnection(parked.mConnection, false);
+            }
+        }
+    }
+
+    private boolean drainAndClose(HttpURLConnection connection) {
+        InputStream inputStream = null;
+        try {
+            inputStream = connection.getInputStream();
+            byte[] buffer = new byte[VideoDownloadUtils.DEFAULT_BUFFER_SIZE];
+            int drained = 0;
+            int len;
+            while ((len = inputStream.read(buffer)) != -1) {
+                drained += len;
+                if (drained > MAX_DRAIN_SIZE) {
+                    //剩余数据太多, 复用不划算
+                    HttpUtils.closeConnection(connection);
+                    return false;
+                }
+            }
+        } catch (IOException e) {
+            //输入流已经被调用方关闭, socket已经交给系统的keep-alive缓存
+        } finally {
+            VideoDownloadUtils.close(inputStream);
+        }
+        return true;
+    }
+
+    private HostStats obtainHostStats(String host) {
+        HostStats stats = mHostStats.get(host);
+        if (stats == null) {
+            stats = new HostStats();
+            HostStats oldStats = mHostStats.putIfAbsent(host, stats);
+            if (oldStats != null) {
+                stats = oldStats;
+            }
+        }
+        return stats;
+    }
+
+    public long getRequestCount() {
+        return mRequestCount.get();
+    }
+
+    /**
+     * @return 响应体读完之后归还给系统keep-alive缓存的连接数
+     */
+    public long getKeepAliveCount() {
+        return mKeepAliveCount.get();
+    }
+
+    public long getDiscardCount() {
+        return mDiscardCount.get();
+    }
+
+    /**
+     * @return 过期没有被接手而断开的暂存连接数
+     */
+    public long getEvictCount() {
+        return mEvictCount.get();
+    }
+
+    /**
+     * @return 接手暂存连接的请求数, 这些请求没有再建连
+     */
+    public long getHandoffCount() {
+        return mHandoffCount.get();
+    }
+
+    /**
+     * @return 每个host第一个请求的平均TTFB, 单位ms, 这些请求一定做了握手, 没有请求返回-1
+     */
+    public long getColdTtfb() {
+        long total = 0;
+        int count = 0;
+        for (HostStats stats : mHostStats.values()) {
+            synchronized (stats) {
+                if (stats.mColdTtfb >= 0) {
+                    total += stats.mColdTtfb;
+                    count++;
+                }
+            }
+        }
+        return count > 0 ? total / count : -1;
+    }
+
+    /**
+     * @return 每个host第一个请求之后的请求的平均TTFB, 单位ms, 没有请求返回-1
+     */
+    public long getWarmTtfb() {
+        long total = 0;
+        long count = 0;
+        for (HostStats stats : mHostStats.values()) {
+            synchronized (stats) {
+                total += stats.mWarmTotalTtfb;
+                count += stats.mWarmCount;
+            }
+        }
+        return count > 0 ? total / count : -1;
+    }
+
+    public String toString() {
+        return "HttpConnectionPool[requests=" + mRequestCount.get() +
+                ", keepAlive=" + mKeepAliveCount.get() +
+                ", discarded=" + mDiscardCount.get() +
+                ", evicted=" + mEvictCount.get() +
+                ", handoff=" + mHandoffCount.get() +
+                ", coldTtfb=" + getColdTtfb() + "ms" +
+                ", warmTtfb=" + getWarmTtfb() + "ms" +
+                "]";
+    }
+
+    private static class ParkedConnection {
+        private final HttpURLConnection mConnection;
+        private final long mParkTime;
+
+        private ParkedConnection(HttpURLConnection connection, long parkTime) {
+            mConnection = connection;
+            mParkTime = parkTime;
+        }
+    }
+
+    private static class HostStats {
+        private long mColdTtfb = -1;
+        private long mWarmTotalTtfb;
+        private long mWarmCount;
+
+        synchronized void record(long ttfb) {
+            if (mColdTtfb < 0) {
+                mColdTtfb = ttfb;
+            } else {
+                mWarmTotalTtfb += ttfb;
+                mWarmCount++;
+            }
+        }
+    }
+}
@@ -29,10 +29,9 @@ public class HttpUtils {
     public static final int RESPONSE_200 = 200;
     public static final int RESPONSE_206 = 206;
 
+    public static final int RESPONSE_429 = 429;
     public static final int RESPONSE_503 = 503;
 
-    private static int sRedirectCount = 0;
-
     public static boolean matchHttpSchema(String url) {
         if (TextUtils.isEmpty(url))
             return false;
@@ -43,8 +42,8 @@ public class HttpUtils {
 
     public static HttpURLConnection getConnection(String videoUrl, Map<String, String> headers, boolean shouldIgnoreCertErrors) throws IOException {
         URL url = new URL(videoUrl);
-        sRedirectCount = 0;
-        while(sRedirectCount < MAX_REDIRECT) {
+        int redirectCount = 0;
+        while(redirectCount < MAX_REDIRECT) {
             try {
                 HttpURLConnection connection = makeConnection(url, headers, shouldIgnoreCertErrors);
                 int responseCode = connection.getResponseCode();
@@ -56,7 +55,7 @@ public class HttpUtils {
                     String location = connection.getHeaderField("Location");
                     connection.disconnect();
                     url = new URL(location);
-                    sRedirectCount++;
+                    redirectCount++;
                 } else {
                     return connection;
                 }
@@ -65,9 +64,11 @@ public class HttpUtils {
                     //这种情况下需要信任证书重试
                     return getConnection(videoUrl, headers, true);
                 }
+                //其他异常交给调用方决定是否重试, 不能在这里无限循环
+                throw e;
             }
         }
-        throw new NoRouteToHostException("Too many redirects: " + sRedirectCount);
+        throw new NoRouteToHostException("Too many redirects: " + redirectCount);
     }
 
     private static URL handleRedirect(URL originalUrl, String location) throws IOException {
@@ -99,6 +100,23 @@ public class HttpUtils {
         return connection;
     }
 
+    /**
+     * 解析响应头中的Retry-After, 支持秒数和HTTP日期两种格式
+     * @return 需要等待的时间, 单位ms, 没有这个响应头返回-1
+     */
+    public static long getRetryAfter(HttpURLConnection connection) {
+        String retryAfter = connection.getHeaderField("Retry-After");
+        if (TextUtils.isEmpty(retryAfter)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(retryAfter.trim()) * 1000;
+        } catch (NumberFormatException e) {
+            long date = connection.getHeaderFieldDate("Retry-After", 0);
+            return date > 0 ? Math.max(0, date - System.currentTimeMillis()) : -1;
+        }
+    }
+
     public static void closeConnection(HttpURLConnection connection) {
         if (connection != null) {
             connection.disconnect();
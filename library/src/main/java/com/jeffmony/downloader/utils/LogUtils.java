@@ -15,6 +15,10 @@ public class LogUtils {
         sLogLevel = level;
     }
 
+    public static boolean isDebugEnabled() {
+        return sLogLevel <= LOG_DEBUG;
+    }
+
     public static void d(String tag, String msg) {
         if (sLogLevel <= LOG_DEBUG)
             Log.d(tag, msg);
@@ -24,9 +24,13 @@ public class VideoDownloadUtils {
     public static final String LOCAL_M3U8_WITH_KEY = "local_key_url.m3u8";
     public static final String REMOTE_M3U8 = "remote.m3u8";
     public static final String OUTPUT_VIDEO = "merged.mp4";
+    public static final String OUTPUT_TS_VIDEO = "merged.ts";
     public static final String SEGMENT_PREFIX = "video_";
     public static final String INIT_SEGMENT_PREFIX = "init_video_";
+    public static final String LOCAL_KEY_PREFIX = "local_";
     public static final String INFO_FILE = "range.info";
+    public static final String RANGE_CHECKPOINT_FILE = "range.checkpoint";
+    public static final String SEG_BITMAP_FILE = "segment.bitmap";
 
     private static final Object sInfoFileLock = new Object();
 
@@ -1,9 +1,16 @@
 package com.jeffmony.downloader.utils;
 
 import android.content.Context;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import com.jeffmony.downloader.VideoDownloadException;
+import com.jeffmony.downloader.common.DownloadConstants;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.text.DecimalFormat;
 
 public class VideoStorageUtils {
@@ -62,6 +69,30 @@ public class VideoStorageUtils {
         }
     }
 
+    /**
+     * 按文件长度预先分配磁盘空间, 多个range写入的时候不会产生稀疏和碎片化的文件, 空间不足的时候开始下载前就失败.
+     * 文件系统不支持fallocate的时候退化为setLength, 只设置文件长度.
+     */
+    public static void preallocate(File file, long length) throws IOException, VideoDownloadException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() >= length) {
+                return;
+            }
+            try {
+                Os.posix_fallocate(randomAccessFile.getFD(), 0, length);
+            } catch (ErrnoException e) {
+                if (e.errno == OsConstants.ENOSPC) {
+                    throw new VideoDownloadException(DownloadExceptionUtils.STORAGE_NOT_ENOUGH_STRING, e);
+                }
+                LogUtils.i(DownloadConstants.TAG, "posix_fallocate unsupported, errno=" + e.errno + ", file=" + file.getAbsolutePath());
+                randomAccessFile.setLength(length);
+            }
+        } finally {
+            VideoDownloadUtils.close(randomAccessFile);
+        }
+    }
+
     public static String getSizeStr(long size) {
         StringBuffer sb = new StringBuffer();
         DecimalFormat format = new DecimalFormat("###.00");